@@ -7,19 +7,15 @@ public class FFmpegTest {
     }
 
     /**
-     * 调用native方法，开始解码
+     * 调用native方法，在当前线程解码整个文件，输出 16 位 44100Hz 立体声 PCM。
+     * <p>
+     * 解码结果写入 {@link PcmPipe} 的直接缓冲区，由另一个线程通过 {@link PcmPipe#take()} 读取；
+     * 所有缓冲区都未归还时解码会阻塞。返回前会结束管道，错误码也可以通过
+     * {@link PcmPipe#getError()} 取得。
      *
-     * @param path     音乐文件路径
-     * @param callback pcm数组回调
+     * @param path 音乐文件路径
+     * @param pipe pcm输出管道
+     * @return 0 表示成功，负值为 FFmpeg 错误码
      */
-    public native static void play(String path, FFmpegCallback callback);
-
-    public interface FFmpegCallback {
-        /**
-         * 回调pcm数组
-         *
-         * @param pcm pcm数据
-         */
-        void pcm(byte[] pcm);
-    }
+    public native static int decode(String path, PcmPipe pipe);
 }
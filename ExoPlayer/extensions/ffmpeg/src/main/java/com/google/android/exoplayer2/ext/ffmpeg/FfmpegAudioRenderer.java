@@ -43,6 +43,7 @@ public final class FfmpegAudioRenderer extends SimpleDecoderAudioRenderer {
   private static final int DEFAULT_INPUT_BUFFER_SIZE = 960 * 6;
 
   private final boolean enableFloatOutput;
+  private final long maxOutputBatchDurationUs;
 
   private @MonotonicNonNull FfmpegDecoder decoder;
 
@@ -82,6 +83,33 @@ public final class FfmpegAudioRenderer extends SimpleDecoderAudioRenderer {
       @Nullable AudioRendererEventListener eventListener,
       AudioSink audioSink,
       boolean enableFloatOutput) {
+    this(
+        eventHandler,
+        eventListener,
+        audioSink,
+        enableFloatOutput,
+        /* maxOutputBatchDurationUs= */ 0);
+  }
+
+  /**
+   * @param eventHandler A handler to use when delivering events to {@code eventListener}. May be
+   *     null if delivery of events is not required.
+   * @param eventListener A listener of events. May be null if delivery of events is not required.
+   * @param audioSink The sink to which audio will be output.
+   * @param enableFloatOutput Whether to enable 32-bit float audio format, if supported on the
+   *     device/build and if the input format may have bit depth higher than 16-bit. When using
+   *     32-bit float output, any audio processing will be disabled, including playback speed/pitch
+   *     adjustment.
+   * @param maxOutputBatchDurationUs The maximum duration of audio, in microseconds, that the decoder
+   *     may accumulate from consecutive packets into a single output buffer, or 0 to output one
+   *     buffer per packet. Batching reduces per-buffer overhead for codecs with short frames.
+   */
+  public FfmpegAudioRenderer(
+      @Nullable Handler eventHandler,
+      @Nullable AudioRendererEventListener eventListener,
+      AudioSink audioSink,
+      boolean enableFloatOutput,
+      long maxOutputBatchDurationUs) {
     super(
         eventHandler,
         eventListener,
@@ -89,6 +117,7 @@ public final class FfmpegAudioRenderer extends SimpleDecoderAudioRenderer {
         /* playClearSamplesWithoutKeys= */ false,
         audioSink);
     this.enableFloatOutput = enableFloatOutput;
+    this.maxOutputBatchDurationUs = maxOutputBatchDurationUs;
   }
 
   @Override
@@ -119,7 +148,12 @@ public final class FfmpegAudioRenderer extends SimpleDecoderAudioRenderer {
         format.maxInputSize != Format.NO_VALUE ? format.maxInputSize : DEFAULT_INPUT_BUFFER_SIZE;
     decoder =
         new FfmpegDecoder(
-            NUM_BUFFERS, NUM_BUFFERS, initialInputBufferSize, format, shouldUseFloatOutput(format));
+            NUM_BUFFERS,
+            NUM_BUFFERS,
+            initialInputBufferSize,
+            format,
+            shouldUseFloatOutput(format),
+            maxOutputBatchDurationUs);
     return decoder;
   }
 
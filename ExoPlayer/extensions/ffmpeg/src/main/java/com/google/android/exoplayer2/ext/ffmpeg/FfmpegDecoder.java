@@ -19,8 +19,8 @@ import android.support.annotation.Nullable;
 
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.decoder.AppendingSimpleDecoder;
 import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
-import com.google.android.exoplayer2.decoder.SimpleDecoder;
 import com.google.android.exoplayer2.decoder.SimpleOutputBuffer;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.MimeTypes;
@@ -32,8 +32,8 @@ import java.util.List;
 /**
  * FFmpeg audio decoder.
  */
-/* package */ final class FfmpegDecoder extends
-        SimpleDecoder<DecoderInputBuffer, SimpleOutputBuffer, FfmpegDecoderException> {
+public final class FfmpegDecoder extends
+        AppendingSimpleDecoder<DecoderInputBuffer, SimpleOutputBuffer, FfmpegDecoderException> {
 
     // Output buffer sizes when decoding PCM mu-law streams, which is the maximum FFmpeg outputs.
     private static final int OUTPUT_BUFFER_SIZE_16BIT = 65536;
@@ -45,6 +45,13 @@ import java.util.List;
     private final @C.Encoding
     int encoding;
     private final int outputBufferSize;
+    // The number of bytes of output that may be accumulated in one output buffer before it is queued,
+    // or 0 if consecutive packets are not batched.
+    private final int maxBatchSize;
+
+    // Direct buffers whose native addresses are cached in the native context, indexed by slot.
+    private final ByteBuffer[] registeredBuffers;
+    private int nextBufferSlot;
 
     private long nativeContext; // May be reassigned on resetting the codec.
     private boolean hasOutputFormat;
@@ -56,9 +63,11 @@ import java.util.List;
             int numOutputBuffers,
             int initialInputBufferSize,
             Format format,
-            boolean outputFloat)
+            boolean outputFloat,
+            long maxBatchDurationUs)
             throws FfmpegDecoderException {
-        super(new DecoderInputBuffer[numInputBuffers], new SimpleOutputBuffer[numOutputBuffers]);
+        super(new DecoderInputBuffer[numInputBuffers], new SimpleOutputBuffer[numOutputBuffers],
+                /* useLockFreeQueues= */ true);
         if (!FfmpegLibrary.isAvailable()) {
             throw new FfmpegDecoderException("Failed to load decoder native libraries.");
         }
@@ -69,8 +78,18 @@ import java.util.List;
         extraData = getExtraData(format.sampleMimeType, format.initializationData);
         encoding = outputFloat ? C.ENCODING_PCM_FLOAT : C.ENCODING_PCM_16BIT;
         outputBufferSize = outputFloat ? OUTPUT_BUFFER_SIZE_32BIT : OUTPUT_BUFFER_SIZE_16BIT;
+        if (maxBatchDurationUs > 0 && format.sampleRate != Format.NO_VALUE
+                && format.channelCount != Format.NO_VALUE) {
+            int bytesPerFrame = format.channelCount * (outputFloat ? 4 : 2);
+            maxBatchSize = (int) (maxBatchDurationUs * format.sampleRate / C.MICROS_PER_SECOND)
+                    * bytesPerFrame;
+        } else {
+            maxBatchSize = 0;
+        }
+        registeredBuffers = new ByteBuffer[numInputBuffers + numOutputBuffers];
         nativeContext =
-                ffmpegInitialize(codecName, extraData, outputFloat, format.sampleRate, format.channelCount);
+                ffmpegInitialize(codecName, extraData, outputFloat, format.sampleRate, format.channelCount,
+                        registeredBuffers.length);
         if (nativeContext == 0) {
             throw new FfmpegDecoderException("Initialization failed.");
         }
@@ -107,12 +126,10 @@ import java.util.List;
                 return new FfmpegDecoderException("Error resetting (see logcat).");
             }
         }
-        ByteBuffer inputData = inputBuffer.data;
-        int inputSize = inputData.limit();
-        ByteBuffer outputData = outputBuffer.init(inputBuffer.timeUs, outputBufferSize);
-        int result = ffmpegDecode(nativeContext, inputData, inputSize, outputData, outputBufferSize);
-        if (result < 0) {
-            return new FfmpegDecoderException("Error decoding (see logcat). Code: " + result);
+        outputBuffer.init(inputBuffer.timeUs, outputBufferSize + maxBatchSize);
+        FfmpegDecoderException exception = decodeAt(inputBuffer, outputBuffer, /* outputOffset= */ 0);
+        if (exception != null) {
+            return exception;
         }
         if (!hasOutputFormat) {
             channelCount = ffmpegGetChannelCount(nativeContext);
@@ -127,11 +144,23 @@ import java.util.List;
             }
             hasOutputFormat = true;
         }
-        outputBuffer.data.position(0);
-        outputBuffer.data.limit(result);
         return null;
     }
 
+    @Override
+    protected boolean canAppendToOutputBuffer(SimpleOutputBuffer outputBuffer) {
+        // The output buffer has room for outputBufferSize more bytes while it holds less than
+        // maxBatchSize bytes, so a packet can always be appended without running out of space.
+        return hasOutputFormat && outputBuffer.data.limit() < maxBatchSize;
+    }
+
+    @Override
+    protected @Nullable
+    FfmpegDecoderException appendToOutputBuffer(
+            DecoderInputBuffer inputBuffer, SimpleOutputBuffer outputBuffer) {
+        return decodeAt(inputBuffer, outputBuffer, outputBuffer.data.limit());
+    }
+
     @Override
     public void release() {
         super.release();
@@ -139,6 +168,58 @@ import java.util.List;
         nativeContext = 0;
     }
 
+    /**
+     * Decodes {@code inputBuffer} into {@code outputBuffer} starting at {@code outputOffset}, and
+     * sets the output buffer's limit to the end of the decoded data.
+     */
+    private @Nullable
+    FfmpegDecoderException decodeAt(
+            DecoderInputBuffer inputBuffer, SimpleOutputBuffer outputBuffer, int outputOffset) {
+        ByteBuffer inputData = inputBuffer.data;
+        ByteBuffer outputData = outputBuffer.data;
+        int inputSlot = getBufferSlot(inputData, C.INDEX_UNSET);
+        int outputSlot = getBufferSlot(outputData, inputSlot);
+        if (inputSlot == C.INDEX_UNSET || outputSlot == C.INDEX_UNSET) {
+            return new FfmpegDecoderException("Error registering buffers (see logcat).");
+        }
+        int result = ffmpegDecode(nativeContext, inputSlot, inputData.limit(), outputSlot,
+                outputOffset, outputData.capacity() - outputOffset);
+        if (result < 0) {
+            return new FfmpegDecoderException("Error decoding (see logcat). Code: " + result);
+        }
+        outputData.position(0);
+        outputData.limit(outputOffset + result);
+        return null;
+    }
+
+    /**
+     * Returns the slot in which the native address of {@code buffer} is cached, registering it if
+     * the buffer was not seen before (or was replaced by a larger one), or {@link C#INDEX_UNSET} if
+     * registration failed. Slots are reused round-robin, so buffers that are no longer in use are
+     * eventually released.
+     *
+     * @param buffer The direct buffer.
+     * @param inUseSlot A slot that must not be reused, or {@link C#INDEX_UNSET}.
+     */
+    private int getBufferSlot(ByteBuffer buffer, int inUseSlot) {
+        for (int i = 0; i < registeredBuffers.length; i++) {
+            if (registeredBuffers[i] == buffer) {
+                return i;
+            }
+        }
+        int slot = nextBufferSlot;
+        if (slot == inUseSlot) {
+            slot = (slot + 1) % registeredBuffers.length;
+        }
+        nextBufferSlot = (slot + 1) % registeredBuffers.length;
+        registeredBuffers[slot] = null;
+        if (!ffmpegRegisterBuffer(nativeContext, slot, buffer)) {
+            return C.INDEX_UNSET;
+        }
+        registeredBuffers[slot] = buffer;
+        return slot;
+    }
+
     /**
      * Returns the channel count of output audio. May only be called after {@link #decode}.
      */
@@ -196,10 +277,13 @@ import java.util.List;
             @Nullable byte[] extraData,
             boolean outputFloat,
             int rawSampleRate,
-            int rawChannelCount);
+            int rawChannelCount,
+            int bufferSlotCount);
+
+    private native boolean ffmpegRegisterBuffer(long context, int slot, ByteBuffer buffer);
 
-    private native int ffmpegDecode(long context, ByteBuffer inputData, int inputSize,
-                                    ByteBuffer outputData, int outputSize);
+    private native int ffmpegDecode(long context, int inputSlot, int inputSize, int outputSlot,
+                                    int outputOffset, int outputSize);
 
     private native int ffmpegGetChannelCount(long context);
 
@@ -0,0 +1,176 @@
+package com.google.android.exoplayer2.ext.ffmpeg;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.util.Assertions;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 固定数量直接缓冲区组成的单生产者/单消费者 PCM 环形管道。
+ * <p>
+ * 解码线程（生产者）通过 native 代码直接写入缓冲区，写满后发布；消费者依次 {@link #take()}
+ * 得到只读视图，处理完后 {@link #release()} 归还。所有缓冲区都在使用时生产者会阻塞，从而形成背压，
+ * 整个解码过程中不会分配新的缓冲区。
+ */
+public final class PcmPipe {
+
+    private static final long PARK_NANOS = 1000 * 1000;
+
+    private final ByteBuffer[] buffers;
+    /**
+     * 每个缓冲区对应的只读视图，创建时分配一次，{@link #take()} 时只重置 position 和 limit
+     */
+    private final ByteBuffer[] views;
+    private final int[] sizes;
+    private final int bufferSize;
+
+    /**
+     * 已发布的缓冲区数量，只由生产者写入
+     */
+    private final AtomicLong publishedCount;
+    /**
+     * 已归还的缓冲区数量，只由消费者写入
+     */
+    private final AtomicLong releasedCount;
+
+    private volatile boolean ended;
+    private volatile boolean closed;
+    private volatile int error;
+    private volatile @Nullable
+    Thread producerThread;
+    private volatile @Nullable
+    Thread consumerThread;
+    private boolean taken;
+
+    /**
+     * @param bufferCount 缓冲区数量，至少为 2
+     * @param bufferSize  每个缓冲区的字节数
+     */
+    public PcmPipe(int bufferCount, int bufferSize) {
+        Assertions.checkArgument(bufferCount >= 2);
+        Assertions.checkArgument(bufferSize > 0);
+        this.bufferSize = bufferSize;
+        buffers = new ByteBuffer[bufferCount];
+        views = new ByteBuffer[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder());
+            views[i] = buffers[i].asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+        sizes = new int[bufferCount];
+        publishedCount = new AtomicLong();
+        releasedCount = new AtomicLong();
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 阻塞直到有已填充的缓冲区，返回其只读视图，position 为 0，limit 为数据长度。
+     * 视图在 {@link #release()} 之前有效。
+     *
+     * @return 下一个缓冲区，解码结束或管道关闭时返回 null
+     */
+    public @Nullable
+    ByteBuffer take() throws InterruptedException {
+        Assertions.checkState(!taken);
+        consumerThread = Thread.currentThread();
+        long index = releasedCount.get();
+        while (publishedCount.get() <= index) {
+            if (ended || closed) {
+                // 结束标志在最后一次发布之后写入，需要再检查一次
+                if (publishedCount.get() <= index) {
+                    return null;
+                }
+                break;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        int slot = (int) (index % buffers.length);
+        ByteBuffer view = views[slot];
+        view.clear();
+        view.limit(sizes[slot]);
+        taken = true;
+        return view;
+    }
+
+    /**
+     * 归还由 {@link #take()} 得到的缓冲区，使生产者可以重新写入。
+     */
+    public void release() {
+        Assertions.checkState(taken);
+        taken = false;
+        releasedCount.lazySet(releasedCount.get() + 1);
+        Thread producer = producerThread;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * 关闭管道，正在等待的生产者会停止解码。
+     */
+    public void close() {
+        closed = true;
+        Thread producer = producerThread;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    /**
+     * 返回解码出错时的错误码，没有错误时返回 0。应在 {@link #take()} 返回 null 之后调用。
+     */
+    public int getError() {
+        return error;
+    }
+
+    // 以下方法由 native 解码线程调用。
+
+    /* package */ ByteBuffer[] getBuffers() {
+        return buffers;
+    }
+
+    /**
+     * 阻塞直到有空闲的缓冲区，返回其序号；管道已关闭时返回 -1。
+     */
+    /* package */ int acquire() {
+        producerThread = Thread.currentThread();
+        long index = publishedCount.get();
+        while (index - releasedCount.get() >= buffers.length) {
+            if (closed) {
+                return -1;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        return closed ? -1 : (int) (index % buffers.length);
+    }
+
+    /**
+     * 发布由 {@link #acquire()} 得到的缓冲区。
+     */
+    /* package */ void publish(int slot, int size) {
+        sizes[slot] = size;
+        publishedCount.lazySet(publishedCount.get() + 1);
+        Thread consumer = consumerThread;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /* package */ void end(int error) {
+        this.error = error;
+        ended = true;
+        Thread consumer = consumerThread;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+}
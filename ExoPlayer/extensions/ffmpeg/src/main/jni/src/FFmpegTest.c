@@ -1,155 +1,238 @@
 
 
-
 #include <libavformat/avformat.h>
 #include <libswresample/swresample.h>
 #include <jni.h>
 #include <android/log.h>
-#include <unistd.h>
 
 
 #define LOG_TAG "ffmpeg"
 #define LOGE(...) ((void)__android_log_print(ANDROID_LOG_ERROR, LOG_TAG, \
                    __VA_ARGS__))
-#define MAX_AUDIO_FRAME_SIZE (48000 * 4)
-char *error;
+#define ERROR_STRING_BUFFER_LENGTH 64
+//输出格式：16bit 44100 立体声
+#define OUT_SAMPLE_FMT AV_SAMPLE_FMT_S16
+#define OUT_SAMPLE_RATE 44100
+#define OUT_CH_LAYOUT AV_CH_LAYOUT_STEREO
+#define OUT_BYTES_PER_SAMPLE 4
 
 void logError(int errorNum) {
-    av_make_error_string(error, 64, errorNum);
+    char error[ERROR_STRING_BUFFER_LENGTH];
+    av_make_error_string(error, ERROR_STRING_BUFFER_LENGTH, errorNum);
     LOGE("%s", error);
-    free(error);
 }
 
-JNIEXPORT void JNICALL Java_com_google_android_exoplayer2_ext_ffmpeg_FFmpegTest_play
-        (JNIEnv *env, jclass type, jstring input_jstr, jobject callback) {
+/**
+ * PcmPipe 的生产者状态，缓冲区地址在开始时解析一次
+ */
+typedef struct {
+    JNIEnv *env;
+    jobject pipe;
+    jmethodID acquireID;
+    jmethodID publishID;
+    uint8_t **addresses;
+    //每个缓冲区可容纳的采样数
+    int capacity;
+    //当前缓冲区序号，-1 表示管道已关闭
+    int slot;
+    //当前缓冲区已写入的采样数
+    int written;
+} PipeWriter;
+
+static int acquire(PipeWriter *writer) {
+    writer->slot = (*writer->env)->CallIntMethod(writer->env, writer->pipe, writer->acquireID);
+    writer->written = 0;
+    return writer->slot;
+}
+
+static void publish(PipeWriter *writer) {
+    if (writer->slot >= 0 && writer->written > 0) {
+        (*writer->env)->CallVoidMethod(writer->env, writer->pipe, writer->publishID,
+                                       writer->slot, writer->written * OUT_BYTES_PER_SAMPLE);
+    }
+}
+
+/**
+ * 重采样 frame（为 NULL 时取出重采样器中剩余的数据）并写入管道，缓冲区写满时发布并获取下一个。
+ * 管道关闭时返回 -1。
+ */
+static int writeFrame(PipeWriter *writer, SwrContext *swrCtx, AVFrame *frame) {
+    const uint8_t **in = frame ? (const uint8_t **) frame->extended_data : NULL;
+    int inCount = frame ? frame->nb_samples : 0;
+    while (1) {
+        if (writer->written == writer->capacity) {
+            publish(writer);
+            if (acquire(writer) < 0) {
+                return -1;
+            }
+        }
+        uint8_t *out = writer->addresses[writer->slot] + writer->written * OUT_BYTES_PER_SAMPLE;
+        int converted = swr_convert(swrCtx, &out, writer->capacity - writer->written,
+                                    in, inCount);
+        if (converted < 0) {
+            logError(converted);
+            return converted;
+        }
+        writer->written += converted;
+        in = NULL;
+        inCount = 0;
+        //输出未写满说明重采样器中已没有剩余数据
+        if (writer->written < writer->capacity) {
+            return 0;
+        }
+    }
+}
+
+JNIEXPORT jint JNICALL Java_com_google_android_exoplayer2_ext_ffmpeg_FFmpegTest_decode
+        (JNIEnv *env, jclass type, jstring input_jstr, jobject pipe) {
+    jclass pipeClass = (*env)->GetObjectClass(env, pipe);
+    jmethodID endID = (*env)->GetMethodID(env, pipeClass, "end", "(I)V");
+    PipeWriter writer = {
+            .env = env,
+            .pipe = pipe,
+            .acquireID = (*env)->GetMethodID(env, pipeClass, "acquire", "()I"),
+            .publishID = (*env)->GetMethodID(env, pipeClass, "publish", "(II)V"),
+            .capacity = (*env)->CallIntMethod(env, pipe,
+                                              (*env)->GetMethodID(env, pipeClass,
+                                                                  "getBufferSize", "()I"))
+                        / OUT_BYTES_PER_SAMPLE,
+            .slot = -1,
+    };
+    if (writer.capacity <= 0) {
+        LOGE("Pipe buffers are too small.");
+        (*env)->CallVoidMethod(env, pipe, endID, AVERROR(EINVAL));
+        return AVERROR(EINVAL);
+    }
+    //缓冲区地址只解析一次
+    jobjectArray buffers = (jobjectArray) (*env)->CallObjectMethod(
+            env, pipe, (*env)->GetMethodID(env, pipeClass, "getBuffers",
+                                           "()[Ljava/nio/ByteBuffer;"));
+    jsize bufferCount = (*env)->GetArrayLength(env, buffers);
+    writer.addresses = (uint8_t **) av_malloc_array(bufferCount, sizeof(uint8_t *));
+    if (!writer.addresses) {
+        (*env)->CallVoidMethod(env, pipe, endID, AVERROR(ENOMEM));
+        return AVERROR(ENOMEM);
+    }
+    for (int i = 0; i < bufferCount; i++) {
+        jobject buffer = (*env)->GetObjectArrayElement(env, buffers, i);
+        writer.addresses[i] = (uint8_t *) (*env)->GetDirectBufferAddress(env, buffer);
+        (*env)->DeleteLocalRef(env, buffer);
+    }
 
-    //回调方法的id
-    jmethodID callMID = (*env)->GetMethodID(env,
-                                            (*env)->GetObjectClass(env, callback),
-                                            "pcm",
-                                            "([B)V");
-    //Java空间传入的String 转为数组指针
     const char *input_cstr = (*env)->GetStringUTFChars(env, input_jstr, 0);
+    AVFormatContext *pFormatCtx = NULL;
+    AVCodecContext *codecCtx = NULL;
+    SwrContext *swrCtx = NULL;
+    AVPacket *packet = NULL;
+    AVFrame *frame = NULL;
+    int ret;
     //注册所有组件
     av_register_all();
-    //申请AVFormatContext内存空间
-    AVFormatContext *pFormatCtx = avformat_alloc_context();
     //打开音频文件，并且初始化AVFormatContext
-    int open = avformat_open_input(&pFormatCtx, input_cstr, NULL, NULL);
-    if (open != 0) {
-        logError(open);
-        return;
+    ret = avformat_open_input(&pFormatCtx, input_cstr, NULL, NULL);
+    (*env)->ReleaseStringUTFChars(env, input_jstr, input_cstr);
+    if (ret != 0) {
+        logError(ret);
+        goto end;
     }
     //获取输入流信息
-    open = avformat_find_stream_info(pFormatCtx, NULL);
-    if (open) {
-        logError(open);
-        return;
+    ret = avformat_find_stream_info(pFormatCtx, NULL);
+    if (ret < 0) {
+        logError(ret);
+        goto end;
     }
-    //获取音频流索引
-    int i = 0, audio_stream_idx = -1;
-    for (; i < pFormatCtx->nb_streams; i++) {
-        if (pFormatCtx->streams[i]->codec->codec_type == AVMEDIA_TYPE_AUDIO) {
-            audio_stream_idx = i;
-            break;
-        }
+    //获取音频流索引和解码器
+    AVCodec *codec = NULL;
+    int audio_stream_idx = av_find_best_stream(pFormatCtx, AVMEDIA_TYPE_AUDIO, -1, -1, &codec, 0);
+    if (audio_stream_idx < 0) {
+        ret = audio_stream_idx;
+        logError(ret);
+        goto end;
     }
-
-    //获取音频解码器上下文
-    AVCodecContext *codecCtx = pFormatCtx->streams[audio_stream_idx]->codec;
-    //通过codec_id初始化解码器
-    AVCodec *codec = avcodec_find_decoder(codecCtx->codec_id);
-    if (codec == NULL) {
-        logError(open);
-        return;
+    codecCtx = avcodec_alloc_context3(codec);
+    if (!codecCtx) {
+        ret = AVERROR(ENOMEM);
+        goto end;
     }
+    avcodec_parameters_to_context(codecCtx, pFormatCtx->streams[audio_stream_idx]->codecpar);
     //打开解码器
-    open = avcodec_open2(codecCtx, codec, NULL);
-    if (open < 0) {
-        logError(open);
-        return;
+    ret = avcodec_open2(codecCtx, codec, NULL);
+    if (ret < 0) {
+        logError(ret);
+        goto end;
     }
-    //申请
-    AVPacket *packet = (AVPacket *) av_malloc(sizeof(AVPacket));
-    //申请帧内存空间
-    AVFrame *frame = av_frame_alloc();
-
-    //frame->16bit 44100 PCM 统一音频采样格式与采样率
-    //申请重采样上下文内存空间
-    SwrContext *swrCtx = swr_alloc();
-
-    //输入的采样格式
-    enum AVSampleFormat in_sample_fmt = codecCtx->sample_fmt;
-    //输出采样格式16bit PCM
-    enum AVSampleFormat out_sample_fmt = AV_SAMPLE_FMT_S16;
-    //输入采样率
-    int in_sample_rate = codecCtx->sample_rate;
-    //输出采样率
-    int out_sample_rate = 44100;
-    //输入声道布局
-    uint64_t in_ch_layout = codecCtx->channel_layout;
-    //输出的声道布局（立体声）
-    uint64_t out_ch_layout = AV_CH_LAYOUT_STEREO;
-    //应用重采样上下文的设置
-    swr_alloc_set_opts(swrCtx,
-                       out_ch_layout, out_sample_fmt, out_sample_rate,
-                       in_ch_layout, in_sample_fmt, in_sample_rate,
-                       0, NULL);
-    //初始化重采样
-    swr_init(swrCtx);
-    //输出的声道个数
-    int out_channel_nb = av_get_channel_layout_nb_channels(out_ch_layout);
-    //输出缓冲区
-    uint8_t *out_buffer = (uint8_t *) av_malloc(MAX_AUDIO_FRAME_SIZE);
-    int got_frame = 0, index = 0, ret;
-    //循环读帧
-    while (av_read_frame(pFormatCtx, packet) >= 0) {
-        //解码音频类型的Packet
-        if (packet->stream_index == audio_stream_idx) {
-            //解码
-            ret = avcodec_decode_audio4(codecCtx, frame, &got_frame, packet);
+    uint64_t in_ch_layout = codecCtx->channel_layout
+                            ? codecCtx->channel_layout
+                            : (uint64_t) av_get_default_channel_layout(codecCtx->channels);
+    //统一为16bit 44100 立体声
+    swrCtx = swr_alloc_set_opts(NULL,
+                                OUT_CH_LAYOUT, OUT_SAMPLE_FMT, OUT_SAMPLE_RATE,
+                                in_ch_layout, codecCtx->sample_fmt, codecCtx->sample_rate,
+                                0, NULL);
+    if (!swrCtx || (ret = swr_init(swrCtx)) < 0) {
+        ret = swrCtx ? ret : AVERROR(ENOMEM);
+        logError(ret);
+        goto end;
+    }
+    //packet 和 frame 在整个解码过程中复用
+    packet = av_packet_alloc();
+    frame = av_frame_alloc();
+    if (!packet || !frame) {
+        ret = AVERROR(ENOMEM);
+        goto end;
+    }
+    if (acquire(&writer) < 0) {
+        ret = 0;
+        goto end;
+    }
+    //循环读帧，读完后送入空包取出解码器中剩余的帧
+    int eof = 0;
+    while (!eof) {
+        ret = av_read_frame(pFormatCtx, packet);
+        if (ret < 0) {
+            eof = 1;
+            ret = avcodec_send_packet(codecCtx, NULL);
+        } else if (packet->stream_index == audio_stream_idx) {
+            ret = avcodec_send_packet(codecCtx, packet);
+            av_packet_unref(packet);
+        } else {
+            av_packet_unref(packet);
+            continue;
+        }
+        if (ret < 0) {
+            logError(ret);
+            goto end;
+        }
+        while ((ret = avcodec_receive_frame(codecCtx, frame)) == 0) {
+            ret = writeFrame(&writer, swrCtx, frame);
+            av_frame_unref(frame);
             if (ret < 0) {
-                logError(ret);
-                break;
-            }
-            //解码一帧成功
-            if (got_frame > 0) {
-                //执行重采样
-                swr_convert(swrCtx, &out_buffer, MAX_AUDIO_FRAME_SIZE,
-                            (const uint8_t **) frame->data, frame->nb_samples);
-                // 获取sample的size
-                int out_buffer_size = av_samples_get_buffer_size(NULL, out_channel_nb,
-                                                                 frame->nb_samples, out_sample_fmt,
-                                                                 1);
-                // out_buffer缓冲区数据，转成byte数组
-                //new Java空间的字节数组
-                jbyteArray audio_sample_array = (*env)->NewByteArray(env, out_buffer_size);
-                //获取audio_sample_array的指针
-                jbyte *sample_bytep = (*env)->GetByteArrayElements(env, audio_sample_array, NULL);
-                // out_buffer的数据拷贝到sampe_bytep
-                memcpy(sample_bytep, out_buffer, out_buffer_size);
-
-                // 回调 PCM数据
-                (*env)->CallVoidMethod(env, callback, callMID, audio_sample_array);
-                //释放pcm数组
-                (*env)->ReleaseByteArrayElements(env, audio_sample_array, sample_bytep, 0);
-                // 释放局部引用
-                (*env)->DeleteLocalRef(env, audio_sample_array);
-                //挂起16毫秒
-                usleep(1000 * 16);
+                //管道已关闭，不算错误
+                ret = writer.slot < 0 ? 0 : ret;
+                goto end;
             }
         }
-        //释放AVPacket
-        av_free_packet(packet);
+        if (ret != AVERROR(EAGAIN) && ret != AVERROR_EOF) {
+            logError(ret);
+            goto end;
+        }
+    }
+    //取出重采样器中剩余的数据
+    ret = writeFrame(&writer, swrCtx, NULL);
+    if (ret == 0) {
+        publish(&writer);
+    } else if (writer.slot < 0) {
+        ret = 0;
     }
 
+    end:
     //释放资源
     av_frame_free(&frame);
-    av_free(out_buffer);
+    av_packet_free(&packet);
     swr_free(&swrCtx);
-    avcodec_close(codecCtx);
+    avcodec_free_context(&codecCtx);
     avformat_close_input(&pFormatCtx);
-    (*env)->ReleaseStringUTFChars(env, input_jstr, input_cstr);
-
+    av_free(writer.addresses);
+    (*env)->CallVoidMethod(env, pipe, endID, ret);
+    return ret;
 }
-
@@ -4,54 +4,186 @@
 
 #include "ape_decoder.h"
 
+static JNINativeMethod methods[] = {
+        {"nativeInit",    "([BIII)J",                                      (void *) nativeInit},
+        {"nativeDecode",  "(JLjava/nio/ByteBuffer;ILjava/nio/ByteBuffer;I)I", (void *) nativeDecode},
+        {"nativeFlush",   "(J)V",                                          (void *) nativeFlush},
+        {"nativeRelease", "(J)V",                                          (void *) nativeRelease}
+};
 
-jobject sniff(JNIEnv *env, jclass clazz, jstring j_str) {
-    jboolean copy = 0;
-    const char *c_str = (*env)->GetStringUTFChars(env, j_str, &copy);
-    int ret = -1;
-    LOGE("0");
-    AVFormatContext *pFormatCtx = avformat_alloc_context();
-    AVCodec *pCodec = NULL;
-    AVCodecContext *pCodecCtx = NULL;
-    LOGE("1");
-    ret = avformat_open_input(&pFormatCtx, c_str, NULL, NULL);
-    if (ret != 0) {
-        logError(ret);
-        return NULL;
-    }
-    LOGE("2");
-    ret = avformat_find_stream_info(pFormatCtx, NULL);
-    if (ret != 0) {
-        logError(ret);
-        return NULL;
-    }
-    LOGE("3");
-    int streamIndex = av_find_best_stream(pFormatCtx, AVMEDIA_TYPE_AUDIO, -1, -1, &pCodec, 0);
-    if (!pCodec) {
-        return NULL;
-    }
-    LOGE("4");
-    pCodecCtx = avcodec_alloc_context3(pCodec);
-    if (!pCodecCtx) {
-        return NULL;
-    }
-    LOGE("%64d",pCodecCtx);
-    avformat_close_input(&pFormatCtx);
-    LOGE("6");
-    (*env)->ReleaseStringUTFChars(env, j_str, c_str);
-    LOGE("7");
-    (*env)->DeleteLocalRef(env, j_str);
-    LOGE("8");
-    return (*env)->NewObject(env, clazz, initID,
-            (jlong)(intptr_t) pCodec,
-            (jlong)(intptr_t)pCodecCtx,
-            (jlong)(intptr_t)pFormatCtx,
-            (jlong)(intptr_t)streamIndex);
+static void logError(const char *functionName, int errorNumber) {
+    char buffer[ERROR_STRING_BUFFER_LENGTH];
+    av_strerror(errorNumber, buffer, ERROR_STRING_BUFFER_LENGTH);
+    LOGE("Error in %s: %s", functionName, buffer);
 }
 
-void release(JNIEnv *env, jobject object) {
-    avformat_free_context((AVFormatContext *) (*env)->GetLongField(env, object, pFormatCtxID));
-    AVCodecContext *pCodecCtx = (AVCodecContext *) (*env)->GetLongField(env, object, pCodecCtxID);
-    avcodec_free_context(&pCodecCtx);
-    (*env)->DeleteLocalRef(env, object);
-}
\ No newline at end of file
+JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        LOGE("ape_jni error");
+        return JNI_ERR;
+    }
+    jclass cls = (*env)->FindClass(env, "com/glee/exoffmpeg/ape/APEDecoderJni");
+    if (!cls) {
+        return JNI_ERR;
+    }
+    if ((*env)->RegisterNatives(env, cls, methods,
+                                sizeof(methods) / sizeof(JNINativeMethod)) != JNI_OK) {
+        return JNI_ERR;
+    }
+    (*env)->DeleteLocalRef(env, cls);
+    avcodec_register_all();
+    return JNI_VERSION_1_6;
+}
+
+jlong nativeInit(JNIEnv *env, jclass clazz, jbyteArray extraData, jint channelCount,
+                 jint sampleRate, jint bitsPerSample) {
+    AVCodec *codec = avcodec_find_decoder(AV_CODEC_ID_APE);
+    if (!codec) {
+        LOGE("Codec not found.");
+        return 0L;
+    }
+    DecoderContext *context = (DecoderContext *) av_mallocz(sizeof(DecoderContext));
+    if (!context) {
+        LOGE("Failed to allocate decoder context.");
+        return 0L;
+    }
+    context->channelCount = channelCount;
+    context->bitsPerSample = bitsPerSample;
+    context->frame = av_frame_alloc();
+    context->codecContext = avcodec_alloc_context3(codec);
+    if (!context->frame || !context->codecContext) {
+        LOGE("Failed to allocate codec context.");
+        nativeRelease(env, clazz, (jlong) (intptr_t) context);
+        return 0L;
+    }
+    AVCodecContext *codecContext = context->codecContext;
+    // 这些参数由 APE 的文件头给出，解码器自身不会解析
+    codecContext->channels = channelCount;
+    codecContext->sample_rate = sampleRate;
+    codecContext->bits_per_coded_sample = bitsPerSample;
+    jsize size = (*env)->GetArrayLength(env, extraData);
+    codecContext->extradata_size = size;
+    codecContext->extradata = (uint8_t *) av_mallocz(size + AV_INPUT_BUFFER_PADDING_SIZE);
+    if (!codecContext->extradata) {
+        LOGE("Failed to allocate extradata.");
+        nativeRelease(env, clazz, (jlong) (intptr_t) context);
+        return 0L;
+    }
+    (*env)->GetByteArrayRegion(env, extraData, 0, size, (jbyte *) codecContext->extradata);
+    // 一次解码整个包，而不是每次 4608 个采样
+    AVDictionary *options = NULL;
+    av_dict_set(&options, "max_samples", "all", 0);
+    int result = avcodec_open2(codecContext, codec, &options);
+    av_dict_free(&options);
+    if (result < 0) {
+        logError("avcodec_open2", result);
+        nativeRelease(env, clazz, (jlong) (intptr_t) context);
+        return 0L;
+    }
+    return (jlong) (intptr_t) context;
+}
+
+/**
+ * 将平面格式的帧交错写入 output，返回写入的字节数。
+ */
+static int interleave(DecoderContext *context, AVFrame *frame, uint8_t *output) {
+    int channelCount = context->channelCount;
+    int sampleCount = frame->nb_samples;
+    int i, ch;
+    switch (context->bitsPerSample) {
+        case 8:
+            for (ch = 0; ch < channelCount; ch++) {
+                uint8_t *in = frame->extended_data[ch];
+                uint8_t *out = output + ch;
+                for (i = 0; i < sampleCount; i++, out += channelCount) {
+                    *out = in[i];
+                }
+            }
+            return sampleCount * channelCount;
+        case 16:
+            for (ch = 0; ch < channelCount; ch++) {
+                int16_t *in = (int16_t *) frame->extended_data[ch];
+                uint8_t *out = output + ch * 2;
+                for (i = 0; i < sampleCount; i++, out += channelCount * 2) {
+                    out[0] = (uint8_t) in[i];
+                    out[1] = (uint8_t) (in[i] >> 8);
+                }
+            }
+            return sampleCount * channelCount * 2;
+        default:
+            // 24 位采样以 S32P 输出，有效数据在高 24 位
+            for (ch = 0; ch < channelCount; ch++) {
+                int32_t *in = (int32_t *) frame->extended_data[ch];
+                uint8_t *out = output + ch * 3;
+                for (i = 0; i < sampleCount; i++, out += channelCount * 3) {
+                    out[0] = (uint8_t) (in[i] >> 8);
+                    out[1] = (uint8_t) (in[i] >> 16);
+                    out[2] = (uint8_t) (in[i] >> 24);
+                }
+            }
+            return sampleCount * channelCount * 3;
+    }
+}
+
+jint nativeDecode(JNIEnv *env, jclass clazz, jlong jContext, jobject inputData, jint inputSize,
+                  jobject outputData, jint outputSize) {
+    DecoderContext *context = (DecoderContext *) (intptr_t) jContext;
+    if (!context) {
+        LOGE("Context must be non-NULL.");
+        return -1;
+    }
+    uint8_t *inputBuffer = (uint8_t *) (*env)->GetDirectBufferAddress(env, inputData);
+    uint8_t *outputBuffer = (uint8_t *) (*env)->GetDirectBufferAddress(env, outputData);
+    if (!inputBuffer || !outputBuffer) {
+        LOGE("Input and output buffers must be direct.");
+        return -1;
+    }
+    AVPacket packet;
+    av_init_packet(&packet);
+    packet.data = inputBuffer;
+    packet.size = inputSize;
+    int result = avcodec_send_packet(context->codecContext, &packet);
+    if (result) {
+        logError("avcodec_send_packet", result);
+        return result;
+    }
+    int outSize = 0;
+    int bytesPerBlock = context->channelCount * (context->bitsPerSample / 8);
+    while (1) {
+        result = avcodec_receive_frame(context->codecContext, context->frame);
+        if (result) {
+            if (result == AVERROR(EAGAIN)) {
+                break;
+            }
+            logError("avcodec_receive_frame", result);
+            return result;
+        }
+        if (outSize + context->frame->nb_samples * bytesPerBlock > outputSize) {
+            LOGE("Output buffer size (%d) too small for output data (%d).",
+                 outputSize, outSize + context->frame->nb_samples * bytesPerBlock);
+            av_frame_unref(context->frame);
+            return -1;
+        }
+        outSize += interleave(context, context->frame, outputBuffer + outSize);
+        av_frame_unref(context->frame);
+    }
+    return outSize;
+}
+
+void nativeFlush(JNIEnv *env, jclass clazz, jlong jContext) {
+    DecoderContext *context = (DecoderContext *) (intptr_t) jContext;
+    if (context) {
+        avcodec_flush_buffers(context->codecContext);
+    }
+}
+
+void nativeRelease(JNIEnv *env, jclass clazz, jlong jContext) {
+    DecoderContext *context = (DecoderContext *) (intptr_t) jContext;
+    if (!context) {
+        return;
+    }
+    av_frame_free(&context->frame);
+    avcodec_free_context(&context->codecContext);
+    av_free(context);
+}
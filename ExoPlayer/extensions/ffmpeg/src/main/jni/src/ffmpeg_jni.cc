@@ -63,11 +63,34 @@ static const AVSampleFormat OUTPUT_FORMAT_PCM_16BIT = AV_SAMPLE_FMT_S16;
 // Output format corresponding to AudioFormat.ENCODING_PCM_FLOAT.
 static const AVSampleFormat OUTPUT_FORMAT_PCM_FLOAT = AV_SAMPLE_FMT_FLT;
 
+/**
+ * Native state of a decoder instance, kept for the lifetime of the Java decoder.
+ */
+struct JniContext {
+  AVCodecContext *codecContext;
+  // Output frame, reused for every packet.
+  AVFrame *frame;
+  // Resampler and the input format it is configured for.
+  AVAudioResampleContext *resampleContext;
+  int resampleSampleFormat;
+  uint64_t resampleChannelLayout;
+  int resampleSampleRate;
+  // Addresses of the decoder's pooled direct buffers, indexed by slot.
+  uint8_t **bufferAddresses;
+  int bufferSlotCount;
+};
+
 /**
  * Returns the AVCodec with the specified name, or NULL if it is not available.
  */
 AVCodec *getCodecByName(JNIEnv* env, jstring codecName);
 
+/**
+ * Allocates a new JniContext with space for the given number of buffer slots,
+ * or returns NULL on failure.
+ */
+JniContext *createJniContext(int bufferSlotCount);
+
 /**
  * Allocates and opens a new AVCodecContext for the specified codec, passing the
  * provided extraData as initialization data for the decoder if it is non-NULL.
@@ -81,9 +104,15 @@ AVCodecContext *createContext(JNIEnv *env, AVCodec *codec, jbyteArray extraData,
  * Decodes the packet into the output buffer, returning the number of bytes
  * written, or a negative value in the case of an error.
  */
-int decodePacket(AVCodecContext *context, AVPacket *packet,
+int decodePacket(JniContext *jniContext, AVPacket *packet,
                  uint8_t *outputBuffer, int outputSize);
 
+/**
+ * Configures the resampler for the current output format of the codec if it
+ * is not already configured for it. Returns a negative value on error.
+ */
+int updateResampleContext(JniContext *jniContext);
+
 /**
  * Outputs a log message describing the avcodec error number.
  */
@@ -94,6 +123,11 @@ void logError(const char *functionName, int errorNumber);
  */
 void releaseContext(AVCodecContext *context);
 
+/**
+ * Releases the specified JniContext, including its codec context.
+ */
+void releaseJniContext(JniContext *jniContext);
+
 jint JNI_OnLoad(JavaVM *vm, void *reserved) {
   JNIEnv *env;
   if (vm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
@@ -112,41 +146,79 @@ LIBRARY_FUNC(jboolean, ffmpegHasDecoder, jstring codecName) {
 }
 
 DECODER_FUNC(jlong, ffmpegInitialize, jstring codecName, jbyteArray extraData,
-             jboolean outputFloat, jint rawSampleRate, jint rawChannelCount) {
+             jboolean outputFloat, jint rawSampleRate, jint rawChannelCount,
+             jint bufferSlotCount) {
   AVCodec *codec = getCodecByName(env, codecName);
   if (!codec) {
     LOGE("Codec not found.");
     return 0L;
   }
-  return (jlong)createContext(env, codec, extraData, outputFloat, rawSampleRate,
-                              rawChannelCount);
+  JniContext *jniContext = createJniContext(bufferSlotCount);
+  if (!jniContext) {
+    return 0L;
+  }
+  jniContext->codecContext = createContext(env, codec, extraData, outputFloat,
+                                           rawSampleRate, rawChannelCount);
+  if (!jniContext->codecContext) {
+    releaseJniContext(jniContext);
+    return 0L;
+  }
+  return (jlong) jniContext;
 }
 
-DECODER_FUNC(jint, ffmpegDecode, jlong context, jobject inputData,
-    jint inputSize, jobject outputData, jint outputSize) {
-  if (!context) {
+DECODER_FUNC(jboolean, ffmpegRegisterBuffer, jlong context, jint slot,
+             jobject buffer) {
+  JniContext *jniContext = (JniContext *) context;
+  if (!jniContext) {
+    LOGE("Context must be non-NULL.");
+    return false;
+  }
+  if (slot < 0 || slot >= jniContext->bufferSlotCount) {
+    LOGE("Invalid buffer slot: %d.", slot);
+    return false;
+  }
+  uint8_t *address = buffer
+      ? (uint8_t *) env->GetDirectBufferAddress(buffer) : NULL;
+  if (!address) {
+    LOGE("Buffers must be direct.");
+    return false;
+  }
+  jniContext->bufferAddresses[slot] = address;
+  return true;
+}
+
+DECODER_FUNC(jint, ffmpegDecode, jlong context, jint inputSlot,
+    jint inputSize, jint outputSlot, jint outputOffset, jint outputSize) {
+  JniContext *jniContext = (JniContext *) context;
+  if (!jniContext) {
     LOGE("Context must be non-NULL.");
     return -1;
   }
-  if (!inputData || !outputData) {
-    LOGE("Input and output buffers must be non-NULL.");
+  if (inputSlot < 0 || inputSlot >= jniContext->bufferSlotCount
+      || outputSlot < 0 || outputSlot >= jniContext->bufferSlotCount) {
+    LOGE("Invalid buffer slots: %d, %d.", inputSlot, outputSlot);
+    return -1;
+  }
+  uint8_t *inputBuffer = jniContext->bufferAddresses[inputSlot];
+  uint8_t *outputBuffer = jniContext->bufferAddresses[outputSlot];
+  if (!inputBuffer || !outputBuffer) {
+    LOGE("Input and output buffers must be registered.");
     return -1;
   }
   if (inputSize < 0) {
     LOGE("Invalid input buffer size: %d.", inputSize);
     return -1;
   }
-  if (outputSize < 0) {
-    LOGE("Invalid output buffer length: %d", outputSize);
+  if (outputOffset < 0 || outputSize < 0) {
+    LOGE("Invalid output buffer offset/length: %d, %d", outputOffset,
+         outputSize);
     return -1;
   }
-  uint8_t *inputBuffer = (uint8_t *) env->GetDirectBufferAddress(inputData);
-  uint8_t *outputBuffer = (uint8_t *) env->GetDirectBufferAddress(outputData);
   AVPacket packet;
   av_init_packet(&packet);
   packet.data = inputBuffer;
   packet.size = inputSize;
-  return decodePacket((AVCodecContext *) context, &packet, outputBuffer,
+  return decodePacket(jniContext, &packet, outputBuffer + outputOffset,
                       outputSize);
 }
 
@@ -155,7 +227,7 @@ DECODER_FUNC(jint, ffmpegGetChannelCount, jlong context) {
     LOGE("Context must be non-NULL.");
     return -1;
   }
-  return ((AVCodecContext *) context)->channels;
+  return ((JniContext *) context)->codecContext->channels;
 }
 
 DECODER_FUNC(jint, ffmpegGetSampleRate, jlong context) {
@@ -163,40 +235,49 @@ DECODER_FUNC(jint, ffmpegGetSampleRate, jlong context) {
     LOGE("Context must be non-NULL.");
     return -1;
   }
-  return ((AVCodecContext *) context)->sample_rate;
+  return ((JniContext *) context)->codecContext->sample_rate;
 }
 
 DECODER_FUNC(jlong, ffmpegReset, jlong jContext, jbyteArray extraData) {
-  AVCodecContext *context = (AVCodecContext *) jContext;
-  if (!context) {
+  JniContext *jniContext = (JniContext *) jContext;
+  if (!jniContext) {
     LOGE("Tried to reset without a context.");
     return 0L;
   }
+  AVCodecContext *context = jniContext->codecContext;
 
   AVCodecID codecId = context->codec_id;
   if (codecId == AV_CODEC_ID_TRUEHD) {
     // Release and recreate the context if the codec is TrueHD.
     // TODO: Figure out why flushing doesn't work for this codec.
+    jboolean outputFloat =
+        (jboolean)(context->request_sample_fmt == OUTPUT_FORMAT_PCM_FLOAT);
     releaseContext(context);
+    jniContext->codecContext = NULL;
     AVCodec *codec = avcodec_find_decoder(codecId);
     if (!codec) {
       LOGE("Unexpected error finding codec %d.", codecId);
+      releaseJniContext(jniContext);
       return 0L;
     }
-    jboolean outputFloat =
-        (jboolean)(context->request_sample_fmt == OUTPUT_FORMAT_PCM_FLOAT);
-    return (jlong)createContext(env, codec, extraData, outputFloat,
-                                /* rawSampleRate= */ -1,
-                                /* rawChannelCount= */ -1);
+    jniContext->codecContext =
+        createContext(env, codec, extraData, outputFloat,
+                      /* rawSampleRate= */ -1,
+                      /* rawChannelCount= */ -1);
+    if (!jniContext->codecContext) {
+      releaseJniContext(jniContext);
+      return 0L;
+    }
+    return (jlong) jniContext;
   }
 
   avcodec_flush_buffers(context);
-  return (jlong) context;
+  return (jlong) jniContext;
 }
 
 DECODER_FUNC(void, ffmpegRelease, jlong context) {
   if (context) {
-    releaseContext((AVCodecContext *) context);
+    releaseJniContext((JniContext *) context);
   }
 }
 
@@ -210,6 +291,31 @@ AVCodec *getCodecByName(JNIEnv* env, jstring codecName) {
   return codec;
 }
 
+JniContext *createJniContext(int bufferSlotCount) {
+  if (bufferSlotCount <= 0) {
+    LOGE("Invalid buffer slot count: %d.", bufferSlotCount);
+    return NULL;
+  }
+  JniContext *jniContext = (JniContext *) av_mallocz(sizeof(JniContext));
+  if (!jniContext) {
+    LOGE("Failed to allocate context.");
+    return NULL;
+  }
+  jniContext->resampleSampleFormat = AV_SAMPLE_FMT_NONE;
+  jniContext->frame = av_frame_alloc();
+  jniContext->resampleContext = avresample_alloc_context();
+  jniContext->bufferAddresses =
+      (uint8_t **) av_mallocz_array(bufferSlotCount, sizeof(uint8_t *));
+  jniContext->bufferSlotCount = bufferSlotCount;
+  if (!jniContext->frame || !jniContext->resampleContext
+      || !jniContext->bufferAddresses) {
+    LOGE("Failed to allocate context.");
+    releaseJniContext(jniContext);
+    return NULL;
+  }
+  return jniContext;
+}
+
 AVCodecContext *createContext(JNIEnv *env, AVCodec *codec, jbyteArray extraData,
                               jboolean outputFloat, jint rawSampleRate,
                               jint rawChannelCount) {
@@ -247,8 +353,10 @@ AVCodecContext *createContext(JNIEnv *env, AVCodec *codec, jbyteArray extraData,
   return context;
 }
 
-int decodePacket(AVCodecContext *context, AVPacket *packet,
+int decodePacket(JniContext *jniContext, AVPacket *packet,
                  uint8_t *outputBuffer, int outputSize) {
+  AVCodecContext *context = jniContext->codecContext;
+  AVFrame *frame = jniContext->frame;
   int result = 0;
   // Queue input data.
   result = avcodec_send_packet(context, packet);
@@ -260,14 +368,8 @@ int decodePacket(AVCodecContext *context, AVPacket *packet,
   // Dequeue output data until it runs out.
   int outSize = 0;
   while (true) {
-    AVFrame *frame = av_frame_alloc();
-    if (!frame) {
-      LOGE("Failed to allocate output frame.");
-      return -1;
-    }
     result = avcodec_receive_frame(context, frame);
     if (result) {
-      av_frame_free(&frame);
       if (result == AVERROR(EAGAIN)) {
         break;
       }
@@ -276,48 +378,27 @@ int decodePacket(AVCodecContext *context, AVPacket *packet,
     }
 
     // Resample output.
-    AVSampleFormat sampleFormat = context->sample_fmt;
+    result = updateResampleContext(jniContext);
+    if (result < 0) {
+      av_frame_unref(frame);
+      return -1;
+    }
+    AVAudioResampleContext *resampleContext = jniContext->resampleContext;
     int channelCount = context->channels;
-    int channelLayout = context->channel_layout;
-    int sampleRate = context->sample_rate;
     int sampleCount = frame->nb_samples;
-    int dataSize = av_samples_get_buffer_size(NULL, channelCount, sampleCount,
-                                              sampleFormat, 1);
-    AVAudioResampleContext *resampleContext;
-    if (context->opaque) {
-      resampleContext = (AVAudioResampleContext *) context->opaque;
-    } else {
-      resampleContext = avresample_alloc_context();
-      av_opt_set_int(resampleContext, "in_channel_layout",  channelLayout, 0);
-      av_opt_set_int(resampleContext, "out_channel_layout", channelLayout, 0);
-      av_opt_set_int(resampleContext, "in_sample_rate", sampleRate, 0);
-      av_opt_set_int(resampleContext, "out_sample_rate", sampleRate, 0);
-      av_opt_set_int(resampleContext, "in_sample_fmt", sampleFormat, 0);
-      // The output format is always the requested format.
-      av_opt_set_int(resampleContext, "out_sample_fmt",
-          context->request_sample_fmt, 0);
-      result = avresample_open(resampleContext);
-      if (result < 0) {
-        logError("avresample_open", result);
-        av_frame_free(&frame);
-        return -1;
-      }
-      context->opaque = resampleContext;
-    }
-    int inSampleSize = av_get_bytes_per_sample(sampleFormat);
     int outSampleSize = av_get_bytes_per_sample(context->request_sample_fmt);
     int outSamples = avresample_get_out_samples(resampleContext, sampleCount);
     int bufferOutSize = outSampleSize * channelCount * outSamples;
     if (outSize + bufferOutSize > outputSize) {
       LOGE("Output buffer size (%d) too small for output data (%d).",
            outputSize, outSize + bufferOutSize);
-      av_frame_free(&frame);
+      av_frame_unref(frame);
       return -1;
     }
     result = avresample_convert(resampleContext, &outputBuffer, bufferOutSize,
                                 outSamples, frame->data, frame->linesize[0],
                                 sampleCount);
-    av_frame_free(&frame);
+    av_frame_unref(frame);
     if (result < 0) {
       logError("avresample_convert", result);
       return result;
@@ -334,6 +415,40 @@ int decodePacket(AVCodecContext *context, AVPacket *packet,
   return outSize;
 }
 
+int updateResampleContext(JniContext *jniContext) {
+  AVCodecContext *context = jniContext->codecContext;
+  AVSampleFormat sampleFormat = context->sample_fmt;
+  uint64_t channelLayout = context->channel_layout;
+  int sampleRate = context->sample_rate;
+  if (jniContext->resampleSampleFormat == sampleFormat
+      && jniContext->resampleChannelLayout == channelLayout
+      && jniContext->resampleSampleRate == sampleRate) {
+    return 0;
+  }
+  AVAudioResampleContext *resampleContext = jniContext->resampleContext;
+  if (jniContext->resampleSampleFormat != AV_SAMPLE_FMT_NONE) {
+    avresample_close(resampleContext);
+  }
+  jniContext->resampleSampleFormat = AV_SAMPLE_FMT_NONE;
+  av_opt_set_int(resampleContext, "in_channel_layout",  channelLayout, 0);
+  av_opt_set_int(resampleContext, "out_channel_layout", channelLayout, 0);
+  av_opt_set_int(resampleContext, "in_sample_rate", sampleRate, 0);
+  av_opt_set_int(resampleContext, "out_sample_rate", sampleRate, 0);
+  av_opt_set_int(resampleContext, "in_sample_fmt", sampleFormat, 0);
+  // The output format is always the requested format.
+  av_opt_set_int(resampleContext, "out_sample_fmt",
+      context->request_sample_fmt, 0);
+  int result = avresample_open(resampleContext);
+  if (result < 0) {
+    logError("avresample_open", result);
+    return result;
+  }
+  jniContext->resampleSampleFormat = sampleFormat;
+  jniContext->resampleChannelLayout = channelLayout;
+  jniContext->resampleSampleRate = sampleRate;
+  return 0;
+}
+
 void logError(const char *functionName, int errorNumber) {
   char *buffer = (char *) malloc(ERROR_STRING_BUFFER_LENGTH * sizeof(char));
   av_strerror(errorNumber, buffer, ERROR_STRING_BUFFER_LENGTH);
@@ -345,11 +460,19 @@ void releaseContext(AVCodecContext *context) {
   if (!context) {
     return;
   }
-  AVAudioResampleContext *resampleContext;
-  if ((resampleContext = (AVAudioResampleContext *) context->opaque)) {
-    avresample_free(&resampleContext);
-    context->opaque = NULL;
-  }
   avcodec_free_context(&context);
 }
 
+void releaseJniContext(JniContext *jniContext) {
+  if (!jniContext) {
+    return;
+  }
+  releaseContext(jniContext->codecContext);
+  av_frame_free(&jniContext->frame);
+  if (jniContext->resampleContext) {
+    avresample_free(&jniContext->resampleContext);
+  }
+  av_free(jniContext->bufferAddresses);
+  av_free(jniContext);
+}
+
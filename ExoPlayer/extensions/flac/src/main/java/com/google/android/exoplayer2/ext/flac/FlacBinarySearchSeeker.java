@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer2.ext.flac;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.extractor.BinarySearchSeeker;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.SeekMap;
@@ -27,20 +28,27 @@ import java.nio.ByteBuffer;
  * A {@link SeekMap} implementation for FLAC stream using binary search.
  *
  * <p>This seeker performs seeking by using binary search within the stream, until it finds the
- * frame that contains the target sample.
+ * frame that contains the target sample. Frames found while searching and during playback are
+ * recorded in a {@link FlacSeekPointIndex}, which narrows the initial range of later searches.
  */
 /* package */ final class FlacBinarySearchSeeker extends BinarySearchSeeker {
 
   private final FlacDecoderJni decoderJni;
+  private final FlacSeekPointIndex seekPointIndex;
+  private final long minSampleSpacing;
+  private final long totalSamples;
+  private final long firstFramePosition;
+  private final long inputLength;
 
   public FlacBinarySearchSeeker(
       FlacStreamInfo streamInfo,
       long firstFramePosition,
       long inputLength,
-      FlacDecoderJni decoderJni) {
+      FlacDecoderJni decoderJni,
+      FlacSeekPointIndex seekPointIndex) {
     super(
         new FlacSeekTimestampConverter(streamInfo),
-        new FlacTimestampSeeker(decoderJni),
+        new FlacTimestampSeeker(decoderJni, seekPointIndex, streamInfo.sampleRate),
         streamInfo.durationUs(),
         /* floorTimePosition= */ 0,
         /* ceilingTimePosition= */ streamInfo.totalSamples,
@@ -49,6 +57,52 @@ import java.nio.ByteBuffer;
         /* approxBytesPerFrame= */ streamInfo.getApproxBytesPerFrame(),
         /* minimumSearchRange= */ Math.max(1, streamInfo.minFrameSize));
     this.decoderJni = Assertions.checkNotNull(decoderJni);
+    this.seekPointIndex = seekPointIndex;
+    // Recording about one frame per second keeps the index small, while leaving only a few frames
+    // to search through between neighbouring entries.
+    minSampleSpacing = streamInfo.sampleRate;
+    totalSamples = streamInfo.totalSamples;
+    this.firstFramePosition = firstFramePosition;
+    this.inputLength = inputLength;
+  }
+
+  /**
+   * Records the position of the frame that follows the last frame decoded by {@code decoderJni}.
+   */
+  public void onFrameDecoded() {
+    recordNextFrame(decoderJni, seekPointIndex, minSampleSpacing);
+  }
+
+  @Override
+  protected SeekOperationParams createSeekParamsForTargetTimeUs(long timeUs) {
+    long targetSampleIndex = seekMap.timeUsToTargetTime(timeUs);
+    long floorSampleIndex = 0;
+    long ceilingSampleIndex = totalSamples;
+    long floorPosition = firstFramePosition;
+    long ceilingPosition = inputLength;
+    int floorIndex = seekPointIndex.getFloorIndex(targetSampleIndex);
+    if (floorIndex != C.INDEX_UNSET) {
+      long position = seekPointIndex.getPosition(floorIndex);
+      if (position >= firstFramePosition && position < inputLength) {
+        floorSampleIndex = seekPointIndex.getSampleIndex(floorIndex);
+        floorPosition = position;
+      }
+    }
+    int ceilingIndex = floorIndex + 1;
+    if (ceilingIndex < seekPointIndex.size()) {
+      long position = seekPointIndex.getPosition(ceilingIndex);
+      if (position > floorPosition && position <= inputLength) {
+        ceilingSampleIndex = seekPointIndex.getSampleIndex(ceilingIndex);
+        ceilingPosition = position;
+      }
+    }
+    return createSeekParams(
+        timeUs,
+        targetSampleIndex,
+        floorSampleIndex,
+        ceilingSampleIndex,
+        floorPosition,
+        ceilingPosition);
   }
 
   @Override
@@ -60,12 +114,26 @@ import java.nio.ByteBuffer;
     }
   }
 
+  private static void recordNextFrame(
+      FlacDecoderJni decoderJni, FlacSeekPointIndex seekPointIndex, long minSampleSpacing) {
+    long nextFramePosition = decoderJni.getDecodePosition();
+    if (nextFramePosition != -1) {
+      seekPointIndex.add(
+          decoderJni.getNextFrameFirstSampleIndex(), nextFramePosition, minSampleSpacing);
+    }
+  }
+
   private static final class FlacTimestampSeeker implements TimestampSeeker {
 
     private final FlacDecoderJni decoderJni;
+    private final FlacSeekPointIndex seekPointIndex;
+    private final long minSampleSpacing;
 
-    private FlacTimestampSeeker(FlacDecoderJni decoderJni) {
+    private FlacTimestampSeeker(
+        FlacDecoderJni decoderJni, FlacSeekPointIndex seekPointIndex, long minSampleSpacing) {
       this.decoderJni = decoderJni;
+      this.seekPointIndex = seekPointIndex;
+      this.minSampleSpacing = minSampleSpacing;
     }
 
     @Override
@@ -90,6 +158,7 @@ import java.nio.ByteBuffer;
       long lastFrameSampleIndex = decoderJni.getLastFrameFirstSampleIndex();
       long nextFrameSampleIndex = decoderJni.getNextFrameFirstSampleIndex();
       long nextFrameSamplePosition = decoderJni.getDecodePosition();
+      recordNextFrame(decoderJni, seekPointIndex, minSampleSpacing);
 
       boolean targetSampleInLastFrame =
           lastFrameSampleIndex <= targetSampleIndex && nextFrameSampleIndex > targetSampleIndex;
@@ -50,7 +50,8 @@ import java.util.List;
       int maxInputBufferSize,
       List<byte[]> initializationData)
       throws FlacDecoderException {
-    super(new DecoderInputBuffer[numInputBuffers], new SimpleOutputBuffer[numOutputBuffers]);
+    super(new DecoderInputBuffer[numInputBuffers], new SimpleOutputBuffer[numOutputBuffers],
+        /* useLockFreeQueues= */ true);
     if (initializationData.size() != 1) {
       throw new FlacDecoderException("Initialization data must be of length 1");
     }
@@ -80,7 +81,8 @@ import java.util.List;
 
   @Override
   protected DecoderInputBuffer createInputBuffer() {
-    return new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    // Direct input buffers are read by libflac in place.
+    return new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_DIRECT);
   }
 
   @Override
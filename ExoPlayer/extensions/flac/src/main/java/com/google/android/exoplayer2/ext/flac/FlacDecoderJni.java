@@ -44,7 +44,9 @@ import java.nio.ByteBuffer;
   private ByteBuffer byteBufferData;
   private ExtractorInput extractorInput;
   private boolean endOfExtractorInput;
-  private byte[] tempBuffer;
+  private ByteBuffer tempBuffer; // Read directly from native code.
+  private byte[] tempArray;
+  private int tempArrayOffset;
 
   public FlacDecoderJni() throws FlacDecoderException {
     if (!FlacLibrary.isAvailable()) {
@@ -57,13 +59,23 @@ import java.nio.ByteBuffer;
   }
 
   /**
-   * Sets data to be parsed by libflac.
+   * Sets data to be parsed by libflac. The data of a direct buffer is read by libflac in place,
+   * without calling back into Java.
    * @param byteBufferData Source {@link ByteBuffer}
    */
   public void setData(ByteBuffer byteBufferData) {
     this.byteBufferData = byteBufferData;
     this.extractorInput = null;
-    this.tempBuffer = null;
+    if (byteBufferData.isDirect()) {
+      flacSetDirectData(
+          nativeDecoderContext,
+          byteBufferData,
+          byteBufferData.position(),
+          byteBufferData.remaining());
+    } else {
+      flacSetDirectData(nativeDecoderContext, null, 0, 0);
+      ensureTempBuffer();
+    }
   }
 
   /**
@@ -73,9 +85,8 @@ import java.nio.ByteBuffer;
   public void setData(ExtractorInput extractorInput) {
     this.byteBufferData = null;
     this.extractorInput = extractorInput;
-    if (tempBuffer == null) {
-      this.tempBuffer = new byte[TEMP_BUFFER_SIZE];
-    }
+    flacSetDirectData(nativeDecoderContext, null, 0, 0);
+    ensureTempBuffer();
     endOfExtractorInput = false;
   }
 
@@ -89,29 +100,24 @@ import java.nio.ByteBuffer;
   }
 
   /**
-   * Reads up to {@code length} bytes from the data source.
+   * Reads up to {@code length} bytes from the data source into the start of {@code tempBuffer}, a
+   * direct buffer from which the native code copies them straight into libflac's input buffer.
    * <p>
    * This method blocks until at least one byte of data can be read, the end of the input is
    * detected or an exception is thrown.
    * <p>
-   * This method is called from the native code.
+   * This method is called from the native code, except when reading from a direct buffer.
    *
-   * @param target A target {@link ByteBuffer} into which data should be written.
+   * @param length The maximum number of bytes to read.
    * @return Returns the number of bytes read, or -1 on failure. It's not an error if this returns
    * zero; it just means all the data read from the source.
    */
-  public int read(ByteBuffer target) throws IOException, InterruptedException {
-    int byteCount = target.remaining();
+  public int read(int length) throws IOException, InterruptedException {
+    int byteCount = Math.min(length, TEMP_BUFFER_SIZE);
     if (byteBufferData != null) {
       byteCount = Math.min(byteCount, byteBufferData.remaining());
-      int originalLimit = byteBufferData.limit();
-      byteBufferData.limit(byteBufferData.position() + byteCount);
-
-      target.put(byteBufferData);
-
-      byteBufferData.limit(originalLimit);
+      byteBufferData.get(tempArray, tempArrayOffset, byteCount);
     } else if (extractorInput != null) {
-      byteCount = Math.min(byteCount, TEMP_BUFFER_SIZE);
       int read = readFromExtractorInput(0, byteCount);
       if (read < 4) {
         // Reading less than 4 bytes, most of the time, happens because of getting the bytes left in
@@ -120,16 +126,23 @@ import java.nio.ByteBuffer;
         read += readFromExtractorInput(read, byteCount - read);
       }
       byteCount = read;
-      target.put(tempBuffer, 0, byteCount);
     } else {
       return -1;
     }
+    if (!tempBuffer.hasArray()) {
+      tempBuffer.clear();
+      tempBuffer.put(tempArray, 0, byteCount);
+    }
     return byteCount;
   }
 
   /** Decodes and consumes the StreamInfo section from the FLAC stream. */
   public FlacStreamInfo decodeMetadata() throws IOException, InterruptedException {
-    return flacDecodeMetadata(nativeDecoderContext);
+    try {
+      return flacDecodeMetadata(nativeDecoderContext);
+    } finally {
+      updateDirectDataPosition();
+    }
   }
 
   /**
@@ -154,15 +167,23 @@ import java.nio.ByteBuffer;
     }
   }
 
-  /** Decodes and consumes the next sample from the FLAC stream into the given byte buffer. */
+  /**
+   * Decodes and consumes the next sample from the FLAC stream into the given byte buffer. The
+   * decoded PCM is written in place, both for direct buffers and for buffers backed by an array.
+   */
   @SuppressWarnings("ByteBufferBackingArray")
   public void decodeSample(ByteBuffer output)
       throws IOException, InterruptedException, FlacFrameDecodeException {
     output.clear();
-    int frameSize =
-        output.isDirect()
-            ? flacDecodeToBuffer(nativeDecoderContext, output)
-            : flacDecodeToArray(nativeDecoderContext, output.array());
+    int frameSize;
+    try {
+      frameSize =
+          output.isDirect()
+              ? flacDecodeToBuffer(nativeDecoderContext, output)
+              : flacDecodeToArray(nativeDecoderContext, output.array());
+    } finally {
+      updateDirectDataPosition();
+    }
     if (frameSize < 0) {
       if (!isDecoderAtEndOfInput()) {
         throw new FlacFrameDecodeException("Cannot decode FLAC frame", frameSize);
@@ -234,9 +255,30 @@ import java.nio.ByteBuffer;
     flacRelease(nativeDecoderContext);
   }
 
+  private void ensureTempBuffer() {
+    if (tempBuffer == null) {
+      tempBuffer = ByteBuffer.allocateDirect(TEMP_BUFFER_SIZE);
+      // On Android a direct buffer is backed by an array that the garbage collector doesn't move,
+      // so data read into the array is seen by the native code without another copy.
+      if (tempBuffer.hasArray()) {
+        tempArray = tempBuffer.array();
+        tempArrayOffset = tempBuffer.arrayOffset();
+      } else {
+        tempArray = new byte[TEMP_BUFFER_SIZE];
+      }
+    }
+  }
+
+  /** Advances the position of a direct source buffer past the data consumed by native code. */
+  private void updateDirectDataPosition() {
+    if (byteBufferData != null && byteBufferData.isDirect()) {
+      byteBufferData.position(flacGetDirectDataPosition(nativeDecoderContext));
+    }
+  }
+
   private int readFromExtractorInput(int offset, int length)
       throws IOException, InterruptedException {
-    int read = extractorInput.read(tempBuffer, offset, length);
+    int read = extractorInput.read(tempArray, tempArrayOffset + offset, length);
     if (read == C.RESULT_END_OF_INPUT) {
       endOfExtractorInput = true;
       read = 0;
@@ -255,6 +297,10 @@ import java.nio.ByteBuffer;
   private native int flacDecodeToArray(long context, byte[] outputArray)
       throws IOException, InterruptedException;
 
+  private native void flacSetDirectData(long context, ByteBuffer buffer, int offset, int length);
+
+  private native int flacGetDirectDataPosition(long context);
+
   private native long flacGetDecodePosition(long context);
 
   private native long flacGetLastFrameTimestamp(long context);
@@ -74,6 +74,7 @@ public final class FlacExtractor implements Extractor {
 
   private final Id3Peeker id3Peeker;
   private final boolean isId3MetadataDisabled;
+  private final FlacSeekPointIndex seekPointIndex;
 
   private FlacDecoderJni decoderJni;
 
@@ -81,6 +82,7 @@ public final class FlacExtractor implements Extractor {
   private TrackOutput trackOutput;
 
   private ParsableByteArray outputBuffer;
+  private int outputBufferOffset;
   private ByteBuffer outputByteBuffer;
   private BinarySearchSeeker.OutputFrameHolder outputFrameHolder;
   private FlacStreamInfo streamInfo;
@@ -101,8 +103,21 @@ public final class FlacExtractor implements Extractor {
    * @param flags Flags that control the extractor's behavior.
    */
   public FlacExtractor(int flags) {
+    this(flags, new FlacSeekPointIndex());
+  }
+
+  /**
+   * Constructs an instance.
+   *
+   * @param flags Flags that control the extractor's behavior.
+   * @param seekPointIndex The index in which to record frame positions of a stream without a
+   *     SEEKTABLE, which speeds up seeking in it. May hold frames recorded by an earlier instance
+   *     for the same stream, for example read back with {@link FlacSeekPointIndex#readFrom}.
+   */
+  public FlacExtractor(int flags, FlacSeekPointIndex seekPointIndex) {
     id3Peeker = new Id3Peeker();
     isId3MetadataDisabled = (flags & FLAG_DISABLE_ID3_METADATA) != 0;
+    this.seekPointIndex = seekPointIndex;
   }
 
   @Override
@@ -149,6 +164,9 @@ public final class FlacExtractor implements Extractor {
     if (outputSize == 0) {
       return RESULT_END_OF_INPUT;
     }
+    if (flacBinarySearchSeeker != null) {
+      flacBinarySearchSeeker.onFrameDecoded();
+    }
 
     writeLastSampleToOutput(outputSize, decoderJni.getLastFrameTimestamp());
     return decoderJni.isEndOfData() ? RESULT_END_OF_INPUT : RESULT_CONTINUE;
@@ -217,8 +235,17 @@ public final class FlacExtractor implements Extractor {
     this.streamInfo = streamInfo;
     outputSeekMap(input, streamInfo);
     outputFormat(streamInfo);
-    outputBuffer = new ParsableByteArray(streamInfo.maxDecodedFrameSize());
-    outputByteBuffer = ByteBuffer.wrap(outputBuffer.data);
+    // The decoder writes PCM into the direct buffer in place. On Android a direct buffer is backed
+    // by an array that the garbage collector doesn't move, which is passed to the track output
+    // without another copy.
+    outputByteBuffer = ByteBuffer.allocateDirect(streamInfo.maxDecodedFrameSize());
+    if (outputByteBuffer.hasArray()) {
+      outputBuffer = new ParsableByteArray(outputByteBuffer.array());
+      outputBufferOffset = outputByteBuffer.arrayOffset();
+    } else {
+      outputBuffer = new ParsableByteArray(streamInfo.maxDecodedFrameSize());
+      outputBufferOffset = 0;
+    }
     outputFrameHolder = new BinarySearchSeeker.OutputFrameHolder(outputByteBuffer);
   }
 
@@ -251,7 +278,8 @@ public final class FlacExtractor implements Extractor {
     if (inputLength != C.LENGTH_UNSET) {
       long firstFramePosition = decoderJni.getDecodePosition();
       flacBinarySearchSeeker =
-          new FlacBinarySearchSeeker(streamInfo, firstFramePosition, inputLength, decoderJni);
+          new FlacBinarySearchSeeker(
+              streamInfo, firstFramePosition, inputLength, decoderJni, seekPointIndex);
       return flacBinarySearchSeeker.getSeekMap();
     } else { // can't seek at all, because there's no SeekTable and the input length is unknown.
       return new SeekMap.Unseekable(streamInfo.durationUs());
@@ -291,7 +319,11 @@ public final class FlacExtractor implements Extractor {
   }
 
   private void writeLastSampleToOutput(int size, long lastSampleTimestamp) {
-    outputBuffer.setPosition(0);
+    if (!outputByteBuffer.hasArray()) {
+      outputByteBuffer.position(0);
+      outputByteBuffer.get(outputBuffer.data, 0, size);
+    }
+    outputBuffer.setPosition(outputBufferOffset);
     trackOutput.sampleData(outputBuffer, size);
     trackOutput.sampleMetadata(lastSampleTimestamp, C.BUFFER_FLAG_KEY_FRAME, size, 0, null);
   }
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.flac;
+
+import com.google.android.exoplayer2.C;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Frame positions of a FLAC stream without a SEEKTABLE, recorded as they are found during playback
+ * and seeking. {@link FlacExtractor} uses them to narrow the range of a binary search seek.
+ *
+ * <p>Entries are held in two sorted primitive arrays. Frames closer than a minimum number of
+ * samples to an existing entry are not recorded, which bounds the size of the index to a few
+ * entries per second of audio.
+ *
+ * <p>An index is only valid for the stream it was recorded from. It can be saved with {@link
+ * #writeTo(DataOutput)}, for example next to a cached copy of the stream, and restored in a later
+ * session with {@link #readFrom(DataInput)}.
+ */
+public final class FlacSeekPointIndex {
+
+  private static final int VERSION = 1;
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] sampleIndices;
+  private long[] positions;
+  private int size;
+
+  /** Creates an empty index. */
+  public FlacSeekPointIndex() {
+    sampleIndices = new long[INITIAL_CAPACITY];
+    positions = new long[INITIAL_CAPACITY];
+  }
+
+  /**
+   * Reads an index previously written by {@link #writeTo(DataOutput)}.
+   *
+   * @param input The input to read from.
+   * @return The index.
+   * @throws IOException If an error occurs reading from the input, or the data is not a valid
+   *     index.
+   */
+  public static FlacSeekPointIndex readFrom(DataInput input) throws IOException {
+    int version = input.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported FLAC seek point index version: " + version);
+    }
+    int size = input.readInt();
+    if (size < 0) {
+      throw new IOException("Invalid FLAC seek point index size: " + size);
+    }
+    FlacSeekPointIndex index = new FlacSeekPointIndex();
+    long previousSampleIndex = C.POSITION_UNSET;
+    for (int i = 0; i < size; i++) {
+      long sampleIndex = input.readLong();
+      long position = input.readLong();
+      if (sampleIndex <= previousSampleIndex || position < 0) {
+        throw new IOException("Invalid FLAC seek point index entry: " + i);
+      }
+      // Grow as entries are read rather than trusting the size, so that a corrupt or truncated
+      // index fails with an EOFException instead of a huge allocation.
+      index.ensureCapacity(i + 1);
+      index.sampleIndices[i] = sampleIndex;
+      index.positions[i] = position;
+      previousSampleIndex = sampleIndex;
+    }
+    index.size = size;
+    return index;
+  }
+
+  /**
+   * Writes the index to {@code output}, so that it can be read by {@link #readFrom(DataInput)}.
+   *
+   * @param output The output to write to.
+   * @throws IOException If an error occurs writing to the output.
+   */
+  public synchronized void writeTo(DataOutput output) throws IOException {
+    output.writeInt(VERSION);
+    output.writeInt(size);
+    for (int i = 0; i < size; i++) {
+      output.writeLong(sampleIndices[i]);
+      output.writeLong(positions[i]);
+    }
+  }
+
+  /** Returns the number of recorded frames. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Records that the frame starting at {@code sampleIndex} starts at byte {@code position}, unless
+   * a recorded frame is less than {@code minSampleSpacing} samples away.
+   */
+  /* package */ synchronized void add(long sampleIndex, long position, long minSampleSpacing) {
+    int index = Arrays.binarySearch(sampleIndices, 0, size, sampleIndex);
+    if (index >= 0) {
+      return;
+    }
+    index = -index - 1;
+    if ((index > 0 && sampleIndex - sampleIndices[index - 1] < minSampleSpacing)
+        || (index < size && sampleIndices[index] - sampleIndex < minSampleSpacing)) {
+      return;
+    }
+    ensureCapacity(size + 1);
+    if (index < size) {
+      System.arraycopy(sampleIndices, index, sampleIndices, index + 1, size - index);
+      System.arraycopy(positions, index, positions, index + 1, size - index);
+    }
+    sampleIndices[index] = sampleIndex;
+    positions[index] = position;
+    size++;
+  }
+
+  /**
+   * Returns the index of the last recorded frame starting at or before {@code sampleIndex}, or
+   * {@link C#INDEX_UNSET} if there is none.
+   */
+  /* package */ synchronized int getFloorIndex(long sampleIndex) {
+    int index = Arrays.binarySearch(sampleIndices, 0, size, sampleIndex);
+    if (index < 0) {
+      index = -index - 2;
+    }
+    return index >= 0 ? index : C.INDEX_UNSET;
+  }
+
+  /** Returns the first sample index of the recorded frame at {@code index}. */
+  /* package */ synchronized long getSampleIndex(int index) {
+    return sampleIndices[index];
+  }
+
+  /** Returns the byte position of the recorded frame at {@code index}. */
+  /* package */ synchronized long getPosition(int index) {
+    return positions[index];
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > sampleIndices.length) {
+      int newCapacity = Math.max(capacity, sampleIndices.length * 2);
+      sampleIndices = Arrays.copyOf(sampleIndices, newCapacity);
+      positions = Arrays.copyOf(positions, newCapacity);
+    }
+  }
+}
@@ -17,6 +17,7 @@
 #include <jni.h>
 #include <android/log.h>
 #include <cstdlib>
+#include <cstring>
 #include "include/flac_parser.h"
 
 #define LOG_TAG "flac_jni"
@@ -37,24 +38,71 @@
 
 class JavaDataSource : public DataSource {
  public:
+  JavaDataSource()
+      : mid(NULL),
+        tempBufferFid(NULL),
+        tempBuffer(NULL),
+        directData(NULL),
+        directOffset(0),
+        directSize(0),
+        directPosition(0) {}
+
   void setFlacDecoderJni(JNIEnv *env, jobject flacDecoderJni) {
     this->env = env;
     this->flacDecoderJni = flacDecoderJni;
     if (mid == NULL) {
       jclass cls = env->GetObjectClass(flacDecoderJni);
-      mid = env->GetMethodID(cls, "read", "(Ljava/nio/ByteBuffer;)I");
+      mid = env->GetMethodID(cls, "read", "(I)I");
+      tempBufferFid =
+          env->GetFieldID(cls, "tempBuffer", "Ljava/nio/ByteBuffer;");
       env->DeleteLocalRef(cls);
     }
   }
 
+  // Sets a block of native memory to read from instead of calling into Java,
+  // or clears it if data is NULL. offset is only reported back by
+  // getDirectPosition.
+  void setDirectData(const uint8_t *data, size_t offset, size_t size) {
+    directData = data;
+    directOffset = offset;
+    directSize = data != NULL ? size : 0;
+    directPosition = 0;
+  }
+
+  size_t getDirectPosition() const { return directOffset + directPosition; }
+
   ssize_t readAt(off64_t offset, void *const data, size_t size) {
-    jobject byteBuffer = env->NewDirectByteBuffer(data, size);
-    int result = env->CallIntMethod(flacDecoderJni, mid, byteBuffer);
+    if (directData != NULL) {
+      size_t count = directSize - directPosition;
+      if (count > size) {
+        count = size;
+      }
+      memcpy(data, directData + directPosition, count);
+      directPosition += count;
+      return count;
+    }
+    // Java reads into its temporary direct buffer, which is copied straight
+    // into the buffer libFLAC is reading into.
+    int result = env->CallIntMethod(flacDecoderJni, mid, (jint) size);
     if (env->ExceptionCheck()) {
       // Exception is thrown in Java when returning from the native call.
-      result = -1;
+      return -1;
+    }
+    if (result > 0) {
+      if (tempBuffer == NULL) {
+        // The buffer is allocated once and kept by Java, so its address is
+        // stable for the lifetime of the decoder.
+        jobject jTempBuffer =
+            env->GetObjectField(flacDecoderJni, tempBufferFid);
+        tempBuffer = env->GetDirectBufferAddress(jTempBuffer);
+        env->DeleteLocalRef(jTempBuffer);
+        if (tempBuffer == NULL) {
+          ALOGE("Temporary buffer is not direct");
+          return -1;
+        }
+      }
+      memcpy(data, tempBuffer, result);
     }
-    env->DeleteLocalRef(byteBuffer);
     return result;
   }
 
@@ -62,6 +110,12 @@ class JavaDataSource : public DataSource {
   JNIEnv *env;
   jobject flacDecoderJni;
   jmethodID mid;
+  jfieldID tempBufferFid;
+  void *tempBuffer;
+  const uint8_t *directData;
+  size_t directOffset;
+  size_t directSize;
+  size_t directPosition;
 };
 
 struct Context {
@@ -121,13 +175,45 @@ DECODER_FUNC(jint, flacDecodeToBuffer, jlong jContext, jobject jOutputBuffer) {
 DECODER_FUNC(jint, flacDecodeToArray, jlong jContext, jbyteArray jOutputArray) {
   Context *context = reinterpret_cast<Context *>(jContext);
   context->source->setFlacDecoderJni(env, thiz);
-  jbyte *outputBuffer = env->GetByteArrayElements(jOutputArray, NULL);
+  // Decoding calls back into Java to read input, so it has to complete before
+  // the output array is accessed in a critical region.
+  ssize_t count = context->parser->decodeFrame();
+  if (count < 0) {
+    return -1;
+  }
   jint outputSize = env->GetArrayLength(jOutputArray);
-  int count = context->parser->readBuffer(outputBuffer, outputSize);
-  env->ReleaseByteArrayElements(jOutputArray, outputBuffer, 0);
+  if (count > outputSize) {
+    ALOGE("Not enough space in output array %d < %zd", outputSize, count);
+    return -1;
+  }
+  // Unlike GetByteArrayElements, this does not copy the whole array out and
+  // back again if the VM cannot pin it.
+  void *outputBuffer = env->GetPrimitiveArrayCritical(jOutputArray, NULL);
+  if (outputBuffer == NULL) {
+    return -1;
+  }
+  context->parser->copyFrame(outputBuffer);
+  env->ReleasePrimitiveArrayCritical(jOutputArray, outputBuffer, 0);
   return count;
 }
 
+DECODER_FUNC(void, flacSetDirectData, jlong jContext, jobject jBuffer,
+             jint offset, jint length) {
+  Context *context = reinterpret_cast<Context *>(jContext);
+  const uint8_t *data = NULL;
+  if (jBuffer != NULL) {
+    data = reinterpret_cast<const uint8_t *>(
+        env->GetDirectBufferAddress(jBuffer));
+  }
+  context->source->setDirectData(data != NULL ? data + offset : NULL, offset,
+                                 length);
+}
+
+DECODER_FUNC(jint, flacGetDirectDataPosition, jlong jContext) {
+  Context *context = reinterpret_cast<Context *>(jContext);
+  return context->source->getDirectPosition();
+}
+
 DECODER_FUNC(jlong, flacGetDecodePosition, jlong jContext) {
   Context *context = reinterpret_cast<Context *>(jContext);
   return context->parser->getDecodePosition();
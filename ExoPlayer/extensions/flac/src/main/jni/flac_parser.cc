@@ -340,18 +340,34 @@ bool FLACParser::decodeMetadata() {
 }
 
 size_t FLACParser::readBuffer(void *output, size_t output_size) {
+  ssize_t bufferSize = decodeFrame();
+  if (bufferSize < 0) {
+    return -1;
+  }
+  if ((size_t) bufferSize > output_size) {
+    ALOGE(
+        "FLACParser::readBuffer not enough space in output buffer "
+        "%zu < %zd",
+        output_size, bufferSize);
+    return -1;
+  }
+  copyFrame(output);
+  return bufferSize;
+}
+
+ssize_t FLACParser::decodeFrame() {
   mWriteRequested = true;
   mWriteCompleted = false;
 
   if (!FLAC__stream_decoder_process_single(mDecoder)) {
-    ALOGE("FLACParser::readBuffer process_single failed. Status: %s",
+    ALOGE("FLACParser::decodeFrame process_single failed. Status: %s",
           getDecoderStateString());
     return -1;
   }
   if (!mWriteCompleted) {
     if (FLAC__stream_decoder_get_state(mDecoder) !=
         FLAC__STREAM_DECODER_END_OF_STREAM) {
-      ALOGE("FLACParser::readBuffer write did not complete. Status: %s",
+      ALOGE("FLACParser::decodeFrame write did not complete. Status: %s",
             getDecoderStateString());
     }
     return -1;
@@ -360,14 +376,14 @@ size_t FLACParser::readBuffer(void *output, size_t output_size) {
   // verify that block header keeps the promises made by STREAMINFO
   unsigned blocksize = mWriteHeader.blocksize;
   if (blocksize == 0 || blocksize > getMaxBlockSize()) {
-    ALOGE("FLACParser::readBuffer write invalid blocksize %u", blocksize);
+    ALOGE("FLACParser::decodeFrame write invalid blocksize %u", blocksize);
     return -1;
   }
   if (mWriteHeader.sample_rate != getSampleRate() ||
       mWriteHeader.channels != getChannels() ||
       mWriteHeader.bits_per_sample != getBitsPerSample()) {
     ALOGE(
-        "FLACParser::readBuffer write changed parameters mid-stream: %d/%d/%d "
+        "FLACParser::decodeFrame write changed parameters mid-stream: %d/%d/%d "
         "-> %d/%d/%d",
         getSampleRate(), getChannels(), getBitsPerSample(),
         mWriteHeader.sample_rate, mWriteHeader.channels,
@@ -375,24 +391,17 @@ size_t FLACParser::readBuffer(void *output, size_t output_size) {
     return -1;
   }
 
-  unsigned bytesPerSample = getBitsPerSample() >> 3;
-  size_t bufferSize = blocksize * getChannels() * bytesPerSample;
-  if (bufferSize > output_size) {
-    ALOGE(
-        "FLACParser::readBuffer not enough space in output buffer "
-        "%zu < %zu",
-        output_size, bufferSize);
-    return -1;
-  }
-
-  // copy PCM from FLAC write buffer to our media buffer, with interleaving.
-  (*mCopy)(reinterpret_cast<int8_t *>(output), mWriteBuffer, bytesPerSample,
-           blocksize, getChannels());
-
   // fill in buffer metadata
   CHECK(mWriteHeader.number_type == FLAC__FRAME_NUMBER_TYPE_SAMPLE_NUMBER);
 
-  return bufferSize;
+  unsigned bytesPerSample = getBitsPerSample() >> 3;
+  return blocksize * getChannels() * bytesPerSample;
+}
+
+void FLACParser::copyFrame(void *output) {
+  // copy PCM from FLAC write buffer to our media buffer, with interleaving.
+  (*mCopy)(reinterpret_cast<int8_t *>(output), mWriteBuffer,
+           getBitsPerSample() >> 3, mWriteHeader.blocksize, getChannels());
 }
 
 int64_t FLACParser::getSeekPosition(int64_t timeUs) {
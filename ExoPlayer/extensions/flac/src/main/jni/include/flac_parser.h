@@ -59,6 +59,15 @@ class FLACParser {
   bool decodeMetadata();
   size_t readBuffer(void *output, size_t output_size);
 
+  // Decodes the next frame, returning the size of its interleaved PCM in
+  // bytes, or -1 on error or at the end of the stream. The decoded frame is
+  // held until copyFrame is called or the next frame is decoded.
+  ssize_t decodeFrame();
+
+  // Copies the last decoded frame, interleaved, to output, which must hold at
+  // least the number of bytes returned by decodeFrame.
+  void copyFrame(void *output);
+
   int64_t getSeekPosition(int64_t timeUs);
 
   void flush() {
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.ext.flac;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.android.exoplayer2.C;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Unit test for {@link FlacSeekPointIndex}. */
+@RunWith(RobolectricTestRunner.class)
+public final class FlacSeekPointIndexTest {
+
+  private static final long SPACING = 100;
+
+  @Test
+  public void testAddKeepsEntriesSorted() {
+    FlacSeekPointIndex index = new FlacSeekPointIndex();
+    index.add(/* sampleIndex= */ 400, /* position= */ 4000, SPACING);
+    index.add(/* sampleIndex= */ 0, /* position= */ 10, SPACING);
+    index.add(/* sampleIndex= */ 200, /* position= */ 2000, SPACING);
+
+    assertThat(index.size()).isEqualTo(3);
+    assertThat(index.getSampleIndex(0)).isEqualTo(0);
+    assertThat(index.getSampleIndex(1)).isEqualTo(200);
+    assertThat(index.getPosition(1)).isEqualTo(2000);
+    assertThat(index.getSampleIndex(2)).isEqualTo(400);
+  }
+
+  @Test
+  public void testAddSkipsEntriesCloseToExistingOnes() {
+    FlacSeekPointIndex index = new FlacSeekPointIndex();
+    index.add(/* sampleIndex= */ 0, /* position= */ 10, SPACING);
+    index.add(/* sampleIndex= */ 50, /* position= */ 500, SPACING);
+    index.add(/* sampleIndex= */ 300, /* position= */ 3000, SPACING);
+    index.add(/* sampleIndex= */ 250, /* position= */ 2500, SPACING);
+    index.add(/* sampleIndex= */ 300, /* position= */ 3000, SPACING);
+
+    assertThat(index.size()).isEqualTo(2);
+  }
+
+  @Test
+  public void testGetFloorIndex() {
+    FlacSeekPointIndex index = new FlacSeekPointIndex();
+    index.add(/* sampleIndex= */ 100, /* position= */ 1000, SPACING);
+    index.add(/* sampleIndex= */ 300, /* position= */ 3000, SPACING);
+
+    assertThat(index.getFloorIndex(50)).isEqualTo(C.INDEX_UNSET);
+    assertThat(index.getFloorIndex(100)).isEqualTo(0);
+    assertThat(index.getFloorIndex(299)).isEqualTo(0);
+    assertThat(index.getFloorIndex(300)).isEqualTo(1);
+    assertThat(index.getFloorIndex(1000)).isEqualTo(1);
+  }
+
+  @Test
+  public void testWriteAndReadBack() throws Exception {
+    FlacSeekPointIndex index = new FlacSeekPointIndex();
+    for (int i = 0; i < 1000; i++) {
+      index.add(/* sampleIndex= */ i * SPACING, /* position= */ i * 1000L, SPACING);
+    }
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    index.writeTo(new DataOutputStream(outputStream));
+
+    FlacSeekPointIndex readIndex =
+        FlacSeekPointIndex.readFrom(
+            new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+
+    assertThat(readIndex.size()).isEqualTo(1000);
+    assertThat(readIndex.getSampleIndex(999)).isEqualTo(999 * SPACING);
+    assertThat(readIndex.getPosition(999)).isEqualTo(999000);
+  }
+
+  @Test
+  public void testReadTruncatedIndexWithHugeSizeFails() throws Exception {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(outputStream);
+    output.writeInt(/* version= */ 1);
+    output.writeInt(/* size= */ Integer.MAX_VALUE);
+    output.writeLong(/* sampleIndex= */ 0);
+    output.writeLong(/* position= */ 10);
+
+    try {
+      FlacSeekPointIndex.readFrom(
+          new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())));
+      fail();
+    } catch (EOFException e) {
+      // Expected.
+    }
+  }
+}
@@ -363,6 +363,7 @@ public abstract class SimpleDecoderAudioRenderer extends BaseRenderer implements
         return false;
       }
       decoderCounters.skippedOutputBufferCount += outputBuffer.skippedOutputBufferCount;
+      decoderCounters.batchedInputBufferCount += outputBuffer.batchedInputBufferCount;
     }
 
     if (outputBuffer.isEndOfStream()) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.decoder;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A {@link SimpleDecoder} that may decode several consecutive input buffers into one output buffer,
+ * so that fewer output buffers are handed back from the decode thread.
+ *
+ * <p>After an input buffer is decoded, the next queued input buffer is passed to {@link
+ * #appendToOutputBuffer} for as long as {@link #canAppendToOutputBuffer} returns {@code true}. The
+ * number of input buffers appended is set in {@link OutputBuffer#batchedInputBufferCount}. Input
+ * buffers are never appended across a flush, an end of stream buffer or a change of the decode
+ * only flag.
+ */
+public abstract class AppendingSimpleDecoder<
+        I extends DecoderInputBuffer, O extends OutputBuffer, E extends Exception>
+    extends SimpleDecoder<I, O, E> {
+
+  /**
+   * @param inputBuffers An array of nulls that will be used to store references to input buffers.
+   * @param outputBuffers An array of nulls that will be used to store references to output buffers.
+   */
+  protected AppendingSimpleDecoder(I[] inputBuffers, O[] outputBuffers) {
+    super(inputBuffers, outputBuffers);
+  }
+
+  /**
+   * @param inputBuffers An array of nulls that will be used to store references to input buffers.
+   * @param outputBuffers An array of nulls that will be used to store references to output buffers.
+   * @param useLockFreeQueues Whether to hand buffers to and from the decode thread through
+   *     lock-free queues rather than under a shared lock. See {@link
+   *     SimpleDecoder#SimpleDecoder(DecoderInputBuffer[], OutputBuffer[], boolean)}.
+   */
+  protected AppendingSimpleDecoder(I[] inputBuffers, O[] outputBuffers, boolean useLockFreeQueues) {
+    super(inputBuffers, outputBuffers, useLockFreeQueues);
+  }
+
+  @Override
+  /* package */ final boolean canAppendToOutputBufferInternal(O outputBuffer) {
+    return canAppendToOutputBuffer(outputBuffer);
+  }
+
+  @Override
+  /* package */ final @Nullable E decodeInternal(
+      I inputBuffer, O outputBuffer, boolean reset, boolean append) {
+    return append
+        ? appendToOutputBuffer(inputBuffer, outputBuffer)
+        : decode(inputBuffer, outputBuffer, reset);
+  }
+
+  /**
+   * Returns whether the output of the next queued input buffer may be appended to {@code
+   * outputBuffer}, which has just been populated by {@link #decode} or {@link
+   * #appendToOutputBuffer}. If so and an input buffer is queued, it is passed to {@link
+   * #appendToOutputBuffer} instead of being decoded into an output buffer of its own.
+   *
+   * @param outputBuffer The output buffer that would be appended to.
+   * @return Whether output may be appended to {@code outputBuffer}.
+   */
+  protected abstract boolean canAppendToOutputBuffer(O outputBuffer);
+
+  /**
+   * Decodes the {@code inputBuffer} and appends any decoded output to {@code outputBuffer}, keeping
+   * the output buffer's timestamp. Only called if {@link #canAppendToOutputBuffer} returned {@code
+   * true}.
+   *
+   * @param inputBuffer The buffer to decode.
+   * @param outputBuffer The output buffer holding the output of one or more earlier input buffers.
+   * @return A decoder exception if an error occurred, or null if decoding was successful.
+   */
+  protected abstract @Nullable E appendToOutputBuffer(I inputBuffer, O outputBuffer);
+}
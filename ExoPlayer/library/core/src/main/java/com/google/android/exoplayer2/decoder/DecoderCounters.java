@@ -73,6 +73,11 @@ public final class DecoderCounters {
    * dropped from the source to advance to the keyframe.
    */
   public int droppedToKeyframeCount;
+  /**
+   * The number of input buffers whose output was appended to the output buffer of an earlier input
+   * buffer, rather than being output in a buffer of its own.
+   */
+  public int batchedInputBufferCount;
 
   /**
    * Should be called to ensure counter values are made visible across threads. The playback thread
@@ -100,6 +105,7 @@ public final class DecoderCounters {
     maxConsecutiveDroppedBufferCount = Math.max(maxConsecutiveDroppedBufferCount,
         other.maxConsecutiveDroppedBufferCount);
     droppedToKeyframeCount += other.droppedToKeyframeCount;
+    batchedInputBufferCount += other.batchedInputBufferCount;
   }
 
 }
@@ -30,6 +30,11 @@ public abstract class OutputBuffer extends Buffer {
    */
   public int skippedOutputBufferCount;
 
+  /**
+   * The number of input buffers after the first whose output was appended to this buffer.
+   */
+  public int batchedInputBufferCount;
+
   /**
    * Releases the output buffer for reuse. Must be called when the buffer is no longer needed.
    */
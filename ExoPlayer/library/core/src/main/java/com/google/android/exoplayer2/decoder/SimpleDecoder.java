@@ -19,14 +19,32 @@ import android.support.annotation.Nullable;
 import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Assertions;
 import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
 
-/** Base class for {@link Decoder}s that use their own decode thread. */
+/**
+ * Base class for {@link Decoder}s that use their own decode thread.
+ *
+ * <p>By default buffers are handed between the thread using the decoder and the decode thread
+ * under a shared lock. A subclass may instead opt in to lock-free queues, in which case each
+ * direction uses a {@link SpscRingBuffer}, the decode thread parks while it has nothing to do, and
+ * the thread using the decoder never blocks. A flush is then applied lazily: buffers queued before
+ * it are tagged with an older flush generation, and are discarded by whichever thread next takes
+ * them from a queue.
+ *
+ * <p>This changes what a flush guarantees in lock-free mode. Input buffers queued before the flush
+ * are not made available again by {@link #flush()} itself, but only once the decode thread has
+ * discarded them, so {@link #dequeueInputBuffer()} may return null for a short while after a flush.
+ * The decoder is reset when the first input buffer queued after the flush is decoded, rather than
+ * during the flush, and an input buffer that was being decoded when the flush happened is still
+ * decoded, although its output is discarded.
+ */
 @SuppressWarnings("UngroupedOverloads")
 public abstract class SimpleDecoder<
         I extends DecoderInputBuffer, O extends OutputBuffer, E extends Exception>
     implements Decoder<I, O, E> {
 
   private final Thread decodeThread;
+  private final boolean useLockFreeQueues;
 
   private final Object lock;
   private final ArrayDeque<I> queuedInputBuffers;
@@ -38,16 +56,52 @@ public abstract class SimpleDecoder<
   private int availableOutputBufferCount;
   private I dequeuedInputBuffer;
 
-  private E exception;
+  private volatile E exception;
   private boolean flushed;
-  private boolean released;
+  private volatile boolean released;
   private int skippedOutputBufferCount;
 
+  // Lock-free mode only. Each queue has one producer and one consumer thread, noted as
+  // producer -> consumer, where the caller is the thread using the decoder.
+
+  /** Input buffers that may be dequeued. Decode thread -> caller. */
+  private final SpscRingBuffer<I> freeInputBuffers;
+  /** Input buffers to decode, tagged with the flush generation. Caller -> decode thread. */
+  private final SpscRingBuffer<I> pendingInputBuffers;
+  /** Output buffers to decode into. Caller -> decode thread. */
+  private final SpscRingBuffer<O> freeOutputBuffers;
+  /** Decoded output buffers, tagged with the flush generation. Decode thread -> caller. */
+  private final SpscRingBuffer<O> pendingOutputBuffers;
+  /** Incremented by each flush. Only written by the caller. */
+  private volatile int flushGeneration;
+  private volatile boolean decodeThreadParked;
+  /** A dequeued input buffer taken back by a flush. Only accessed by the caller. */
+  private I flushedInputBuffer;
+  /** An output buffer that was decoded into but not queued. Only accessed by the decode thread. */
+  private O spareOutputBuffer;
+  /** The flush generation of the last decoded input buffer. Only accessed by the decode thread. */
+  private int decodedGeneration;
+
   /**
    * @param inputBuffers An array of nulls that will be used to store references to input buffers.
    * @param outputBuffers An array of nulls that will be used to store references to output buffers.
    */
   protected SimpleDecoder(I[] inputBuffers, O[] outputBuffers) {
+    this(inputBuffers, outputBuffers, /* useLockFreeQueues= */ false);
+  }
+
+  /**
+   * @param inputBuffers An array of nulls that will be used to store references to input buffers.
+   * @param outputBuffers An array of nulls that will be used to store references to output buffers.
+   * @param useLockFreeQueues Whether to hand buffers to and from the decode thread through
+   *     lock-free queues rather than under a shared lock. If true, the {@link Decoder} methods and
+   *     {@link #releaseOutputBuffer(OutputBuffer)} must all be called from one thread, so this is
+   *     not suitable for decoders whose output buffers are released from another thread, such as
+   *     a render thread. A flush returns input buffers lazily in this mode, as described in the
+   *     class documentation.
+   */
+  protected SimpleDecoder(I[] inputBuffers, O[] outputBuffers, boolean useLockFreeQueues) {
+    this.useLockFreeQueues = useLockFreeQueues;
     lock = new Object();
     queuedInputBuffers = new ArrayDeque<>();
     queuedOutputBuffers = new ArrayDeque<>();
@@ -61,6 +115,23 @@ public abstract class SimpleDecoder<
     for (int i = 0; i < availableOutputBufferCount; i++) {
       availableOutputBuffers[i] = createOutputBuffer();
     }
+    if (useLockFreeQueues) {
+      freeInputBuffers = new SpscRingBuffer<>(inputBuffers.length);
+      pendingInputBuffers = new SpscRingBuffer<>(inputBuffers.length);
+      freeOutputBuffers = new SpscRingBuffer<>(outputBuffers.length);
+      pendingOutputBuffers = new SpscRingBuffer<>(outputBuffers.length);
+      for (I inputBuffer : inputBuffers) {
+        freeInputBuffers.offer(inputBuffer, /* tag= */ 0);
+      }
+      for (O outputBuffer : outputBuffers) {
+        freeOutputBuffers.offer(outputBuffer, /* tag= */ 0);
+      }
+    } else {
+      freeInputBuffers = null;
+      pendingInputBuffers = null;
+      freeOutputBuffers = null;
+      pendingOutputBuffers = null;
+    }
     decodeThread = new Thread() {
       @Override
       public void run() {
@@ -87,6 +158,17 @@ public abstract class SimpleDecoder<
 
   @Override
   public final I dequeueInputBuffer() throws E {
+    if (useLockFreeQueues) {
+      maybeThrowException();
+      Assertions.checkState(dequeuedInputBuffer == null);
+      if (flushedInputBuffer != null) {
+        dequeuedInputBuffer = flushedInputBuffer;
+        flushedInputBuffer = null;
+      } else {
+        dequeuedInputBuffer = freeInputBuffers.poll();
+      }
+      return dequeuedInputBuffer;
+    }
     synchronized (lock) {
       maybeThrowException();
       Assertions.checkState(dequeuedInputBuffer == null);
@@ -98,6 +180,14 @@ public abstract class SimpleDecoder<
 
   @Override
   public final void queueInputBuffer(I inputBuffer) throws E {
+    if (useLockFreeQueues) {
+      maybeThrowException();
+      Assertions.checkArgument(inputBuffer == dequeuedInputBuffer);
+      pendingInputBuffers.offer(inputBuffer, flushGeneration);
+      dequeuedInputBuffer = null;
+      maybeUnparkDecodeThread();
+      return;
+    }
     synchronized (lock) {
       maybeThrowException();
       Assertions.checkArgument(inputBuffer == dequeuedInputBuffer);
@@ -109,6 +199,20 @@ public abstract class SimpleDecoder<
 
   @Override
   public final O dequeueOutputBuffer() throws E {
+    if (useLockFreeQueues) {
+      maybeThrowException();
+      O outputBuffer;
+      while ((outputBuffer = pendingOutputBuffers.peek()) != null) {
+        boolean stale = pendingOutputBuffers.peekTag() != flushGeneration;
+        pendingOutputBuffers.poll();
+        if (!stale) {
+          return outputBuffer;
+        }
+        // Decoded from input queued before the last flush.
+        outputBuffer.release();
+      }
+      return null;
+    }
     synchronized (lock) {
       maybeThrowException();
       if (queuedOutputBuffers.isEmpty()) {
@@ -124,6 +228,12 @@ public abstract class SimpleDecoder<
    * @param outputBuffer The output buffer being released.
    */
   protected void releaseOutputBuffer(O outputBuffer) {
+    if (useLockFreeQueues) {
+      outputBuffer.clear();
+      freeOutputBuffers.offer(outputBuffer, /* tag= */ 0);
+      maybeUnparkDecodeThread();
+      return;
+    }
     synchronized (lock) {
       releaseOutputBufferInternal(outputBuffer);
       maybeNotifyDecodeLoop();
@@ -132,6 +242,21 @@ public abstract class SimpleDecoder<
 
   @Override
   public final void flush() {
+    if (useLockFreeQueues) {
+      // Pending input buffers are discarded by the decode thread, which is their only consumer.
+      flushGeneration++;
+      if (dequeuedInputBuffer != null) {
+        dequeuedInputBuffer.clear();
+        flushedInputBuffer = dequeuedInputBuffer;
+        dequeuedInputBuffer = null;
+      }
+      O outputBuffer;
+      while ((outputBuffer = pendingOutputBuffers.poll()) != null) {
+        outputBuffer.release();
+      }
+      maybeUnparkDecodeThread();
+      return;
+    }
     synchronized (lock) {
       flushed = true;
       skippedOutputBufferCount = 0;
@@ -150,9 +275,14 @@ public abstract class SimpleDecoder<
 
   @Override
   public void release() {
-    synchronized (lock) {
+    if (useLockFreeQueues) {
       released = true;
-      lock.notify();
+      LockSupport.unpark(decodeThread);
+    } else {
+      synchronized (lock) {
+        released = true;
+        lock.notify();
+      }
     }
     try {
       decodeThread.join();
@@ -184,10 +314,28 @@ public abstract class SimpleDecoder<
     }
   }
 
+  /**
+   * Unparks the decode thread if it is parked. Called by the caller after adding to a queue that
+   * the decode thread consumes.
+   */
+  private void maybeUnparkDecodeThread() {
+    // Pairs with the write to decodeThreadParked in parkDecodeThread: either the decode thread
+    // sees the new queue entry before parking, or this thread sees that it is parked.
+    if (decodeThreadParked) {
+      LockSupport.unpark(decodeThread);
+    }
+  }
+
   private void run() {
     try {
-      while (decode()) {
-        // Do nothing.
+      if (useLockFreeQueues) {
+        while (decodeLockFree()) {
+          // Do nothing.
+        }
+      } else {
+        while (decode()) {
+          // Do nothing.
+        }
       }
     } catch (InterruptedException e) {
       // Not expected.
@@ -214,29 +362,9 @@ public abstract class SimpleDecoder<
       flushed = false;
     }
 
-    if (inputBuffer.isEndOfStream()) {
-      outputBuffer.addFlag(C.BUFFER_FLAG_END_OF_STREAM);
-    } else {
-      if (inputBuffer.isDecodeOnly()) {
-        outputBuffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
-      }
-      try {
-        exception = decode(inputBuffer, outputBuffer, resetDecoder);
-      } catch (RuntimeException e) {
-        // This can occur if a sample is malformed in a way that the decoder is not robust against.
-        // We don't want the process to die in this case, but we do want to propagate the error.
-        exception = createUnexpectedDecodeException(e);
-      } catch (OutOfMemoryError e) {
-        // This can occur if a sample is malformed in a way that causes the decoder to think it
-        // needs to allocate a large amount of memory. We don't want the process to die in this
-        // case, but we do want to propagate the error.
-        exception = createUnexpectedDecodeException(e);
-      }
-      if (exception != null) {
-        // Memory barrier to ensure that the decoder exception is visible from the playback thread.
-        synchronized (lock) {}
-        return false;
-      }
+    inputBuffer = decodeInputBuffers(inputBuffer, outputBuffer, resetDecoder, /* generation= */ 0);
+    if (inputBuffer == null) {
+      return false;
     }
 
     synchronized (lock) {
@@ -257,6 +385,158 @@ public abstract class SimpleDecoder<
     return true;
   }
 
+  private boolean decodeLockFree() {
+    // Wait until we have an input buffer to decode, and an output buffer to decode into. Input
+    // buffers queued before a flush are discarded without decoding.
+    I inputBuffer;
+    int generation;
+    while (true) {
+      if (released) {
+        return false;
+      }
+      inputBuffer = pendingInputBuffers.peek();
+      if (inputBuffer != null) {
+        generation = pendingInputBuffers.peekTag();
+        if (generation != flushGeneration) {
+          pendingInputBuffers.poll();
+          releaseInputBufferLockFree(inputBuffer);
+          continue;
+        }
+        if (spareOutputBuffer == null) {
+          spareOutputBuffer = freeOutputBuffers.poll();
+        }
+        if (spareOutputBuffer != null) {
+          pendingInputBuffers.poll();
+          break;
+        }
+      }
+      parkDecodeThread();
+    }
+    O outputBuffer = spareOutputBuffer;
+    spareOutputBuffer = null;
+    boolean resetDecoder = generation != decodedGeneration;
+    if (resetDecoder) {
+      decodedGeneration = generation;
+      skippedOutputBufferCount = 0;
+    }
+
+    inputBuffer = decodeInputBuffers(inputBuffer, outputBuffer, resetDecoder, generation);
+    if (inputBuffer == null) {
+      return false;
+    }
+
+    if (generation != flushGeneration || outputBuffer.isDecodeOnly()) {
+      if (generation == flushGeneration) {
+        skippedOutputBufferCount++;
+      }
+      // Keep the output buffer for the next decode rather than handing it back to the caller.
+      outputBuffer.clear();
+      spareOutputBuffer = outputBuffer;
+    } else {
+      // If a flush happens after the check above, the caller discards the buffer by its tag.
+      outputBuffer.skippedOutputBufferCount = skippedOutputBufferCount;
+      skippedOutputBufferCount = 0;
+      pendingOutputBuffers.offer(outputBuffer, generation);
+    }
+    releaseInputBufferLockFree(inputBuffer);
+    return true;
+  }
+
+  /**
+   * Parks the decode thread until the caller adds to a queue that the decode thread consumes, or
+   * the decoder is released. May return spuriously.
+   */
+  private void parkDecodeThread() {
+    decodeThreadParked = true;
+    // Check again after publishing decodeThreadParked, so that an entry added concurrently is not
+    // missed.
+    if (!released && (pendingInputBuffers.isEmpty()
+        || (spareOutputBuffer == null && freeOutputBuffers.isEmpty()
+            && pendingInputBuffers.peekTag() == flushGeneration))) {
+      LockSupport.park(this);
+    }
+    decodeThreadParked = false;
+  }
+
+  /**
+   * Decodes {@code inputBuffer} into {@code outputBuffer}, appending the output of further queued
+   * input buffers to it if the subclass supports this.
+   *
+   * @return The last input buffer that was decoded, which the caller must release, or null if a
+   *     decode exception occurred.
+   */
+  private @Nullable I decodeInputBuffers(
+      I inputBuffer, O outputBuffer, boolean resetDecoder, int generation) {
+    int batchedInputBufferCount = 0;
+    if (inputBuffer.isEndOfStream()) {
+      outputBuffer.addFlag(C.BUFFER_FLAG_END_OF_STREAM);
+    } else {
+      if (inputBuffer.isDecodeOnly()) {
+        outputBuffer.addFlag(C.BUFFER_FLAG_DECODE_ONLY);
+      }
+      boolean append = false;
+      while (true) {
+        try {
+          exception = decodeInternal(inputBuffer, outputBuffer, resetDecoder, append);
+        } catch (RuntimeException e) {
+          // This can occur if a sample is malformed in a way that the decoder is not robust against.
+          // We don't want the process to die in this case, but we do want to propagate the error.
+          exception = createUnexpectedDecodeException(e);
+        } catch (OutOfMemoryError e) {
+          // This can occur if a sample is malformed in a way that causes the decoder to think it
+          // needs to allocate a large amount of memory. We don't want the process to die in this
+          // case, but we do want to propagate the error.
+          exception = createUnexpectedDecodeException(e);
+        }
+        if (exception != null) {
+          // The exception field is volatile, so it is visible from the playback thread.
+          return null;
+        }
+        if (!canAppendToOutputBufferInternal(outputBuffer)) {
+          break;
+        }
+        // Decode the next queued input buffer into the same output buffer, if there is one.
+        I nextInputBuffer = pollAppendableInputBuffer(inputBuffer, generation);
+        if (nextInputBuffer == null) {
+          break;
+        }
+        inputBuffer = nextInputBuffer;
+        append = true;
+        batchedInputBufferCount++;
+      }
+    }
+    outputBuffer.batchedInputBufferCount = batchedInputBufferCount;
+    return inputBuffer;
+  }
+
+  /**
+   * Returns the next queued input buffer if its output can be appended to that of {@code
+   * inputBuffer}, after releasing {@code inputBuffer}, or null if there is no such buffer.
+   */
+  private @Nullable I pollAppendableInputBuffer(I inputBuffer, int generation) {
+    if (useLockFreeQueues) {
+      I nextInputBuffer = pendingInputBuffers.peek();
+      if (released || generation != flushGeneration || nextInputBuffer == null
+          || pendingInputBuffers.peekTag() != generation || nextInputBuffer.isEndOfStream()
+          || nextInputBuffer.isDecodeOnly() != inputBuffer.isDecodeOnly()) {
+        return null;
+      }
+      pendingInputBuffers.poll();
+      releaseInputBufferLockFree(inputBuffer);
+      return nextInputBuffer;
+    }
+    synchronized (lock) {
+      I nextInputBuffer = queuedInputBuffers.peekFirst();
+      if (released || flushed || nextInputBuffer == null || nextInputBuffer.isEndOfStream()
+          || nextInputBuffer.isDecodeOnly() != inputBuffer.isDecodeOnly()) {
+        return null;
+      }
+      queuedInputBuffers.removeFirst();
+      releaseInputBufferInternal(inputBuffer);
+      return nextInputBuffer;
+    }
+  }
+
   private boolean canDecodeBuffer() {
     return !queuedInputBuffers.isEmpty() && availableOutputBufferCount > 0;
   }
@@ -266,6 +546,11 @@ public abstract class SimpleDecoder<
     availableInputBuffers[availableInputBufferCount++] = inputBuffer;
   }
 
+  private void releaseInputBufferLockFree(I inputBuffer) {
+    inputBuffer.clear();
+    freeInputBuffers.offer(inputBuffer, /* tag= */ 0);
+  }
+
   private void releaseOutputBufferInternal(O outputBuffer) {
     outputBuffer.clear();
     availableOutputBuffers[availableOutputBufferCount++] = outputBuffer;
@@ -289,6 +574,25 @@ public abstract class SimpleDecoder<
    */
   protected abstract E createUnexpectedDecodeException(Throwable error);
 
+  /**
+   * Returns whether the output of the next queued input buffer may be appended to {@code
+   * outputBuffer}. Overridden by {@link AppendingSimpleDecoder}.
+   */
+  /* package */ boolean canAppendToOutputBufferInternal(O outputBuffer) {
+    return false;
+  }
+
+  /**
+   * Decodes the {@code inputBuffer} into {@code outputBuffer}, appending to its existing output if
+   * {@code append} is true. {@code append} is only true if {@link
+   * #canAppendToOutputBufferInternal} returned {@code true}, so it's never true for this class.
+   * Overridden by {@link AppendingSimpleDecoder}.
+   */
+  /* package */ @Nullable E decodeInternal(
+      I inputBuffer, O outputBuffer, boolean reset, boolean append) {
+    return decode(inputBuffer, outputBuffer, reset);
+  }
+
   /**
    * Decodes the {@code inputBuffer} and stores any decoded output in {@code outputBuffer}.
    *
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.decoder;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A bounded, wait-free queue for exactly one producer thread and one consumer thread. Each element
+ * carries an int tag.
+ *
+ * <p>{@link #offer} must only be called by the producer. {@link #peek}, {@link #peekTag} and
+ * {@link #poll} must only be called by the consumer. Writes made by the producer before offering
+ * an element are visible to the consumer once it has seen the element.
+ */
+/* package */ final class SpscRingBuffer<T> {
+
+  private final Object[] elements;
+  private final int[] tags;
+
+  /** Index of the next element to poll. Only written by the consumer. */
+  private volatile long head;
+  /** Index of the next element to offer. Only written by the producer. */
+  private volatile long tail;
+
+  /** @param capacity The maximum number of elements in the queue. */
+  public SpscRingBuffer(int capacity) {
+    elements = new Object[capacity];
+    tags = new int[capacity];
+  }
+
+  /** Returns whether the queue is empty. May be called by either thread. */
+  public boolean isEmpty() {
+    return head == tail;
+  }
+
+  /**
+   * Adds an element to the end of the queue.
+   *
+   * @param element The element.
+   * @param tag The tag of the element.
+   * @return Whether the element was added, which is only not the case if the queue is full.
+   */
+  public boolean offer(T element, int tag) {
+    long tail = this.tail;
+    if (tail - head == elements.length) {
+      return false;
+    }
+    int index = (int) (tail % elements.length);
+    elements[index] = element;
+    tags[index] = tag;
+    // Publishes the element.
+    this.tail = tail + 1;
+    return true;
+  }
+
+  /** Returns the element at the front of the queue without removing it, or null if it is empty. */
+  @SuppressWarnings("unchecked")
+  public @Nullable T peek() {
+    long head = this.head;
+    return head == tail ? null : (T) elements[(int) (head % elements.length)];
+  }
+
+  /**
+   * Returns the tag of the element at the front of the queue. Must only be called after {@link
+   * #peek} returned an element.
+   */
+  public int peekTag() {
+    return tags[(int) (head % elements.length)];
+  }
+
+  /** Removes and returns the element at the front of the queue, or null if it is empty. */
+  @SuppressWarnings("unchecked")
+  public @Nullable T poll() {
+    long head = this.head;
+    if (head == tail) {
+      return null;
+    }
+    int index = (int) (head % elements.length);
+    T element = (T) elements[index];
+    elements[index] = null;
+    // Hands the slot back to the producer.
+    this.head = head + 1;
+    return element;
+  }
+}
@@ -257,13 +257,43 @@ public abstract class BinarySearchSeeker {
   }
 
   protected SeekOperationParams createSeekParamsForTargetTimeUs(long timeUs) {
-    return new SeekOperationParams(
+    return createSeekParams(
         timeUs,
         seekMap.timeUsToTargetTime(timeUs),
         seekMap.floorTimePosition,
         seekMap.ceilingTimePosition,
         seekMap.floorBytePosition,
-        seekMap.ceilingBytePosition,
+        seekMap.ceilingBytePosition);
+  }
+
+  /**
+   * Creates the parameters for a seek operation that starts searching within a given range of the
+   * stream. Subclasses that already know frames around the target may use this from {@link
+   * #createSeekParamsForTargetTimeUs(long)} to narrow the initial search range.
+   *
+   * @param timeUs The target seek time in microseconds.
+   * @param targetTimePosition The target timestamp, as returned by {@link
+   *     BinarySearchSeekMap#timeUsToTargetTime(long)}.
+   * @param floorTimePosition The timestamp of the frame at {@code floorBytePosition} (inclusive).
+   * @param ceilingTimePosition The timestamp of the frame at {@code ceilingBytePosition}
+   *     (exclusive).
+   * @param floorBytePosition The position of a frame at or before the target.
+   * @param ceilingBytePosition The position of a frame after the target, or the end of the stream.
+   */
+  protected final SeekOperationParams createSeekParams(
+      long timeUs,
+      long targetTimePosition,
+      long floorTimePosition,
+      long ceilingTimePosition,
+      long floorBytePosition,
+      long ceilingBytePosition) {
+    return new SeekOperationParams(
+        timeUs,
+        targetTimePosition,
+        floorTimePosition,
+        ceilingTimePosition,
+        floorBytePosition,
+        ceilingBytePosition,
         seekMap.approxBytesPerFrame);
   }
 
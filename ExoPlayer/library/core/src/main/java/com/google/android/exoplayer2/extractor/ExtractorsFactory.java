@@ -15,9 +15,21 @@
  */
 package com.google.android.exoplayer2.extractor;
 
+import android.net.Uri;
+
 /** Factory for arrays of {@link Extractor} instances. */
 public interface ExtractorsFactory {
 
   /** Returns an array of new {@link Extractor} instances. */
   Extractor[] createExtractors();
+
+  /**
+   * Returns an array of new {@link Extractor} instances for reading the media at {@code uri}. The
+   * default implementation ignores the {@code uri} and calls {@link #createExtractors()}.
+   *
+   * @param uri The URI of the media that the extractors will read.
+   */
+  default Extractor[] createExtractors(Uri uri) {
+    return createExtractors();
+  }
 }
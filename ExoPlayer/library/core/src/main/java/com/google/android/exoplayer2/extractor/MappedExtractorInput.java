@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.extractor;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link ExtractorInput} that reads from the memory mapped file of an opened {@link
+ * MappedFileDataSource}.
+ *
+ * <p>Unlike {@link DefaultExtractorInput}, peeked data is not buffered. Peeks copy straight from
+ * the mapping, so data is copied once whether or not it was peeked before being read.
+ */
+public final class MappedExtractorInput implements ExtractorInput {
+
+  private final MappedFileDataSource dataSource;
+  private final long streamLength;
+
+  private long position;
+  private long peekOffset;
+
+  /**
+   * @param dataSource The wrapped {@link MappedFileDataSource}, which must be open.
+   * @param position The initial position in the stream.
+   * @param length The length of the stream, or {@link C#LENGTH_UNSET} if it is unknown.
+   */
+  public MappedExtractorInput(MappedFileDataSource dataSource, long position, long length) {
+    this.dataSource = dataSource;
+    this.position = position;
+    this.streamLength = length;
+  }
+
+  @Override
+  public int read(byte[] target, int offset, int length) throws IOException, InterruptedException {
+    throwIfInterrupted();
+    int bytesRead = dataSource.read(target, offset, length);
+    commitBytesRead(bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Reads up to {@code length} bytes into {@code target}, copying them straight from the mapped
+   * file.
+   *
+   * @param target The buffer into which data should be written, from its position.
+   * @param length The maximum number of bytes to read.
+   * @return The number of bytes read, or {@link C#RESULT_END_OF_INPUT} if the input has ended.
+   * @throws IOException If an error occurs reading from the input.
+   * @throws InterruptedException If the thread has been interrupted.
+   */
+  public int read(ByteBuffer target, int length) throws IOException, InterruptedException {
+    throwIfInterrupted();
+    if (length == 0) {
+      return 0;
+    }
+    ByteBuffer mappedBuffer = dataSource.getMappedBuffer(/* offset= */ 0);
+    if (mappedBuffer == null) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesRead = Math.min(mappedBuffer.remaining(), length);
+    mappedBuffer.limit(mappedBuffer.position() + bytesRead);
+    target.put(mappedBuffer);
+    dataSource.skip(bytesRead);
+    commitBytesRead(bytesRead);
+    return bytesRead;
+  }
+
+  @Override
+  public boolean readFully(byte[] target, int offset, int length, boolean allowEndOfInput)
+      throws IOException, InterruptedException {
+    if (!checkAvailable(/* peekOffset= */ 0, length, allowEndOfInput)) {
+      return false;
+    }
+    int bytesRead = 0;
+    do {
+      bytesRead += read(target, offset + bytesRead, length - bytesRead);
+    } while (bytesRead < length);
+    return true;
+  }
+
+  @Override
+  public void readFully(byte[] target, int offset, int length)
+      throws IOException, InterruptedException {
+    readFully(target, offset, length, false);
+  }
+
+  @Override
+  public int skip(int length) throws IOException, InterruptedException {
+    throwIfInterrupted();
+    int bytesSkipped = dataSource.skip(length);
+    commitBytesRead(bytesSkipped);
+    return bytesSkipped;
+  }
+
+  @Override
+  public boolean skipFully(int length, boolean allowEndOfInput)
+      throws IOException, InterruptedException {
+    if (!checkAvailable(/* peekOffset= */ 0, length, allowEndOfInput)) {
+      return false;
+    }
+    skip(length);
+    return true;
+  }
+
+  @Override
+  public void skipFully(int length) throws IOException, InterruptedException {
+    skipFully(length, false);
+  }
+
+  @Override
+  public boolean peekFully(byte[] target, int offset, int length, boolean allowEndOfInput)
+      throws IOException, InterruptedException {
+    if (!checkAvailable(peekOffset, length, allowEndOfInput)) {
+      return false;
+    }
+    int bytesPeeked = 0;
+    while (bytesPeeked < length) {
+      ByteBuffer mappedBuffer = dataSource.getMappedBuffer(peekOffset + bytesPeeked);
+      int bytesToCopy = Math.min(mappedBuffer.remaining(), length - bytesPeeked);
+      mappedBuffer.get(target, offset + bytesPeeked, bytesToCopy);
+      bytesPeeked += bytesToCopy;
+    }
+    peekOffset += length;
+    return true;
+  }
+
+  @Override
+  public void peekFully(byte[] target, int offset, int length)
+      throws IOException, InterruptedException {
+    peekFully(target, offset, length, false);
+  }
+
+  @Override
+  public boolean advancePeekPosition(int length, boolean allowEndOfInput)
+      throws IOException, InterruptedException {
+    if (!checkAvailable(peekOffset, length, allowEndOfInput)) {
+      return false;
+    }
+    peekOffset += length;
+    return true;
+  }
+
+  @Override
+  public void advancePeekPosition(int length) throws IOException, InterruptedException {
+    advancePeekPosition(length, false);
+  }
+
+  @Override
+  public void resetPeekPosition() {
+    peekOffset = 0;
+  }
+
+  @Override
+  public long getPeekPosition() {
+    return position + peekOffset;
+  }
+
+  @Override
+  public long getPosition() {
+    return position;
+  }
+
+  @Override
+  public long getLength() {
+    return streamLength;
+  }
+
+  @Override
+  public <E extends Throwable> void setRetryPosition(long position, E e) throws E {
+    Assertions.checkArgument(position >= 0);
+    this.position = position;
+    throw e;
+  }
+
+  /**
+   * Checks whether {@code length} bytes are available from {@code peekOffset} bytes after the read
+   * position, with the same end of input behavior as {@link DefaultExtractorInput}.
+   *
+   * @param peekOffset The offset from the read position.
+   * @param length The number of bytes required.
+   * @param allowEndOfInput Whether encountering the end of the input having no data available is
+   *     allowed.
+   * @return Whether the bytes are available. False if {@code allowEndOfInput} is true and no bytes
+   *     are available.
+   * @throws EOFException If some but fewer than {@code length} bytes are available, or if no bytes
+   *     are available and {@code allowEndOfInput} is false.
+   * @throws InterruptedException If the thread has been interrupted.
+   */
+  private boolean checkAvailable(long peekOffset, int length, boolean allowEndOfInput)
+      throws EOFException, InterruptedException {
+    throwIfInterrupted();
+    long bytesAvailable = dataSource.getBytesRemaining() - peekOffset;
+    if (bytesAvailable >= length) {
+      return true;
+    } else if (bytesAvailable <= 0 && allowEndOfInput) {
+      return false;
+    }
+    throw new EOFException();
+  }
+
+  private void throwIfInterrupted() throws InterruptedException {
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+
+  /**
+   * Advances the position by the specified number of bytes read, and resets the peek position.
+   *
+   * @param bytesRead The number of bytes read.
+   */
+  private void commitBytesRead(int bytesRead) {
+    if (bytesRead != C.RESULT_END_OF_INPUT) {
+      position += bytesRead;
+      peekOffset = 0;
+    }
+  }
+
+}
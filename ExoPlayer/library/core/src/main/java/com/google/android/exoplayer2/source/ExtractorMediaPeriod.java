@@ -27,6 +27,7 @@ import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
 import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.MappedExtractorInput;
 import com.google.android.exoplayer2.extractor.PositionHolder;
 import com.google.android.exoplayer2.extractor.SeekMap;
 import com.google.android.exoplayer2.extractor.SeekMap.SeekPoints;
@@ -41,6 +42,7 @@ import com.google.android.exoplayer2.upstream.LoadErrorHandlingPolicy;
 import com.google.android.exoplayer2.upstream.Loader;
 import com.google.android.exoplayer2.upstream.Loader.LoadErrorAction;
 import com.google.android.exoplayer2.upstream.Loader.Loadable;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
 import com.google.android.exoplayer2.upstream.StatsDataSource;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.ConditionVariable;
@@ -520,7 +522,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         durationUs,
         elapsedRealtimeMs,
         loadDurationMs,
-        loadable.dataSource.getBytesRead());
+        loadable.getBytesLoaded());
     copyLengthFromLoader(loadable);
     loadingFinished = true;
     Assertions.checkNotNull(callback).onContinueLoadingRequested(this);
@@ -542,7 +544,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         durationUs,
         elapsedRealtimeMs,
         loadDurationMs,
-        loadable.dataSource.getBytesRead());
+        loadable.getBytesLoaded());
     if (!released) {
       copyLengthFromLoader(loadable);
       for (SampleQueue sampleQueue : sampleQueues) {
@@ -589,7 +591,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         durationUs,
         elapsedRealtimeMs,
         loadDurationMs,
-        loadable.dataSource.getBytesRead(),
+        loadable.getBytesLoaded(),
         error,
         !loadErrorAction.isRetry());
     return loadErrorAction;
@@ -838,6 +840,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
 
     private final Uri uri;
     private final StatsDataSource dataSource;
+    private final @Nullable MappedFileDataSource mappedDataSource;
     private final ExtractorHolder extractorHolder;
     private final ExtractorOutput extractorOutput;
     private final ConditionVariable loadCondition;
@@ -849,6 +852,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
     private long seekTimeUs;
     private DataSpec dataSpec;
     private long length;
+    private long mappedBytesRead;
 
     public ExtractingLoadable(
         Uri uri,
@@ -858,6 +862,8 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
         ConditionVariable loadCondition) {
       this.uri = uri;
       this.dataSource = new StatsDataSource(dataSource);
+      mappedDataSource =
+          dataSource instanceof MappedFileDataSource ? (MappedFileDataSource) dataSource : null;
       this.extractorHolder = extractorHolder;
       this.extractorOutput = extractorOutput;
       this.loadCondition = loadCondition;
@@ -879,6 +885,7 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
       int result = Extractor.RESULT_CONTINUE;
       while (result == Extractor.RESULT_CONTINUE && !loadCanceled) {
         ExtractorInput input = null;
+        long mappedBytesRemaining = 0;
         try {
           long position = positionHolder.position;
           dataSpec = new DataSpec(uri, position, C.LENGTH_UNSET, customCacheKey);
@@ -887,7 +894,14 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
             length += position;
           }
           Uri uri = Assertions.checkNotNull(dataSource.getUri());
-          input = new DefaultExtractorInput(dataSource, position, length);
+          if (mappedDataSource != null) {
+            // Read straight from the mapped file. This bypasses dataSource, so the bytes read are
+            // counted separately.
+            mappedBytesRemaining = mappedDataSource.getBytesRemaining();
+            input = new MappedExtractorInput(mappedDataSource, position, length);
+          } else {
+            input = new DefaultExtractorInput(dataSource, position, length);
+          }
           Extractor extractor = extractorHolder.selectExtractor(input, extractorOutput, uri);
           if (pendingExtractorSeek) {
             extractor.seek(position, seekTimeUs);
@@ -908,11 +922,19 @@ import org.checkerframework.checker.nullness.compatqual.NullableType;
           } else if (input != null) {
             positionHolder.position = input.getPosition();
           }
+          if (input instanceof MappedExtractorInput) {
+            mappedBytesRead += mappedBytesRemaining - mappedDataSource.getBytesRemaining();
+          }
           Util.closeQuietly(dataSource);
         }
       }
     }
 
+    /** Returns the number of bytes loaded, including any read straight from a mapped file. */
+    public long getBytesLoaded() {
+      return dataSource.getBytesRead() + mappedBytesRead;
+    }
+
     // Internal methods.
 
     private void setLoadPosition(long position, long timeUs) {
@@ -381,7 +381,7 @@ public final class ExtractorMediaSource extends BaseMediaSource
     return new ExtractorMediaPeriod(
         uri,
         dataSource,
-        extractorsFactory.createExtractors(),
+        extractorsFactory.createExtractors(uri),
         loadableLoadErrorHandlingPolicy,
         createEventDispatcher(id),
         this,
@@ -22,9 +22,16 @@ import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
 import com.google.android.exoplayer2.extractor.TrackOutput.CryptoData;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
+import java.util.Arrays;
 
 /**
  * A queue of metadata describing the contents of a media buffer.
+ *
+ * <p>Sample metadata is stored in fixed size chunks addressed by absolute sample index, so the
+ * queue grows without copying and chunks discarded from the front are recycled. The absolute
+ * indices of keyframes are kept in a separate index. While sample timestamps are non-decreasing,
+ * which is the case for audio and for video without reordered frames, searches by time are binary
+ * searches rather than linear scans.
  */
 /* package */ final class SampleMetadataQueue {
 
@@ -39,20 +46,30 @@ import com.google.android.exoplayer2.util.Util;
 
   }
 
-  private static final int SAMPLE_CAPACITY_INCREMENT = 1000;
+  private static final int CHUNK_SHIFT = 10;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+  private static final int INITIAL_CHUNK_TABLE_SIZE = 4;
+  private static final int INITIAL_KEYFRAME_CAPACITY = 64;
 
-  private int capacity;
-  private int[] sourceIds;
-  private long[] offsets;
-  private int[] sizes;
-  private int[] flags;
-  private long[] timesUs;
-  private CryptoData[] cryptoDatas;
-  private Format[] formats;
+  /**
+   * The chunks holding the queued samples. {@code chunks[i]} holds the samples with absolute
+   * indices from {@code (firstChunk + i) * CHUNK_SIZE}.
+   */
+  private Chunk[] chunks;
+  private int chunkCount;
+  private int firstChunk;
+  private Chunk spareChunk;
+
+  /** Absolute indices of the queued keyframes, in increasing order, as a ring buffer. */
+  private int[] keyframeIndices;
+  private int keyframeStart;
+  private int keyframeCount;
+  /** Whether the timestamps of the queued samples are known to be non-decreasing. */
+  private boolean timestampsMonotonic;
 
   private int length;
   private int absoluteFirstIndex;
-  private int relativeFirstIndex;
   private int readPosition;
 
   private long largestDiscardedTimestampUs;
@@ -63,14 +80,9 @@ import com.google.android.exoplayer2.util.Util;
   private int upstreamSourceId;
 
   public SampleMetadataQueue() {
-    capacity = SAMPLE_CAPACITY_INCREMENT;
-    sourceIds = new int[capacity];
-    offsets = new long[capacity];
-    timesUs = new long[capacity];
-    flags = new int[capacity];
-    sizes = new int[capacity];
-    cryptoDatas = new CryptoData[capacity];
-    formats = new Format[capacity];
+    chunks = new Chunk[INITIAL_CHUNK_TABLE_SIZE];
+    keyframeIndices = new int[INITIAL_KEYFRAME_CAPACITY];
+    timestampsMonotonic = true;
     largestDiscardedTimestampUs = Long.MIN_VALUE;
     largestQueuedTimestampUs = Long.MIN_VALUE;
     upstreamFormatRequired = true;
@@ -88,8 +100,12 @@ import com.google.android.exoplayer2.util.Util;
   public void reset(boolean resetUpstreamFormat) {
     length = 0;
     absoluteFirstIndex = 0;
-    relativeFirstIndex = 0;
     readPosition = 0;
+    // Keep the chunks, and reuse them from absolute index 0.
+    firstChunk = 0;
+    keyframeStart = 0;
+    keyframeCount = 0;
+    timestampsMonotonic = true;
     upstreamKeyframeRequired = true;
     largestDiscardedTimestampUs = Long.MIN_VALUE;
     largestQueuedTimestampUs = Long.MIN_VALUE;
@@ -117,12 +133,18 @@ import com.google.android.exoplayer2.util.Util;
     int discardCount = getWriteIndex() - discardFromIndex;
     Assertions.checkArgument(0 <= discardCount && discardCount <= (length - readPosition));
     length -= discardCount;
+    while (keyframeCount > 0 && getKeyframeIndex(keyframeCount - 1) >= getWriteIndex()) {
+      keyframeCount--;
+    }
     largestQueuedTimestampUs = Math.max(largestDiscardedTimestampUs, getLargestTimestamp(length));
     if (length == 0) {
+      timestampsMonotonic = true;
       return 0;
     } else {
-      int relativeLastWriteIndex = getRelativeIndex(length - 1);
-      return offsets[relativeLastWriteIndex] + sizes[relativeLastWriteIndex];
+      int lastWriteIndex = getWriteIndex() - 1;
+      Chunk chunk = getChunk(lastWriteIndex);
+      int slot = lastWriteIndex & CHUNK_MASK;
+      return chunk.offsets[slot] + chunk.sizes[slot];
     }
   }
 
@@ -153,8 +175,11 @@ import com.google.android.exoplayer2.util.Util;
    * @return The source id.
    */
   public int peekSourceId() {
-    int relativeReadIndex = getRelativeIndex(readPosition);
-    return hasNextSample() ? sourceIds[relativeReadIndex] : upstreamSourceId;
+    if (!hasNextSample()) {
+      return upstreamSourceId;
+    }
+    int readIndex = getReadIndex();
+    return getChunk(readIndex).sourceIds[readIndex & CHUNK_MASK];
   }
 
   /**
@@ -188,7 +213,7 @@ import com.google.android.exoplayer2.util.Util;
 
   /** Returns the timestamp of the first sample, or {@link Long#MIN_VALUE} if the queue is empty. */
   public synchronized long getFirstTimestampUs() {
-    return length == 0 ? Long.MIN_VALUE : timesUs[relativeFirstIndex];
+    return length == 0 ? Long.MIN_VALUE : getTimeUs(absoluteFirstIndex);
   }
 
   /**
@@ -236,9 +261,11 @@ import com.google.android.exoplayer2.util.Util;
       }
     }
 
-    int relativeReadIndex = getRelativeIndex(readPosition);
-    if (formatRequired || formats[relativeReadIndex] != downstreamFormat) {
-      formatHolder.format = formats[relativeReadIndex];
+    int readIndex = getReadIndex();
+    Chunk chunk = getChunk(readIndex);
+    int slot = readIndex & CHUNK_MASK;
+    if (formatRequired || chunk.formats[slot] != downstreamFormat) {
+      formatHolder.format = chunk.formats[slot];
       return C.RESULT_FORMAT_READ;
     }
 
@@ -246,11 +273,11 @@ import com.google.android.exoplayer2.util.Util;
       return C.RESULT_NOTHING_READ;
     }
 
-    buffer.timeUs = timesUs[relativeReadIndex];
-    buffer.setFlags(flags[relativeReadIndex]);
-    extrasHolder.size = sizes[relativeReadIndex];
-    extrasHolder.offset = offsets[relativeReadIndex];
-    extrasHolder.cryptoData = cryptoDatas[relativeReadIndex];
+    buffer.timeUs = chunk.timesUs[slot];
+    buffer.setFlags(chunk.flags[slot]);
+    extrasHolder.size = chunk.sizes[slot];
+    extrasHolder.offset = chunk.offsets[slot];
+    extrasHolder.cryptoData = chunk.cryptoDatas[slot];
 
     readPosition++;
     return C.RESULT_BUFFER_READ;
@@ -272,12 +299,11 @@ import com.google.android.exoplayer2.util.Util;
    */
   public synchronized int advanceTo(long timeUs, boolean toKeyframe,
       boolean allowTimeBeyondBuffer) {
-    int relativeReadIndex = getRelativeIndex(readPosition);
-    if (!hasNextSample() || timeUs < timesUs[relativeReadIndex]
+    if (!hasNextSample() || timeUs < getTimeUs(getReadIndex())
         || (timeUs > largestQueuedTimestampUs && !allowTimeBeyondBuffer)) {
       return SampleQueue.ADVANCE_FAILED;
     }
-    int offset = findSampleBefore(relativeReadIndex, length - readPosition, timeUs, toKeyframe);
+    int offset = findSampleBefore(getReadIndex(), length - readPosition, timeUs, toKeyframe);
     if (offset == -1) {
       return SampleQueue.ADVANCE_FAILED;
     }
@@ -325,11 +351,11 @@ import com.google.android.exoplayer2.util.Util;
    *     {@link C#POSITION_UNSET} if no discarding of data is necessary.
    */
   public synchronized long discardTo(long timeUs, boolean toKeyframe, boolean stopAtReadPosition) {
-    if (length == 0 || timeUs < timesUs[relativeFirstIndex]) {
+    if (length == 0 || timeUs < getTimeUs(absoluteFirstIndex)) {
       return C.POSITION_UNSET;
     }
     int searchLength = stopAtReadPosition && readPosition != length ? readPosition + 1 : length;
-    int discardCount = findSampleBefore(relativeFirstIndex, searchLength, timeUs, toKeyframe);
+    int discardCount = findSampleBefore(absoluteFirstIndex, searchLength, timeUs, toKeyframe);
     if (discardCount == -1) {
       return C.POSITION_UNSET;
     }
@@ -390,53 +416,27 @@ import com.google.android.exoplayer2.util.Util;
     Assertions.checkState(!upstreamFormatRequired);
     commitSampleTimestamp(timeUs);
 
-    int relativeEndIndex = getRelativeIndex(length);
-    timesUs[relativeEndIndex] = timeUs;
-    offsets[relativeEndIndex] = offset;
-    sizes[relativeEndIndex] = size;
-    flags[relativeEndIndex] = sampleFlags;
-    cryptoDatas[relativeEndIndex] = cryptoData;
-    formats[relativeEndIndex] = upstreamFormat;
-    sourceIds[relativeEndIndex] = upstreamSourceId;
+    int writeIndex = getWriteIndex();
+    if (length > 0 && timeUs < getTimeUs(writeIndex - 1)) {
+      timestampsMonotonic = false;
+    }
+    if ((writeIndex >>> CHUNK_SHIFT) - firstChunk == chunkCount) {
+      appendChunk();
+    }
+    Chunk chunk = getChunk(writeIndex);
+    int slot = writeIndex & CHUNK_MASK;
+    chunk.timesUs[slot] = timeUs;
+    chunk.offsets[slot] = offset;
+    chunk.sizes[slot] = size;
+    chunk.flags[slot] = sampleFlags;
+    chunk.cryptoDatas[slot] = cryptoData;
+    chunk.formats[slot] = upstreamFormat;
+    chunk.sourceIds[slot] = upstreamSourceId;
+    if ((sampleFlags & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+      addKeyframeIndex(writeIndex);
+    }
 
     length++;
-    if (length == capacity) {
-      // Increase the capacity.
-      int newCapacity = capacity + SAMPLE_CAPACITY_INCREMENT;
-      int[] newSourceIds = new int[newCapacity];
-      long[] newOffsets = new long[newCapacity];
-      long[] newTimesUs = new long[newCapacity];
-      int[] newFlags = new int[newCapacity];
-      int[] newSizes = new int[newCapacity];
-      CryptoData[] newCryptoDatas = new CryptoData[newCapacity];
-      Format[] newFormats = new Format[newCapacity];
-      int beforeWrap = capacity - relativeFirstIndex;
-      System.arraycopy(offsets, relativeFirstIndex, newOffsets, 0, beforeWrap);
-      System.arraycopy(timesUs, relativeFirstIndex, newTimesUs, 0, beforeWrap);
-      System.arraycopy(flags, relativeFirstIndex, newFlags, 0, beforeWrap);
-      System.arraycopy(sizes, relativeFirstIndex, newSizes, 0, beforeWrap);
-      System.arraycopy(cryptoDatas, relativeFirstIndex, newCryptoDatas, 0, beforeWrap);
-      System.arraycopy(formats, relativeFirstIndex, newFormats, 0, beforeWrap);
-      System.arraycopy(sourceIds, relativeFirstIndex, newSourceIds, 0, beforeWrap);
-      int afterWrap = relativeFirstIndex;
-      System.arraycopy(offsets, 0, newOffsets, beforeWrap, afterWrap);
-      System.arraycopy(timesUs, 0, newTimesUs, beforeWrap, afterWrap);
-      System.arraycopy(flags, 0, newFlags, beforeWrap, afterWrap);
-      System.arraycopy(sizes, 0, newSizes, beforeWrap, afterWrap);
-      System.arraycopy(cryptoDatas, 0, newCryptoDatas, beforeWrap, afterWrap);
-      System.arraycopy(formats, 0, newFormats, beforeWrap, afterWrap);
-      System.arraycopy(sourceIds, 0, newSourceIds, beforeWrap, afterWrap);
-      offsets = newOffsets;
-      timesUs = newTimesUs;
-      flags = newFlags;
-      sizes = newSizes;
-      cryptoDatas = newCryptoDatas;
-      formats = newFormats;
-      sourceIds = newSourceIds;
-      relativeFirstIndex = 0;
-      length = capacity;
-      capacity = newCapacity;
-    }
   }
 
   public synchronized void commitSampleTimestamp(long timeUs) {
@@ -460,13 +460,9 @@ import com.google.android.exoplayer2.util.Util;
       return false;
     }
     int retainCount = length;
-    int relativeSampleIndex = getRelativeIndex(length - 1);
-    while (retainCount > readPosition && timesUs[relativeSampleIndex] >= timeUs) {
+    while (retainCount > readPosition
+        && getTimeUs(absoluteFirstIndex + retainCount - 1) >= timeUs) {
       retainCount--;
-      relativeSampleIndex--;
-      if (relativeSampleIndex == -1) {
-        relativeSampleIndex = capacity - 1;
-      }
     }
     discardUpstreamSamples(absoluteFirstIndex + retainCount);
     return true;
@@ -477,31 +473,44 @@ import com.google.android.exoplayer2.util.Util;
   /**
    * Finds the sample in the specified range that's before or at the specified time. If
    * {@code keyframe} is {@code true} then the sample is additionally required to be a keyframe.
+   * As in a linear scan from the start of the range, samples after the first one later than
+   * {@code timeUs} are not considered.
    *
-   * @param relativeStartIndex The relative index from which to start searching.
+   * @param startIndex The absolute index from which to start searching.
    * @param length The length of the range being searched.
    * @param timeUs The specified time.
    * @param keyframe Whether only keyframes should be considered.
-   * @return The offset from {@code relativeFirstIndex} to the found sample, or -1 if no matching
-   *     sample was found.
+   * @return The offset from {@code startIndex} to the found sample, or -1 if no matching sample
+   *     was found.
    */
-  private int findSampleBefore(int relativeStartIndex, int length, long timeUs, boolean keyframe) {
-    // This could be optimized to use a binary search, however in practice callers to this method
-    // normally pass times near to the start of the search region. Hence it's unclear whether
-    // switching to a binary search would yield any real benefit.
-    int sampleCountToTarget = -1;
-    int searchIndex = relativeStartIndex;
-    for (int i = 0; i < length && timesUs[searchIndex] <= timeUs; i++) {
-      if (!keyframe || (flags[searchIndex] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
-        // We've found a suitable sample.
-        sampleCountToTarget = i;
+  private int findSampleBefore(int startIndex, int length, long timeUs, boolean keyframe) {
+    if (!timestampsMonotonic) {
+      // Timestamps may be out of order, so the range has to be scanned.
+      int sampleCountToTarget = -1;
+      for (int i = 0; i < length && getTimeUs(startIndex + i) <= timeUs; i++) {
+        if (!keyframe || (getFlags(startIndex + i) & C.BUFFER_FLAG_KEY_FRAME) != 0) {
+          // We've found a suitable sample.
+          sampleCountToTarget = i;
+        }
       }
-      searchIndex++;
-      if (searchIndex == capacity) {
-        searchIndex = 0;
+      return sampleCountToTarget;
+    }
+    // Find the last sample in the range that's before or at the specified time.
+    int low = 0;
+    int high = length - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (getTimeUs(startIndex + mid) <= timeUs) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
       }
     }
-    return sampleCountToTarget;
+    if (high < 0 || !keyframe) {
+      return high;
+    }
+    int keyframeIndex = findKeyframeAtOrBefore(startIndex + high);
+    return keyframeIndex < startIndex ? -1 : keyframeIndex - startIndex;
   }
 
   /**
@@ -515,20 +524,26 @@ import com.google.android.exoplayer2.util.Util;
         getLargestTimestamp(discardCount));
     length -= discardCount;
     absoluteFirstIndex += discardCount;
-    relativeFirstIndex += discardCount;
-    if (relativeFirstIndex >= capacity) {
-      relativeFirstIndex -= capacity;
-    }
     readPosition -= discardCount;
     if (readPosition < 0) {
       readPosition = 0;
     }
+    while (keyframeCount > 0 && getKeyframeIndex(0) < absoluteFirstIndex) {
+      keyframeStart = (keyframeStart + 1) & (keyframeIndices.length - 1);
+      keyframeCount--;
+    }
+    long discardToOffset;
     if (length == 0) {
-      int relativeLastDiscardIndex = (relativeFirstIndex == 0 ? capacity : relativeFirstIndex) - 1;
-      return offsets[relativeLastDiscardIndex] + sizes[relativeLastDiscardIndex];
+      timestampsMonotonic = true;
+      int lastDiscardIndex = absoluteFirstIndex - 1;
+      Chunk chunk = getChunk(lastDiscardIndex);
+      int slot = lastDiscardIndex & CHUNK_MASK;
+      discardToOffset = chunk.offsets[slot] + chunk.sizes[slot];
     } else {
-      return offsets[relativeFirstIndex];
+      discardToOffset = getChunk(absoluteFirstIndex).offsets[absoluteFirstIndex & CHUNK_MASK];
     }
+    releaseChunksBefore(absoluteFirstIndex);
+    return discardToOffset;
   }
 
   /**
@@ -543,29 +558,120 @@ import com.google.android.exoplayer2.util.Util;
     if (length == 0) {
       return Long.MIN_VALUE;
     }
+    int lastIndex = absoluteFirstIndex + length - 1;
+    if (timestampsMonotonic) {
+      return getTimeUs(lastIndex);
+    }
+    int startIndex = Math.max(absoluteFirstIndex, findKeyframeAtOrBefore(lastIndex));
     long largestTimestampUs = Long.MIN_VALUE;
-    int relativeSampleIndex = getRelativeIndex(length - 1);
-    for (int i = 0; i < length; i++) {
-      largestTimestampUs = Math.max(largestTimestampUs, timesUs[relativeSampleIndex]);
-      if ((flags[relativeSampleIndex] & C.BUFFER_FLAG_KEY_FRAME) != 0) {
-        break;
-      }
-      relativeSampleIndex--;
-      if (relativeSampleIndex == -1) {
-        relativeSampleIndex = capacity - 1;
-      }
+    for (int i = startIndex; i <= lastIndex; i++) {
+      largestTimestampUs = Math.max(largestTimestampUs, getTimeUs(i));
     }
     return largestTimestampUs;
   }
 
-   /**
-    * Returns the relative index for a given offset from the start of the queue.
-    *
-    * @param offset The offset, which must be in the range [0, length].
-    */
-  private int getRelativeIndex(int offset) {
-    int relativeIndex = relativeFirstIndex + offset;
-    return relativeIndex < capacity ? relativeIndex : relativeIndex - capacity;
+  private long getTimeUs(int absoluteIndex) {
+    return getChunk(absoluteIndex).timesUs[absoluteIndex & CHUNK_MASK];
+  }
+
+  private int getFlags(int absoluteIndex) {
+    return getChunk(absoluteIndex).flags[absoluteIndex & CHUNK_MASK];
+  }
+
+  private Chunk getChunk(int absoluteIndex) {
+    return chunks[(absoluteIndex >>> CHUNK_SHIFT) - firstChunk];
+  }
+
+  private void appendChunk() {
+    if (chunkCount == chunks.length) {
+      chunks = Arrays.copyOf(chunks, chunks.length * 2);
+    }
+    if (spareChunk != null) {
+      chunks[chunkCount++] = spareChunk;
+      spareChunk = null;
+    } else {
+      chunks[chunkCount++] = new Chunk();
+    }
+  }
+
+  /** Releases the chunks that only hold samples before {@code absoluteIndex}. */
+  private void releaseChunksBefore(int absoluteIndex) {
+    int releaseCount = (absoluteIndex >>> CHUNK_SHIFT) - firstChunk;
+    if (releaseCount == 0) {
+      return;
+    }
+    // Keep one chunk to avoid reallocating it when the next one is needed.
+    spareChunk = chunks[releaseCount - 1];
+    spareChunk.clear();
+    System.arraycopy(chunks, releaseCount, chunks, 0, chunks.length - releaseCount);
+    Arrays.fill(chunks, chunks.length - releaseCount, chunks.length, null);
+    chunkCount -= releaseCount;
+    firstChunk += releaseCount;
+  }
+
+  private int getKeyframeIndex(int position) {
+    return keyframeIndices[(keyframeStart + position) & (keyframeIndices.length - 1)];
+  }
+
+  private void addKeyframeIndex(int absoluteIndex) {
+    if (keyframeCount == keyframeIndices.length) {
+      int[] newKeyframeIndices = new int[keyframeIndices.length * 2];
+      int beforeWrap = keyframeIndices.length - keyframeStart;
+      System.arraycopy(keyframeIndices, keyframeStart, newKeyframeIndices, 0, beforeWrap);
+      System.arraycopy(keyframeIndices, 0, newKeyframeIndices, beforeWrap, keyframeStart);
+      keyframeIndices = newKeyframeIndices;
+      keyframeStart = 0;
+    }
+    keyframeIndices[(keyframeStart + keyframeCount) & (keyframeIndices.length - 1)] =
+        absoluteIndex;
+    keyframeCount++;
+  }
+
+  /**
+   * Returns the absolute index of the last queued keyframe at or before {@code absoluteIndex}, or
+   * {@link C#INDEX_UNSET} if there is none.
+   */
+  private int findKeyframeAtOrBefore(int absoluteIndex) {
+    int low = 0;
+    int high = keyframeCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (getKeyframeIndex(mid) <= absoluteIndex) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    return high < 0 ? C.INDEX_UNSET : getKeyframeIndex(high);
+  }
+
+  /** Metadata of {@link #CHUNK_SIZE} consecutive samples, in parallel arrays. */
+  private static final class Chunk {
+
+    public final int[] sourceIds;
+    public final long[] offsets;
+    public final int[] sizes;
+    public final int[] flags;
+    public final long[] timesUs;
+    public final CryptoData[] cryptoDatas;
+    public final Format[] formats;
+
+    public Chunk() {
+      sourceIds = new int[CHUNK_SIZE];
+      offsets = new long[CHUNK_SIZE];
+      sizes = new int[CHUNK_SIZE];
+      flags = new int[CHUNK_SIZE];
+      timesUs = new long[CHUNK_SIZE];
+      cryptoDatas = new CryptoData[CHUNK_SIZE];
+      formats = new Format[CHUNK_SIZE];
+    }
+
+    /** Clears references held by the chunk. */
+    public void clear() {
+      Arrays.fill(cryptoDatas, null);
+      Arrays.fill(formats, null);
+    }
+
   }
 
 }
@@ -21,6 +21,7 @@ import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.FormatHolder;
 import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.MappedExtractorInput;
 import com.google.android.exoplayer2.extractor.TrackOutput;
 import com.google.android.exoplayer2.source.SampleMetadataQueue.SampleExtrasHolder;
 import com.google.android.exoplayer2.upstream.Allocation;
@@ -74,6 +75,8 @@ public final class SampleQueue implements TrackOutput {
   private long totalBytesWritten;
   private boolean pendingSplice;
   private UpstreamFormatChangedListener upstreamFormatChangeListener;
+  /** Staging array for data read from an {@link ExtractorInput} into a direct allocation. */
+  private byte[] directWriteScratch;
 
   /**
    * @param allocator An {@link Allocator} from which allocations for sample data can be obtained.
@@ -438,7 +441,12 @@ public final class SampleQueue implements TrackOutput {
     while (remaining > 0) {
       int toCopy = Math.min(remaining, (int) (readAllocationNode.endPosition - absolutePosition));
       Allocation allocation = readAllocationNode.allocation;
-      target.put(allocation.data, readAllocationNode.translateOffset(absolutePosition), toCopy);
+      int offset = readAllocationNode.translateOffset(absolutePosition);
+      if (allocation.data != null) {
+        target.put(allocation.data, offset, toCopy);
+      } else {
+        target.put(readAllocationNode.getReadBuffer(offset, toCopy));
+      }
       remaining -= toCopy;
       absolutePosition += toCopy;
       if (absolutePosition == readAllocationNode.endPosition) {
@@ -460,8 +468,12 @@ public final class SampleQueue implements TrackOutput {
     while (remaining > 0) {
       int toCopy = Math.min(remaining, (int) (readAllocationNode.endPosition - absolutePosition));
       Allocation allocation = readAllocationNode.allocation;
-      System.arraycopy(allocation.data, readAllocationNode.translateOffset(absolutePosition),
-          target, length - remaining, toCopy);
+      int offset = readAllocationNode.translateOffset(absolutePosition);
+      if (allocation.data != null) {
+        System.arraycopy(allocation.data, offset, target, length - remaining, toCopy);
+      } else {
+        readAllocationNode.getReadBuffer(offset, toCopy).get(target, length - remaining, toCopy);
+      }
       remaining -= toCopy;
       absolutePosition += toCopy;
       if (absolutePosition == readAllocationNode.endPosition) {
@@ -544,8 +556,25 @@ public final class SampleQueue implements TrackOutput {
   public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput)
       throws IOException, InterruptedException {
     length = preAppend(length);
-    int bytesAppended = input.read(writeAllocationNode.allocation.data,
-        writeAllocationNode.translateOffset(totalBytesWritten), length);
+    Allocation allocation = writeAllocationNode.allocation;
+    int offset = writeAllocationNode.translateOffset(totalBytesWritten);
+    int bytesAppended;
+    if (allocation.data != null) {
+      bytesAppended = input.read(allocation.data, offset, length);
+    } else if (input instanceof MappedExtractorInput) {
+      // Copy straight from the mapped file into the allocation.
+      bytesAppended =
+          ((MappedExtractorInput) input).read(writeAllocationNode.getWriteBuffer(offset), length);
+    } else {
+      // ExtractorInput only reads into arrays, so stage the data before copying it off the heap.
+      if (directWriteScratch == null) {
+        directWriteScratch = new byte[allocationLength];
+      }
+      bytesAppended = input.read(directWriteScratch, 0, length);
+      if (bytesAppended != C.RESULT_END_OF_INPUT) {
+        writeAllocationNode.getWriteBuffer(offset).put(directWriteScratch, 0, bytesAppended);
+      }
+    }
     if (bytesAppended == C.RESULT_END_OF_INPUT) {
       if (allowEndOfInput) {
         return C.RESULT_END_OF_INPUT;
@@ -560,8 +589,13 @@ public final class SampleQueue implements TrackOutput {
   public void sampleData(ParsableByteArray buffer, int length) {
     while (length > 0) {
       int bytesAppended = preAppend(length);
-      buffer.readBytes(writeAllocationNode.allocation.data,
-          writeAllocationNode.translateOffset(totalBytesWritten), bytesAppended);
+      Allocation allocation = writeAllocationNode.allocation;
+      int offset = writeAllocationNode.translateOffset(totalBytesWritten);
+      if (allocation.data != null) {
+        buffer.readBytes(allocation.data, offset, bytesAppended);
+      } else {
+        buffer.readBytes(writeAllocationNode.getWriteBuffer(offset), bytesAppended);
+      }
       length -= bytesAppended;
       postAppend(bytesAppended);
     }
@@ -684,6 +718,12 @@ public final class SampleQueue implements TrackOutput {
      * initialized. Remains set after {@link #clear()}.
      */
     @Nullable public AllocationNode next;
+    /**
+     * Views of a direct {@link Allocation#buffer} for the loading and the consuming thread, or
+     * {@code null} if the allocation is backed by an array. Each thread moves only its own view.
+     */
+    @Nullable private ByteBuffer writeBuffer;
+    @Nullable private ByteBuffer readBuffer;
 
     /**
      * @param startPosition See {@link #startPosition}.
@@ -705,11 +745,40 @@ public final class SampleQueue implements TrackOutput {
       this.allocation = allocation;
       this.next = next;
       wasInitialized = true;
+      if (allocation.buffer != null) {
+        writeBuffer = allocation.buffer.duplicate();
+        readBuffer = allocation.buffer.duplicate();
+      }
+    }
+
+    /**
+     * Returns the write view of a direct allocation, positioned at {@code offset}.
+     *
+     * @param offset The offset into the allocation's buffer.
+     */
+    public ByteBuffer getWriteBuffer(int offset) {
+      writeBuffer.clear();
+      writeBuffer.position(offset);
+      return writeBuffer;
+    }
+
+    /**
+     * Returns the read view of a direct allocation, positioned at {@code offset} and limited to
+     * {@code length} bytes.
+     *
+     * @param offset The offset into the allocation's buffer.
+     * @param length The number of bytes to read.
+     */
+    public ByteBuffer getReadBuffer(int offset, int length) {
+      readBuffer.clear();
+      readBuffer.position(offset);
+      readBuffer.limit(offset + length);
+      return readBuffer;
     }
 
     /**
-     * Gets the offset into the {@link #allocation}'s {@link Allocation#data} that corresponds to
-     * the specified absolute position.
+     * Gets the offset into the {@link #allocation}'s {@link Allocation#data} or {@link
+     * Allocation#buffer} that corresponds to the specified absolute position.
      *
      * @param absolutePosition The absolute position.
      * @return The corresponding offset into the allocation's data.
@@ -725,6 +794,8 @@ public final class SampleQueue implements TrackOutput {
      */
     public AllocationNode clear() {
       allocation = null;
+      writeBuffer = null;
+      readBuffer = null;
       AllocationNode temp = next;
       next = null;
       return temp;
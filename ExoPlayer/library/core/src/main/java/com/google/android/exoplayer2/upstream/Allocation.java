@@ -15,31 +15,60 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import android.support.annotation.Nullable;
+import java.nio.ByteBuffer;
+
 /**
- * An allocation within a byte array.
+ * An allocation within a byte array, or within a direct {@link ByteBuffer}.
  * <p>
  * The allocation's length is obtained by calling {@link Allocator#getIndividualAllocationLength()}
- * on the {@link Allocator} from which it was obtained.
+ * on the {@link Allocator} from which it was obtained. Exactly one of {@link #data} and {@link
+ * #buffer} is non-null.
  */
 public final class Allocation {
 
   /**
-   * The array containing the allocated space. The allocated space might not be at the start of the
-   * array, and so {@link #offset} must be used when indexing into it.
+   * The array containing the allocated space, or null if the allocation is backed by {@link
+   * #buffer}. The allocated space might not be at the start of the array, and so {@link #offset}
+   * must be used when indexing into it.
+   */
+  @Nullable public final byte[] data;
+
+  /**
+   * The direct buffer containing the allocated space, or null if the allocation is backed by
+   * {@link #data}. The buffer is shared with other allocations, so its position and limit must not
+   * be modified. Access it through a {@link ByteBuffer#duplicate()}, indexing with {@link #offset}.
    */
-  public final byte[] data;
+  @Nullable public final ByteBuffer buffer;
 
   /**
-   * The offset of the allocated space in {@link #data}.
+   * The offset of the allocated space in {@link #data} or {@link #buffer}.
    */
   public final int offset;
 
+  /**
+   * The index of the {@link DefaultAllocator} free list the allocation is returned to when it's
+   * released.
+   */
+  /* package */ int freeListIndex;
+
   /**
    * @param data The array containing the allocated space.
    * @param offset The offset of the allocated space in {@code data}.
    */
   public Allocation(byte[] data, int offset) {
     this.data = data;
+    this.buffer = null;
+    this.offset = offset;
+  }
+
+  /**
+   * @param buffer The direct buffer containing the allocated space.
+   * @param offset The offset of the allocated space in {@code buffer}.
+   */
+  public Allocation(ByteBuffer buffer, int offset) {
+    this.data = null;
+    this.buffer = buffer;
     this.offset = offset;
   }
 
@@ -15,26 +15,46 @@
  */
 package com.google.android.exoplayer2.upstream;
 
+import android.support.annotation.VisibleForTesting;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Util;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Default implementation of {@link Allocator}.
+ *
+ * <p>Available allocations are kept in several free lists, each with its own lock. A thread
+ * allocates from the list picked by its id, and only takes allocations from the other lists when
+ * its own is empty. An allocation is released to the list of the thread that allocated it, rather
+ * than that of the releasing thread, since allocations are usually released by the playback thread
+ * after being allocated by a loader thread. Loader threads therefore rarely contend. The allocated
+ * count is atomic, so {@link #getTotalBytesAllocated()} does not lock.
+ *
+ * <p>Allocations can optionally be backed by direct {@link ByteBuffer}s, which keeps buffered
+ * media off the Java heap. Direct allocations are created {@link #DIRECT_ARENA_ALLOCATION_COUNT}
+ * at a time as slices of one arena, and an arena's memory is only freed once all of its
+ * allocations have been discarded.
  */
 public final class DefaultAllocator implements Allocator {
 
   private static final int AVAILABLE_EXTRA_CAPACITY = 100;
+  private static final int MAX_FREE_LIST_COUNT = 8;
+  /** The number of direct allocations that share one {@link ByteBuffer} arena. */
+  private static final int DIRECT_ARENA_ALLOCATION_COUNT = 16;
 
   private final boolean trimOnReset;
   private final int individualAllocationSize;
+  private final boolean useDirectBuffers;
   private final byte[] initialAllocationBlock;
-  private final Allocation[] singleAllocationReleaseHolder;
+  private final ByteBuffer initialAllocationBuffer;
+  private final FreeList[] freeLists;
+  private final int freeListIndexMask;
+  private final AtomicInteger allocatedCount;
 
   private int targetBufferSize;
-  private int allocatedCount;
-  private int availableCount;
-  private Allocation[] availableAllocations;
 
   /**
    * Constructs an instance without creating any {@link Allocation}s up front.
@@ -59,22 +79,73 @@ public final class DefaultAllocator implements Allocator {
    */
   public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
       int initialAllocationCount) {
+    this(trimOnReset, individualAllocationSize, initialAllocationCount,
+        /* useDirectBuffers= */ false);
+  }
+
+  /**
+   * Constructs an instance with some {@link Allocation}s created up front.
+   * <p>
+   * Note: {@link Allocation}s created up front will never be discarded by {@link #trim()}.
+   *
+   * @param trimOnReset Whether memory is freed when the allocator is reset. Should be true unless
+   *     the allocator will be re-used by multiple player instances.
+   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * @param initialAllocationCount The number of allocations to create up front.
+   * @param useDirectBuffers Whether allocations are backed by direct {@link ByteBuffer}s rather
+   *     than byte arrays. Consumers of the allocations must then use {@link Allocation#buffer}.
+   */
+  public DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
+      int initialAllocationCount, boolean useDirectBuffers) {
+    this(trimOnReset, individualAllocationSize, initialAllocationCount, useDirectBuffers,
+        Integer.highestOneBit(
+            Math.min(MAX_FREE_LIST_COUNT, Runtime.getRuntime().availableProcessors())));
+  }
+
+  /**
+   * @param trimOnReset Whether memory is freed when the allocator is reset.
+   * @param individualAllocationSize The length of each individual {@link Allocation}.
+   * @param initialAllocationCount The number of allocations to create up front.
+   * @param useDirectBuffers Whether allocations are backed by direct {@link ByteBuffer}s.
+   * @param freeListCount The number of free lists, which must be a power of two.
+   */
+  @VisibleForTesting
+  /* package */ DefaultAllocator(boolean trimOnReset, int individualAllocationSize,
+      int initialAllocationCount, boolean useDirectBuffers, int freeListCount) {
     Assertions.checkArgument(individualAllocationSize > 0);
     Assertions.checkArgument(initialAllocationCount >= 0);
+    Assertions.checkArgument(freeListCount > 0 && Integer.bitCount(freeListCount) == 1);
     this.trimOnReset = trimOnReset;
     this.individualAllocationSize = individualAllocationSize;
-    this.availableCount = initialAllocationCount;
-    this.availableAllocations = new Allocation[initialAllocationCount + AVAILABLE_EXTRA_CAPACITY];
-    if (initialAllocationCount > 0) {
-      initialAllocationBlock = new byte[initialAllocationCount * individualAllocationSize];
+    this.useDirectBuffers = useDirectBuffers;
+    allocatedCount = new AtomicInteger();
+    freeListIndexMask = freeListCount - 1;
+    freeLists = new FreeList[freeListCount];
+    for (int i = 0; i < freeListCount; i++) {
+      freeLists[i] = new FreeList(
+          Util.ceilDivide(initialAllocationCount, freeListCount) + AVAILABLE_EXTRA_CAPACITY);
+    }
+    if (initialAllocationCount == 0) {
+      initialAllocationBlock = null;
+      initialAllocationBuffer = null;
+    } else if (useDirectBuffers) {
+      initialAllocationBlock = null;
+      initialAllocationBuffer =
+          ByteBuffer.allocateDirect(initialAllocationCount * individualAllocationSize);
       for (int i = 0; i < initialAllocationCount; i++) {
         int allocationOffset = i * individualAllocationSize;
-        availableAllocations[i] = new Allocation(initialAllocationBlock, allocationOffset);
+        freeLists[i & freeListIndexMask].add(
+            new Allocation(initialAllocationBuffer, allocationOffset));
       }
     } else {
-      initialAllocationBlock = null;
+      initialAllocationBlock = new byte[initialAllocationCount * individualAllocationSize];
+      initialAllocationBuffer = null;
+      for (int i = 0; i < initialAllocationCount; i++) {
+        int allocationOffset = i * individualAllocationSize;
+        freeLists[i & freeListIndexMask].add(
+            new Allocation(initialAllocationBlock, allocationOffset));
+      }
     }
-    singleAllocationReleaseHolder = new Allocation[1];
   }
 
   public synchronized void reset() {
@@ -92,96 +163,63 @@ public final class DefaultAllocator implements Allocator {
   }
 
   @Override
-  public synchronized Allocation allocate() {
-    allocatedCount++;
-    Allocation allocation;
-    if (availableCount > 0) {
-      allocation = availableAllocations[--availableCount];
-      availableAllocations[availableCount] = null;
-    } else {
-      allocation = new Allocation(new byte[individualAllocationSize], 0);
+  public Allocation allocate() {
+    allocatedCount.incrementAndGet();
+    int index = getFreeListIndex();
+    Allocation allocation = null;
+    for (int i = 0; i < freeLists.length && allocation == null; i++) {
+      allocation = freeLists[(index + i) & freeListIndexMask].poll();
+    }
+    if (allocation == null) {
+      allocation = createAllocation(index);
     }
+    allocation.freeListIndex = index;
     return allocation;
   }
 
   @Override
-  public synchronized void release(Allocation allocation) {
-    singleAllocationReleaseHolder[0] = allocation;
-    release(singleAllocationReleaseHolder);
+  public void release(Allocation allocation) {
+    checkAllocation(allocation);
+    freeLists[allocation.freeListIndex].add(allocation);
+    allocatedCount.decrementAndGet();
   }
 
   @Override
-  public synchronized void release(Allocation[] allocations) {
-    if (availableCount + allocations.length >= availableAllocations.length) {
-      availableAllocations = Arrays.copyOf(availableAllocations,
-          Math.max(availableAllocations.length * 2, availableCount + allocations.length));
-    }
+  public void release(Allocation[] allocations) {
     for (Allocation allocation : allocations) {
-      // Weak sanity check that the allocation probably originated from this pool.
-      if (allocation.data != initialAllocationBlock
-          && allocation.data.length != individualAllocationSize) {
-        throw new IllegalArgumentException(
-            "Unexpected allocation: "
-                + System.identityHashCode(allocation.data)
-                + ", "
-                + System.identityHashCode(initialAllocationBlock)
-                + ", "
-                + allocation.data.length
-                + ", "
-                + individualAllocationSize);
+      checkAllocation(allocation);
+    }
+    // Allocations are usually released in runs that were allocated by the same thread, so add each
+    // run to its free list at once.
+    int runStart = 0;
+    for (int i = 1; i <= allocations.length; i++) {
+      if (i == allocations.length
+          || allocations[i].freeListIndex != allocations[runStart].freeListIndex) {
+        freeLists[allocations[runStart].freeListIndex].addAll(allocations, runStart, i);
+        runStart = i;
       }
-      availableAllocations[availableCount++] = allocation;
     }
-    allocatedCount -= allocations.length;
-    // Wake up threads waiting for the allocated size to drop.
-    notifyAll();
+    allocatedCount.addAndGet(-allocations.length);
   }
 
   @Override
   public synchronized void trim() {
     int targetAllocationCount = Util.ceilDivide(targetBufferSize, individualAllocationSize);
-    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount);
-    if (targetAvailableCount >= availableCount) {
-      // We're already at or below the target.
-      return;
+    int targetAvailableCount = Math.max(0, targetAllocationCount - allocatedCount.get());
+    int availableCount = 0;
+    for (FreeList freeList : freeLists) {
+      availableCount += freeList.size();
     }
-
-    if (initialAllocationBlock != null) {
-      // Some allocations are backed by an initial block. We need to make sure that we hold onto all
-      // such allocations. Re-order the available allocations so that the ones backed by the initial
-      // block come first.
-      int lowIndex = 0;
-      int highIndex = availableCount - 1;
-      while (lowIndex <= highIndex) {
-        Allocation lowAllocation = availableAllocations[lowIndex];
-        if (lowAllocation.data == initialAllocationBlock) {
-          lowIndex++;
-        } else {
-          Allocation highAllocation = availableAllocations[highIndex];
-          if (highAllocation.data != initialAllocationBlock) {
-            highIndex--;
-          } else {
-            availableAllocations[lowIndex++] = highAllocation;
-            availableAllocations[highIndex--] = lowAllocation;
-          }
-        }
-      }
-      // lowIndex is the index of the first allocation not backed by an initial block.
-      targetAvailableCount = Math.max(targetAvailableCount, lowIndex);
-      if (targetAvailableCount >= availableCount) {
-        // We're already at or below the target.
-        return;
-      }
+    int discardCount = availableCount - targetAvailableCount;
+    // Allocations may be released or taken concurrently, so the counts are only approximate.
+    for (int i = 0; i < freeLists.length && discardCount > 0; i++) {
+      discardCount -= freeLists[i].discard(discardCount);
     }
-
-    // Discard allocations beyond the target.
-    Arrays.fill(availableAllocations, targetAvailableCount, availableCount, null);
-    availableCount = targetAvailableCount;
   }
 
   @Override
-  public synchronized int getTotalBytesAllocated() {
-    return allocatedCount * individualAllocationSize;
+  public int getTotalBytesAllocated() {
+    return allocatedCount.get() * individualAllocationSize;
   }
 
   @Override
@@ -189,4 +227,144 @@ public final class DefaultAllocator implements Allocator {
     return individualAllocationSize;
   }
 
+  /** Returns the index of the free list used by the calling thread. */
+  @VisibleForTesting
+  /* package */ int getFreeListIndex() {
+    return (int) Thread.currentThread().getId() & freeListIndexMask;
+  }
+
+  /** Returns the number of available allocations in a free list. */
+  @VisibleForTesting
+  /* package */ int getAvailableCount(int freeListIndex) {
+    return freeLists[freeListIndex].size();
+  }
+
+  /**
+   * Creates a new allocation, when none is available.
+   *
+   * @param freeListIndex The index of the free list used by the calling thread.
+   */
+  private Allocation createAllocation(int freeListIndex) {
+    if (!useDirectBuffers) {
+      return new Allocation(new byte[individualAllocationSize], 0);
+    }
+    // Keep the rest of the new arena for later allocations.
+    ByteBuffer arena =
+        ByteBuffer.allocateDirect(DIRECT_ARENA_ALLOCATION_COUNT * individualAllocationSize);
+    Allocation[] allocations = new Allocation[DIRECT_ARENA_ALLOCATION_COUNT - 1];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = new Allocation(arena, (i + 1) * individualAllocationSize);
+    }
+    freeLists[freeListIndex].addAll(allocations, 0, allocations.length);
+    return new Allocation(arena, 0);
+  }
+
+  private boolean isInitialAllocation(Allocation allocation) {
+    return allocation.data != null
+        ? allocation.data == initialAllocationBlock
+        : allocation.buffer == initialAllocationBuffer;
+  }
+
+  private void checkAllocation(Allocation allocation) {
+    // Weak sanity check that the allocation probably originated from this pool.
+    if (useDirectBuffers) {
+      if (allocation.buffer == null
+          || (allocation.buffer != initialAllocationBuffer
+              && allocation.buffer.capacity()
+                  != DIRECT_ARENA_ALLOCATION_COUNT * individualAllocationSize)) {
+        throw new IllegalArgumentException("Unexpected allocation: " + allocation.buffer);
+      }
+      return;
+    }
+    if (allocation.data == null
+        || (allocation.data != initialAllocationBlock
+            && allocation.data.length != individualAllocationSize)) {
+      throw new IllegalArgumentException(
+          "Unexpected allocation: "
+              + System.identityHashCode(allocation.data)
+              + ", "
+              + System.identityHashCode(initialAllocationBlock)
+              + ", "
+              + (allocation.data == null ? C.LENGTH_UNSET : allocation.data.length)
+              + ", "
+              + individualAllocationSize);
+    }
+  }
+
+  /** A stack of available allocations, guarded by its own lock. */
+  private final class FreeList {
+
+    private Allocation[] allocations;
+    private int size;
+
+    public FreeList(int capacity) {
+      allocations = new Allocation[capacity];
+    }
+
+    public synchronized int size() {
+      return size;
+    }
+
+    public synchronized void add(Allocation allocation) {
+      if (size == allocations.length) {
+        allocations = Arrays.copyOf(allocations, allocations.length * 2);
+      }
+      allocations[size++] = allocation;
+    }
+
+    public synchronized void addAll(Allocation[] newAllocations, int from, int to) {
+      int count = to - from;
+      if (size + count > allocations.length) {
+        allocations = Arrays.copyOf(allocations, Math.max(allocations.length * 2, size + count));
+      }
+      System.arraycopy(newAllocations, from, allocations, size, count);
+      size += count;
+    }
+
+    public synchronized Allocation poll() {
+      if (size == 0) {
+        return null;
+      }
+      Allocation allocation = allocations[--size];
+      allocations[size] = null;
+      return allocation;
+    }
+
+    /**
+     * Discards up to {@code maxCount} allocations that were not created up front.
+     *
+     * @return The number of discarded allocations.
+     */
+    public synchronized int discard(int maxCount) {
+      int keepCount = 0;
+      if (initialAllocationBlock != null || initialAllocationBuffer != null) {
+        // We need to make sure that we hold onto all allocations backed by the initial block.
+        // Re-order the allocations so that the ones backed by the initial block come first.
+        int lowIndex = 0;
+        int highIndex = size - 1;
+        while (lowIndex <= highIndex) {
+          Allocation lowAllocation = allocations[lowIndex];
+          if (isInitialAllocation(lowAllocation)) {
+            lowIndex++;
+          } else {
+            Allocation highAllocation = allocations[highIndex];
+            if (!isInitialAllocation(highAllocation)) {
+              highIndex--;
+            } else {
+              allocations[lowIndex++] = highAllocation;
+              allocations[highIndex--] = lowAllocation;
+            }
+          }
+        }
+        // lowIndex is the index of the first allocation not backed by an initial block.
+        keepCount = lowIndex;
+      }
+      int discardCount = Math.min(maxCount, size - keepCount);
+      // Discard allocations from the end, which are not backed by the initial block.
+      Arrays.fill(allocations, size - discardCount, size, null);
+      size -= discardCount;
+      return discardCount;
+    }
+  }
+
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.FileDataSource.FileDataSourceException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link DataSource} for reading local files through read-only memory mappings.
+ *
+ * <p>The file is mapped in windows of up to {@link #WINDOW_SIZE} bytes, so reads are copies from
+ * the mapping rather than system calls. {@link
+ * com.google.android.exoplayer2.extractor.MappedExtractorInput} uses {@link #getMappedBuffer(long)}
+ * to peek and read the mapped data without copying it into an intermediate buffer.
+ */
+public final class MappedFileDataSource extends BaseDataSource {
+
+  /** The maximum size of a mapped window. */
+  private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+  /**
+   * Windows start at multiples of this, so that at least this many bytes from any position are in
+   * the same window.
+   */
+  private static final int WINDOW_ALIGNMENT = WINDOW_SIZE / 2;
+
+  private @Nullable RandomAccessFile file;
+  private @Nullable FileChannel channel;
+  private @Nullable Uri uri;
+  private long fileLength;
+  private long position;
+  private long bytesRemaining;
+  private boolean opened;
+
+  private @Nullable ByteBuffer window;
+  private long windowPosition;
+
+  public MappedFileDataSource() {
+    super(/* isNetwork= */ false);
+  }
+
+  @Override
+  public long open(DataSpec dataSpec) throws FileDataSourceException {
+    try {
+      uri = dataSpec.uri;
+      transferInitializing(dataSpec);
+      file = new RandomAccessFile(dataSpec.uri.getPath(), "r");
+      channel = file.getChannel();
+      fileLength = channel.size();
+      position = dataSpec.position;
+      bytesRemaining = dataSpec.length == C.LENGTH_UNSET ? fileLength - dataSpec.position
+          : dataSpec.length;
+      if (bytesRemaining < 0) {
+        throw new EOFException();
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    }
+
+    opened = true;
+    transferStarted(dataSpec);
+
+    return bytesRemaining;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int readLength) throws FileDataSourceException {
+    if (readLength == 0) {
+      return 0;
+    }
+    ByteBuffer mappedBuffer = getMappedBuffer(/* offset= */ 0);
+    if (mappedBuffer == null) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesRead = Math.min(mappedBuffer.remaining(), readLength);
+    mappedBuffer.get(buffer, offset, bytesRead);
+    position += bytesRead;
+    bytesRemaining -= bytesRead;
+    bytesTransferred(bytesRead);
+    return bytesRead;
+  }
+
+  /**
+   * Advances the read position without copying any data, as if the data had been read.
+   *
+   * @param length The maximum number of bytes to skip.
+   * @return The number of bytes skipped, or {@link C#RESULT_END_OF_INPUT} if the end of the
+   *     opened range has been reached.
+   */
+  public int skip(int length) {
+    if (length == 0) {
+      return 0;
+    } else if (bytesRemaining == 0 || position >= fileLength) {
+      return C.RESULT_END_OF_INPUT;
+    }
+    int bytesSkipped = (int) Math.min(length, Math.min(bytesRemaining, fileLength - position));
+    position += bytesSkipped;
+    bytesRemaining -= bytesSkipped;
+    bytesTransferred(bytesSkipped);
+    return bytesSkipped;
+  }
+
+  /**
+   * Returns the number of bytes between the read position and the end of the opened range.
+   */
+  public long getBytesRemaining() {
+    return Math.min(bytesRemaining, Math.max(0, fileLength - position));
+  }
+
+  /**
+   * Returns a read-only view of the mapped file from {@code offset} bytes after the read position
+   * to the end of the mapped window containing it, or to the end of the opened range if that comes
+   * first. The view is only valid until the next call to this method or {@link #read(byte[], int,
+   * int)}.
+   *
+   * @param offset The offset from the read position. Must not be negative.
+   * @return The view, which has at least one byte remaining, or null if {@code offset} is at or
+   *     beyond the end of the opened range.
+   * @throws FileDataSourceException If an error occurs mapping the file.
+   */
+  public @Nullable ByteBuffer getMappedBuffer(long offset) throws FileDataSourceException {
+    if (offset >= getBytesRemaining()) {
+      return null;
+    }
+    long bufferPosition = position + offset;
+    if (window == null
+        || bufferPosition < windowPosition
+        || bufferPosition >= windowPosition + window.capacity()) {
+      long newWindowPosition = bufferPosition - bufferPosition % WINDOW_ALIGNMENT;
+      long windowSize = Math.min(WINDOW_SIZE, fileLength - newWindowPosition);
+      try {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, newWindowPosition, windowSize);
+      } catch (IOException e) {
+        throw new FileDataSourceException(e);
+      }
+      windowPosition = newWindowPosition;
+    }
+    long endPosition = Math.min(position + getBytesRemaining(), windowPosition + window.capacity());
+    window.clear();
+    window.position((int) (bufferPosition - windowPosition));
+    window.limit((int) (endPosition - windowPosition));
+    return window;
+  }
+
+  @Override
+  public @Nullable Uri getUri() {
+    return uri;
+  }
+
+  @Override
+  public void close() throws FileDataSourceException {
+    uri = null;
+    // The mapping is released once the window is garbage collected.
+    window = null;
+    channel = null;
+    try {
+      if (file != null) {
+        file.close();
+      }
+    } catch (IOException e) {
+      throw new FileDataSourceException(e);
+    } finally {
+      file = null;
+      if (opened) {
+        opened = false;
+        transferEnded();
+      }
+    }
+  }
+
+}
@@ -134,6 +134,7 @@ public final class CacheDataSource implements DataSource {
   private final DataSource upstreamDataSource;
   private final CacheKeyFactory cacheKeyFactory;
   @Nullable private final EventListener eventListener;
+  @Nullable private final CacheReadAhead readAhead;
 
   private final boolean blockOnCache;
   private final boolean ignoreCacheOnError;
@@ -251,6 +252,43 @@ public final class CacheDataSource implements DataSource {
       @Flags int flags,
       @Nullable EventListener eventListener,
       @Nullable CacheKeyFactory cacheKeyFactory) {
+    this(
+        cache,
+        upstream,
+        cacheReadDataSource,
+        cacheWriteDataSink,
+        flags,
+        eventListener,
+        cacheKeyFactory,
+        /* readAhead= */ null);
+  }
+
+  /**
+   * Constructs an instance with arbitrary {@link DataSource} and {@link DataSink} instances for
+   * reading and writing the cache. One use of this constructor is to allow data to be transformed
+   * before it is written to disk.
+   *
+   * @param cache The cache.
+   * @param upstream A {@link DataSource} for reading data not in the cache.
+   * @param cacheReadDataSource A {@link DataSource} for reading data from the cache.
+   * @param cacheWriteDataSink A {@link DataSink} for writing data to the cache. If null, cache is
+   *     accessed read-only.
+   * @param flags A combination of {@link #FLAG_BLOCK_ON_CACHE}, {@link #FLAG_IGNORE_CACHE_ON_ERROR}
+   *     and {@link #FLAG_IGNORE_CACHE_FOR_UNSET_LENGTH_REQUESTS}, or 0.
+   * @param eventListener An optional {@link EventListener} to receive events.
+   * @param cacheKeyFactory An optional factory for cache keys.
+   * @param readAhead An optional {@link CacheReadAhead} that fills the cache ahead of the cached
+   *     data being read. Should be used with {@link #FLAG_BLOCK_ON_CACHE}.
+   */
+  public CacheDataSource(
+      Cache cache,
+      DataSource upstream,
+      DataSource cacheReadDataSource,
+      DataSink cacheWriteDataSink,
+      @Flags int flags,
+      @Nullable EventListener eventListener,
+      @Nullable CacheKeyFactory cacheKeyFactory,
+      @Nullable CacheReadAhead readAhead) {
     this.cache = cache;
     this.cacheReadDataSource = cacheReadDataSource;
     this.cacheKeyFactory =
@@ -266,6 +304,7 @@ public final class CacheDataSource implements DataSource {
       this.cacheWriteDataSource = null;
     }
     this.eventListener = eventListener;
+    this.readAhead = readAhead;
   }
 
   @Override
@@ -423,6 +462,12 @@ public final class CacheDataSource implements DataSource {
       }
       nextDataSpec = new DataSpec(fileUri, readPosition, filePosition, length, key, flags);
       nextDataSource = cacheReadDataSource;
+      if (readAhead != null) {
+        readAhead.onCachedSpanRead(
+            new DataSpec(
+                uri, httpMethod, null, readPosition, readPosition, bytesRemaining, key, flags),
+            nextSpan);
+      }
     } else {
       // Data is not cached, and data is not locked, read from upstream with cache backing.
       long length;
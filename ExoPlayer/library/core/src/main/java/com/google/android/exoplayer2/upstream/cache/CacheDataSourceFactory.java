@@ -15,6 +15,7 @@
  */
 package com.google.android.exoplayer2.upstream.cache;
 
+import android.support.annotation.Nullable;
 import com.google.android.exoplayer2.upstream.DataSink;
 import com.google.android.exoplayer2.upstream.DataSource;
 import com.google.android.exoplayer2.upstream.DataSource.Factory;
@@ -32,6 +33,7 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
   private final DataSink.Factory cacheWriteDataSinkFactory;
   private final int flags;
   private final EventListener eventListener;
+  private final @Nullable CacheReadAhead readAhead;
 
   /**
    * @see CacheDataSource#CacheDataSource(Cache, DataSource)
@@ -64,12 +66,25 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
   public CacheDataSourceFactory(Cache cache, Factory upstreamFactory,
       Factory cacheReadDataSourceFactory, DataSink.Factory cacheWriteDataSinkFactory,
       @CacheDataSource.Flags int flags, EventListener eventListener) {
+    this(cache, upstreamFactory, cacheReadDataSourceFactory, cacheWriteDataSinkFactory, flags,
+        eventListener, /* readAhead= */ null);
+  }
+
+  /**
+   * @see CacheDataSource#CacheDataSource(Cache, DataSource, DataSource, DataSink, int,
+   *     EventListener, CacheKeyFactory, CacheReadAhead)
+   */
+  public CacheDataSourceFactory(Cache cache, Factory upstreamFactory,
+      Factory cacheReadDataSourceFactory, DataSink.Factory cacheWriteDataSinkFactory,
+      @CacheDataSource.Flags int flags, EventListener eventListener,
+      @Nullable CacheReadAhead readAhead) {
     this.cache = cache;
     this.upstreamFactory = upstreamFactory;
     this.cacheReadDataSourceFactory = cacheReadDataSourceFactory;
     this.cacheWriteDataSinkFactory = cacheWriteDataSinkFactory;
     this.flags = flags;
     this.eventListener = eventListener;
+    this.readAhead = readAhead;
   }
 
   @Override
@@ -77,7 +92,7 @@ public final class CacheDataSourceFactory implements DataSource.Factory {
     return new CacheDataSource(cache, upstreamFactory.createDataSource(),
         cacheReadDataSourceFactory.createDataSource(),
         cacheWriteDataSinkFactory != null ? cacheWriteDataSinkFactory.createDataSink() : null,
-        flags, eventListener);
+        flags, eventListener, /* cacheKeyFactory= */ null, readAhead);
   }
 
 }
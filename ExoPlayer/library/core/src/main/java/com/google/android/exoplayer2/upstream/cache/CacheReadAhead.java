@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.TeeDataSource;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fills holes in a {@link SimpleCache} ahead of the data being read by {@link CacheDataSource}, so
+ * that reading doesn't stall on upstream latency when it reaches the end of a cached span.
+ *
+ * <p>Whenever a {@link CacheDataSource} starts reading a cached span, the holes within {@code
+ * horizonBytes} after that span are filled from upstream on a background thread. At most one hole
+ * per cache key is filled at a time, since the cache locks a key while it's written, and at most
+ * {@code maxConcurrentTasks} keys are filled concurrently. Each write holds the lock for at most
+ * {@code maxCacheFileSize} bytes, so a reader that reaches a hole being filled waits for at most
+ * one cache file when {@link CacheDataSource#FLAG_BLOCK_ON_CACHE} is set. Without that flag the
+ * reader bypasses the cache for the locked data instead.
+ *
+ * <p>An instance may be shared by the {@link CacheDataSource} instances reading a cache, and must
+ * be released when it's no longer used.
+ */
+public final class CacheReadAhead {
+
+  /** Default number of bytes after the span being read that are filled. */
+  public static final long DEFAULT_HORIZON_BYTES = 8 * 1024 * 1024;
+
+  /** Default maximum number of cache keys that are filled concurrently. */
+  public static final int DEFAULT_MAX_CONCURRENT_TASKS = 2;
+
+  private static final String TAG = "CacheReadAhead";
+
+  private final SimpleCache cache;
+  private final DataSource.Factory upstreamFactory;
+  private final long horizonBytes;
+  private final int maxConcurrentTasks;
+  private final long maxCacheFileSize;
+  private final ExecutorService executorService;
+  private final HashMap<String, ReadAheadTask> tasks;
+
+  private volatile boolean released;
+
+  /**
+   * Constructs an instance with default horizon, concurrency and cache file size.
+   *
+   * @param cache The cache.
+   * @param upstreamFactory A factory for {@link DataSource}s reading data not in the cache.
+   */
+  public CacheReadAhead(SimpleCache cache, DataSource.Factory upstreamFactory) {
+    this(
+        cache,
+        upstreamFactory,
+        DEFAULT_HORIZON_BYTES,
+        DEFAULT_MAX_CONCURRENT_TASKS,
+        CacheDataSource.DEFAULT_MAX_CACHE_FILE_SIZE);
+  }
+
+  /**
+   * @param cache The cache.
+   * @param upstreamFactory A factory for {@link DataSource}s reading data not in the cache.
+   * @param horizonBytes The number of bytes after the span being read that are filled.
+   * @param maxConcurrentTasks The maximum number of cache keys that are filled concurrently.
+   * @param maxCacheFileSize The maximum size of a cache file written ahead, in bytes.
+   */
+  public CacheReadAhead(
+      SimpleCache cache,
+      DataSource.Factory upstreamFactory,
+      long horizonBytes,
+      int maxConcurrentTasks,
+      long maxCacheFileSize) {
+    Assertions.checkArgument(horizonBytes > 0 && maxConcurrentTasks > 0 && maxCacheFileSize > 0);
+    this.cache = cache;
+    this.upstreamFactory = upstreamFactory;
+    this.horizonBytes = horizonBytes;
+    this.maxConcurrentTasks = maxConcurrentTasks;
+    this.maxCacheFileSize = maxCacheFileSize;
+    executorService =
+        Executors.newFixedThreadPool(maxConcurrentTasks, runnable -> new Thread(runnable, TAG));
+    tasks = new HashMap<>();
+  }
+
+  /**
+   * Called when a cached span starts being read. Fills the holes within the horizon after the span,
+   * unless the limit of concurrently filled keys has been reached.
+   *
+   * @param dataSpec The data being read. Its {@code absoluteStreamPosition} must be the position
+   *     at which the span is read, and its {@code length} the number of bytes that remain to be
+   *     read, or {@link C#LENGTH_UNSET} if unknown.
+   * @param span The span being read.
+   */
+  public synchronized void onCachedSpanRead(DataSpec dataSpec, CacheSpan span) {
+    if (released) {
+      return;
+    }
+    long startPosition = span.position + span.length;
+    long endPosition = startPosition + horizonBytes;
+    if (dataSpec.length != C.LENGTH_UNSET) {
+      endPosition = Math.min(endPosition, dataSpec.absoluteStreamPosition + dataSpec.length);
+    }
+    String key = Assertions.checkNotNull(dataSpec.key);
+    ReadAheadTask task = tasks.get(key);
+    if (task != null) {
+      task.setRange(startPosition, endPosition);
+      return;
+    }
+    if (tasks.size() >= maxConcurrentTasks || startPosition >= endPosition
+        || cache.getCachedLength(key, startPosition, endPosition - startPosition)
+            >= endPosition - startPosition) {
+      return;
+    }
+    task = new ReadAheadTask(dataSpec, startPosition, endPosition);
+    tasks.put(key, task);
+    executorService.execute(task);
+  }
+
+  /** Stops filling the cache. Must be called when the instance is no longer used. */
+  public synchronized void release() {
+    released = true;
+    executorService.shutdown();
+  }
+
+  private synchronized void onTaskFinished(ReadAheadTask task) {
+    if (tasks.get(task.key) == task) {
+      tasks.remove(task.key);
+    }
+  }
+
+  private final class ReadAheadTask implements Runnable {
+
+    private final DataSpec dataSpec;
+    private final String key;
+
+    // Guarded by CacheReadAhead.this.
+    private long position;
+    private long endPosition;
+
+    public ReadAheadTask(DataSpec dataSpec, long position, long endPosition) {
+      this.dataSpec = dataSpec;
+      this.key = dataSpec.key;
+      this.position = position;
+      this.endPosition = endPosition;
+    }
+
+    public void setRange(long position, long endPosition) {
+      this.position = position;
+      this.endPosition = endPosition;
+    }
+
+    @Override
+    public void run() {
+      DataSource dataSource =
+          new TeeDataSource(
+              upstreamFactory.createDataSource(), new CacheDataSink(cache, maxCacheFileSize));
+      byte[] buffer = new byte[CacheUtil.DEFAULT_BUFFER_SIZE_BYTES];
+      try {
+        while (!released) {
+          long position;
+          long length;
+          synchronized (CacheReadAhead.this) {
+            position = this.position;
+            length = endPosition - position;
+            if (length <= 0) {
+              // Finish while holding the lock, so that the range can't be extended first.
+              tasks.remove(key);
+              return;
+            }
+          }
+          long bytesFilled = cache.getCachedLength(key, position, length);
+          if (bytesFilled <= 0) {
+            // Only holes are locked, since locking cached data would touch it and rename its file.
+            CacheSpan span = cache.startWriteNonBlocking(key, position);
+            if (span == null) {
+              // Either the hole has been cached since it was checked, or the key is locked by a
+              // reader writing the data itself. Carry on only in the first case.
+              bytesFilled = cache.getCachedLength(key, position, length);
+              if (bytesFilled <= 0) {
+                return;
+              }
+            } else {
+              // The hole may have shrunk since it was checked.
+              length = Math.min(length, maxCacheFileSize);
+              if (!span.isOpenEnded()) {
+                length = Math.min(length, span.length);
+              }
+              try {
+                bytesFilled = fill(dataSource, buffer, position, length);
+              } finally {
+                cache.releaseHoleSpan(span);
+              }
+              if (bytesFilled < length) {
+                // Reached the end of the data.
+                return;
+              }
+            }
+          }
+          synchronized (CacheReadAhead.this) {
+            if (this.position == position) {
+              this.position = position + bytesFilled;
+            }
+          }
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Reading ahead failed", e);
+      } finally {
+        onTaskFinished(this);
+      }
+    }
+
+    private long fill(DataSource dataSource, byte[] buffer, long position, long length)
+        throws IOException {
+      try {
+        dataSource.open(
+            new DataSpec(
+                dataSpec.uri,
+                dataSpec.httpMethod,
+                /* postBody= */ null,
+                position,
+                position,
+                length,
+                key,
+                dataSpec.flags));
+        long totalRead = 0;
+        while (totalRead < length && !released) {
+          int read = dataSource.read(buffer, 0, (int) Math.min(buffer.length, length - totalRead));
+          if (read == C.RESULT_END_OF_INPUT) {
+            break;
+          }
+          totalRead += read;
+        }
+        return totalRead;
+      } finally {
+        Util.closeQuietly(dataSource);
+      }
+    }
+
+  }
+
+}
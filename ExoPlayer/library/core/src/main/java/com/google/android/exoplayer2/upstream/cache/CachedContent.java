@@ -16,8 +16,6 @@
 package com.google.android.exoplayer2.upstream.cache;
 
 import android.support.annotation.Nullable;
-import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
-import com.google.android.exoplayer2.util.Assertions;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -41,6 +39,10 @@ import java.util.TreeSet;
   private DefaultContentMetadata metadata;
   /** Whether the content is locked. */
   private boolean locked;
+  /** Whether the file of one of the spans is being renamed to update its last access timestamp. */
+  private boolean touching;
+  /** Incremented by {@link #signalStateChange()}. Guarded by this instance's monitor. */
+  private int stateVersion;
 
   /**
    * Reads an instance from a {@link DataInputStream}.
@@ -116,6 +118,43 @@ import java.util.TreeSet;
     this.locked = locked;
   }
 
+  /** Returns whether the file of one of the spans is being touched. */
+  public boolean isTouching() {
+    return touching;
+  }
+
+  /** Sets whether the file of one of the spans is being touched. */
+  public void setTouching(boolean touching) {
+    this.touching = touching;
+  }
+
+  /** Returns the state version, which changes whenever {@link #signalStateChange()} is called. */
+  public synchronized int getStateVersion() {
+    return stateVersion;
+  }
+
+  /**
+   * Wakes up the threads waiting for the content to be unlocked, to finish being touched, or to
+   * have a span added.
+   */
+  public synchronized void signalStateChange() {
+    stateVersion++;
+    notifyAll();
+  }
+
+  /**
+   * Blocks until {@link #signalStateChange()} is called, unless it has already been called since
+   * the state version was read.
+   *
+   * @param stateVersion A state version previously returned by {@link #getStateVersion()}.
+   * @throws InterruptedException If the thread was interrupted.
+   */
+  public synchronized void awaitStateChange(int stateVersion) throws InterruptedException {
+    while (this.stateVersion == stateVersion) {
+      wait();
+    }
+  }
+
   /** Adds the given {@link SimpleCacheSpan} which contains a part of the content. */
   public void addSpan(SimpleCacheSpan span) {
     cachedSpans.add(span);
@@ -177,23 +216,21 @@ import java.util.TreeSet;
   }
 
   /**
-   * Copies the given span with an updated last access time. Passed span becomes invalid after this
-   * call.
+   * Replaces a span with a copy that has an updated last access time, once the span's file has been
+   * renamed to the copy's file.
    *
-   * @param cacheSpan Span to be copied and updated.
-   * @return a span with the updated last access time.
-   * @throws CacheException If renaming of the underlying span file failed.
+   * @param cacheSpan The span that was touched.
+   * @param newCacheSpan The copy of the span with the updated last access time.
+   * @return Whether the span was replaced. False if the span has been removed.
    */
-  public SimpleCacheSpan touch(SimpleCacheSpan cacheSpan) throws CacheException {
-    SimpleCacheSpan newCacheSpan = cacheSpan.copyWithUpdatedLastAccessTime(id);
-    if (!cacheSpan.file.renameTo(newCacheSpan.file)) {
-      throw new CacheException("Renaming of " + cacheSpan.file + " to " + newCacheSpan.file
-          + " failed.");
+  public boolean replaceTouchedSpan(SimpleCacheSpan cacheSpan, SimpleCacheSpan newCacheSpan) {
+    // Compare identities, as another span may have been added at the same position.
+    if (cachedSpans.floor(cacheSpan) != cacheSpan) {
+      return false;
     }
-    // Replace the in-memory representation of the span.
-    Assertions.checkState(cachedSpans.remove(cacheSpan));
+    cachedSpans.remove(cacheSpan);
     cachedSpans.add(newCacheSpan);
-    return newCacheSpan;
+    return true;
   }
 
   /** Returns whether there are any spans cached. */
@@ -201,13 +238,22 @@ import java.util.TreeSet;
     return cachedSpans.isEmpty();
   }
 
-  /** Removes the given span from cache. */
-  public boolean removeSpan(CacheSpan span) {
-    if (cachedSpans.remove(span)) {
-      span.file.delete();
-      return true;
+  /**
+   * Removes the span at the position of the given span from cache, and deletes its file. The
+   * removed span differs from the given one if the span has been touched since it was obtained.
+   *
+   * @param span The span to remove.
+   * @return The removed span, or null if there was no span at the position.
+   */
+  public @Nullable SimpleCacheSpan removeSpan(CacheSpan span) {
+    SimpleCacheSpan removedSpan =
+        cachedSpans.floor(SimpleCacheSpan.createLookup(span.key, span.position));
+    if (removedSpan == null || removedSpan.position != span.position) {
+      return null;
     }
-    return false;
+    cachedSpans.remove(removedSpan);
+    removedSpan.file.delete();
+    return removedSpan;
   }
 
   /**
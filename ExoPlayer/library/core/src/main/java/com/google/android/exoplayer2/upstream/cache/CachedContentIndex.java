@@ -15,49 +15,85 @@
  */
 package com.google.android.exoplayer2.upstream.cache;
 
+import android.support.annotation.Nullable;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
 import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.AtomicFile;
 import com.google.android.exoplayer2.util.ReusableBufferedOutputStream;
 import com.google.android.exoplayer2.util.Util;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Random;
 import java.util.Set;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-/** Maintains the index of cached content. */
+/**
+ * Maintains the index of cached content.
+ *
+ * <p>The index file starts with a snapshot of the index, which is followed by a frame of records
+ * for each subsequent {@link #store()}, so that storing costs time proportional to the changes
+ * rather than to the size of the index. The file is rewritten as a new snapshot once the appended
+ * frames outgrow the snapshot. If the index is encrypted, each frame is encrypted separately.
+ *
+ * <p>{@link #store(Object)} only holds the lock guarding the index while the changes are
+ * serialized, and writes them to the file after releasing it.
+ */
 /*package*/ class CachedContentIndex {
 
   public static final String FILE_NAME = "cached_content_index.exi";
 
-  private static final int VERSION = 2;
+  private static final int VERSION_FRAMES_INTRODUCED = 3;
+  private static final int VERSION = 3;
 
   private static final int FLAG_ENCRYPTED_INDEX = 1;
 
+  private static final int RECORD_TYPE_PUT = 0;
+  private static final int RECORD_TYPE_REMOVE = 1;
+
+  /** The minimum size of the appended frames before the index file is rewritten. */
+  private static final int MIN_REWRITE_APPENDED_SIZE = 16 * 1024;
+
   private final HashMap<String, CachedContent> keyToContent;
   private final SparseArray<String> idToKey;
+  private final File file;
   private final AtomicFile atomicFile;
   private final Cipher cipher;
   private final SecretKeySpec secretKeySpec;
   private final boolean encrypt;
-  private boolean changed;
+  /** Contents which have been added, or whose metadata has changed, since the last store. */
+  private final HashMap<String, CachedContent> changedContents;
+  /**
+   * Ids of the contents whose removal hasn't been written to the index file yet. The ids aren't
+   * reused until then.
+   */
+  private final SparseBooleanArray removedIds;
+  /** Guards the index file, and the fields below, while the index is stored. */
+  private final Object storeLock;
+  private boolean rewriteRequired;
+  private long snapshotSize;
+  private long appendedSize;
   private ReusableBufferedOutputStream bufferedOutputStream;
 
   /**
@@ -104,26 +140,72 @@ import javax.crypto.spec.SecretKeySpec;
     }
     keyToContent = new HashMap<>();
     idToKey = new SparseArray<>();
-    atomicFile = new AtomicFile(new File(cacheDir, FILE_NAME));
+    file = new File(cacheDir, FILE_NAME);
+    atomicFile = new AtomicFile(file);
+    changedContents = new HashMap<>();
+    removedIds = new SparseBooleanArray();
+    storeLock = new Object();
   }
 
   /** Loads the index file. */
   public void load() {
-    Assertions.checkState(!changed);
+    Assertions.checkState(changedContents.isEmpty() && removedIds.size() == 0);
     if (!readFile()) {
       atomicFile.delete();
       keyToContent.clear();
       idToKey.clear();
+      rewriteRequired = false;
     }
   }
 
-  /** Stores the index data to index file if there is a change. */
+  /**
+   * Stores the index data to index file if there is a change. The changes are appended to the file,
+   * unless the file needs to be rewritten.
+   */
   public void store() throws CacheException {
-    if (!changed) {
-      return;
+    store(this);
+  }
+
+  /**
+   * Stores the index data to index file if there is a change, as {@link #store()} does, holding
+   * {@code lock} only while the changes are serialized.
+   *
+   * @param lock The lock which is held whenever the index is modified. Must not be held by the
+   *     calling thread, which may wait for another thread to finish storing the index.
+   * @throws CacheException If an error occurs writing the index file.
+   */
+  public void store(Object lock) throws CacheException {
+    synchronized (storeLock) {
+      boolean rewrite =
+          rewriteRequired
+              || !file.exists()
+              || (appendedSize >= MIN_REWRITE_APPENDED_SIZE && appendedSize > snapshotSize);
+      byte[] records;
+      int[] writtenRemovedIds;
+      synchronized (lock) {
+        boolean hasChanges = !changedContents.isEmpty() || removedIds.size() != 0;
+        if (!hasChanges && !rewriteRequired) {
+          return;
+        }
+        records = rewrite ? getSnapshotRecords() : getChangeRecords();
+        writtenRemovedIds = new int[removedIds.size()];
+        for (int i = 0; i < writtenRemovedIds.length; i++) {
+          writtenRemovedIds[i] = removedIds.keyAt(i);
+        }
+        // If writing fails, the file is rewritten by the next store, which includes these changes.
+        changedContents.clear();
+      }
+      if (rewrite) {
+        writeFile(records);
+      } else {
+        appendToFile(records);
+      }
+      synchronized (lock) {
+        for (int id : writtenRemovedIds) {
+          removedIds.delete(id);
+        }
+      }
     }
-    writeFile();
-    changed = false;
   }
 
   /**
@@ -163,17 +245,24 @@ import javax.crypto.spec.SecretKeySpec;
     return idToKey.get(id);
   }
 
-  /** Removes {@link CachedContent} with the given key from index if it's empty and not locked. */
+  /**
+   * Removes {@link CachedContent} with the given key from index if it's empty, not locked and not
+   * being touched.
+   */
   public void maybeRemove(String key) {
     CachedContent cachedContent = keyToContent.get(key);
-    if (cachedContent != null && cachedContent.isEmpty() && !cachedContent.isLocked()) {
+    if (cachedContent != null
+        && cachedContent.isEmpty()
+        && !cachedContent.isLocked()
+        && !cachedContent.isTouching()) {
       keyToContent.remove(key);
       idToKey.remove(cachedContent.id);
-      changed = true;
+      changedContents.remove(key);
+      removedIds.put(cachedContent.id, true);
     }
   }
 
-  /** Removes empty and not locked {@link CachedContent} instances from index. */
+  /** Removes empty, not locked and not being touched {@link CachedContent} instances from index. */
   public void removeEmpty() {
     String[] keys = new String[keyToContent.size()];
     keyToContent.keySet().toArray(keys);
@@ -199,7 +288,7 @@ import javax.crypto.spec.SecretKeySpec;
   public void applyContentMetadataMutations(String key, ContentMetadataMutations mutations) {
     CachedContent cachedContent = getOrAdd(key);
     if (cachedContent.applyMetadataMutations(mutations)) {
-      changed = true;
+      changedContents.put(key, cachedContent);
     }
   }
 
@@ -220,33 +309,50 @@ import javax.crypto.spec.SecretKeySpec;
       }
 
       int flags = input.readInt();
-      if ((flags & FLAG_ENCRYPTED_INDEX) != 0) {
-        if (cipher == null) {
-          return false;
-        }
-        byte[] initializationVector = new byte[16];
-        input.readFully(initializationVector);
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
-        try {
-          cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-          throw new IllegalStateException(e);
-        }
-        input = new DataInputStream(new CipherInputStream(inputStream, cipher));
-      } else if (encrypt) {
-        changed = true; // Force index to be rewritten encrypted after read.
+      boolean encrypted = (flags & FLAG_ENCRYPTED_INDEX) != 0;
+      if (encrypted && cipher == null) {
+        return false;
+      }
+      if (encrypted != encrypt) {
+        // Force index to be rewritten after read, as appended frames have to match the header.
+        rewriteRequired = true;
+      }
+      if (version < VERSION_FRAMES_INTRODUCED) {
+        // Force index to be rewritten in the current format after read.
+        rewriteRequired = true;
+        return readLegacySnapshot(version, encrypted, inputStream, input);
       }
 
-      int count = input.readInt();
-      int hashCode = 0;
-      for (int i = 0; i < count; i++) {
-        CachedContent cachedContent = CachedContent.readFromStream(version, input);
-        add(cachedContent);
-        hashCode += cachedContent.headerHashCode(version);
+      // The first frame holds the snapshot, without which the index can't be read. Any other frame
+      // that can't be read was being appended when the last store was interrupted, so it's ignored
+      // along with any later frames. The index then has to be rewritten, as nothing can be appended
+      // after them.
+      long fileSize = file.length();
+      long position = 8;
+      snapshotSize = 0;
+      appendedSize = 0;
+      while (position < fileSize) {
+        long bytesRemaining = fileSize - position;
+        int frameSize = bytesRemaining >= 4 ? input.readInt() : -1;
+        byte[] records =
+            frameSize >= 0 && frameSize <= bytesRemaining - 4
+                ? readFrame(input, frameSize, encrypted)
+                : null;
+        if (records == null || !readRecords(version, records)) {
+          if (snapshotSize == 0) {
+            return false;
+          }
+          rewriteRequired = true;
+          break;
+        }
+        position += 4 + frameSize;
+        if (snapshotSize == 0) {
+          snapshotSize = position;
+        } else {
+          appendedSize += 4 + frameSize;
+        }
       }
-      int fileHashCode = input.readInt();
-      boolean isEOF = input.read() == -1;
-      if (fileHashCode != hashCode || !isEOF) {
+      if (snapshotSize == 0) {
         return false;
       }
     } catch (IOException e) {
@@ -259,58 +365,245 @@ import javax.crypto.spec.SecretKeySpec;
     return true;
   }
 
-  private void writeFile() throws CacheException {
-    DataOutputStream output = null;
-    try {
-      OutputStream outputStream = atomicFile.startWrite();
-      if (bufferedOutputStream == null) {
-        bufferedOutputStream = new ReusableBufferedOutputStream(outputStream);
-      } else {
-        bufferedOutputStream.reset(outputStream);
+  private boolean readLegacySnapshot(
+      int version, boolean encrypted, InputStream inputStream, DataInputStream input)
+      throws IOException {
+    if (encrypted) {
+      byte[] initializationVector = new byte[16];
+      input.readFully(initializationVector);
+      IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+        throw new IllegalStateException(e);
       }
-      output = new DataOutputStream(bufferedOutputStream);
-      output.writeInt(VERSION);
+      input = new DataInputStream(new CipherInputStream(inputStream, cipher));
+    }
+
+    int count = input.readInt();
+    int hashCode = 0;
+    for (int i = 0; i < count; i++) {
+      CachedContent cachedContent = CachedContent.readFromStream(version, input);
+      add(cachedContent);
+      hashCode += cachedContent.headerHashCode(version);
+    }
+    int fileHashCode = input.readInt();
+    boolean isEOF = input.read() == -1;
+    return fileHashCode == hashCode && isEOF;
+  }
 
-      int flags = encrypt ? FLAG_ENCRYPTED_INDEX : 0;
-      output.writeInt(flags);
-
-      if (encrypt) {
-        byte[] initializationVector = new byte[16];
-        new Random().nextBytes(initializationVector);
-        output.write(initializationVector);
-        IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
-        try {
-          cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
-        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-          throw new IllegalStateException(e); // Should never happen.
+  /**
+   * Reads a frame, decrypting it if necessary.
+   *
+   * @param input The input from which the frame is read.
+   * @param frameSize The size of the frame.
+   * @param encrypted Whether the frame is encrypted.
+   * @return The records of the frame, or null if the frame is incomplete or can't be decrypted.
+   * @throws IOException If an error occurs reading from the input.
+   */
+  private @Nullable byte[] readFrame(DataInputStream input, int frameSize, boolean encrypted)
+      throws IOException {
+    byte[] frame = new byte[frameSize];
+    try {
+      input.readFully(frame);
+    } catch (EOFException e) {
+      return null;
+    }
+    if (!encrypted) {
+      return frame;
+    }
+    if (frameSize < 16) {
+      return null;
+    }
+    IvParameterSpec ivParameterSpec = new IvParameterSpec(frame, 0, 16);
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, ivParameterSpec);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new IllegalStateException(e);
+    }
+    try {
+      return cipher.doFinal(frame, 16, frameSize - 16);
+    } catch (GeneralSecurityException e) {
+      // The frame is incomplete, or was encrypted with a different key.
+      return null;
+    }
+  }
+
+  /**
+   * Applies the records of a frame to the index, if the frame is intact.
+   *
+   * @param version The version of the index file.
+   * @param frame The records of the frame.
+   * @return Whether the frame is intact.
+   */
+  private boolean readRecords(int version, byte[] frame) {
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(frame));
+    ArrayList<Integer> removedIds = new ArrayList<>();
+    ArrayList<CachedContent> putContents = new ArrayList<>();
+    try {
+      int count = input.readInt();
+      int hashCode = 0;
+      for (int i = 0; i < count; i++) {
+        int type = input.readByte();
+        if (type == RECORD_TYPE_PUT) {
+          CachedContent cachedContent = CachedContent.readFromStream(version, input);
+          putContents.add(cachedContent);
+          hashCode += cachedContent.headerHashCode(version);
+        } else if (type == RECORD_TYPE_REMOVE) {
+          int id = input.readInt();
+          removedIds.add(id);
+          hashCode += id;
+        } else {
+          return false;
         }
-        output.flush();
-        output = new DataOutputStream(new CipherOutputStream(bufferedOutputStream, cipher));
       }
+      int frameHashCode = input.readInt();
+      if (frameHashCode != hashCode || input.available() != 0) {
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    // Removals are written before additions, as the id of a removed content may have been reused.
+    for (int i = 0; i < removedIds.size(); i++) {
+      remove(removedIds.get(i));
+    }
+    for (int i = 0; i < putContents.size(); i++) {
+      put(putContents.get(i));
+    }
+    return true;
+  }
 
-      output.writeInt(keyToContent.size());
+  /** Returns the records of a snapshot of the index. */
+  private byte[] getSnapshotRecords() {
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordsOutput = new DataOutputStream(records);
+    try {
+      recordsOutput.writeInt(keyToContent.size());
       int hashCode = 0;
       for (CachedContent cachedContent : keyToContent.values()) {
-        cachedContent.writeToStream(output);
+        recordsOutput.writeByte(RECORD_TYPE_PUT);
+        cachedContent.writeToStream(recordsOutput);
         hashCode += cachedContent.headerHashCode(VERSION);
       }
-      output.writeInt(hashCode);
+      recordsOutput.writeInt(hashCode);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+    return records.toByteArray();
+  }
+
+  /** Returns the records of the changes which haven't been written to the index file yet. */
+  private byte[] getChangeRecords() {
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    DataOutputStream recordsOutput = new DataOutputStream(records);
+    try {
+      recordsOutput.writeInt(removedIds.size() + changedContents.size());
+      int hashCode = 0;
+      // Write removals first, as the id of a removed content may have been reused.
+      for (int i = 0; i < removedIds.size(); i++) {
+        int id = removedIds.keyAt(i);
+        recordsOutput.writeByte(RECORD_TYPE_REMOVE);
+        recordsOutput.writeInt(id);
+        hashCode += id;
+      }
+      for (CachedContent cachedContent : changedContents.values()) {
+        recordsOutput.writeByte(RECORD_TYPE_PUT);
+        cachedContent.writeToStream(recordsOutput);
+        hashCode += cachedContent.headerHashCode(VERSION);
+      }
+      recordsOutput.writeInt(hashCode);
+    } catch (IOException e) {
+      throw new IllegalStateException(e); // Should never happen.
+    }
+    return records.toByteArray();
+  }
+
+  /** Rewrites the index file as a snapshot of the index, given the records of the snapshot. */
+  private void writeFile(byte[] records) throws CacheException {
+    // Assume the file needs rewriting until it has been written successfully.
+    rewriteRequired = true;
+    OutputStream outputStream = null;
+    try {
+      byte[] frame = createFrame(records);
+
+      outputStream = atomicFile.startWrite();
+      if (bufferedOutputStream == null) {
+        bufferedOutputStream = new ReusableBufferedOutputStream(outputStream);
+      } else {
+        bufferedOutputStream.reset(outputStream);
+      }
+      DataOutputStream output = new DataOutputStream(bufferedOutputStream);
+      output.writeInt(VERSION);
+      output.writeInt(encrypt ? FLAG_ENCRYPTED_INDEX : 0);
+      output.writeInt(frame.length);
+      output.write(frame);
       atomicFile.endWrite(output);
-      // Avoid calling close twice. Duplicate CipherOutputStream.close calls did
-      // not used to be no-ops: https://android-review.googlesource.com/#/c/272799/
-      output = null;
+      outputStream = null;
+      snapshotSize = 12 + frame.length;
+      appendedSize = 0;
+      rewriteRequired = false;
+    } catch (IOException e) {
+      throw new CacheException(e);
+    } finally {
+      Util.closeQuietly(outputStream);
+    }
+  }
+
+  /** Appends a frame holding the given records of changes to the index file. */
+  private void appendToFile(byte[] records) throws CacheException {
+    FileOutputStream outputStream = null;
+    try {
+      byte[] frame = createFrame(records);
+
+      outputStream = new FileOutputStream(file, /* append= */ true);
+      // Write the frame with a single call, to make an interrupted write as unlikely as possible.
+      ByteArrayOutputStream frameWithSize = new ByteArrayOutputStream(4 + frame.length);
+      new DataOutputStream(frameWithSize).writeInt(frame.length);
+      frameWithSize.write(frame);
+      outputStream.write(frameWithSize.toByteArray());
+      outputStream.close();
+      outputStream = null;
+      appendedSize += 4 + frame.length;
     } catch (IOException e) {
+      // The file may end with an incomplete frame, after which nothing can be appended.
+      rewriteRequired = true;
       throw new CacheException(e);
     } finally {
-      Util.closeQuietly(output);
+      Util.closeQuietly(outputStream);
+    }
+  }
+
+  /** Returns a frame holding the given records, encrypted if the index is encrypted. */
+  private byte[] createFrame(byte[] records) {
+    if (!encrypt) {
+      return records;
+    }
+    byte[] initializationVector = new byte[16];
+    new Random().nextBytes(initializationVector);
+    IvParameterSpec ivParameterSpec = new IvParameterSpec(initializationVector);
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, secretKeySpec, ivParameterSpec);
+      byte[] encryptedRecords = cipher.doFinal(records);
+      byte[] frame = new byte[16 + encryptedRecords.length];
+      System.arraycopy(initializationVector, 0, frame, 0, 16);
+      System.arraycopy(encryptedRecords, 0, frame, 16, encryptedRecords.length);
+      return frame;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e); // Should never happen.
     }
   }
 
   private CachedContent addNew(String key) {
     int id = getNewId(idToKey);
+    // The id of a removed content isn't reused until its removal has been written, as the cached
+    // span journal may refer to the new content before the index is stored.
+    while (removedIds.get(id) || idToKey.get(id) != null) {
+      id = id == Integer.MAX_VALUE ? 0 : id + 1;
+    }
     CachedContent cachedContent = new CachedContent(id, key);
     add(cachedContent);
-    changed = true;
+    changedContents.put(key, cachedContent);
     return cachedContent;
   }
 
@@ -319,6 +612,25 @@ import javax.crypto.spec.SecretKeySpec;
     idToKey.put(cachedContent.id, cachedContent.key);
   }
 
+  /** Adds or replaces a content read from a frame, replacing any content with its key or id. */
+  private void put(CachedContent cachedContent) {
+    remove(cachedContent.id);
+    CachedContent existingContent = keyToContent.get(cachedContent.key);
+    if (existingContent != null) {
+      idToKey.remove(existingContent.id);
+    }
+    add(cachedContent);
+  }
+
+  /** Removes the content with the given id read from a frame, if there is one. */
+  private void remove(int id) {
+    String key = idToKey.get(id);
+    if (key != null) {
+      keyToContent.remove(key);
+      idToKey.remove(id);
+    }
+  }
+
   private static Cipher getCipher() throws NoSuchPaddingException, NoSuchAlgorithmException {
     // Workaround for https://issuetracker.google.com/issues/36976726
     if (Util.SDK_INT == 18) {
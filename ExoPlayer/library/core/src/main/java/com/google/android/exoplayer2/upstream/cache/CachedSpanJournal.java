@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.support.annotation.Nullable;
+import com.google.android.exoplayer2.util.AtomicFile;
+import com.google.android.exoplayer2.util.Log;
+import com.google.android.exoplayer2.util.Util;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+ * Journal of the cached spans, which allows {@link SimpleCache} to restore its spans without
+ * listing the cache directory.
+ *
+ * <p>The journal is a snapshot of the spans followed by a record for each span that has since been
+ * started, committed, removed or touched. Records are flushed as they are appended, so a process
+ * crash can at worst leave a truncated last record, which makes the journal unusable. If the
+ * journal is missing, unusable or does not match the index, the cache directory has to be scanned
+ * instead. The snapshot is rewritten when the records outnumber the spans.
+ */
+/*package*/ final class CachedSpanJournal {
+
+  public static final String FILE_NAME = "cached_span_journal.exj";
+
+  private static final String TAG = "CachedSpanJournal";
+
+  private static final int VERSION = 1;
+
+  private static final int RECORD_START = 1;
+  private static final int RECORD_ADD = 2;
+  private static final int RECORD_REMOVE = 3;
+  private static final int RECORD_TOUCH = 4;
+
+  /** The minimum number of records before the snapshot is rewritten. */
+  private static final int MIN_COMPACTION_RECORD_COUNT = 4096;
+
+  private final File cacheDir;
+  private final File file;
+  private final AtomicFile atomicFile;
+  private final CachedContentIndex index;
+  /** Files which have been started but not committed. */
+  private final HashSet<File> startedFiles;
+
+  private @Nullable DataOutputStream output;
+  private int recordCount;
+  private int spanCount;
+  private boolean invalidated;
+
+  /**
+   * @param cacheDir Directory where the journal file is kept.
+   * @param index The index assigning the ids of the journaled spans.
+   */
+  public CachedSpanJournal(File cacheDir, CachedContentIndex index) {
+    this.cacheDir = cacheDir;
+    this.index = index;
+    file = new File(cacheDir, FILE_NAME);
+    atomicFile = new AtomicFile(file);
+    startedFiles = new HashSet<>();
+  }
+
+  /**
+   * Replays the journal. Must be called after the index has been loaded.
+   *
+   * <p>Files which were started but not committed before the journal was last written are treated
+   * as a directory scan would treat them: they are restored if they hold data, and deleted if not.
+   *
+   * @return The spans, or null if the journal is missing, unusable or does not match the index, in
+   *     which case the cache directory needs to be scanned.
+   */
+  public @Nullable Collection<SimpleCacheSpan> load() {
+    HashMap<File, SimpleCacheSpan> spans = new HashMap<>();
+    if (!readFile(spans)) {
+      startedFiles.clear();
+      return null;
+    }
+    for (File startedFile : startedFiles) {
+      SimpleCacheSpan span =
+          startedFile.length() > 0 ? SimpleCacheSpan.createCacheEntry(startedFile, index) : null;
+      if (span != null) {
+        spans.put(startedFile, span);
+      } else {
+        startedFile.delete();
+      }
+    }
+    startedFiles.clear();
+    spanCount = spans.size();
+    return spans.values();
+  }
+
+  /**
+   * Records that a cache file has been started. Call before the file is written to.
+   *
+   * @param id The id of the span's content.
+   * @param file The file.
+   * @param position The position of the span.
+   * @param lastAccessTimestamp The last access timestamp of the span.
+   */
+  public void onFileStarted(int id, File file, long position, long lastAccessTimestamp) {
+    startedFiles.add(file);
+    append(RECORD_START, id, position, lastAccessTimestamp, /* value= */ 0);
+  }
+
+  /**
+   * Records that a span has been committed.
+   *
+   * @param id The id of the span's content.
+   * @param span The span.
+   */
+  public void onSpanAdded(int id, CacheSpan span) {
+    startedFiles.remove(span.file);
+    spanCount++;
+    append(RECORD_ADD, id, span.position, span.lastAccessTimestamp, span.length);
+  }
+
+  /**
+   * Records that a span has been removed.
+   *
+   * @param id The id of the span's content.
+   * @param span The span.
+   */
+  public void onSpanRemoved(int id, CacheSpan span) {
+    spanCount--;
+    append(RECORD_REMOVE, id, span.position, span.lastAccessTimestamp, /* value= */ 0);
+  }
+
+  /**
+   * Records that a span's file has been renamed to update its last access timestamp.
+   *
+   * @param id The id of the span's content.
+   * @param oldSpan The span before it was touched.
+   * @param newSpan The span after it was touched.
+   */
+  public void onSpanTouched(int id, CacheSpan oldSpan, CacheSpan newSpan) {
+    append(RECORD_TOUCH, id, oldSpan.position, oldSpan.lastAccessTimestamp,
+        newSpan.lastAccessTimestamp);
+  }
+
+  /**
+   * Discards the journal, so that the cache directory is scanned when the cache is next
+   * initialized. Nothing more is journaled until then. Call when the cache files are found to
+   * differ from the in-memory representation.
+   */
+  public void invalidate() {
+    invalidated = true;
+    closeOutput();
+    atomicFile.delete();
+  }
+
+  /** Rewrites the snapshot if the records outnumber the spans. */
+  public void maybeCompact() {
+    if (recordCount > MIN_COMPACTION_RECORD_COUNT && recordCount > 2 * spanCount) {
+      store();
+    }
+  }
+
+  /**
+   * Writes a snapshot of the spans in the index and the started files, replacing all previous
+   * records. If writing fails, the journal is invalidated.
+   */
+  public void store() {
+    if (invalidated) {
+      return;
+    }
+    closeOutput();
+    for (Iterator<File> iterator = startedFiles.iterator(); iterator.hasNext(); ) {
+      if (!iterator.next().exists()) {
+        // The write was abandoned.
+        iterator.remove();
+      }
+    }
+    spanCount = 0;
+    for (CachedContent cachedContent : index.getAll()) {
+      spanCount += cachedContent.getSpans().size();
+    }
+    if (spanCount == 0 && startedFiles.isEmpty()) {
+      atomicFile.delete();
+      recordCount = 0;
+      return;
+    }
+    DataOutputStream snapshotOutput = null;
+    try {
+      snapshotOutput = new DataOutputStream(new BufferedOutputStream(atomicFile.startWrite()));
+      snapshotOutput.writeInt(VERSION);
+      recordCount = 0;
+      for (CachedContent cachedContent : index.getAll()) {
+        for (SimpleCacheSpan span : cachedContent.getSpans()) {
+          writeRecord(snapshotOutput, RECORD_ADD, cachedContent.id, span.position,
+              span.lastAccessTimestamp, span.length);
+        }
+      }
+      for (File startedFile : startedFiles) {
+        SimpleCacheSpan span = SimpleCacheSpan.createCacheEntry(startedFile, index);
+        if (span != null) {
+          writeRecord(snapshotOutput, RECORD_START, index.assignIdForKey(span.key), span.position,
+              span.lastAccessTimestamp, /* value= */ 0);
+        }
+      }
+      atomicFile.endWrite(snapshotOutput);
+      snapshotOutput = null;
+    } catch (IOException e) {
+      Log.e(TAG, "Writing journal file failed", e);
+      invalidate();
+    } finally {
+      Util.closeQuietly(snapshotOutput);
+    }
+  }
+
+  /** Closes the journal file. Records appended afterwards reopen it. */
+  public void release() {
+    closeOutput();
+  }
+
+  private boolean readFile(HashMap<File, SimpleCacheSpan> spans) {
+    if (!file.exists()) {
+      return false;
+    }
+    DataInputStream input = null;
+    try {
+      input = new DataInputStream(new BufferedInputStream(atomicFile.openRead()));
+      if (input.readInt() != VERSION) {
+        return false;
+      }
+      recordCount = 0;
+      int type;
+      while ((type = input.read()) != -1) {
+        int id = input.readInt();
+        long position = input.readLong();
+        long lastAccessTimestamp = input.readLong();
+        long value = type == RECORD_START ? 0 : input.readLong();
+        String key = index.getKeyForId(id);
+        if (key == null) {
+          // The index doesn't know the content.
+          return false;
+        }
+        File spanFile = SimpleCacheSpan.getCacheFile(cacheDir, id, position, lastAccessTimestamp);
+        switch (type) {
+          case RECORD_START:
+            startedFiles.add(spanFile);
+            break;
+          case RECORD_ADD:
+            startedFiles.remove(spanFile);
+            spans.put(spanFile, SimpleCacheSpan.createCacheEntry(
+                spanFile, key, position, /* length= */ value, lastAccessTimestamp));
+            break;
+          case RECORD_REMOVE:
+            if (spans.remove(spanFile) == null) {
+              return false;
+            }
+            break;
+          case RECORD_TOUCH:
+            SimpleCacheSpan span = spans.remove(spanFile);
+            if (span == null) {
+              return false;
+            }
+            File newSpanFile = SimpleCacheSpan.getCacheFile(cacheDir, id, position, value);
+            spans.put(newSpanFile, SimpleCacheSpan.createCacheEntry(
+                newSpanFile, key, position, span.length, /* lastAccessTimestamp= */ value));
+            break;
+          default:
+            return false;
+        }
+        recordCount++;
+      }
+    } catch (EOFException e) {
+      // The last record is incomplete.
+      return false;
+    } catch (IOException e) {
+      Log.w(TAG, "Reading journal file failed", e);
+      return false;
+    } finally {
+      Util.closeQuietly(input);
+    }
+    return true;
+  }
+
+  private void append(int type, int id, long position, long lastAccessTimestamp, long value) {
+    if (invalidated) {
+      return;
+    }
+    try {
+      if (output == null) {
+        boolean isNewFile = !file.exists() || file.length() == 0;
+        output = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file, /* append= */ true)));
+        if (isNewFile) {
+          output.writeInt(VERSION);
+        }
+      }
+      writeRecord(output, type, id, position, lastAccessTimestamp, value);
+      output.flush();
+    } catch (FileNotFoundException e) {
+      // The cache directory has been deleted, which SimpleCache handles separately.
+      invalidate();
+    } catch (IOException e) {
+      Log.e(TAG, "Appending to journal file failed", e);
+      invalidate();
+    }
+  }
+
+  private void writeRecord(DataOutputStream output, int type, int id, long position,
+      long lastAccessTimestamp, long value) throws IOException {
+    output.writeByte(type);
+    output.writeInt(id);
+    output.writeLong(position);
+    output.writeLong(lastAccessTimestamp);
+    if (type != RECORD_START) {
+      output.writeLong(value);
+    }
+    recordCount++;
+  }
+
+  private void closeOutput() {
+    Util.closeQuietly(output);
+    output = null;
+  }
+
+}
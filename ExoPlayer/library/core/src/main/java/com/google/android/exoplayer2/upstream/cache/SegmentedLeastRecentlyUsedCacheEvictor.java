@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import android.support.annotation.Nullable;
+import com.google.android.exoplayer2.upstream.cache.Cache.CacheException;
+import com.google.android.exoplayer2.util.Assertions;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Evicts cache files using a segmented least recently used policy.
+ *
+ * <p>Spans enter a probationary segment when they're added, and are promoted to a protected
+ * segment when they're read from the cache. When the protected segment exceeds its share of the
+ * cache, its least recently used spans are demoted back to the probationary segment. Spans are
+ * evicted from the probationary segment first, so data that's written once and never read again,
+ * such as a large one-off download, can't flush data that's read repeatedly.
+ *
+ * <p>Spans larger than the probationary segment are admitted as the first candidates for eviction,
+ * rather than as the most recently used probationary spans.
+ *
+ * <p>Spans restored when the cache is initialized are reported in no particular order, so nothing
+ * is evicted while they're added. Once they've been ordered by their last access timestamps in
+ * {@link #onCacheInitialized()}, a cache restored over its maximum size is trimmed, least recently
+ * used first.
+ */
+public final class SegmentedLeastRecentlyUsedCacheEvictor implements CacheEvictor {
+
+  /** The default fraction of the cache reserved for spans that have been read from the cache. */
+  public static final float DEFAULT_PROTECTED_FRACTION = 0.8f;
+
+  private final long maxBytes;
+  private final long maxProtectedBytes;
+  private final long maxAdmittedSpanLength;
+  private final HashMap<File, Node> nodes;
+  private final Segment probationSegment;
+  private final Segment protectedSegment;
+
+  private boolean initialized;
+  private @Nullable Cache restoringCache;
+  private volatile long hitCount;
+  private volatile long missCount;
+  private volatile long evictionCount;
+
+  /**
+   * Creates an evictor that reserves {@link #DEFAULT_PROTECTED_FRACTION} of the cache for spans
+   * that have been read from the cache.
+   *
+   * @param maxBytes The maximum size of the cache in bytes.
+   */
+  public SegmentedLeastRecentlyUsedCacheEvictor(long maxBytes) {
+    this(maxBytes, DEFAULT_PROTECTED_FRACTION);
+  }
+
+  /**
+   * @param maxBytes The maximum size of the cache in bytes.
+   * @param protectedFraction The fraction of the cache reserved for spans that have been read from
+   *     the cache. Must be greater than or equal to 0 and less than 1.
+   */
+  public SegmentedLeastRecentlyUsedCacheEvictor(long maxBytes, float protectedFraction) {
+    Assertions.checkArgument(protectedFraction >= 0 && protectedFraction < 1);
+    this.maxBytes = maxBytes;
+    maxProtectedBytes = (long) (maxBytes * protectedFraction);
+    maxAdmittedSpanLength = maxBytes - maxProtectedBytes;
+    nodes = new HashMap<>();
+    probationSegment = new Segment();
+    protectedSegment = new Segment();
+  }
+
+  /** Returns the number of times a span has been read from the cache. */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /** Returns the number of times a cache file has been started for data that wasn't cached. */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /** Returns the number of spans that have been evicted. */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public void onCacheInitialized() {
+    // Spans are restored in no particular order, so order them by their last access timestamps.
+    ArrayList<Node> restoredNodes = new ArrayList<>(nodes.values());
+    Collections.sort(restoredNodes, new Comparator<Node>() {
+      @Override
+      public int compare(Node lhs, Node rhs) {
+        long lastAccessTimestampDelta = lhs.span.lastAccessTimestamp - rhs.span.lastAccessTimestamp;
+        if (lastAccessTimestampDelta == 0) {
+          return lhs.span.compareTo(rhs.span);
+        }
+        return lastAccessTimestampDelta < 0 ? -1 : 1;
+      }
+    });
+    for (int i = 0; i < restoredNodes.size(); i++) {
+      Node node = restoredNodes.get(i);
+      probationSegment.remove(node);
+      admit(node);
+    }
+    initialized = true;
+    if (restoringCache != null) {
+      // The cache calls this method on the thread that restored the spans, holding its lock.
+      evictCache(restoringCache, 0);
+      restoringCache = null;
+    }
+  }
+
+  @Override
+  public void onStartFile(Cache cache, String key, long position, long maxLength) {
+    missCount++;
+    evictCache(cache, maxLength);
+  }
+
+  @Override
+  public void onSpanAdded(Cache cache, CacheSpan span) {
+    Node node = new Node(span);
+    nodes.put(span.file, node);
+    admit(node);
+    evictCache(cache, 0);
+  }
+
+  @Override
+  public void onSpanRemoved(Cache cache, CacheSpan span) {
+    Node node = nodes.remove(span.file);
+    if (node != null) {
+      node.segment.remove(node);
+    }
+  }
+
+  @Override
+  public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {
+    Node node = nodes.remove(oldSpan.file);
+    if (node == null) {
+      onSpanAdded(cache, newSpan);
+      return;
+    }
+    hitCount++;
+    node.segment.remove(node);
+    node.span = newSpan;
+    nodes.put(newSpan.file, node);
+    protectedSegment.addMostRecent(node);
+    while (protectedSegment.bytes > maxProtectedBytes) {
+      Node demotedNode = protectedSegment.removeLeastRecent();
+      probationSegment.addMostRecent(demotedNode);
+    }
+  }
+
+  private void admit(Node node) {
+    if (node.span.length > maxAdmittedSpanLength) {
+      probationSegment.addLeastRecent(node);
+    } else {
+      probationSegment.addMostRecent(node);
+    }
+  }
+
+  private void evictCache(Cache cache, long requiredSpace) {
+    if (!initialized) {
+      // Evict once the spans have been ordered.
+      restoringCache = cache;
+      return;
+    }
+    while (probationSegment.bytes + protectedSegment.bytes + requiredSpace > maxBytes) {
+      Node node = probationSegment.leastRecent();
+      if (node == null) {
+        node = protectedSegment.leastRecent();
+        if (node == null) {
+          return;
+        }
+      }
+      try {
+        cache.removeSpan(node.span);
+      } catch (CacheException e) {
+        // do nothing.
+      }
+      if (node.segment != null) {
+        // The cache didn't report the span as removed. Forget it to avoid evicting it again.
+        onSpanRemoved(cache, node.span);
+      }
+      evictionCount++;
+    }
+  }
+
+  private static final class Node {
+
+    public CacheSpan span;
+    public @Nullable Segment segment;
+    public @Nullable Node previous;
+    public @Nullable Node next;
+
+    public Node(CacheSpan span) {
+      this.span = span;
+    }
+
+  }
+
+  /** A list of spans ordered from most to least recently used. */
+  private static final class Segment {
+
+    private final Node head;
+
+    public long bytes;
+
+    public Segment() {
+      // The head is a sentinel whose next node is the most recently used.
+      head = new Node(new CacheSpan("", 0, 0));
+      head.previous = head;
+      head.next = head;
+    }
+
+    public @Nullable Node leastRecent() {
+      return head.previous == head ? null : head.previous;
+    }
+
+    public Node removeLeastRecent() {
+      Node node = head.previous;
+      remove(node);
+      return node;
+    }
+
+    public void addMostRecent(Node node) {
+      insertAfter(head, node);
+    }
+
+    public void addLeastRecent(Node node) {
+      insertAfter(head.previous, node);
+    }
+
+    public void remove(Node node) {
+      node.previous.next = node.next;
+      node.next.previous = node.previous;
+      node.previous = null;
+      node.next = null;
+      node.segment = null;
+      bytes -= node.span.length;
+    }
+
+    private void insertAfter(Node previous, Node node) {
+      node.previous = previous;
+      node.next = previous.next;
+      previous.next.previous = node;
+      previous.next = node;
+      node.segment = this;
+      bytes += node.span.length;
+    }
+
+  }
+
+}
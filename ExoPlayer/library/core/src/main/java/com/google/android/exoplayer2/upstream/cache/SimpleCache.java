@@ -23,6 +23,7 @@ import com.google.android.exoplayer2.util.Assertions;
 import com.google.android.exoplayer2.util.Log;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.NavigableSet;
@@ -32,6 +33,16 @@ import java.util.TreeSet;
 /**
  * A {@link Cache} implementation that maintains an in-memory representation. Note, only one
  * instance of SimpleCache is allowed for a given directory at a given time.
+ *
+ * <p>Changes to the cached spans are recorded in a {@link CachedSpanJournal}, from which the
+ * in-memory representation is restored at startup. The cache directory is only scanned if the
+ * journal is missing or unusable, for example after a crash.
+ *
+ * <p>The in-memory representation is guarded by the instance's monitor, which is only held briefly.
+ * Threads waiting for a write lock wait on the {@link CachedContent} of the key they need, so they
+ * are not woken up by changes to other keys. Touching a span, which renames its file, and storing
+ * the index, are done without holding the monitor. Journal records are still appended while holding
+ * it, so a thread that only needs the monitor briefly may wait for one of them to be flushed.
  */
 public final class SimpleCache implements Cache {
 
@@ -43,10 +54,11 @@ public final class SimpleCache implements Cache {
   private final File cacheDir;
   private final CacheEvictor evictor;
   private final CachedContentIndex index;
+  private final CachedSpanJournal journal;
   private final HashMap<String, ArrayList<Listener>> listeners;
 
-  private long totalSpace;
-  private boolean released;
+  private volatile long totalSpace;
+  private volatile boolean released;
 
   /**
    * Returns whether {@code cacheFolder} is locked by a {@link SimpleCache} instance. To unlock the
@@ -128,6 +140,7 @@ public final class SimpleCache implements Cache {
     this.cacheDir = cacheDir;
     this.evictor = evictor;
     this.index = index;
+    this.journal = new CachedSpanJournal(cacheDir, index);
     this.listeners = new HashMap<>();
 
     // Start cache initialization.
@@ -146,16 +159,24 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized void release() throws CacheException {
-    if (released) {
-      return;
+  public void release() throws CacheException {
+    synchronized (this) {
+      if (released) {
+        return;
+      }
+      released = true;
+      listeners.clear();
+      try {
+        removeStaleSpansAndCachedContents();
+        journal.maybeCompact();
+      } finally {
+        journal.release();
+      }
     }
-    listeners.clear();
     try {
-      removeStaleSpansAndCachedContents();
+      storeIndex();
     } finally {
       unlockFolder(cacheDir);
-      released = true;
     }
   }
 
@@ -202,101 +223,110 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized long getCacheSpace() {
+  public long getCacheSpace() {
     Assertions.checkState(!released);
     return totalSpace;
   }
 
   @Override
-  public synchronized SimpleCacheSpan startReadWrite(String key, long position)
+  public SimpleCacheSpan startReadWrite(String key, long position)
       throws InterruptedException, CacheException {
-    while (true) {
-      SimpleCacheSpan span = startReadWriteNonBlocking(key, position);
-      if (span != null) {
-        return span;
-      } else {
-        // Write case, lock not available. We'll be woken up when a locked span is released (if the
-        // released lock is for the requested key then we'll be able to make progress) or when a
-        // span is added to the cache (if the span is for the requested key and covers the requested
-        // position, then we'll become a read and be able to make progress).
-        wait();
-      }
-    }
+    return Assertions.checkNotNull(startReadWrite(key, position, /* blocking= */ true));
   }
 
   @Override
-  public synchronized @Nullable SimpleCacheSpan startReadWriteNonBlocking(String key, long position)
+  public @Nullable SimpleCacheSpan startReadWriteNonBlocking(String key, long position)
       throws CacheException {
+    try {
+      return startReadWrite(key, position, /* blocking= */ false);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+  }
+
+  /**
+   * Locks the hole in the cache at {@code position} for writing, as {@link
+   * #startReadWriteNonBlocking(String, long)} does, unless {@code position} is cached. Unlike that
+   * method, a cached span is never returned, so it isn't touched.
+   *
+   * @param key The key of the data being requested.
+   * @param position The position of the data being requested.
+   * @return The locked hole {@link CacheSpan}, or null if {@code position} is cached or the key's
+   *     lock is not available.
+   * @throws CacheException If an error is encountered.
+   */
+  /* package */ synchronized @Nullable SimpleCacheSpan startWriteNonBlocking(
+      String key, long position) throws CacheException {
     Assertions.checkState(!released);
     SimpleCacheSpan cacheSpan = getSpan(key, position);
-
-    // Read case.
     if (cacheSpan.isCached) {
-      try {
-        // Obtain a new span with updated last access timestamp.
-        SimpleCacheSpan newCacheSpan = index.get(key).touch(cacheSpan);
-        notifySpanTouched(cacheSpan, newCacheSpan);
-        return newCacheSpan;
-      } catch (CacheException e) {
-        // Ignore. In worst case the cache span is evicted early.
-        // This happens very rarely [Internal: b/38351639]
-        return cacheSpan;
-      }
+      return null;
     }
-
     CachedContent cachedContent = index.getOrAdd(key);
-    if (!cachedContent.isLocked()) {
-      // Write case, lock available.
-      cachedContent.setLocked(true);
-      return cacheSpan;
+    if (cachedContent.isLocked()) {
+      return null;
     }
-
-    // Write case, lock not available.
-    return null;
+    cachedContent.setLocked(true);
+    return cacheSpan;
   }
 
   @Override
-  public synchronized File startFile(String key, long position, long maxLength)
-      throws CacheException {
-    Assertions.checkState(!released);
-    CachedContent cachedContent = index.get(key);
-    Assertions.checkNotNull(cachedContent);
-    Assertions.checkState(cachedContent.isLocked());
-    if (!cacheDir.exists()) {
-      // For some reason the cache directory doesn't exist. Make a best effort to create it.
-      cacheDir.mkdirs();
-      removeStaleSpansAndCachedContents();
+  public File startFile(String key, long position, long maxLength) throws CacheException {
+    File file;
+    synchronized (this) {
+      Assertions.checkState(!released);
+      CachedContent cachedContent = index.get(key);
+      Assertions.checkNotNull(cachedContent);
+      Assertions.checkState(cachedContent.isLocked());
+      if (!cacheDir.exists()) {
+        // For some reason the cache directory doesn't exist. Make a best effort to create it.
+        cacheDir.mkdirs();
+        removeStaleSpansAndCachedContents();
+      }
+      evictor.onStartFile(this, key, position, maxLength);
+      long lastAccessTimestamp = System.currentTimeMillis();
+      file =
+          SimpleCacheSpan.getCacheFile(cacheDir, cachedContent.id, position, lastAccessTimestamp);
+      journal.onFileStarted(cachedContent.id, file, position, lastAccessTimestamp);
     }
-    evictor.onStartFile(this, key, position, maxLength);
-    return SimpleCacheSpan.getCacheFile(
-        cacheDir, cachedContent.id, position, System.currentTimeMillis());
+    // Store the contents removed by the evictor.
+    storeIndex();
+    return file;
   }
 
   @Override
-  public synchronized void commitFile(File file) throws CacheException {
-    Assertions.checkState(!released);
-    SimpleCacheSpan span = SimpleCacheSpan.createCacheEntry(file, index);
-    Assertions.checkState(span != null);
-    CachedContent cachedContent = index.get(span.key);
-    Assertions.checkNotNull(cachedContent);
-    Assertions.checkState(cachedContent.isLocked());
-    // If the file doesn't exist, don't add it to the in-memory representation.
-    if (!file.exists()) {
-      return;
-    }
-    // If the file has length 0, delete it and don't add it to the in-memory representation.
-    if (file.length() == 0) {
-      file.delete();
-      return;
-    }
-    // Check if the span conflicts with the set content length
-    long length = ContentMetadataInternal.getContentLength(cachedContent.getMetadata());
-    if (length != C.LENGTH_UNSET) {
-      Assertions.checkState((span.position + span.length) <= length);
+  public void commitFile(File file) throws CacheException {
+    synchronized (this) {
+      Assertions.checkState(!released);
+      SimpleCacheSpan span = SimpleCacheSpan.createCacheEntry(file, index);
+      Assertions.checkState(span != null);
+      CachedContent cachedContent = index.get(span.key);
+      Assertions.checkNotNull(cachedContent);
+      Assertions.checkState(cachedContent.isLocked());
+      // If the file doesn't exist, don't add it to the in-memory representation.
+      if (!file.exists()) {
+        return;
+      }
+      // If the file has length 0, delete it and don't add it to the in-memory representation.
+      if (file.length() == 0) {
+        file.delete();
+        return;
+      }
+      // Check if the span conflicts with the set content length
+      long length = ContentMetadataInternal.getContentLength(cachedContent.getMetadata());
+      if (length != C.LENGTH_UNSET) {
+        Assertions.checkState((span.position + span.length) <= length);
+      }
+      // Journal the span before adding it, as the evictor may remove it as soon as it's added. If
+      // the index file doesn't know the span's content yet when the journal is next loaded, the
+      // cache directory is scanned instead.
+      journal.onSpanAdded(cachedContent.id, span);
+      addSpan(span);
+      journal.maybeCompact();
+      cachedContent.signalStateChange();
     }
-    addSpan(span);
-    index.store();
-    notifyAll();
+    storeIndex();
   }
 
   @Override
@@ -307,13 +337,16 @@ public final class SimpleCache implements Cache {
     Assertions.checkState(cachedContent.isLocked());
     cachedContent.setLocked(false);
     index.maybeRemove(cachedContent.key);
-    notifyAll();
+    cachedContent.signalStateChange();
   }
 
   @Override
-  public synchronized void removeSpan(CacheSpan span) throws CacheException {
-    Assertions.checkState(!released);
-    removeSpan(span, true);
+  public void removeSpan(CacheSpan span) throws CacheException {
+    synchronized (this) {
+      Assertions.checkState(!released);
+      removeSpan(span, true);
+    }
+    storeIndex();
   }
 
   @Override
@@ -331,7 +364,7 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized void setContentLength(String key, long length) throws CacheException {
+  public void setContentLength(String key, long length) throws CacheException {
     ContentMetadataMutations mutations = new ContentMetadataMutations();
     ContentMetadataInternal.setContentLength(mutations, length);
     applyContentMetadataMutations(key, mutations);
@@ -343,11 +376,13 @@ public final class SimpleCache implements Cache {
   }
 
   @Override
-  public synchronized void applyContentMetadataMutations(
-      String key, ContentMetadataMutations mutations) throws CacheException {
-    Assertions.checkState(!released);
-    index.applyContentMetadataMutations(key, mutations);
-    index.store();
+  public void applyContentMetadataMutations(String key, ContentMetadataMutations mutations)
+      throws CacheException {
+    synchronized (this) {
+      Assertions.checkState(!released);
+      index.applyContentMetadataMutations(key, mutations);
+    }
+    storeIndex();
   }
 
   @Override
@@ -356,6 +391,109 @@ public final class SimpleCache implements Cache {
     return index.getContentMetadata(key);
   }
 
+  /**
+   * Starts a read or a write, as {@link #startReadWrite(String, long)} does.
+   *
+   * @param key The key of the data being requested.
+   * @param position The position of the data being requested.
+   * @param blocking Whether to wait for the key's lock if it's not available. If false, waits only
+   *     for another thread to finish touching a span of the key.
+   * @return The {@link CacheSpan}, or null if {@code blocking} is false and the lock is not
+   *     available.
+   * @throws InterruptedException If the thread was interrupted.
+   * @throws CacheException If an error is encountered.
+   */
+  private @Nullable SimpleCacheSpan startReadWrite(String key, long position, boolean blocking)
+      throws InterruptedException, CacheException {
+    while (true) {
+      SimpleCacheSpan cacheSpan;
+      CachedContent cachedContent;
+      int stateVersion;
+      synchronized (this) {
+        Assertions.checkState(!released);
+        cacheSpan = getSpan(key, position);
+        cachedContent = index.getOrAdd(key);
+        // Read the state version while holding the monitor, so that a state change made after the
+        // span is looked up isn't missed by awaitStateChange.
+        stateVersion = cachedContent.getStateVersion();
+        if (cacheSpan.isCached) {
+          if (!cachedContent.isTouching()) {
+            // Read case. The span is touched below, without holding the monitor.
+            cachedContent.setTouching(true);
+          } else {
+            // Read case, but the span's file may be being renamed by another thread.
+            cacheSpan = null;
+          }
+        } else if (!cachedContent.isLocked()) {
+          // Write case, lock available.
+          cachedContent.setLocked(true);
+          return cacheSpan;
+        } else if (!blocking) {
+          // Write case, lock not available.
+          return null;
+        } else {
+          cacheSpan = null;
+        }
+      }
+      if (cacheSpan != null) {
+        SimpleCacheSpan newCacheSpan = touchSpan(cachedContent, cacheSpan);
+        if (newCacheSpan != null) {
+          return newCacheSpan;
+        }
+        // The span was removed while it was being touched, so look it up again.
+      } else {
+        // We'll be woken up when the key's lock is released (in which case we'll be able to make
+        // progress), when a span is added for the key (if the span covers the requested position,
+        // then we'll become a read and be able to make progress), or when a span of the key has
+        // been touched.
+        cachedContent.awaitStateChange(stateVersion);
+      }
+    }
+  }
+
+  /**
+   * Renames the file of a cached span to update its last access timestamp, and replaces the span in
+   * the in-memory representation. Must be called without holding the monitor, once the content has
+   * been marked as being touched.
+   *
+   * @param cachedContent The content of the span, which is marked as being touched.
+   * @param cacheSpan The span to touch.
+   * @return The touched span, or the span itself if renaming its file failed, or null if the span
+   *     was removed while it was being touched.
+   */
+  private @Nullable SimpleCacheSpan touchSpan(
+      CachedContent cachedContent, SimpleCacheSpan cacheSpan) {
+    SimpleCacheSpan newCacheSpan = cacheSpan.copyWithUpdatedLastAccessTime(cachedContent.id);
+    boolean renamed = cacheSpan.file.renameTo(newCacheSpan.file);
+    synchronized (this) {
+      cachedContent.setTouching(false);
+      cachedContent.signalStateChange();
+      if (!renamed) {
+        if (!cacheSpan.file.exists()) {
+          // The span was removed before its file could be renamed.
+          index.maybeRemove(cachedContent.key);
+          return null;
+        }
+        // Ignore. In worst case the cache span is evicted early.
+        // This happens very rarely [Internal: b/38351639]
+        Log.w(TAG, "Renaming of " + cacheSpan.file + " to " + newCacheSpan.file + " failed.");
+        return cacheSpan;
+      }
+      if (!cachedContent.replaceTouchedSpan(cacheSpan, newCacheSpan)) {
+        // The span was removed while its file was being renamed.
+        newCacheSpan.file.delete();
+        index.maybeRemove(cachedContent.key);
+        return null;
+      }
+      if (!released) {
+        journal.onSpanTouched(cachedContent.id, cacheSpan, newCacheSpan);
+        journal.maybeCompact();
+        notifySpanTouched(cacheSpan, newCacheSpan);
+      }
+      return newCacheSpan;
+    }
+  }
+
   /**
    * Returns the cache {@link SimpleCacheSpan} corresponding to the provided lookup {@link
    * SimpleCacheSpan}.
@@ -369,14 +507,16 @@ public final class SimpleCache implements Cache {
    * @param position The position of the span being requested.
    * @return The corresponding cache {@link SimpleCacheSpan}.
    */
-  private SimpleCacheSpan getSpan(String key, long position) throws CacheException {
+  private SimpleCacheSpan getSpan(String key, long position) {
     CachedContent cachedContent = index.get(key);
     if (cachedContent == null) {
       return SimpleCacheSpan.createOpenHole(key, position);
     }
     while (true) {
       SimpleCacheSpan span = cachedContent.getSpan(position);
-      if (span.isCached && !span.file.exists()) {
+      // If a span is being touched its file may be missing while it's renamed, in which case the
+      // caller waits for the touch to finish and looks the span up again.
+      if (span.isCached && !cachedContent.isTouching() && !span.file.exists()) {
         // The file has been deleted from under us. It's likely that other files will have been
         // deleted too, so scan the whole in-memory representation.
         removeStaleSpansAndCachedContents();
@@ -395,12 +535,39 @@ public final class SimpleCache implements Cache {
 
     index.load();
 
+    Collection<SimpleCacheSpan> journaledSpans = journal.load();
+    if (journaledSpans != null) {
+      for (SimpleCacheSpan span : journaledSpans) {
+        addSpan(span);
+      }
+    } else {
+      scanCacheDir();
+    }
+
+    index.removeEmpty();
+    try {
+      // No other thread can be storing the index yet, so it's stored while holding the monitor,
+      // before the journal snapshot which refers to it.
+      index.store();
+    } catch (CacheException e) {
+      Log.e(TAG, "Storing index file failed", e);
+    }
+    if (journaledSpans == null) {
+      journal.store();
+    } else {
+      journal.maybeCompact();
+    }
+  }
+
+  /** Adds a span for each cache file in the cache directory, and deletes any other files. */
+  private void scanCacheDir() {
     File[] files = cacheDir.listFiles();
     if (files == null) {
       return;
     }
     for (File file : files) {
-      if (file.getName().equals(CachedContentIndex.FILE_NAME)) {
+      String name = file.getName();
+      if (name.equals(CachedContentIndex.FILE_NAME) || name.equals(CachedSpanJournal.FILE_NAME)) {
         continue;
       }
       SimpleCacheSpan span =
@@ -411,13 +578,6 @@ public final class SimpleCache implements Cache {
         file.delete();
       }
     }
-
-    index.removeEmpty();
-    try {
-      index.store();
-    } catch (CacheException e) {
-      Log.e(TAG, "Storing index file failed", e);
-    }
   }
 
   /**
@@ -431,41 +591,60 @@ public final class SimpleCache implements Cache {
     notifySpanAdded(span);
   }
 
-  private void removeSpan(CacheSpan span, boolean removeEmptyCachedContent) throws CacheException {
+  private void removeSpan(CacheSpan span, boolean removeEmptyCachedContent) {
     CachedContent cachedContent = index.get(span.key);
-    if (cachedContent == null || !cachedContent.removeSpan(span)) {
+    // The span may have been touched by another thread, in which case the removed span is the
+    // touched one.
+    SimpleCacheSpan removedSpan = cachedContent != null ? cachedContent.removeSpan(span) : null;
+    if (removedSpan == null) {
       return;
     }
-    totalSpace -= span.length;
-    try {
-      if (removeEmptyCachedContent) {
-        index.maybeRemove(cachedContent.key);
-        index.store();
-      }
-    } finally {
-      notifySpanRemoved(span);
+    journal.onSpanRemoved(cachedContent.id, removedSpan);
+    totalSpace -= removedSpan.length;
+    if (removeEmptyCachedContent) {
+      index.maybeRemove(cachedContent.key);
     }
+    notifySpanRemoved(removedSpan);
   }
 
   /**
    * Scans all of the cached spans in the in-memory representation, removing any for which files no
-   * longer exist.
+   * longer exist. The removals are written to the index file when it's next stored.
    */
-  private void removeStaleSpansAndCachedContents() throws CacheException {
+  private void removeStaleSpansAndCachedContents() {
     ArrayList<CacheSpan> spansToBeRemoved = new ArrayList<>();
     for (CachedContent cachedContent : index.getAll()) {
+      if (cachedContent.isTouching()) {
+        // The file of one of the spans may be missing while it's renamed.
+        continue;
+      }
       for (CacheSpan span : cachedContent.getSpans()) {
         if (!span.file.exists()) {
           spansToBeRemoved.add(span);
         }
       }
     }
+    if (!spansToBeRemoved.isEmpty()) {
+      // Files have been deleted from under us, so the journal can't be trusted to match the cache
+      // directory. Scan it when the cache is next initialized.
+      journal.invalidate();
+    }
     for (int i = 0; i < spansToBeRemoved.size(); i++) {
-      // Remove span but not CachedContent to prevent multiple index.store() calls.
+      // Remove span but not CachedContent, which are removed together below.
       removeSpan(spansToBeRemoved.get(i), false);
     }
     index.removeEmpty();
-    index.store();
+  }
+
+  /**
+   * Writes the changes of the index to the index file without holding the monitor. If the monitor
+   * is held, for example when the evictor removes a span from within another operation, the changes
+   * are left to be stored once that operation releases the monitor.
+   */
+  private void storeIndex() throws CacheException {
+    if (!Thread.holdsLock(this)) {
+      index.store(this);
+    }
   }
 
   private void notifySpanRemoved(CacheSpan span) {
@@ -114,6 +114,21 @@ import java.util.regex.Pattern;
         Long.parseLong(matcher.group(3)), file);
   }
 
+  /**
+   * Creates a cache span from metadata which is already known, without accessing the cache file.
+   *
+   * @param file The cache file.
+   * @param key The cache key.
+   * @param position The position of the {@link CacheSpan} in the original stream.
+   * @param length The length of the {@link CacheSpan}.
+   * @param lastAccessTimestamp The last access timestamp.
+   * @return The span.
+   */
+  public static SimpleCacheSpan createCacheEntry(
+      File file, String key, long position, long length, long lastAccessTimestamp) {
+    return new SimpleCacheSpan(key, position, length, lastAccessTimestamp, file);
+  }
+
   /**
    * Upgrades the cache file if it is created by an earlier version of {@link SimpleCache}.
    *
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.decoder;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.exoplayer2.C;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/** Unit test for {@link SimpleDecoder}. */
+@RunWith(RobolectricTestRunner.class)
+public final class SimpleDecoderTest {
+
+  private static final long TIMEOUT_MS = 5000;
+  private static final int STRESS_INPUT_BUFFER_COUNT = 4;
+  private static final int STRESS_OUTPUT_BUFFER_COUNT = 2;
+  private static final int STRESS_FLUSH_COUNT = 2000;
+  private static final int MAX_INPUTS_BETWEEN_FLUSHES = 64;
+
+  private FakeDecoder decoder;
+
+  @After
+  public void tearDown() {
+    if (decoder != null) {
+      decoder.firstDecodeLatch.countDown();
+      decoder.release();
+    }
+  }
+
+  @Test
+  public void testDecodeWithoutBatchingOutputsOneBufferPerInput() throws Exception {
+    decoder = new FakeDecoder(/* maxBatchSize= */ 1, /* useLockFreeQueues= */ false);
+    queueInputBuffer(/* timeUs= */ 0, /* value= */ 1);
+    queueInputBuffer(/* timeUs= */ 10, /* value= */ 2);
+    decoder.firstDecodeLatch.countDown();
+
+    SimpleOutputBuffer outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(0);
+    assertThat(outputBuffer.batchedInputBufferCount).isEqualTo(0);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {1});
+    outputBuffer.release();
+
+    outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(10);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {2});
+  }
+
+  @Test
+  public void testDecodeWithBatchingAppendsQueuedInputs() throws Exception {
+    decoder = new FakeDecoder(/* maxBatchSize= */ 3, /* useLockFreeQueues= */ false);
+    // The decoder blocks in the first decode call until all input buffers have been queued.
+    queueInputBuffer(/* timeUs= */ 0, /* value= */ 1);
+    queueInputBuffer(/* timeUs= */ 10, /* value= */ 2);
+    queueInputBuffer(/* timeUs= */ 20, /* value= */ 3);
+    queueInputBuffer(/* timeUs= */ 30, /* value= */ 4);
+    decoder.firstDecodeLatch.countDown();
+
+    SimpleOutputBuffer outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(0);
+    assertThat(outputBuffer.batchedInputBufferCount).isEqualTo(2);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {1, 2, 3});
+    outputBuffer.release();
+
+    outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(30);
+    assertThat(outputBuffer.batchedInputBufferCount).isEqualTo(0);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {4});
+  }
+
+  @Test
+  public void testDecodeWithBatchingStopsAtEndOfStream() throws Exception {
+    decoder = new FakeDecoder(/* maxBatchSize= */ 3, /* useLockFreeQueues= */ false);
+    queueInputBuffer(/* timeUs= */ 0, /* value= */ 1);
+    DecoderInputBuffer inputBuffer = dequeueInputBuffer();
+    inputBuffer.setFlags(C.BUFFER_FLAG_END_OF_STREAM);
+    decoder.queueInputBuffer(inputBuffer);
+    decoder.firstDecodeLatch.countDown();
+
+    SimpleOutputBuffer outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.batchedInputBufferCount).isEqualTo(0);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {1});
+    outputBuffer.release();
+
+    assertThat(dequeueOutputBuffer().isEndOfStream()).isTrue();
+  }
+
+  @Test
+  public void testDecodeLockFreeWithBatchingAppendsQueuedInputs() throws Exception {
+    decoder = new FakeDecoder(/* maxBatchSize= */ 3, /* useLockFreeQueues= */ true);
+    queueInputBuffer(/* timeUs= */ 0, /* value= */ 1);
+    queueInputBuffer(/* timeUs= */ 10, /* value= */ 2);
+    queueInputBuffer(/* timeUs= */ 20, /* value= */ 3);
+    queueInputBuffer(/* timeUs= */ 30, /* value= */ 4);
+    decoder.firstDecodeLatch.countDown();
+
+    SimpleOutputBuffer outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(0);
+    assertThat(outputBuffer.batchedInputBufferCount).isEqualTo(2);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {1, 2, 3});
+    outputBuffer.release();
+
+    outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(30);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {4});
+  }
+
+  @Test
+  public void testFlushLockFreeDiscardsInputsQueuedBeforeFlush() throws Exception {
+    decoder = new FakeDecoder(/* maxBatchSize= */ 1, /* useLockFreeQueues= */ true);
+    // The first input is being decoded and the second is still queued when the decoder is flushed.
+    queueInputBuffer(/* timeUs= */ 0, /* value= */ 1);
+    queueInputBuffer(/* timeUs= */ 10, /* value= */ 2);
+    decoder.flush();
+    queueInputBuffer(/* timeUs= */ 20, /* value= */ 3);
+    decoder.firstDecodeLatch.countDown();
+
+    SimpleOutputBuffer outputBuffer = dequeueOutputBuffer();
+    assertThat(outputBuffer.timeUs).isEqualTo(20);
+    assertThat(readBytes(outputBuffer.data)).isEqualTo(new byte[] {3});
+    assertThat(decoder.lastDecodeReset).isTrue();
+  }
+
+  @Test
+  public void testLockFreeStressWithConcurrentFlushes() throws Exception {
+    StressDecoder stressDecoder = new StressDecoder();
+    try {
+      Random random = new Random(/* seed= */ 0);
+      Set<DecoderInputBuffer> inputBuffers = Collections.newSetFromMap(new IdentityHashMap<>());
+      Set<SimpleOutputBuffer> outputBuffers = Collections.newSetFromMap(new IdentityHashMap<>());
+      // Each input holds a sequence number, and its time is the number of flushes before it was
+      // queued. Outputs must come from inputs queued since the last flush, in order and without
+      // gaps.
+      int generation = 0;
+      long nextValue = 0;
+      long expectedValue = 0;
+      int inputsUntilFlush = random.nextInt(MAX_INPUTS_BETWEEN_FLUSHES);
+      int flushCount = 0;
+      long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+      while (flushCount < STRESS_FLUSH_COUNT) {
+        // Fail rather than spin forever if buffers are lost.
+        assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+        DecoderInputBuffer inputBuffer = stressDecoder.dequeueInputBuffer();
+        if (inputBuffer != null) {
+          deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+          inputBuffers.add(inputBuffer);
+          if (inputsUntilFlush-- == 0) {
+            // Flush while holding a dequeued input buffer, or after queueing it.
+            if (random.nextBoolean()) {
+              queueStressInputBuffer(stressDecoder, inputBuffer, nextValue++, generation);
+            }
+            stressDecoder.flush();
+            generation++;
+            flushCount++;
+            expectedValue = nextValue;
+            inputsUntilFlush = random.nextInt(MAX_INPUTS_BETWEEN_FLUSHES);
+          } else {
+            queueStressInputBuffer(stressDecoder, inputBuffer, nextValue++, generation);
+          }
+        }
+        SimpleOutputBuffer outputBuffer;
+        while ((outputBuffer = stressDecoder.dequeueOutputBuffer()) != null) {
+          outputBuffers.add(outputBuffer);
+          assertThat(outputBuffer.timeUs).isEqualTo(generation);
+          while (outputBuffer.data.hasRemaining()) {
+            assertThat(outputBuffer.data.getLong()).isEqualTo(expectedValue++);
+          }
+          outputBuffer.release();
+        }
+      }
+      assertThat(stressDecoder.error).isNull();
+      assertThat(inputBuffers).hasSize(STRESS_INPUT_BUFFER_COUNT);
+      assertThat(outputBuffers.size()).isAtMost(STRESS_OUTPUT_BUFFER_COUNT);
+
+      // No buffer was lost: without releasing output buffers, exactly one input buffer can be
+      // queued per input and output buffer before the decoder runs out of input buffers.
+      stressDecoder.batchInputs = false;
+      deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+      int queuedCount = 0;
+      int dequeuedOutputCount = 0;
+      while (queuedCount < STRESS_INPUT_BUFFER_COUNT + STRESS_OUTPUT_BUFFER_COUNT
+          || dequeuedOutputCount < STRESS_OUTPUT_BUFFER_COUNT) {
+        assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+        DecoderInputBuffer inputBuffer = stressDecoder.dequeueInputBuffer();
+        if (inputBuffer != null) {
+          queueStressInputBuffer(stressDecoder, inputBuffer, nextValue++, generation);
+          queuedCount++;
+        }
+        if (stressDecoder.dequeueOutputBuffer() != null) {
+          dequeuedOutputCount++;
+        }
+      }
+      assertThat(queuedCount).isEqualTo(STRESS_INPUT_BUFFER_COUNT + STRESS_OUTPUT_BUFFER_COUNT);
+      assertThat(stressDecoder.dequeueInputBuffer()).isNull();
+      assertThat(stressDecoder.error).isNull();
+    } finally {
+      stressDecoder.release();
+    }
+  }
+
+  private static void queueStressInputBuffer(
+      StressDecoder stressDecoder, DecoderInputBuffer inputBuffer, long value, int generation)
+      throws Exception {
+    inputBuffer.ensureSpaceForWrite(8);
+    inputBuffer.data.putLong(value);
+    inputBuffer.flip();
+    inputBuffer.timeUs = generation;
+    stressDecoder.queueInputBuffer(inputBuffer);
+  }
+
+  private void queueInputBuffer(long timeUs, int value) throws Exception {
+    DecoderInputBuffer inputBuffer = dequeueInputBuffer();
+    inputBuffer.ensureSpaceForWrite(1);
+    inputBuffer.data.put((byte) value);
+    inputBuffer.flip();
+    inputBuffer.timeUs = timeUs;
+    decoder.queueInputBuffer(inputBuffer);
+  }
+
+  private DecoderInputBuffer dequeueInputBuffer() throws Exception {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    DecoderInputBuffer inputBuffer;
+    while ((inputBuffer = decoder.dequeueInputBuffer()) == null) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+      Thread.sleep(1);
+    }
+    return inputBuffer;
+  }
+
+  private SimpleOutputBuffer dequeueOutputBuffer() throws Exception {
+    long deadlineMs = System.currentTimeMillis() + TIMEOUT_MS;
+    SimpleOutputBuffer outputBuffer;
+    while ((outputBuffer = decoder.dequeueOutputBuffer()) == null) {
+      assertThat(System.currentTimeMillis()).isLessThan(deadlineMs);
+      Thread.sleep(1);
+    }
+    return outputBuffer;
+  }
+
+  private static byte[] readBytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Decodes inputs holding a long into outputs holding the longs of one or more inputs, and checks
+   * that the decoder is reset when, and only when, the flush generation changes.
+   */
+  private static final class StressDecoder
+      extends AppendingSimpleDecoder<DecoderInputBuffer, SimpleOutputBuffer, Exception> {
+
+    private static final int MAX_BATCH_SIZE = 3;
+
+    private volatile boolean batchInputs;
+    private volatile AssertionError error;
+    private long decodedGeneration;
+
+    public StressDecoder() {
+      super(
+          new DecoderInputBuffer[STRESS_INPUT_BUFFER_COUNT],
+          new SimpleOutputBuffer[STRESS_OUTPUT_BUFFER_COUNT],
+          /* useLockFreeQueues= */ true);
+      batchInputs = true;
+    }
+
+    @Override
+    public String getName() {
+      return "StressDecoder";
+    }
+
+    @Override
+    protected DecoderInputBuffer createInputBuffer() {
+      return new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    }
+
+    @Override
+    protected SimpleOutputBuffer createOutputBuffer() {
+      return new SimpleOutputBuffer(this);
+    }
+
+    @Override
+    protected Exception createUnexpectedDecodeException(Throwable error) {
+      return new Exception(error);
+    }
+
+    @Override
+    protected Exception decode(
+        DecoderInputBuffer inputBuffer, SimpleOutputBuffer outputBuffer, boolean reset) {
+      if (reset != (inputBuffer.timeUs != decodedGeneration) && error == null) {
+        error = new AssertionError("Unexpected reset " + reset + " at " + inputBuffer.timeUs);
+      }
+      decodedGeneration = inputBuffer.timeUs;
+      outputBuffer.init(inputBuffer.timeUs, MAX_BATCH_SIZE * 8);
+      outputBuffer.data.putLong(inputBuffer.data.getLong(0));
+      outputBuffer.data.flip();
+      return null;
+    }
+
+    @Override
+    protected boolean canAppendToOutputBuffer(SimpleOutputBuffer outputBuffer) {
+      return batchInputs && outputBuffer.data.limit() < MAX_BATCH_SIZE * 8;
+    }
+
+    @Override
+    protected Exception appendToOutputBuffer(
+        DecoderInputBuffer inputBuffer, SimpleOutputBuffer outputBuffer) {
+      if (inputBuffer.timeUs != decodedGeneration && error == null) {
+        error = new AssertionError("Appended across a flush at " + inputBuffer.timeUs);
+      }
+      ByteBuffer data = outputBuffer.data;
+      data.limit(data.limit() + 8);
+      data.putLong(data.limit() - 8, inputBuffer.data.getLong(0));
+      return null;
+    }
+  }
+
+  private static final class FakeDecoder
+      extends AppendingSimpleDecoder<DecoderInputBuffer, SimpleOutputBuffer, Exception> {
+
+    private final int maxBatchSize;
+    private final CountDownLatch firstDecodeLatch;
+    private volatile boolean lastDecodeReset;
+
+    public FakeDecoder(int maxBatchSize, boolean useLockFreeQueues) {
+      super(new DecoderInputBuffer[4], new SimpleOutputBuffer[2], useLockFreeQueues);
+      this.maxBatchSize = maxBatchSize;
+      firstDecodeLatch = new CountDownLatch(1);
+    }
+
+    @Override
+    public String getName() {
+      return "FakeDecoder";
+    }
+
+    @Override
+    protected DecoderInputBuffer createInputBuffer() {
+      return new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+    }
+
+    @Override
+    protected SimpleOutputBuffer createOutputBuffer() {
+      return new SimpleOutputBuffer(this);
+    }
+
+    @Override
+    protected Exception createUnexpectedDecodeException(Throwable error) {
+      return new Exception(error);
+    }
+
+    @Override
+    protected Exception decode(
+        DecoderInputBuffer inputBuffer, SimpleOutputBuffer outputBuffer, boolean reset) {
+      try {
+        firstDecodeLatch.await();
+      } catch (InterruptedException e) {
+        return e;
+      }
+      lastDecodeReset = reset;
+      outputBuffer.init(inputBuffer.timeUs, maxBatchSize);
+      outputBuffer.data.put(inputBuffer.data.get(0));
+      outputBuffer.data.flip();
+      return null;
+    }
+
+    @Override
+    protected boolean canAppendToOutputBuffer(SimpleOutputBuffer outputBuffer) {
+      return outputBuffer.data.limit() < maxBatchSize;
+    }
+
+    @Override
+    protected Exception appendToOutputBuffer(
+        DecoderInputBuffer inputBuffer, SimpleOutputBuffer outputBuffer) {
+      ByteBuffer data = outputBuffer.data;
+      data.limit(data.limit() + 1);
+      data.put(data.limit() - 1, inputBuffer.data.get(0));
+      return null;
+    }
+  }
+}
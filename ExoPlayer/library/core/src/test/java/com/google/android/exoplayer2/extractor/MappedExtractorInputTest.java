@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.extractor;
+
+import static com.google.android.exoplayer2.C.RESULT_END_OF_INPUT;
+import static com.google.common.truth.Truth.assertThat;
+import static java.util.Arrays.copyOfRange;
+import static org.junit.Assert.fail;
+
+import android.net.Uri;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.TestUtil;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
+import com.google.android.exoplayer2.util.Util;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Test for {@link MappedExtractorInput}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class MappedExtractorInputTest {
+
+  private static final byte[] TEST_DATA = TestUtil.buildTestData(64);
+
+  private File tempFile;
+  private MappedFileDataSource dataSource;
+
+  @Before
+  public void setUp() throws Exception {
+    tempFile = Util.createTempFile(RuntimeEnvironment.application, "ExoPlayerTest");
+    FileOutputStream outputStream = new FileOutputStream(tempFile);
+    outputStream.write(TEST_DATA);
+    outputStream.close();
+    dataSource = new MappedFileDataSource();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    dataSource.close();
+    tempFile.delete();
+  }
+
+  @Test
+  public void testPeekThenRead() throws Exception {
+    MappedExtractorInput input = createInput(/* position= */ 0, C.LENGTH_UNSET);
+    byte[] target = new byte[16];
+
+    input.peekFully(target, 0, 8);
+    input.peekFully(target, 8, 8);
+    assertThat(target).isEqualTo(copyOfRange(TEST_DATA, 0, 16));
+    assertThat(input.getPosition()).isEqualTo(0);
+    assertThat(input.getPeekPosition()).isEqualTo(16);
+
+    input.readFully(target, 0, 4);
+    assertThat(copyOfRange(target, 0, 4)).isEqualTo(copyOfRange(TEST_DATA, 0, 4));
+    // Reading resets the peek position.
+    assertThat(input.getPosition()).isEqualTo(4);
+    assertThat(input.getPeekPosition()).isEqualTo(4);
+  }
+
+  @Test
+  public void testSkipAndAdvancePeekPosition() throws Exception {
+    MappedExtractorInput input = createInput(/* position= */ 0, C.LENGTH_UNSET);
+    byte[] target = new byte[4];
+
+    input.skipFully(10);
+    input.advancePeekPosition(6);
+    input.peekFully(target, 0, 4);
+    assertThat(target).isEqualTo(copyOfRange(TEST_DATA, 16, 20));
+
+    input.resetPeekPosition();
+    input.readFully(target, 0, 4);
+    assertThat(target).isEqualTo(copyOfRange(TEST_DATA, 10, 14));
+  }
+
+  @Test
+  public void testReadWithinDataSpecRange() throws Exception {
+    MappedExtractorInput input = createInput(/* position= */ 20, /* length= */ 10);
+    byte[] target = new byte[10];
+
+    input.readFully(target, 0, 10);
+    assertThat(target).isEqualTo(copyOfRange(TEST_DATA, 20, 30));
+    assertThat(input.getPosition()).isEqualTo(30);
+    assertThat(input.read(target, 0, 1)).isEqualTo(RESULT_END_OF_INPUT);
+  }
+
+  @Test
+  public void testEndOfInput() throws Exception {
+    MappedExtractorInput input = createInput(/* position= */ 60, C.LENGTH_UNSET);
+    byte[] target = new byte[8];
+
+    // Only some of the data is available.
+    try {
+      input.peekFully(target, 0, 8, /* allowEndOfInput= */ true);
+      fail();
+    } catch (EOFException e) {
+      // Expected.
+    }
+    assertThat(input.skipFully(4, /* allowEndOfInput= */ true)).isTrue();
+    // No data is available.
+    assertThat(input.peekFully(target, 0, 1, /* allowEndOfInput= */ true)).isFalse();
+    assertThat(input.readFully(target, 0, 1, /* allowEndOfInput= */ true)).isFalse();
+    try {
+      input.readFully(target, 0, 1);
+      fail();
+    } catch (EOFException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testReadIntoByteBuffer() throws Exception {
+    MappedExtractorInput input = createInput(/* position= */ 8, C.LENGTH_UNSET);
+    ByteBuffer target = ByteBuffer.allocateDirect(16);
+
+    while (target.hasRemaining()) {
+      input.read(target, target.remaining());
+    }
+    byte[] data = new byte[16];
+    target.flip();
+    target.get(data);
+    assertThat(data).isEqualTo(copyOfRange(TEST_DATA, 8, 24));
+    assertThat(input.getPosition()).isEqualTo(24);
+  }
+
+  private MappedExtractorInput createInput(long position, long length) throws Exception {
+    long openedLength = dataSource.open(new DataSpec(Uri.fromFile(tempFile), position, length,
+        /* key= */ null));
+    return new MappedExtractorInput(dataSource, position, position + openedLength);
+  }
+
+}
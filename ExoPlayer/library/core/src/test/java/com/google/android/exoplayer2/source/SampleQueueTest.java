@@ -208,6 +208,21 @@ public final class SampleQueueTest {
     assertAllocationCount(0);
   }
 
+  @Test
+  public void testReadMultiSamplesWithDirectAllocations() {
+    allocator = new DefaultAllocator(false, ALLOCATION_SIZE, 0, /* useDirectBuffers= */ true);
+    sampleQueue = new SampleQueue(allocator);
+    writeTestData();
+    assertAllocationCount(10);
+    assertReadTestData();
+    // Read again, this time into a direct buffer.
+    inputBuffer = new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_DIRECT);
+    sampleQueue.rewind();
+    assertReadTestData();
+    sampleQueue.discardToRead();
+    assertAllocationCount(0);
+  }
+
   @Test
   public void testReadMultiSamplesTwice() {
     writeTestData();
@@ -522,6 +537,27 @@ public final class SampleQueueTest {
     assertThat(sampleQueue.getLargestQueuedTimestampUs()).isEqualTo(LAST_SAMPLE_TIMESTAMP);
   }
 
+  @Test
+  public void testAdvanceToAndDiscardToWithManySamples() {
+    // Enough 20 ms audio samples for the metadata to span several chunks.
+    int sampleCount = 5000;
+    byte[] sampleData = new byte[] {1};
+    for (int i = 0; i < sampleCount; i++) {
+      writeSample(sampleData, i * 20000L, FORMAT_1, C.BUFFER_FLAG_KEY_FRAME);
+    }
+    assertThat(sampleQueue.getLargestQueuedTimestampUs()).isEqualTo((sampleCount - 1) * 20000L);
+
+    int skipCount = sampleQueue.advanceTo(3000 * 20000L + 1, true, false);
+    assertThat(skipCount).isEqualTo(3000);
+    assertReadFormat(false, FORMAT_1);
+    assertReadSample(3000 * 20000L, true, sampleData, 0, 1);
+
+    sampleQueue.discardTo(1200 * 20000L, true, true);
+    assertThat(sampleQueue.getFirstIndex()).isEqualTo(1200);
+    assertThat(sampleQueue.getReadIndex()).isEqualTo(3001);
+    assertThat(sampleQueue.getLargestQueuedTimestampUs()).isEqualTo((sampleCount - 1) * 20000L);
+  }
+
   @Test
   public void testSetSampleOffset() {
     long sampleOffsetUs = 1000;
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+/**
+ * Unit tests for {@link DefaultAllocator}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public final class DefaultAllocatorTest {
+
+  private static final int ALLOCATION_SIZE = 16;
+  private static final int FREE_LIST_COUNT = 4;
+
+  @Test
+  public void testReleasedAllocationIsReused() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    Allocation allocation = allocator.allocate();
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(ALLOCATION_SIZE);
+
+    allocator.release(allocation);
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(0);
+    assertThat(allocator.allocate()).isSameAs(allocation);
+  }
+
+  @Test
+  public void testAllocationReleasedOnOtherThreadIsReused() throws Exception {
+    final DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    final AtomicReference<Allocation> allocation = new AtomicReference<>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        allocation.set(allocator.allocate());
+        allocator.release(new Allocation[] {allocation.get()});
+      }
+    };
+    thread.start();
+    thread.join();
+
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(0);
+    assertThat(allocator.allocate()).isSameAs(allocation.get());
+  }
+
+  @Test
+  public void testTotalBytesAllocatedWithConcurrentThreads() throws Exception {
+    final DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            Allocation[] allocations = new Allocation[] {allocator.allocate(), allocator.allocate()};
+            allocator.release(allocations[0]);
+            allocator.release(new Allocation[] {allocations[1]});
+          }
+          allocator.allocate();
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertThat(allocator.getTotalBytesAllocated()).isEqualTo(threads.length * ALLOCATION_SIZE);
+  }
+
+  @Test
+  public void testAllocationsReleasedOnOtherThreadReturnToAllocatingThreadsFreeList()
+      throws Exception {
+    final DefaultAllocator allocator =
+        new DefaultAllocator(
+            true,
+            ALLOCATION_SIZE,
+            /* initialAllocationCount= */ 0,
+            /* useDirectBuffers= */ false,
+            FREE_LIST_COUNT);
+    final Allocation[] allocations = new Allocation[8];
+    final int[] loaderFreeListIndex = new int[1];
+    // A loader thread allocates and the playback thread releases, as SampleQueue does.
+    for (int cycle = 0; cycle < 3; cycle++) {
+      final Set<Allocation> previousAllocations = new HashSet<>(Arrays.asList(allocations));
+      Thread loaderThread =
+          new Thread() {
+            @Override
+            public void run() {
+              loaderFreeListIndex[0] = allocator.getFreeListIndex();
+              for (int i = 0; i < allocations.length; i++) {
+                allocations[i] = allocator.allocate();
+              }
+            }
+          };
+      loaderThread.start();
+      loaderThread.join();
+      if (cycle > 0) {
+        // The allocations released by the playback thread were reused.
+        assertThat(previousAllocations).containsExactly((Object[]) allocations);
+      }
+      assertThat(getAvailableCount(allocator)).isEqualTo(0);
+
+      allocator.release(allocations[0]);
+      allocator.release(Arrays.copyOfRange(allocations, 1, allocations.length));
+
+      assertThat(allocator.getTotalBytesAllocated()).isEqualTo(0);
+      assertThat(allocator.getAvailableCount(loaderFreeListIndex[0]))
+          .isEqualTo(allocations.length);
+      assertThat(getAvailableCount(allocator)).isEqualTo(allocations.length);
+    }
+  }
+
+  @Test
+  public void testTrimKeepsInitialAllocations() {
+    DefaultAllocator allocator = new DefaultAllocator(true, ALLOCATION_SIZE, 2);
+    Allocation[] allocations = new Allocation[4];
+    for (int i = 0; i < allocations.length; i++) {
+      allocations[i] = allocator.allocate();
+    }
+    allocator.release(allocations);
+
+    allocator.trim();
+
+    Set<Allocation> reusedAllocations = new HashSet<>();
+    for (int i = 0; i < allocations.length; i++) {
+      reusedAllocations.add(allocator.allocate());
+    }
+    int reusedInitialCount = 0;
+    for (Allocation allocation : allocations) {
+      if (reusedAllocations.contains(allocation)) {
+        assertThat(allocation.data.length).isEqualTo(2 * ALLOCATION_SIZE);
+        reusedInitialCount++;
+      }
+    }
+    assertThat(reusedInitialCount).isEqualTo(2);
+  }
+
+  private static int getAvailableCount(DefaultAllocator allocator) {
+    int availableCount = 0;
+    for (int i = 0; i < FREE_LIST_COUNT; i++) {
+      availableCount += allocator.getAvailableCount(i);
+    }
+    return availableCount;
+  }
+}
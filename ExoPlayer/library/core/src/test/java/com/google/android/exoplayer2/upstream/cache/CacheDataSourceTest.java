@@ -20,7 +20,9 @@ import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.fail;
 
 import android.net.Uri;
+import android.os.ConditionVariable;
 import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.testutil.FakeDataSet;
 import com.google.android.exoplayer2.testutil.FakeDataSet.FakeData;
 import com.google.android.exoplayer2.testutil.FakeDataSource;
 import com.google.android.exoplayer2.testutil.TestUtil;
@@ -46,6 +48,7 @@ public final class CacheDataSourceTest {
 
   private static final byte[] TEST_DATA = new byte[] {0, 1, 2, 3, 4, 5, 6, 7, 8, 9};
   private static final int MAX_CACHE_FILE_SIZE = 3;
+  private static final long TIMEOUT_MS = 10000;
   private static final String CACHE_KEY_PREFIX = "myCacheKeyFactoryPrefix";
 
   private Uri testDataUri;
@@ -502,6 +505,71 @@ public final class CacheDataSourceTest {
     cacheDataSource.close();
   }
 
+  @Test
+  public void testReadAheadFillsHolesAfterCachedSpan() throws Exception {
+    byte[] data = TestUtil.buildTestData(1024);
+    FakeDataSet fakeDataSet = new FakeDataSet();
+    fakeDataSet.newDefaultData().appendReadData(data).endData();
+    FakeDataSource.Factory upstreamFactory = new FakeDataSource.Factory();
+    upstreamFactory.setFakeDataSet(fakeDataSet);
+
+    // Cache the first 100 bytes.
+    DataSpec dataSpec = new DataSpec(testDataUri, 0, 100, fixedCacheKey);
+    CacheUtil.cache(
+        dataSpec,
+        cache,
+        upstreamFactory.createDataSource(),
+        /* counters= */ null,
+        /* isCanceled= */ null);
+
+    CacheReadAhead readAhead =
+        new CacheReadAhead(
+            cache,
+            upstreamFactory,
+            /* horizonBytes= */ 500,
+            /* maxConcurrentTasks= */ 1,
+            MAX_CACHE_FILE_SIZE);
+    CacheDataSource cacheDataSource =
+        new CacheDataSource(
+            cache,
+            upstreamFactory.createDataSource(),
+            new FileDataSource(),
+            new CacheDataSink(cache, MAX_CACHE_FILE_SIZE),
+            CacheDataSource.FLAG_BLOCK_ON_CACHE,
+            /* eventListener= */ null,
+            /* cacheKeyFactory= */ null,
+            readAhead);
+
+    ConditionVariable horizonFilled = new ConditionVariable();
+    Cache.Listener listener =
+        new Cache.Listener() {
+          @Override
+          public void onSpanAdded(Cache cache, CacheSpan span) {
+            if (cache.getCachedLength(expectedCacheKey, 0, 1024) >= 600) {
+              horizonFilled.open();
+            }
+          }
+
+          @Override
+          public void onSpanRemoved(Cache cache, CacheSpan span) {}
+
+          @Override
+          public void onSpanTouched(Cache cache, CacheSpan oldSpan, CacheSpan newSpan) {}
+        };
+    cache.addListener(expectedCacheKey, listener);
+
+    // Reading the cached span fills the holes within the horizon after it.
+    cacheDataSource.open(new DataSpec(testDataUri, 0, C.LENGTH_UNSET, fixedCacheKey));
+    byte[] readData = TestUtil.readExactly(cacheDataSource, 50);
+    assertThat(horizonFilled.block(TIMEOUT_MS)).isTrue();
+    cache.removeListener(expectedCacheKey, listener);
+
+    readData = TestUtil.joinByteArrays(readData, TestUtil.readToEnd(cacheDataSource));
+    cacheDataSource.close();
+    readAhead.release();
+    assertThat(readData).isEqualTo(data);
+  }
+
   private void assertCacheAndRead(boolean unboundedRequest, boolean simulateUnknownLength)
       throws IOException {
     // Read all data from upstream and write to cache
@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/** Tests for {@link CachedContentIndex}. */
+@RunWith(RobolectricTestRunner.class)
+public final class CachedContentIndexTest {
+
+  private static final String KEY_1 = "key1";
+  private static final String KEY_2 = "key2";
+  private static final String KEY_3 = "key3";
+
+  private File cacheDir;
+  private File indexFile;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = Util.createTempDirectory(RuntimeEnvironment.application, "ExoPlayerTest");
+    indexFile = new File(cacheDir, CachedContentIndex.FILE_NAME);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Util.recursiveDelete(cacheDir);
+  }
+
+  @Test
+  public void testStoreAppendsChanges() throws Exception {
+    CachedContentIndex index = new CachedContentIndex(cacheDir);
+    index.getOrAdd(KEY_1);
+    index.getOrAdd(KEY_2);
+    index.store();
+    long snapshotLength = indexFile.length();
+
+    setContentLength(index, KEY_1, 10);
+    index.maybeRemove(KEY_2);
+    index.getOrAdd(KEY_3);
+    index.store();
+
+    // The changes are appended to the snapshot.
+    assertThat(indexFile.length()).isGreaterThan(snapshotLength);
+    assertLoadedIndexEquals(index, /* secretKey= */ null);
+  }
+
+  @Test
+  public void testStoreAppendsEncryptedChanges() throws Exception {
+    byte[] key = "Bar12345Bar12345".getBytes(C.UTF8_NAME); // 128 bit key
+    CachedContentIndex index = new CachedContentIndex(cacheDir, key);
+    index.getOrAdd(KEY_1);
+    index.store();
+    setContentLength(index, KEY_1, 10);
+    index.getOrAdd(KEY_2);
+    index.store();
+
+    assertLoadedIndexEquals(index, key);
+  }
+
+  @Test
+  public void testRemovedIdIsNotReusedUntilStored() throws Exception {
+    CachedContentIndex index = new CachedContentIndex(cacheDir);
+    int id = index.assignIdForKey(KEY_1);
+    index.store();
+
+    index.maybeRemove(KEY_1);
+    assertThat(index.assignIdForKey(KEY_2)).isNotEqualTo(id);
+
+    index.maybeRemove(KEY_2);
+    index.store();
+    assertThat(index.assignIdForKey(KEY_3)).isEqualTo(id);
+    index.store();
+    assertLoadedIndexEquals(index, /* secretKey= */ null);
+  }
+
+  @Test
+  public void testLoadIgnoresIncompleteFrame() throws Exception {
+    CachedContentIndex index = new CachedContentIndex(cacheDir);
+    index.getOrAdd(KEY_1);
+    index.store();
+    index.getOrAdd(KEY_2);
+    index.store();
+    index.getOrAdd(KEY_3);
+    index.store();
+
+    // Simulate a crash while the last frame was being appended.
+    RandomAccessFile randomAccessFile = new RandomAccessFile(indexFile, "rw");
+    try {
+      randomAccessFile.setLength(indexFile.length() - 1);
+    } finally {
+      randomAccessFile.close();
+    }
+
+    CachedContentIndex loadedIndex = loadIndex(/* secretKey= */ null);
+    assertThat(loadedIndex.getKeys()).containsExactly(KEY_1, KEY_2);
+    // The index is rewritten when it's next stored, so that changes can be appended again.
+    loadedIndex.store();
+    loadedIndex.getOrAdd(KEY_3);
+    loadedIndex.store();
+    assertLoadedIndexEquals(loadedIndex, /* secretKey= */ null);
+  }
+
+  @Test
+  public void testLoadUpgradesLegacyIndex() throws Exception {
+    CachedContent cachedContent = new CachedContent(/* id= */ 5, KEY_1);
+    ContentMetadataMutations mutations = new ContentMetadataMutations();
+    ContentMetadataInternal.setContentLength(mutations, 10);
+    cachedContent.applyMetadataMutations(mutations);
+    DataOutputStream output = new DataOutputStream(new FileOutputStream(indexFile));
+    try {
+      output.writeInt(/* version= */ 2);
+      output.writeInt(/* flags= */ 0);
+      output.writeInt(/* count= */ 1);
+      cachedContent.writeToStream(output);
+      output.writeInt(cachedContent.headerHashCode(/* version= */ 2));
+    } finally {
+      output.close();
+    }
+
+    CachedContentIndex index = loadIndex(/* secretKey= */ null);
+    assertThat(index.getKeyForId(5)).isEqualTo(KEY_1);
+    assertThat(ContentMetadataInternal.getContentLength(index.getContentMetadata(KEY_1)))
+        .isEqualTo(10);
+
+    // Storing rewrites the index in the current format.
+    index.store();
+    assertLoadedIndexEquals(index, /* secretKey= */ null);
+  }
+
+  private CachedContentIndex loadIndex(byte[] secretKey) {
+    CachedContentIndex index = new CachedContentIndex(cacheDir, secretKey);
+    index.load();
+    return index;
+  }
+
+  private void assertLoadedIndexEquals(CachedContentIndex index, byte[] secretKey) {
+    CachedContentIndex loadedIndex = loadIndex(secretKey);
+    assertThat(loadedIndex.getKeys()).containsExactlyElementsIn(index.getKeys());
+    for (CachedContent cachedContent : index.getAll()) {
+      CachedContent loadedContent = loadedIndex.get(cachedContent.key);
+      assertThat(loadedContent.id).isEqualTo(cachedContent.id);
+      assertThat(loadedContent.getMetadata()).isEqualTo(cachedContent.getMetadata());
+    }
+  }
+
+  private static void setContentLength(CachedContentIndex index, String key, long length) {
+    ContentMetadataMutations mutations = new ContentMetadataMutations();
+    ContentMetadataInternal.setContentLength(mutations, length);
+    index.applyContentMetadataMutations(key, mutations);
+  }
+
+}
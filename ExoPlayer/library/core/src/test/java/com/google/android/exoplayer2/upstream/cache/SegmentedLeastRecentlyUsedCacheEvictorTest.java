@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.android.exoplayer2.upstream.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+/** Unit tests for {@link SegmentedLeastRecentlyUsedCacheEvictor}. */
+@RunWith(RobolectricTestRunner.class)
+public final class SegmentedLeastRecentlyUsedCacheEvictorTest {
+
+  private static final String KEY = "key";
+
+  @Mock private Cache cache;
+
+  private SegmentedLeastRecentlyUsedCacheEvictor evictor;
+  private List<CacheSpan> removedSpans;
+
+  @Before
+  public void setUp() throws Exception {
+    MockitoAnnotations.initMocks(this);
+    evictor = new SegmentedLeastRecentlyUsedCacheEvictor(/* maxBytes= */ 100);
+    removedSpans = new ArrayList<>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        CacheSpan span = (CacheSpan) invocation.getArguments()[0];
+        removedSpans.add(span);
+        evictor.onSpanRemoved(cache, span);
+        return null;
+      }
+    }).when(cache).removeSpan(any(CacheSpan.class));
+  }
+
+  @Test
+  public void testContentBiggerThanMaxSizeDoesNotThrowException() throws Exception {
+    evictor.onCacheInitialized();
+    evictor.onStartFile(cache, KEY, 0, /* maxLength= */ 101);
+  }
+
+  @Test
+  public void testEvictsSpansThatHaveNotBeenReadFirst() throws Exception {
+    evictor.onCacheInitialized();
+    CacheSpan readSpan = createSpan(/* position= */ 0, /* length= */ 10, /* timestamp= */ 1);
+    CacheSpan unreadSpan = createSpan(/* position= */ 10, /* length= */ 10, /* timestamp= */ 2);
+    evictor.onSpanAdded(cache, readSpan);
+    evictor.onSpanAdded(cache, unreadSpan);
+    CacheSpan touchedSpan = createSpan(/* position= */ 0, /* length= */ 10, /* timestamp= */ 3);
+    evictor.onSpanTouched(cache, readSpan, touchedSpan);
+
+    // A sequence of spans that are written once, such as a one-off download.
+    for (int i = 0; i < 10; i++) {
+      evictor.onSpanAdded(cache, createSpan(/* position= */ 20 + i * 10, /* length= */ 10, 4 + i));
+    }
+
+    assertThat(removedSpans).contains(unreadSpan);
+    assertThat(removedSpans).doesNotContain(touchedSpan);
+    assertThat(evictor.getHitCount()).isEqualTo(1);
+    assertThat(evictor.getEvictionCount()).isEqualTo(2);
+  }
+
+  @Test
+  public void testEvictsLargeSpanFirst() throws Exception {
+    evictor.onCacheInitialized();
+    CacheSpan smallSpan = createSpan(/* position= */ 0, /* length= */ 10, /* timestamp= */ 1);
+    CacheSpan largeSpan = createSpan(/* position= */ 10, /* length= */ 50, /* timestamp= */ 2);
+    evictor.onSpanAdded(cache, smallSpan);
+    evictor.onSpanAdded(cache, largeSpan);
+
+    evictor.onStartFile(cache, KEY, /* position= */ 60, /* maxLength= */ 50);
+
+    assertThat(removedSpans).containsExactly(largeSpan);
+    assertThat(evictor.getMissCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void testEvictsRestoredSpansInOrderOfLastAccessWhenInitialized() throws Exception {
+    CacheSpan newerSpan = createSpan(/* position= */ 0, /* length= */ 10, /* timestamp= */ 2);
+    CacheSpan olderSpan = createSpan(/* position= */ 10, /* length= */ 10, /* timestamp= */ 1);
+    evictor.onSpanAdded(cache, newerSpan);
+    evictor.onSpanAdded(cache, olderSpan);
+    for (int i = 0; i < 5; i++) {
+      evictor.onSpanAdded(cache, createSpan(/* position= */ 20 + i * 20, /* length= */ 20, 3 + i));
+    }
+    // Nothing is evicted before the cache is initialized.
+    verify(cache, never()).removeSpan(any(CacheSpan.class));
+
+    evictor.onCacheInitialized();
+
+    // The restored cache is trimmed to its maximum size without waiting for a new file.
+    assertThat(removedSpans).containsExactly(olderSpan, newerSpan).inOrder();
+    assertThat(evictor.getEvictionCount()).isEqualTo(2);
+  }
+
+  private static CacheSpan createSpan(long position, long length, long lastAccessTimestamp) {
+    File file = new File(KEY + "." + position + "." + lastAccessTimestamp);
+    return new CacheSpan(KEY, position, length, lastAccessTimestamp, file);
+  }
+
+}
@@ -19,6 +19,7 @@ import static com.google.android.exoplayer2.C.LENGTH_UNSET;
 import static com.google.android.exoplayer2.util.Util.toByteArray;
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doAnswer;
 
 import com.google.android.exoplayer2.C;
@@ -28,9 +29,11 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.NavigableSet;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -47,6 +50,7 @@ import org.robolectric.RuntimeEnvironment;
 public class SimpleCacheTest {
 
   private static final String KEY_1 = "key1";
+  private static final String KEY_2 = "key2";
 
   private File cacheDir;
 
@@ -152,6 +156,51 @@ public class SimpleCacheTest {
     assertCachedDataReadCorrect(cacheSpan2);
   }
 
+  @Test
+  public void testReloadCacheFromJournal() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    addCache(simpleCache, KEY_1, 0, 15);
+    addCache(simpleCache, KEY_1, 15, 15);
+    addCache(simpleCache, KEY_1, 30, 15);
+    // Touch the first span and remove the second one.
+    simpleCache.startReadWrite(KEY_1, 0);
+    simpleCache.removeSpan(simpleCache.startReadWrite(KEY_1, 15));
+    simpleCache.release();
+    assertThat(new File(cacheDir, CachedSpanJournal.FILE_NAME).exists()).isTrue();
+
+    // Reload cache
+    simpleCache = getSimpleCache();
+
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(30);
+    assertThat(simpleCache.getCachedSpans(KEY_1)).hasSize(2);
+    assertCachedDataReadCorrect(simpleCache.startReadWrite(KEY_1, 0));
+    assertCachedDataReadCorrect(simpleCache.startReadWrite(KEY_1, 30));
+  }
+
+  @Test
+  public void testReloadCacheWithTruncatedJournal() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    addCache(simpleCache, KEY_1, 0, 15);
+    addCache(simpleCache, KEY_1, 15, 15);
+    simpleCache.release();
+
+    // Simulate a crash while a record was being appended.
+    File journalFile = new File(cacheDir, CachedSpanJournal.FILE_NAME);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+    try {
+      randomAccessFile.setLength(journalFile.length() - 1);
+    } finally {
+      randomAccessFile.close();
+    }
+
+    // Reload cache, which has to scan the cache directory.
+    simpleCache = getSimpleCache();
+
+    assertThat(simpleCache.getCacheSpace()).isEqualTo(30);
+    assertCachedDataReadCorrect(simpleCache.startReadWrite(KEY_1, 0));
+    assertCachedDataReadCorrect(simpleCache.startReadWrite(KEY_1, 15));
+  }
+
   @Test
   public void testEncryptedIndex() throws Exception {
     byte[] key = "Bar12345Bar12345".getBytes(C.UTF8_NAME); // 128 bit key
@@ -245,6 +294,59 @@ public class SimpleCacheTest {
     simpleCache.releaseHoleSpan(cacheSpan);
   }
 
+  @Test
+  public void testStartReadWriteWaitsOnlyForLockOfSameKey() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan1 = simpleCache.startReadWrite(KEY_1, 0);
+
+    // The lock of another key is available.
+    CacheSpan holeSpan2 = simpleCache.startReadWriteNonBlocking(KEY_2, 0);
+    assertThat(holeSpan2).isNotNull();
+
+    AtomicReference<CacheSpan> holeSpanReference = new AtomicReference<>();
+    Thread thread =
+        new Thread(
+            () -> {
+              try {
+                holeSpanReference.set(simpleCache.startReadWrite(KEY_1, 0));
+              } catch (InterruptedException | CacheException e) {
+                throw new IllegalStateException(e);
+              }
+            });
+    thread.start();
+
+    // Releasing the lock of another key doesn't unblock the thread.
+    simpleCache.releaseHoleSpan(holeSpan2);
+    thread.join(/* millis= */ 100);
+    assertThat(thread.isAlive()).isTrue();
+
+    simpleCache.releaseHoleSpan(holeSpan1);
+    thread.join();
+    assertThat(holeSpanReference.get().isCached).isFalse();
+    simpleCache.releaseHoleSpan(holeSpanReference.get());
+  }
+
+  @Test
+  public void testStartWriteNonBlockingLocksOnlyHoles() throws Exception {
+    SimpleCache simpleCache = getSimpleCache();
+    CacheSpan holeSpan = simpleCache.startReadWrite(KEY_1, 0);
+    addCache(simpleCache, KEY_1, 0, 15);
+    // The key is locked.
+    assertThat(simpleCache.startWriteNonBlocking(KEY_1, 15)).isNull();
+    simpleCache.releaseHoleSpan(holeSpan);
+
+    // Cached data is neither locked nor touched.
+    CacheSpan cachedSpan = simpleCache.getCachedSpans(KEY_1).first();
+    assertThat(simpleCache.startWriteNonBlocking(KEY_1, 5)).isNull();
+    assertThat(simpleCache.getCachedSpans(KEY_1).first().file).isEqualTo(cachedSpan.file);
+
+    holeSpan = simpleCache.startWriteNonBlocking(KEY_1, 15);
+    assertThat(holeSpan.isCached).isFalse();
+    assertThat(holeSpan.position).isEqualTo(15);
+    assertThat(simpleCache.startReadWriteNonBlocking(KEY_1, 15)).isNull();
+    simpleCache.releaseHoleSpan(holeSpan);
+  }
+
   /* Tests https://github.com/google/ExoPlayer/issues/3260 case. */
   @Test
   public void testExceptionDuringEvictionByLeastRecentlyUsedCacheEvictorNotHang() throws Exception {
@@ -256,13 +358,13 @@ public class SimpleCacheTest {
     CacheSpan cacheSpan = simpleCache.startReadWrite(KEY_1, 0);
     addCache(simpleCache, KEY_1, 0, 15);
 
-    // Make index.store() throw exception from now on.
+    // Make index.store(lock) throw exception from now on.
     doAnswer(
             invocation -> {
               throw new CacheException("SimpleCacheTest");
             })
         .when(index)
-        .store();
+        .store(any());
 
     // Adding more content will make LeastRecentlyUsedCacheEvictor evict previous content.
     try {
@@ -6,20 +6,29 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 
-import com.glee.exoffmpeg.ape.APEDecoderJni;
+import com.glee.exoffmpeg.ape.APEAudioRenderer;
 import com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory;
+import com.google.android.exoplayer2.DefaultRenderersFactory;
 import com.google.android.exoplayer2.ExoPlayerFactory;
+import com.google.android.exoplayer2.Renderer;
 import com.google.android.exoplayer2.SimpleExoPlayer;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.google.android.exoplayer2.audio.AudioRendererEventListener;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.drm.FrameworkMediaCrypto;
 import com.google.android.exoplayer2.ext.ffmpeg.FFmpegTest;
 import com.google.android.exoplayer2.source.ExtractorMediaSource;
-import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
-import com.google.android.exoplayer2.util.Util;
+import com.google.android.exoplayer2.trackselection.DefaultTrackSelector;
+import com.google.android.exoplayer2.upstream.MappedFileDataSourceFactory;
+
+import java.util.ArrayList;
 
 public class MainActivity extends AppCompatActivity {
     private Context context;
@@ -29,13 +38,14 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         context = getApplicationContext();
 //        test();
+//        PcmPipe pipe = new PcmPipe(4, 64 * 1024);
 //        new Thread(() -> {
 //            //在子线程中执行
-//            FFmpegTest.play(
+//            FFmpegTest.decode(
 //                    //音乐文件路径
 //                    Environment.getExternalStorageDirectory().getPath() + "/Music/Kalimba.ape",
-//                    //解码后的数据回调
-//                    pcm -> Log.d("glee", pcm.length + ""));
+//                    //解码后的数据写入管道
+//                    pipe);
 //        }).start();
 //        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(context);
 //        ExtractorMediaSource mediaSource = new ExtractorMediaSource.Factory(new DefaultDataSourceFactory(context,
@@ -47,35 +57,35 @@ public class MainActivity extends AppCompatActivity {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             requestPermissions(new String[]{Manifest.permission.READ_EXTERNAL_STORAGE},1);
         }
-        APEDecoderJni sniff = APEDecoderJni.sniff("/sdcard/Music/Kalimba.ape");
-        Log.d("glee9507", sniff==null?"null":sniff + "");
-        if (sniff != null) {
-            sniff.release();
-        }
-//        APEDecoderJni.sniff();
     }
 
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
         if (requestCode==1) {
-//            APEDecoderJni sniff = APEDecoderJni.sniff("/sdcard/Music/Kalimba.ape");
-//            Log.d("glee9507", sniff==null?"null":sniff + "");
-//            if (sniff != null) {
-//                sniff.release();
-//            }
         }
     }
 
     void test() {
-        //创建ExoPlayer对象
-        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(context);
-        //创建ExtractorMediaSource.Factory
+        //创建ExoPlayer对象，APE 由 APEAudioRenderer 解码
+        SimpleExoPlayer player = ExoPlayerFactory.newSimpleInstance(context,
+                new DefaultRenderersFactory(context) {
+                    @Override
+                    protected void buildAudioRenderers(Context context,
+                                                       @Nullable DrmSessionManager<FrameworkMediaCrypto> drmSessionManager,
+                                                       AudioProcessor[] audioProcessors, Handler eventHandler,
+                                                       AudioRendererEventListener eventListener, int extensionRendererMode,
+                                                       ArrayList<Renderer> out) {
+                        super.buildAudioRenderers(context, drmSessionManager, audioProcessors,
+                                eventHandler, eventListener, extensionRendererMode, out);
+                        out.add(new APEAudioRenderer(eventHandler, eventListener, audioProcessors));
+                    }
+                },
+                new DefaultTrackSelector());
+        //创建ExtractorMediaSource.Factory，本地文件通过内存映射读取
         ExtractorMediaSource.Factory factory = new ExtractorMediaSource.Factory(
-                new DefaultDataSourceFactory(context,
-                        Util.getUserAgent(context, context.getPackageName())
-                )
-                //设置提取器集合工厂
+                new MappedFileDataSourceFactory()
+                //设置提取器集合工厂，文件头不能确定格式时先嗅探 Uri 扩展名对应的格式
         ).setExtractorsFactory(new AudioOnlyExtractorsFactory());
 
         //创建mediaSource
@@ -0,0 +1,112 @@
+package com.glee.exoffmpeg.ape;
+
+import android.os.Handler;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.audio.AudioProcessor;
+import com.google.android.exoplayer2.audio.AudioRendererEventListener;
+import com.google.android.exoplayer2.audio.AudioSink;
+import com.google.android.exoplayer2.audio.DefaultAudioSink;
+import com.google.android.exoplayer2.audio.SimpleDecoderAudioRenderer;
+import com.google.android.exoplayer2.drm.DrmSessionManager;
+import com.google.android.exoplayer2.drm.ExoMediaCrypto;
+import com.google.android.exoplayer2.util.Assertions;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import java.util.Collections;
+
+/**
+ * description 使用纯 Java {@link APEDecoder} 解码并渲染 APE 音频
+ */
+public final class APEAudioRenderer extends SimpleDecoderAudioRenderer {
+
+    /**
+     * The number of input and output buffers. APE frames are large (up to 294912 blocks), so
+     * fewer buffers are used than for packet based codecs.
+     */
+    private static final int NUM_BUFFERS = 4;
+    /**
+     * The default input buffer size.
+     */
+    private static final int DEFAULT_INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private APEDecoder decoder;
+
+    public APEAudioRenderer() {
+        this(/* eventHandler= */ null, /* eventListener= */ null);
+    }
+
+    /**
+     * @param eventHandler    A handler to use when delivering events to {@code eventListener}. May be
+     *                        null if delivery of events is not required.
+     * @param eventListener   A listener of events. May be null if delivery of events is not required.
+     * @param audioProcessors Optional {@link AudioProcessor}s that will process audio before output.
+     */
+    public APEAudioRenderer(@Nullable Handler eventHandler,
+                            @Nullable AudioRendererEventListener eventListener,
+                            AudioProcessor... audioProcessors) {
+        this(eventHandler, eventListener,
+                new DefaultAudioSink(/* audioCapabilities= */ null, audioProcessors));
+    }
+
+    /**
+     * @param eventHandler  A handler to use when delivering events to {@code eventListener}. May be
+     *                      null if delivery of events is not required.
+     * @param eventListener A listener of events. May be null if delivery of events is not required.
+     * @param audioSink     The sink to which audio will be output.
+     */
+    public APEAudioRenderer(@Nullable Handler eventHandler,
+                            @Nullable AudioRendererEventListener eventListener,
+                            AudioSink audioSink) {
+        super(eventHandler, eventListener, /* drmSessionManager= */ null,
+                /* playClearSamplesWithoutKeys= */ false, audioSink);
+    }
+
+    @Override
+    protected int supportsFormatInternal(DrmSessionManager<ExoMediaCrypto> drmSessionManager,
+                                         Format format) {
+        if (!MimeTypes.AUDIO_APE.equalsIgnoreCase(format.sampleMimeType)) {
+            return FORMAT_UNSUPPORTED_TYPE;
+        } else if (!supportsOutputEncoding(format.pcmEncoding)) {
+            return FORMAT_UNSUPPORTED_SUBTYPE;
+        } else if (!supportsFormatDrm(drmSessionManager, format.drmInitData)) {
+            return FORMAT_UNSUPPORTED_DRM;
+        } else {
+            return FORMAT_HANDLED;
+        }
+    }
+
+    @Override
+    public int supportsMixedMimeTypeAdaptation() throws ExoPlaybackException {
+        return ADAPTIVE_NOT_SEAMLESS;
+    }
+
+    @Override
+    protected APEDecoder createDecoder(Format format, ExoMediaCrypto mediaCrypto)
+            throws APEDecoderException {
+        int initialInputBufferSize =
+                format.maxInputSize != Format.NO_VALUE ? format.maxInputSize : DEFAULT_INPUT_BUFFER_SIZE;
+        decoder = new APEDecoder(NUM_BUFFERS, NUM_BUFFERS, initialInputBufferSize, format);
+        return decoder;
+    }
+
+    @Override
+    public Format getOutputFormat() {
+        Assertions.checkNotNull(decoder);
+        return Format.createAudioSampleFormat(
+                /* id= */ null,
+                MimeTypes.AUDIO_RAW,
+                /* codecs= */ null,
+                Format.NO_VALUE,
+                Format.NO_VALUE,
+                decoder.getChannelCount(),
+                decoder.getSampleRate(),
+                decoder.getEncoding(),
+                Collections.emptyList(),
+                /* drmInitData= */ null,
+                /* selectionFlags= */ 0,
+                /* language= */ null);
+    }
+}
@@ -2,23 +2,95 @@ package com.glee.exoffmpeg.ape;
 
 import android.support.annotation.Nullable;
 
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
 import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
-import com.google.android.exoplayer2.decoder.OutputBuffer;
 import com.google.android.exoplayer2.decoder.SimpleDecoder;
 import com.google.android.exoplayer2.decoder.SimpleOutputBuffer;
 
+import java.nio.ByteBuffer;
+import java.util.List;
+
 /**
  * @author liji
  * @date 10/16/2018 5:53 PM
- * description
+ * description APE 解码器，每个输入缓冲区为一个完整的 APE 帧，解码为交错的 PCM。
+ * FFmpeg 库可用时使用 {@link APEDecoderJni}，否则使用纯 Java 实现
  */
 
 
-public class APEDecoder extends SimpleDecoder {
+public final class APEDecoder extends
+        SimpleDecoder<DecoderInputBuffer, SimpleOutputBuffer, APEDecoderException> {
+
+    /**
+     * The size of the codec-specific initialization data: little-endian file version, compression
+     * level and format flags, as FFmpeg expects in its extradata.
+     */
+    public static final int INITIALIZATION_DATA_SIZE = 6;
+
+    private final @Nullable
+    APEDecoderJni nativeDecoder;
+    private final @Nullable
+    APEFrameDecoder frameDecoder;
+    private final int channelCount;
+    private final int sampleRate;
+    private final @C.PcmEncoding
+    int encoding;
+    private final int bytesPerBlock;
+
+    /**
+     * @param numInputBuffers        The number of input buffers.
+     * @param numOutputBuffers       The number of output buffers.
+     * @param initialInputBufferSize The initial size of each input buffer.
+     * @param format                 The {@link com.google.android.exoplayer2.util.MimeTypes#AUDIO_APE}
+     *                               format, whose first initialization data entry holds the
+     *                               {@link #INITIALIZATION_DATA_SIZE} byte codec header.
+     * @throws APEDecoderException If the format is not supported.
+     */
+    public APEDecoder(int numInputBuffers, int numOutputBuffers, int initialInputBufferSize,
+                      Format format) throws APEDecoderException {
+        super(new DecoderInputBuffer[numInputBuffers], new SimpleOutputBuffer[numOutputBuffers],
+                /* useLockFreeQueues= */ true);
+        List<byte[]> initializationData = format.initializationData;
+        if (initializationData.size() != 1
+                || initializationData.get(0).length != INITIALIZATION_DATA_SIZE) {
+            throw new APEDecoderException("Incorrect initialization data");
+        }
+        byte[] header = initializationData.get(0);
+        int fileVersion = (header[0] & 0xFF) | ((header[1] & 0xFF) << 8);
+        int compressionLevel = (header[2] & 0xFF) | ((header[3] & 0xFF) << 8);
+        int bitsPerSample = getBitsPerSample(format.pcmEncoding);
+        if (APEDecoderJni.isAvailable()) {
+            nativeDecoder = new APEDecoderJni(header, format.channelCount, format.sampleRate,
+                    bitsPerSample);
+            frameDecoder = null;
+        } else {
+            nativeDecoder = null;
+            frameDecoder = new APEFrameDecoder(fileVersion, compressionLevel, format.channelCount,
+                    bitsPerSample);
+        }
+        channelCount = format.channelCount;
+        bytesPerBlock = channelCount * (bitsPerSample / 8);
+        sampleRate = format.sampleRate;
+        encoding = format.pcmEncoding;
+        setInitialInputBufferSize(initialInputBufferSize);
+    }
 
-    protected APEDecoder(  int numInputBuffers,
-                           int numOutputBuffers) {
-        super(new DecoderInputBuffer[numInputBuffers], new SimpleOutputBuffer[numOutputBuffers]);
+    /**
+     * Builds the {@link #INITIALIZATION_DATA_SIZE} byte codec header for an APE format.
+     */
+    public static byte[] buildInitializationData(int fileVersion, int compressionLevel,
+                                                 int formatFlags) {
+        return new byte[]{
+                (byte) fileVersion, (byte) (fileVersion >> 8),
+                (byte) compressionLevel, (byte) (compressionLevel >> 8),
+                (byte) formatFlags, (byte) (formatFlags >> 8)
+        };
+    }
+
+    @Override
+    public String getName() {
+        return nativeDecoder != null ? "ffmpeg-ape" : "japedec";
     }
 
     @Override
@@ -32,23 +104,80 @@ public class APEDecoder extends SimpleDecoder {
     }
 
     @Override
-    protected Exception createUnexpectedDecodeException(Throwable error) {
-        return null;
+    protected APEDecoderException createUnexpectedDecodeException(Throwable error) {
+        return new APEDecoderException("Unexpected decode error", error);
     }
 
     @Nullable
     @Override
-    protected Exception decode(DecoderInputBuffer inputBuffer, OutputBuffer outputBuffer, boolean reset) {
+    protected APEDecoderException decode(DecoderInputBuffer inputBuffer,
+                                         SimpleOutputBuffer outputBuffer, boolean reset) {
+        // APE frames are independent, only the native decoder keeps partially decoded packets.
+        if (reset && nativeDecoder != null) {
+            nativeDecoder.flush();
+        }
+        ByteBuffer inputData = inputBuffer.data;
+        int blocks = APEFrameDecoder.peekBlockCount(inputData);
+        if (blocks <= 0 || blocks > Integer.MAX_VALUE / bytesPerBlock) {
+            return new APEDecoderException("Invalid sample count: " + blocks);
+        }
+        int outputSize = blocks * bytesPerBlock;
+        ByteBuffer outputData = outputBuffer.init(inputBuffer.timeUs, outputSize);
+        int result;
+        try {
+            if (nativeDecoder != null) {
+                result = nativeDecoder.decode(inputData, inputData.limit(), outputData, outputSize);
+            } else {
+                result = frameDecoder.decode(inputData, outputData);
+            }
+        } catch (APEDecoderException e) {
+            return e;
+        }
+        outputData.position(0);
+        outputData.limit(result);
         return null;
     }
 
     @Override
-    public String getName() {
-        return null;
+    public void release() {
+        super.release();
+        if (nativeDecoder != null) {
+            nativeDecoder.release();
+        }
     }
 
-    @Override
-    public void queueInputBuffer(Object inputBuffer) throws Exception {
+    /**
+     * Returns the channel count of output audio.
+     */
+    public int getChannelCount() {
+        return channelCount;
+    }
+
+    /**
+     * Returns the sample rate of output audio.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns the encoding of output audio.
+     */
+    public @C.PcmEncoding
+    int getEncoding() {
+        return encoding;
+    }
 
+    private static int getBitsPerSample(@C.PcmEncoding int pcmEncoding) throws APEDecoderException {
+        switch (pcmEncoding) {
+            case C.ENCODING_PCM_8BIT:
+                return 8;
+            case C.ENCODING_PCM_16BIT:
+                return 16;
+            case C.ENCODING_PCM_24BIT:
+                return 24;
+            default:
+                throw new APEDecoderException("Unsupported encoding: " + pcmEncoding);
+        }
     }
 }
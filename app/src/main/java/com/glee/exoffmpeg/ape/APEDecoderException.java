@@ -0,0 +1,17 @@
+package com.glee.exoffmpeg.ape;
+
+import com.google.android.exoplayer2.audio.AudioDecoderException;
+
+/**
+ * description APE 解码异常
+ */
+public final class APEDecoderException extends AudioDecoderException {
+
+    /* package */ APEDecoderException(String message) {
+        super(message);
+    }
+
+    /* package */ APEDecoderException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
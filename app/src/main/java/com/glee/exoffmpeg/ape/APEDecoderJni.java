@@ -1,32 +1,86 @@
 package com.glee.exoffmpeg.ape;
 
-import android.view.Surface;
+import com.google.android.exoplayer2.util.LibraryLoader;
+
+import java.nio.ByteBuffer;
 
 /**
  * @author liji
  * @date 11/1/2018 3:06 PM
- * description
+ * description 基于 FFmpeg 的 APE 帧解码，输入为 {@link APEExtractor} 输出的帧，输入输出均为直接缓冲区
  */
 
 
-public class APEDecoderJni {
-    static {
-        System.loadLibrary("ape_decoder");
+public final class APEDecoderJni {
+
+    private static final LibraryLoader LOADER =
+            new LibraryLoader("avutil", "avcodec", "ape_decoder");
+
+    private long nativeContext;
+
+    /**
+     * Returns whether the native library is available, loading it if necessary.
+     */
+    public static boolean isAvailable() {
+        return LOADER.isAvailable();
     }
 
-    private long pCodec;
-    private long pCodecCtx;
-    private long pFormatCtx;
-    private int streamIndex;
+    /**
+     * @param extraData     The {@link APEDecoder#INITIALIZATION_DATA_SIZE} byte codec header.
+     * @param channelCount  The number of channels.
+     * @param sampleRate    The sample rate.
+     * @param bitsPerSample The number of bits per sample, which is also the output sample size.
+     * @throws APEDecoderException If the library is unavailable or the codec fails to open.
+     */
+    public APEDecoderJni(byte[] extraData, int channelCount, int sampleRate, int bitsPerSample)
+            throws APEDecoderException {
+        if (!isAvailable()) {
+            throw new APEDecoderException("Failed to load decoder native libraries.");
+        }
+        nativeContext = nativeInit(extraData, channelCount, sampleRate, bitsPerSample);
+        if (nativeContext == 0) {
+            throw new APEDecoderException("Initialization failed.");
+        }
+    }
 
-    private APEDecoderJni(long pCodec, long pCodecCtx, long pFormatCtx, int streamIndex) {
-        this.pCodec = pCodec;
-        this.pCodecCtx = pCodecCtx;
-        this.streamIndex = streamIndex;
-        this.pFormatCtx = pFormatCtx;
+    /**
+     * Decodes one packet into interleaved little-endian PCM.
+     *
+     * @param inputData  A direct buffer holding the packet, starting at index 0.
+     * @param inputSize  The size of the packet.
+     * @param outputData A direct buffer to write PCM into, starting at index 0.
+     * @param outputSize The capacity available in {@code outputData}.
+     * @return The number of bytes written.
+     * @throws APEDecoderException If decoding fails.
+     */
+    public int decode(ByteBuffer inputData, int inputSize, ByteBuffer outputData, int outputSize)
+            throws APEDecoderException {
+        int result = nativeDecode(nativeContext, inputData, inputSize, outputData, outputSize);
+        if (result < 0) {
+            throw new APEDecoderException("Error decoding (see logcat). Code: " + result);
+        }
+        return result;
     }
 
-    public static native APEDecoderJni sniff(String filePath);
+    /**
+     * Discards any pending decoder state, for example after a seek.
+     */
+    public void flush() {
+        nativeFlush(nativeContext);
+    }
+
+    public void release() {
+        nativeRelease(nativeContext);
+        nativeContext = 0;
+    }
+
+    private static native long nativeInit(byte[] extraData, int channelCount, int sampleRate,
+                                          int bitsPerSample);
+
+    private static native int nativeDecode(long context, ByteBuffer inputData, int inputSize,
+                                           ByteBuffer outputData, int outputSize);
+
+    private static native void nativeFlush(long context);
 
-    public native void release();
+    private static native void nativeRelease(long context);
 }
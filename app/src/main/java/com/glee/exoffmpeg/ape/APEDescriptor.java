@@ -1,9 +1,9 @@
 package com.glee.exoffmpeg.ape;
 
 
-import com.glee.exoffmpeg.util.ExtractorInputWrapper;
+import com.google.android.exoplayer2.util.ParsableByteArray;
 
-import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * Author: Dmitry Vaguine
@@ -26,20 +26,22 @@ public class APEDescriptor {
 
     public final static int APE_DESCRIPTOR_BYTES = 52;
 
-    public static APEDescriptor read(final ExtractorInputWrapper input) throws IOException, InterruptedException {
-        input.resetPeekPosition();
+    /**
+     * 从 {@code data} 的当前位置解析 {@link #APE_DESCRIPTOR_BYTES} 字节的描述符（小端序）
+     */
+    public static APEDescriptor read(final ParsableByteArray data) {
         APEDescriptor header = new APEDescriptor();
-        header.cID = input.peekString(4, "US-ASCII");
-        header.nVersion = input.peekUnsignedShort();
-        input.advancePeekPosition(2);
-        header.nDescriptorBytes = input.peekUnsignedInt();
-        header.nHeaderBytes = input.peekUnsignedInt();
-        header.nSeekTableBytes = input.peekUnsignedInt();
-        header.nHeaderDataBytes = input.peekUnsignedInt();
-        header.nAPEFrameDataBytes = input.peekUnsignedInt();
-        header.nAPEFrameDataBytesHigh = input.peekUnsignedInt();
-        header.nTerminatingDataBytes = input.peekUnsignedInt();
-        input.peekFully(header.cFileMD5, 0, 16);
+        header.cID = data.readString(4, Charset.forName("US-ASCII"));
+        header.nVersion = data.readLittleEndianUnsignedShort();
+        data.skipBytes(2);
+        header.nDescriptorBytes = data.readLittleEndianUnsignedInt();
+        header.nHeaderBytes = data.readLittleEndianUnsignedInt();
+        header.nSeekTableBytes = data.readLittleEndianUnsignedInt();
+        header.nHeaderDataBytes = data.readLittleEndianUnsignedInt();
+        header.nAPEFrameDataBytes = data.readLittleEndianUnsignedInt();
+        header.nAPEFrameDataBytesHigh = data.readLittleEndianUnsignedInt();
+        header.nTerminatingDataBytes = data.readLittleEndianUnsignedInt();
+        data.readBytes(header.cFileMD5, 0, 16);
         return header;
     }
 
@@ -1,16 +1,25 @@
 package com.glee.exoffmpeg.ape;
 
 import com.glee.exoffmpeg.util.ExtractorInputWrapper;
-import com.google.android.exoplayer2.ExoPlaybackException;
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.ParserException;
 import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
 import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.Id3Peeker;
 import com.google.android.exoplayer2.extractor.PositionHolder;
 import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.metadata.Metadata;
+import com.google.android.exoplayer2.metadata.id3.Id3Decoder;
 import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.ParsableByteArray;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static com.google.android.exoplayer2.C.TRACK_TYPE_AUDIO;
 import static com.google.android.exoplayer2.util.Util.getPcmEncoding;
@@ -18,78 +27,260 @@ import static com.google.android.exoplayer2.util.Util.getPcmEncoding;
 /**
  * @author liji
  * @date 10/16/2018 3:26 PM
- * description APE 提取器
+ * description APE 提取器，按 seek 表输出完整的 APE 帧，每帧前加 FFmpeg 格式的 8 字节包头。
+ * 开头的 ID3v2 标签和末尾的 APE/ID3v1 标签作为格式的元数据输出
  */
 
 
 public class APEExtractor implements Extractor {
     /**
-     * APE读取器
+     * 小于该距离时直接跳过数据，否则重新打开数据源
      */
-    private APEReader apeReader;
+    private static final long RELOAD_MINIMUM_SEEK_DISTANCE = 256 * 1024;
+    private static final int HEADER = APEFrameDecoder.PACKET_HEADER_BYTES;
+
+    private final Id3Peeker id3Peeker = new Id3Peeker();
+    private final APETagDecoder tagDecoder = new APETagDecoder();
     /**
-     * APE解码器
+     * 从各个标签解析出的元数据
      */
-    private APEDecoder decoder;
+    private final List<Metadata.Entry> metadataEntries = new ArrayList<>();
+
     /**
      * APE文件信息
      */
     private APEFileInfo apeFileInfo;
+    /**
+     * 帧索引
+     */
+    private APESeeker seeker;
+    /**
+     * 输出
+     */
+    private ExtractorOutput extractorOutput;
     /**
      * 输出轨道
      */
     private TrackOutput track;
+    /**
+     * 当前帧数据，前 8 字节为包头
+     */
+    private ParsableByteArray sampleData;
+    /**
+     * 当前帧序号
+     */
+    private int currentFrame;
+    /**
+     * 当前帧已读取的字节数
+     */
+    private int frameBytesRead;
+    /**
+     * 上一帧的长度，相邻帧因 4 字节对齐会有重叠，重叠部分从上一帧末尾复制
+     */
+    private int lastFrameSize;
+    /**
+     * 末尾标签尾部的读取位置，长度未知或尚未读完文件头时为 {@link C#POSITION_UNSET}
+     */
+    private long tailPosition = C.POSITION_UNSET;
+    /**
+     * APE 标签条目的读取位置，尚未读完标签尾部时为 {@link C#POSITION_UNSET}
+     */
+    private long tagItemsPosition = C.POSITION_UNSET;
+    /**
+     * APE 数据的结束位置，即文件长度减去末尾的标签
+     */
+    private long audioEndPosition;
 
     @Override
     public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
-        return (apeReader = APEReader.sniff(new ExtractorInputWrapper(input))) != null;
+        id3Peeker.peekId3Data(input, Id3Decoder.NO_FRAMES_PREDICATE);
+        return APEReader.sniff(new ExtractorInputWrapper(input)) != null;
     }
 
     @Override
     public void init(ExtractorOutput output) {
+        extractorOutput = output;
         track = output.track(0, TRACK_TYPE_AUDIO);
-        decoder = new APEDecoder(4096, 4096);
+        output.endTracks();
     }
 
     @Override
     public int read(ExtractorInput input, PositionHolder seekPosition) throws IOException, InterruptedException {
-        readApeInfo();
-        //TODO 解码未实现
-        return 0;
+        if (seeker == null) {
+            int result = readHeaderAndTags(input, seekPosition);
+            if (seeker == null) {
+                return result;
+            }
+        }
+        if (currentFrame >= seeker.getFrameCount()) {
+            return RESULT_END_OF_INPUT;
+        }
+        int frameSize = seeker.getFrameSize(currentFrame);
+        if (frameBytesRead == 0) {
+            long framePosition = seeker.getFramePosition(currentFrame);
+            long position = input.getPosition();
+            long overlap = position - framePosition;
+            if (overlap > 0 && overlap <= lastFrameSize && overlap <= frameSize) {
+                System.arraycopy(sampleData.data, HEADER + lastFrameSize - (int) overlap,
+                        sampleData.data, HEADER, (int) overlap);
+                frameBytesRead = (int) overlap;
+            } else if (overlap < 0 && -overlap < RELOAD_MINIMUM_SEEK_DISTANCE) {
+                input.skipFully((int) -overlap);
+            } else if (overlap != 0) {
+                seekPosition.position = framePosition;
+                return RESULT_SEEK;
+            }
+            lastFrameSize = 0;
+        }
+        if (frameBytesRead < frameSize) {
+            int bytesRead = input.read(sampleData.data, HEADER + frameBytesRead,
+                    frameSize - frameBytesRead);
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                if (currentFrame != seeker.getFrameCount() - 1) {
+                    return RESULT_END_OF_INPUT;
+                }
+                // the final frame may be padded past the end of the file
+                Arrays.fill(sampleData.data, HEADER + frameBytesRead, HEADER + frameSize, (byte) 0);
+                frameBytesRead = frameSize;
+            } else {
+                frameBytesRead += bytesRead;
+            }
+            if (frameBytesRead < frameSize) {
+                return RESULT_CONTINUE;
+            }
+        }
+        outputFrame(frameSize);
+        return RESULT_CONTINUE;
+    }
+
+    private void outputFrame(int frameSize) {
+        byte[] data = sampleData.data;
+        writeIntLittleEndian(data, 0, seeker.getFrameBlocks(currentFrame));
+        writeIntLittleEndian(data, 4, seeker.getFrameSkip(currentFrame));
+        int sampleSize = HEADER + frameSize;
+        sampleData.setPosition(0);
+        track.sampleData(sampleData, sampleSize);
+        track.sampleMetadata(seeker.getFrameTimeUs(currentFrame), C.BUFFER_FLAG_KEY_FRAME,
+                sampleSize, 0, null);
+        lastFrameSize = frameSize;
+        frameBytesRead = 0;
+        currentFrame++;
+    }
+
+    /**
+     * 读取文件头，长度已知时再读取末尾的标签尾部和 APE 标签条目，全部读完后创建帧索引并输出格式
+     */
+    private int readHeaderAndTags(ExtractorInput input, PositionHolder seekPosition)
+            throws IOException, InterruptedException {
+        long inputLength = input.getLength();
+        if (apeFileInfo == null) {
+            if (input.getPosition() != 0) {
+                // 文件头是读取而不是预读的，读取中途出错重试时从文件开头重新读
+                seekPosition.position = 0;
+                return RESULT_SEEK;
+            }
+            readApeInfo(input);
+            if (inputLength == C.LENGTH_UNSET) {
+                // 长度未知的流不读末尾的标签
+                createSeeker(C.LENGTH_UNSET);
+                return RESULT_CONTINUE;
+            }
+            tailPosition = Math.max(input.getPosition(),
+                    inputLength - APETagDecoder.FOOTER_BYTES);
+        }
+        if (tagItemsPosition == C.POSITION_UNSET) {
+            if (input.getPosition() != tailPosition) {
+                seekPosition.position = tailPosition;
+                return RESULT_SEEK;
+            }
+            int tailLength = (int) (inputLength - tailPosition);
+            byte[] tail = new byte[tailLength];
+            input.readFully(tail, 0, tailLength);
+            int tagBytes = tagDecoder.readFooter(tail, tailLength, metadataEntries);
+            audioEndPosition = inputLength;
+            if (tagBytes < inputLength - apeFileInfo.nFirstFrameBytes) {
+                audioEndPosition -= tagBytes;
+            }
+            int itemsStartFromEnd = tagDecoder.getItemsStartFromEnd();
+            if (itemsStartFromEnd == 0
+                    || itemsStartFromEnd > inputLength - apeFileInfo.nFirstFrameBytes) {
+                // 没有 APE 标签，或标签已损坏
+                createSeeker(audioEndPosition);
+                return RESULT_CONTINUE;
+            }
+            tagItemsPosition = inputLength - itemsStartFromEnd;
+        }
+        if (input.getPosition() != tagItemsPosition) {
+            seekPosition.position = tagItemsPosition;
+            return RESULT_SEEK;
+        }
+        tagDecoder.readItems(input, metadataEntries);
+        // 下一次读取时帧读取逻辑会 seek 回第一帧
+        createSeeker(audioEndPosition);
+        return RESULT_CONTINUE;
     }
 
-    private void readApeInfo() throws IOException, InterruptedException {
-        if (apeFileInfo != null) {
-            return;
+    private void readApeInfo(ExtractorInput input) throws IOException, InterruptedException {
+        Metadata id3Metadata = id3Peeker.peekId3Data(input, /* id3FramePredicate= */ null);
+        int id3Bytes = (int) input.getPeekPosition();
+        // 读取器绑定当前的输入，嗅探时的输入在重新加载后已经失效
+        APEReader apeReader = APEReader.sniff(new ExtractorInputWrapper(input));
+        if (apeReader == null) {
+            throw new ParserException("Missing APE descriptor");
+        }
+        input.skipFully(id3Bytes);
+        if (id3Metadata != null) {
+            for (int i = 0; i < id3Metadata.length(); i++) {
+                metadataEntries.add(id3Metadata.get(i));
+            }
         }
         apeFileInfo = apeReader.read();
+    }
+
+    /**
+     * @param audioEndPosition APE 数据的结束位置，即文件长度减去末尾的标签，未知时为
+     *                         {@link C#LENGTH_UNSET}
+     */
+    private void createSeeker(long audioEndPosition) throws ParserException {
+        seeker = APESeeker.create(apeFileInfo, audioEndPosition);
+        sampleData = new ParsableByteArray(HEADER + seeker.getMaxFrameSize());
+        extractorOutput.seekMap(seeker);
         track.format(Format.createAudioSampleFormat(
                 /* id= */ null,
-                MimeTypes.AUDIO_RAW,
+                MimeTypes.AUDIO_APE,
                 /* codecs= */ null,
-                apeFileInfo.nAverageBitrate,
-                Format.NO_VALUE,
+                apeFileInfo.nAverageBitrate * 1000,
+                HEADER + seeker.getMaxFrameSize(),
                 apeFileInfo.nChannels,
                 apeFileInfo.nSampleRate,
                 getPcmEncoding(apeFileInfo.nBitsPerSample),
                 /* encoderDelay= */ 0,
                 /* encoderPadding= */ 0,
-                /* initializationData= */ null,
+                Collections.singletonList(APEDecoder.buildInitializationData(
+                        apeFileInfo.nVersion, apeFileInfo.nCompressionLevel, apeFileInfo.nFormatFlags)),
                 /* drmInitData= */ null,
                 /* selectionFlags= */ 0,
                 /* language= */ null,
-                /* metadata= */ null)
+                metadataEntries.isEmpty() ? null : new Metadata(metadataEntries))
         );
-
     }
 
     @Override
     public void seek(long position, long timeUs) {
-        //TODO
+        // timeUs is the requested time rather than that of the seek point, so map the position
+        currentFrame = seeker == null ? 0 : seeker.getFrameIndex(position);
+        frameBytesRead = 0;
+        lastFrameSize = 0;
     }
 
     @Override
     public void release() {
-        decoder.release();
+    }
+
+    private static void writeIntLittleEndian(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
     }
 }
@@ -26,10 +26,6 @@ public class APEExtractor1 implements Extractor {
      * APE读取器
      */
     private APEReader apeReader;
-    /**
-     * APE解码器
-     */
-    private APEDecoder decoder;
     /**
      * APE文件信息
      */
@@ -47,7 +43,6 @@ public class APEExtractor1 implements Extractor {
     @Override
     public void init(ExtractorOutput output) {
         track = output.track(0, TRACK_TYPE_AUDIO);
-        decoder = new APEDecoder(4096, 4096);
     }
 
     @Override
@@ -89,6 +84,5 @@ public class APEExtractor1 implements Extractor {
 
     @Override
     public void release() {
-        decoder.release();
     }
 }
@@ -18,21 +18,23 @@ public class APEFileInfo {
     public int nBytesPerSample;         // audio bytes per sample
     public int nBlockAlign;             // audio block align (channels * bytes per sample)
     public int nWAVHeaderBytes;         // header bytes of the original WAV
-    public int nWAVDataBytes;           // data bytes of the original WAV
+    public long nWAVDataBytes;          // data bytes of the original WAV
     public int nWAVTerminatingBytes;    // terminating bytes of the original WAV
-    public int nWAVTotalBytes;          // total bytes of the original WAV
-    public int nAPETotalBytes;          // total bytes of the APE file
-    public int nTotalBlocks;            // the total number audio blocks
-    public int nLengthMS;               // the length in milliseconds
+    public long nWAVTotalBytes;         // total bytes of the original WAV
+    public long nAPETotalBytes;         // total bytes of the APE file (C.LENGTH_UNSET if unknown)
+    public long nAPEFrameDataBytes;     // bytes of APE frame data (C.LENGTH_UNSET if unknown, only newer files)
+    public long nTotalBlocks;           // the total number audio blocks
+    public long nLengthMS;              // the length in milliseconds
     public int nAverageBitrate;         // the kbps (i.e. 637 kpbs)
     public int nDecompressedBitrate;    // the kbps of the decompressed audio (i.e. 1440 kpbs for CD audio)
     public int nPeakLevel;				// the peak audio level (-1 if unknown)
 
     public int nJunkHeaderBytes;		// used for ID3v2, etc.
     public int nSeekTableElements;		// the number of elements in the seek table(s)
+    public int nFirstFrameBytes;        // the byte offset of the first frame (after headers and seek tables)
 
-    public int[] spSeekByteTable;      // the seek table (byte)
+    public long[] spSeekByteTable;     // the seek table (byte, unwrapped past 4 GB)
     public byte[] spSeekBitTable;      // the seek table (bits -- legacy)
     public byte[] spWaveHeaderData;		// the pre-audio header data
     public APEDescriptor spAPEDescriptor;		// the descriptor (only with newer files)
-}
\ No newline at end of file
+}
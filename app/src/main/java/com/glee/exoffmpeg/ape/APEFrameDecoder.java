@@ -0,0 +1,1197 @@
+package com.glee.exoffmpeg.ape;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * description 纯 Java 的 Monkey's Audio 帧解码器（熵解码 + 预测器 + NN 滤波器），移植自 FFmpeg apedec.c
+ * <p>
+ * Each input packet holds exactly one APE frame laid out the way FFmpeg's APE demuxer emits it:
+ * a little-endian {@code nblocks} and {@code skip} word followed by the frame data, starting on
+ * the 32-bit boundary preceding the frame. All working memory is owned by the decoder and reused
+ * between frames, so steady-state decoding does not allocate.
+ */
+final class APEFrameDecoder {
+
+    /**
+     * The size of the packet header written in front of the frame data.
+     */
+    public static final int PACKET_HEADER_BYTES = 8;
+
+    private static final int MAX_CHANNELS = 2;
+
+    private static final int FRAMECODE_STEREO_SILENCE = 3;
+    private static final int FRAMECODE_PSEUDO_STEREO = 4;
+
+    private static final int HISTORY_SIZE = 512;
+    private static final int PREDICTOR_ORDER = 8;
+    private static final int PREDICTOR_SIZE = 50;
+
+    private static final int YDELAYA = 18 + PREDICTOR_ORDER * 4;
+    private static final int YDELAYB = 18 + PREDICTOR_ORDER * 3;
+    private static final int XDELAYA = 18 + PREDICTOR_ORDER * 2;
+    private static final int XDELAYB = 18 + PREDICTOR_ORDER;
+
+    private static final int YADAPTCOEFFSA = 18;
+    private static final int XADAPTCOEFFSA = 14;
+    private static final int YADAPTCOEFFSB = 10;
+    private static final int XADAPTCOEFFSB = 5;
+
+    /**
+     * The number of blocks decoded per pass for files whose channels are interleaved (>= 3.93).
+     */
+    private static final int BLOCKS_PER_LOOP = 4608;
+
+    private static final int FILTER_LEVELS = 3;
+    private static final int[][] FILTER_ORDERS = {
+            {0, 0, 0},
+            {16, 0, 0},
+            {64, 0, 0},
+            {32, 256, 0},
+            {16, 256, 1280}
+    };
+    private static final int[][] FILTER_FRACBITS = {
+            {0, 0, 0},
+            {11, 0, 0},
+            {11, 0, 0},
+            {10, 13, 0},
+            {11, 13, 15}
+    };
+
+    // Range coder constants.
+    private static final int CODE_BITS = 32;
+    private static final long TOP_VALUE = 1L << (CODE_BITS - 1);
+    private static final int EXTRA_BITS = (CODE_BITS - 2) % 8 + 1;
+    private static final long BOTTOM_VALUE = TOP_VALUE >> 8;
+    private static final long UINT_MASK = 0xFFFFFFFFL;
+    private static final int MODEL_ELEMENTS = 64;
+    private static final int MAX_RICE_BITS = 25;
+
+    private static final int[] COUNTS_3970 = {
+            0, 14824, 28224, 39348, 47855, 53994, 58171, 60926,
+            62682, 63786, 64463, 64878, 65126, 65276, 65365, 65419,
+            65450, 65469, 65480, 65487, 65491, 65493,
+    };
+    private static final int[] COUNTS_DIFF_3970 = {
+            14824, 13400, 11124, 8507, 6139, 4177, 2755, 1756,
+            1104, 677, 415, 248, 150, 89, 54, 31,
+            19, 11, 7, 4, 2,
+    };
+    private static final int[] COUNTS_3980 = {
+            0, 19578, 36160, 48417, 56323, 60899, 63265, 64435,
+            64971, 65232, 65351, 65416, 65447, 65466, 65476, 65482,
+            65485, 65488, 65490, 65491, 65492, 65493,
+    };
+    private static final int[] COUNTS_DIFF_3980 = {
+            19578, 16582, 12257, 7906, 4576, 2366, 1170, 536,
+            261, 119, 65, 31, 19, 10, 6, 3,
+            3, 2, 1, 1, 1,
+    };
+
+    private static final int[] INITIAL_COEFFS_A_3800 = {64, 115, 64};
+    private static final int[] INITIAL_COEFFS_B_3800 = {740, 0};
+    private static final int[] INITIAL_COEFFS_3930 = {360, 317, -109, 98};
+    private static final int INITIAL_COEFF_FAST_3320 = 375;
+
+    private final int fileVersion;
+    private final int compressionLevel;
+    private final int channels;
+    private final int bitsPerSample;
+    private final int filterSet;
+
+    // Frame data, with each 32-bit word byte-swapped the way the bitstream is consumed.
+    private byte[] data;
+    private int dataEnd;
+    private int ptr;
+    private boolean error;
+
+    // Bit reader (files older than 3.90).
+    private int bitPosition;
+
+    // Range coder.
+    private long rcLow;
+    private long rcRange;
+    private long rcHelp;
+    private int rcBuffer;
+
+    // Rice state; index 0 is Y (first channel), index 1 is X (second channel).
+    private final int[] riceK;
+    private final long[] riceKSum;
+
+    private int frameFlags;
+
+    // Predictor.
+    private final int[] historyBuffer;
+    private int historyPosition;
+    private final int[] lastA;
+    private final int[] filterA;
+    private final int[] filterB;
+    private final int[][] coeffsA;
+    private final int[][] coeffsB;
+    private int samplePosition;
+
+    // Long filters used by files older than 3.93.
+    private final int[] longFilterCoeffs;
+    private final int[] longFilterDelay;
+
+    // NN filters, [level][channel].
+    private final NNFilter[][] filters;
+
+    private final int[][] decoded;
+
+    /**
+     * @param fileVersion      The file version * 1000 (e.g. 3990).
+     * @param compressionLevel One of the {@link CompressionLevel} values.
+     * @param channels         The channel count (1 or 2).
+     * @param bitsPerSample    The bits per sample (8, 16 or 24).
+     * @throws APEDecoderException If the stream parameters are not supported.
+     */
+    public APEFrameDecoder(int fileVersion, int compressionLevel, int channels, int bitsPerSample)
+            throws APEDecoderException {
+        if (channels < 1 || channels > MAX_CHANNELS) {
+            throw new APEDecoderException("Unsupported channel count: " + channels);
+        }
+        if (bitsPerSample != 8 && bitsPerSample != 16 && bitsPerSample != 24) {
+            throw new APEDecoderException("Unsupported bits per sample: " + bitsPerSample);
+        }
+        if (compressionLevel % 1000 != 0 || compressionLevel <= 0
+                || compressionLevel > CompressionLevel.COMPRESSION_LEVEL_INSANE
+                || (fileVersion < 3930 && compressionLevel == CompressionLevel.COMPRESSION_LEVEL_INSANE)) {
+            throw new APEDecoderException("Incorrect compression level: " + compressionLevel);
+        }
+        this.fileVersion = fileVersion;
+        this.compressionLevel = compressionLevel;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        filterSet = compressionLevel / 1000 - 1;
+
+        data = new byte[0];
+        riceK = new int[2];
+        riceKSum = new long[2];
+        historyBuffer = new int[HISTORY_SIZE + PREDICTOR_SIZE];
+        lastA = new int[2];
+        filterA = new int[2];
+        filterB = new int[2];
+        coeffsA = new int[2][4];
+        coeffsB = new int[2][5];
+        longFilterCoeffs = new int[256];
+        longFilterDelay = new int[256];
+        filters = new NNFilter[FILTER_LEVELS][];
+        for (int i = 0; i < FILTER_LEVELS; i++) {
+            int order = FILTER_ORDERS[filterSet][i];
+            if (order == 0) {
+                break;
+            }
+            filters[i] = new NNFilter[]{new NNFilter(order), new NNFilter(order)};
+        }
+        decoded = new int[2][fileVersion >= 3930 ? BLOCKS_PER_LOOP : 0];
+    }
+
+    /**
+     * Returns the number of audio blocks held by the packet, or 0 if it is too short.
+     */
+    public static int peekBlockCount(ByteBuffer packet) {
+        int position = packet.position();
+        if (packet.limit() - position < PACKET_HEADER_BYTES) {
+            return 0;
+        }
+        return (packet.get(position) & 0xFF)
+                | ((packet.get(position + 1) & 0xFF) << 8)
+                | ((packet.get(position + 2) & 0xFF) << 16)
+                | ((packet.get(position + 3) & 0xFF) << 24);
+    }
+
+    /**
+     * Returns the size of the PCM output for {@code blocks} audio blocks.
+     */
+    public int getOutputSize(int blocks) {
+        return blocks * channels * (bitsPerSample / 8);
+    }
+
+    /**
+     * Decodes one packet into interleaved little-endian PCM.
+     *
+     * @param packet The packet, from its position to its limit. The position is not modified.
+     * @param output The buffer to write PCM into, starting at its position. Must have at least
+     *               {@link #getOutputSize(int)} bytes remaining for the packet's block count.
+     * @return The number of bytes written.
+     * @throws APEDecoderException If the packet is malformed.
+     */
+    public int decode(ByteBuffer packet, ByteBuffer output) throws APEDecoderException {
+        int size = packet.limit() - packet.position();
+        if (size < PACKET_HEADER_BYTES) {
+            throw new APEDecoderException("Packet is too small: " + size);
+        }
+        loadPacket(packet, size);
+
+        int blocks = readBigEndianInt();
+        int offset = readBigEndianInt();
+        if (fileVersion >= 3900) {
+            if (offset < 0 || offset > 3) {
+                throw new APEDecoderException("Incorrect offset passed: " + offset);
+            }
+            if (dataEnd - ptr < offset) {
+                throw new APEDecoderException("Packet is too small");
+            }
+            ptr += offset;
+        } else {
+            bitPosition = ptr * 8 + (fileVersion > 3800 ? offset * 8 : offset);
+        }
+        if (blocks <= 0 || blocks > (Integer.MAX_VALUE >> 4)) {
+            throw new APEDecoderException("Invalid sample count: " + blocks);
+        }
+        int outputSize = getOutputSize(blocks);
+        if (output.remaining() < outputSize) {
+            throw new APEDecoderException("Output buffer too small: " + output.remaining()
+                    + " < " + outputSize);
+        }
+
+        initFrameDecoder();
+
+        int outputPosition = output.position();
+        int remaining = blocks;
+        while (remaining > 0) {
+            // Files older than 3.93 do not interleave channels, so the frame is decoded at once.
+            int blocksToDecode = fileVersion < 3930 ? remaining : Math.min(BLOCKS_PER_LOOP, remaining);
+            ensureDecodedCapacity(blocksToDecode);
+            Arrays.fill(decoded[0], 0, blocksToDecode, 0);
+            Arrays.fill(decoded[1], 0, blocksToDecode, 0);
+            error = false;
+            if (channels == 1 || (frameFlags & FRAMECODE_PSEUDO_STEREO) != 0) {
+                unpackMono(blocksToDecode);
+            } else {
+                unpackStereo(blocksToDecode);
+            }
+            if (error) {
+                throw new APEDecoderException("Error decoding frame");
+            }
+            outputPosition = writeSamples(output, outputPosition, blocksToDecode);
+            remaining -= blocksToDecode;
+        }
+        return outputSize;
+    }
+
+    private void loadPacket(ByteBuffer packet, int size) {
+        int alignedSize = size & ~3;
+        // Versions before 3.95 may read two bytes past the end of the frame.
+        int bufferSize = fileVersion < 3950 ? alignedSize + 2 : alignedSize;
+        if (data.length < bufferSize + 4) {
+            data = new byte[bufferSize + 4];
+        }
+        int base = packet.position();
+        for (int i = 0; i < alignedSize; i += 4) {
+            data[i] = packet.get(base + i + 3);
+            data[i + 1] = packet.get(base + i + 2);
+            data[i + 2] = packet.get(base + i + 1);
+            data[i + 3] = packet.get(base + i);
+        }
+        Arrays.fill(data, alignedSize, data.length, (byte) 0);
+        ptr = 0;
+        dataEnd = bufferSize;
+    }
+
+    private int readBigEndianInt() {
+        int value = ((data[ptr] & 0xFF) << 24)
+                | ((data[ptr + 1] & 0xFF) << 16)
+                | ((data[ptr + 2] & 0xFF) << 8)
+                | (data[ptr + 3] & 0xFF);
+        ptr += 4;
+        return value;
+    }
+
+    private void ensureDecodedCapacity(int blocks) {
+        if (decoded[0].length < blocks) {
+            int capacity = (blocks + 7) & ~7;
+            decoded[0] = new int[capacity];
+            decoded[1] = new int[capacity];
+        }
+    }
+
+    private int writeSamples(ByteBuffer output, int position, int count) {
+        int[] decoded0 = decoded[0];
+        int[] decoded1 = decoded[1];
+        for (int i = 0; i < count; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int sample = ch == 0 ? decoded0[i] : decoded1[i];
+                switch (bitsPerSample) {
+                    case 8:
+                        output.put(position++, (byte) (sample + 0x80));
+                        break;
+                    case 16:
+                        output.put(position++, (byte) sample);
+                        output.put(position++, (byte) (sample >> 8));
+                        break;
+                    default:
+                        output.put(position++, (byte) sample);
+                        output.put(position++, (byte) (sample >> 8));
+                        output.put(position++, (byte) (sample >> 16));
+                        break;
+                }
+            }
+        }
+        return position;
+    }
+
+    // Frame set-up.
+
+    private void initFrameDecoder() throws APEDecoderException {
+        initEntropyDecoder();
+        initPredictorDecoder();
+        for (int i = 0; i < FILTER_LEVELS; i++) {
+            if (filters[i] == null) {
+                break;
+            }
+            filters[i][0].init();
+            filters[i][1].init();
+        }
+    }
+
+    private void initEntropyDecoder() throws APEDecoderException {
+        int crc;
+        if (fileVersion >= 3900) {
+            if (dataEnd - ptr < 6) {
+                throw new APEDecoderException("Error reading frame header");
+            }
+            crc = readBigEndianInt();
+        } else {
+            crc = readBits(32);
+        }
+        frameFlags = 0;
+        if (fileVersion > 3820 && (crc & 0x80000000) != 0) {
+            if (fileVersion >= 3900) {
+                if (dataEnd - ptr < 6) {
+                    throw new APEDecoderException("Error reading frame header");
+                }
+                frameFlags = readBigEndianInt();
+            } else {
+                frameFlags = readBits(32);
+            }
+        }
+        for (int i = 0; i < 2; i++) {
+            riceK[i] = 10;
+            riceKSum[i] = (1 << 10) * 16;
+        }
+        if (fileVersion >= 3900) {
+            // The first 8 bits of input are ignored.
+            ptr++;
+            rangeStartDecoding();
+        }
+    }
+
+    private void initPredictorDecoder() {
+        Arrays.fill(historyBuffer, 0, PREDICTOR_SIZE, 0);
+        historyPosition = 0;
+        for (int i = 0; i < 2; i++) {
+            Arrays.fill(coeffsA[i], 0);
+            Arrays.fill(coeffsB[i], 0);
+            if (fileVersion < 3930) {
+                if (compressionLevel == CompressionLevel.COMPRESSION_LEVEL_FAST) {
+                    coeffsA[i][0] = INITIAL_COEFF_FAST_3320;
+                } else {
+                    System.arraycopy(INITIAL_COEFFS_A_3800, 0, coeffsA[i], 0, INITIAL_COEFFS_A_3800.length);
+                }
+                System.arraycopy(INITIAL_COEFFS_B_3800, 0, coeffsB[i], 0, INITIAL_COEFFS_B_3800.length);
+            } else {
+                System.arraycopy(INITIAL_COEFFS_3930, 0, coeffsA[i], 0, INITIAL_COEFFS_3930.length);
+            }
+            filterA[i] = 0;
+            filterB[i] = 0;
+            lastA[i] = 0;
+        }
+        samplePosition = 0;
+    }
+
+    // Bit reader.
+
+    private int readBits(int count) {
+        int value = 0;
+        int limit = dataEnd * 8;
+        while (count > 0) {
+            int bitOffset = bitPosition & 7;
+            int available = 8 - bitOffset;
+            int take = Math.min(available, count);
+            int current = bitPosition < limit ? data[bitPosition >> 3] & 0xFF : 0;
+            value = (value << take) | ((current >>> (available - take)) & ((1 << take) - 1));
+            bitPosition += take;
+            count -= take;
+        }
+        return value;
+    }
+
+    private int readUnary() {
+        int limit = dataEnd * 8;
+        int count = 0;
+        while (bitPosition < limit) {
+            int bit = (data[bitPosition >> 3] >> (7 - (bitPosition & 7))) & 1;
+            bitPosition++;
+            if (bit == 1) {
+                break;
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private int readRiceOok(int k) {
+        int x = readUnary();
+        if (k != 0) {
+            x = (x << k) | readBits(k);
+        }
+        return x;
+    }
+
+    // Range decoder.
+
+    private void rangeStartDecoding() {
+        rcBuffer = ptr < dataEnd ? data[ptr] & 0xFF : 0;
+        ptr++;
+        rcLow = rcBuffer >> (8 - EXTRA_BITS);
+        rcRange = 1L << EXTRA_BITS;
+    }
+
+    private void rangeDecodeNormalize() {
+        while (rcRange <= BOTTOM_VALUE) {
+            rcBuffer <<= 8;
+            if (ptr < dataEnd) {
+                rcBuffer += data[ptr] & 0xFF;
+                ptr++;
+            } else {
+                error = true;
+            }
+            rcLow = ((rcLow << 8) | ((rcBuffer >>> 1) & 0xFF)) & UINT_MASK;
+            rcRange = (rcRange << 8) & UINT_MASK;
+        }
+    }
+
+    private int rangeDecodeCulfreq(int totalFrequency) {
+        rangeDecodeNormalize();
+        rcHelp = rcRange / totalFrequency;
+        return divideLowByHelp();
+    }
+
+    private int rangeDecodeCulshift(int shift) {
+        rangeDecodeNormalize();
+        rcHelp = rcRange >>> shift;
+        return divideLowByHelp();
+    }
+
+    private int divideLowByHelp() {
+        if (rcHelp == 0) {
+            // Only reachable with corrupt input.
+            error = true;
+            rcHelp = 1;
+        }
+        return (int) (rcLow / rcHelp);
+    }
+
+    private void rangeDecodeUpdate(int symbolFrequency, int lowFrequency) {
+        rcLow = (rcLow - rcHelp * (lowFrequency & UINT_MASK)) & UINT_MASK;
+        rcRange = (rcHelp * (symbolFrequency & UINT_MASK)) & UINT_MASK;
+    }
+
+    private int rangeDecodeBits(int n) {
+        int symbol = rangeDecodeCulshift(n);
+        rangeDecodeUpdate(1, symbol);
+        return symbol;
+    }
+
+    private int rangeGetSymbol(int[] counts, int[] countsDiff) {
+        int cf = rangeDecodeCulshift(16);
+        if (cf > 65492) {
+            int symbol = cf - 65535 + 63;
+            rangeDecodeUpdate(1, cf);
+            if (cf > 65535) {
+                error = true;
+            }
+            return symbol;
+        }
+        int symbol = 0;
+        while (counts[symbol + 1] <= cf) {
+            symbol++;
+        }
+        rangeDecodeUpdate(countsDiff[symbol], counts[symbol]);
+        return symbol;
+    }
+
+    // Entropy decoding.
+
+    private void updateRice(int channel, long x) {
+        int k = riceK[channel];
+        long kSum = riceKSum[channel];
+        long limit = k != 0 ? 1L << (k + 4) : 0;
+        kSum = (kSum + (((x + 1) & UINT_MASK) / 2) - ((kSum + 16) >> 5)) & UINT_MASK;
+        if (kSum < limit) {
+            k--;
+        } else if (kSum >= (1L << (k + 5))) {
+            k++;
+        }
+        riceK[channel] = k;
+        riceKSum[channel] = kSum;
+    }
+
+    private static int toSigned(int x) {
+        return ((x >>> 1) ^ ((x & 1) - 1)) + 1;
+    }
+
+    private int decodeValue3860(int channel) throws APEDecoderException {
+        int overflow = readUnary();
+        int k = riceK[channel];
+        if (fileVersion > 3880) {
+            while (overflow >= 16) {
+                overflow -= 16;
+                k += 4;
+            }
+        }
+        int x;
+        if (k == 0) {
+            x = overflow;
+        } else if (k <= MAX_RICE_BITS) {
+            x = (overflow << k) + readBits(k);
+        } else {
+            throw new APEDecoderException("Too many bits: " + k);
+        }
+        long kSum = riceKSum[channel];
+        kSum = (kSum + (x & UINT_MASK) - ((kSum + 8) >> 4)) & UINT_MASK;
+        if (kSum < (k != 0 ? 1L << (k + 4) : 0)) {
+            k--;
+        } else if (kSum >= (1L << (k + 5)) && k < 24) {
+            k++;
+        }
+        riceK[channel] = k;
+        riceKSum[channel] = kSum;
+        return toSigned(x);
+    }
+
+    private int decodeValue3900(int channel) throws APEDecoderException {
+        int overflow = rangeGetSymbol(COUNTS_3970, COUNTS_DIFF_3970);
+        int tmpk;
+        if (overflow == MODEL_ELEMENTS - 1) {
+            tmpk = rangeDecodeBits(5);
+            overflow = 0;
+        } else {
+            tmpk = riceK[channel] < 1 ? 0 : riceK[channel] - 1;
+        }
+        int x;
+        if (tmpk <= 16 || fileVersion < 3910) {
+            if (tmpk > 23) {
+                throw new APEDecoderException("Too many bits: " + tmpk);
+            }
+            x = rangeDecodeBits(tmpk);
+        } else if (tmpk <= 31) {
+            x = rangeDecodeBits(16);
+            x |= rangeDecodeBits(tmpk - 16) << 16;
+        } else {
+            throw new APEDecoderException("Too many bits: " + tmpk);
+        }
+        x += overflow << tmpk;
+        updateRice(channel, x & UINT_MASK);
+        return toSigned(x);
+    }
+
+    private int decodeValue3990(int channel) {
+        int pivot = (int) (riceKSum[channel] >> 5);
+        if (pivot == 0) {
+            pivot = 1;
+        }
+        int overflow = rangeGetSymbol(COUNTS_3980, COUNTS_DIFF_3980);
+        if (overflow == MODEL_ELEMENTS - 1) {
+            overflow = rangeDecodeBits(16) << 16;
+            overflow |= rangeDecodeBits(16);
+        }
+        int base;
+        if (pivot < 0x10000) {
+            base = rangeDecodeCulfreq(pivot);
+            rangeDecodeUpdate(1, base);
+        } else {
+            int baseHi = pivot;
+            int bbits = 0;
+            while ((baseHi & ~0xFFFF) != 0) {
+                baseHi >>= 1;
+                bbits++;
+            }
+            baseHi = rangeDecodeCulfreq(baseHi + 1);
+            rangeDecodeUpdate(1, baseHi);
+            int baseLo = rangeDecodeCulfreq(1 << bbits);
+            rangeDecodeUpdate(1, baseLo);
+            base = (baseHi << bbits) + baseLo;
+        }
+        int x = base + overflow * pivot;
+        updateRice(channel, x & UINT_MASK);
+        return toSigned(x);
+    }
+
+    private void decodeArray0000(int[] out, int channel, int blocks) {
+        if (!decodeRiceArray0000(out, channel, blocks)) {
+            // Matches the reference decoder, which gives up on the frame without converting.
+            return;
+        }
+        for (int i = 0; i < blocks; i++) {
+            out[i] = ((out[i] >> 1) ^ ((out[i] & 1) - 1)) + 1;
+        }
+    }
+
+    private boolean decodeRiceArray0000(int[] out, int channel, int blocks) {
+        int i;
+        long kSum = 0;
+        int limit = Math.min(blocks, 5);
+        for (i = 0; i < limit; i++) {
+            out[i] = readRiceOok(10);
+            kSum = (kSum + (out[i] & UINT_MASK)) & UINT_MASK;
+        }
+        int k = log2(kSum / 10) + 1;
+        riceK[channel] = k;
+        riceKSum[channel] = kSum;
+        if (k >= 24) {
+            return false;
+        }
+        limit = Math.min(blocks, 64);
+        for (; i < limit; i++) {
+            out[i] = readRiceOok(k);
+            kSum = (kSum + (out[i] & UINT_MASK)) & UINT_MASK;
+            k = log2(kSum / ((i + 1) * 2)) + 1;
+            riceK[channel] = k;
+            riceKSum[channel] = kSum;
+            if (k >= 24) {
+                return false;
+            }
+        }
+        long kSumMax = 1L << (k + 7);
+        long kSumMin = k != 0 ? 1L << (k + 6) : 0;
+        for (; i < blocks; i++) {
+            out[i] = readRiceOok(k);
+            kSum = (kSum + (out[i] & UINT_MASK) - (out[i - 64] & UINT_MASK)) & UINT_MASK;
+            while (kSum < kSumMin) {
+                k--;
+                kSumMin = k != 0 ? kSumMin >> 1 : 0;
+                kSumMax >>= 1;
+            }
+            while (kSum >= kSumMax) {
+                k++;
+                if (k > 24) {
+                    riceK[channel] = k;
+                    riceKSum[channel] = kSum;
+                    return false;
+                }
+                kSumMax <<= 1;
+                kSumMin = kSumMin != 0 ? kSumMin << 1 : 128;
+            }
+        }
+        riceK[channel] = k;
+        riceKSum[channel] = kSum;
+        return true;
+    }
+
+    private static int log2(long value) {
+        return 63 - Long.numberOfLeadingZeros(value | 1);
+    }
+
+    private void entropyDecodeMono(int blocks) throws APEDecoderException {
+        int[] decoded0 = decoded[0];
+        if (fileVersion < 3860) {
+            decodeArray0000(decoded0, 0, blocks);
+        } else if (fileVersion < 3900) {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3860(0);
+            }
+        } else if (fileVersion < 3990) {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3900(0);
+            }
+        } else {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3990(0);
+            }
+        }
+    }
+
+    private void entropyDecodeStereo(int blocks) throws APEDecoderException {
+        int[] decoded0 = decoded[0];
+        int[] decoded1 = decoded[1];
+        if (fileVersion < 3860) {
+            decodeArray0000(decoded0, 0, blocks);
+            decodeArray0000(decoded1, 1, blocks);
+        } else if (fileVersion < 3900) {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3860(0);
+            }
+            for (int i = 0; i < blocks; i++) {
+                decoded1[i] = decodeValue3860(1);
+            }
+        } else if (fileVersion < 3930) {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3900(0);
+            }
+            rangeDecodeNormalize();
+            // Because of some implementation peculiarities we need to backpedal here.
+            ptr--;
+            rangeStartDecoding();
+            for (int i = 0; i < blocks; i++) {
+                decoded1[i] = decodeValue3900(1);
+            }
+        } else if (fileVersion < 3990) {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3900(0);
+                decoded1[i] = decodeValue3900(1);
+            }
+        } else {
+            for (int i = 0; i < blocks; i++) {
+                decoded0[i] = decodeValue3990(0);
+                decoded1[i] = decodeValue3990(1);
+            }
+        }
+    }
+
+    // Unpacking.
+
+    private void unpackMono(int count) throws APEDecoderException {
+        if ((frameFlags & FRAMECODE_STEREO_SILENCE) != 0) {
+            // Pure silence, the decoded buffers are already zeroed.
+            return;
+        }
+        entropyDecodeMono(count);
+        if (fileVersion < 3930) {
+            predictorDecodeMono3800(count);
+        } else if (fileVersion < 3950) {
+            predictorDecodeMono3930(count);
+        } else {
+            predictorDecodeMono3950(count);
+        }
+        if (channels == 2) {
+            // Pseudo-stereo: copy the left channel to the right channel.
+            System.arraycopy(decoded[0], 0, decoded[1], 0, count);
+        }
+    }
+
+    private void unpackStereo(int count) throws APEDecoderException {
+        if ((frameFlags & FRAMECODE_STEREO_SILENCE) == FRAMECODE_STEREO_SILENCE) {
+            return;
+        }
+        entropyDecodeStereo(count);
+        if (fileVersion < 3930) {
+            predictorDecodeStereo3800(count);
+        } else if (fileVersion < 3950) {
+            predictorDecodeStereo3930(count);
+        } else {
+            predictorDecodeStereo3950(count);
+        }
+        int[] decoded0 = decoded[0];
+        int[] decoded1 = decoded[1];
+        for (int i = 0; i < count; i++) {
+            int left = decoded1[i] - (decoded0[i] / 2);
+            int right = left + decoded0[i];
+            decoded0[i] = left;
+            decoded1[i] = right;
+        }
+    }
+
+    // Predictors.
+
+    /**
+     * Returns the inverse sign of {@code x} (-1 for positive, 1 for negative and 0 for zero).
+     */
+    private static int apeSign(int x) {
+        return -Integer.signum(x);
+    }
+
+    private void advanceHistory() {
+        historyPosition++;
+        if (historyPosition == HISTORY_SIZE) {
+            System.arraycopy(historyBuffer, HISTORY_SIZE, historyBuffer, 0, PREDICTOR_SIZE);
+            historyPosition = 0;
+        }
+    }
+
+    private int filterFast3320(int decodedValue, int filter, int delayA) {
+        int[] buf = historyBuffer;
+        int p = historyPosition;
+        buf[p + delayA] = lastA[filter];
+        if (samplePosition < 3) {
+            lastA[filter] = decodedValue;
+            filterA[filter] = decodedValue;
+            return decodedValue;
+        }
+        int predictionA = buf[p + delayA] * 2 - buf[p + delayA - 1];
+        lastA[filter] = decodedValue + ((predictionA * coeffsA[filter][0]) >> 9);
+        if ((decodedValue ^ predictionA) > 0) {
+            coeffsA[filter][0]++;
+        } else {
+            coeffsA[filter][0]--;
+        }
+        filterA[filter] += lastA[filter];
+        return filterA[filter];
+    }
+
+    private int filter3800(int decodedValue, int filter, int delayA, int delayB, int start, int shift) {
+        int[] buf = historyBuffer;
+        int p = historyPosition;
+        buf[p + delayA] = lastA[filter];
+        buf[p + delayB] = filterB[filter];
+        if (samplePosition < start) {
+            int predictionA = decodedValue + filterA[filter];
+            lastA[filter] = decodedValue;
+            filterB[filter] = decodedValue;
+            filterA[filter] = predictionA;
+            return predictionA;
+        }
+        int d2 = buf[p + delayA];
+        int d1 = (buf[p + delayA] - buf[p + delayA - 1]) << 1;
+        int d0 = buf[p + delayA] + ((buf[p + delayA - 2] - buf[p + delayA - 1]) << 3);
+        int d3 = buf[p + delayB] * 2 - buf[p + delayB - 1];
+        int d4 = buf[p + delayB];
+
+        int[] a = coeffsA[filter];
+        int[] b = coeffsB[filter];
+        int predictionA = d0 * a[0] + d1 * a[1] + d2 * a[2];
+
+        int sign = apeSign(decodedValue);
+        a[0] += (((d0 >> 30) & 2) - 1) * sign;
+        a[1] += (((d1 >> 28) & 8) - 4) * sign;
+        a[2] += (((d2 >> 28) & 8) - 4) * sign;
+
+        int predictionB = d3 * b[0] - d4 * b[1];
+        lastA[filter] = decodedValue + (predictionA >> 11);
+        sign = apeSign(lastA[filter]);
+        b[0] += (((d3 >> 29) & 4) - 2) * sign;
+        b[1] -= (((d4 >> 30) & 2) - 1) * sign;
+
+        filterB[filter] = lastA[filter] + (predictionB >> shift);
+        filterA[filter] = filterB[filter] + ((filterA[filter] * 31) >> 5);
+        return filterA[filter];
+    }
+
+    private void longFilterHigh3800(int[] buffer, int order, int shift, int length) {
+        if (order >= length) {
+            return;
+        }
+        int[] coeffs = longFilterCoeffs;
+        int[] delay = longFilterDelay;
+        Arrays.fill(coeffs, 0, order, 0);
+        System.arraycopy(buffer, 0, delay, 0, order);
+        for (int i = order; i < length; i++) {
+            int dotProduct = 0;
+            int sign = apeSign(buffer[i]);
+            for (int j = 0; j < order; j++) {
+                dotProduct += delay[j] * coeffs[j];
+                coeffs[j] += ((delay[j] >> 31) | 1) * sign;
+            }
+            buffer[i] -= dotProduct >> shift;
+            System.arraycopy(delay, 1, delay, 0, order - 1);
+            delay[order - 1] = buffer[i];
+        }
+    }
+
+    private void longFilterExtraHigh3830(int[] buffer, int offset, int length) {
+        int[] coeffs = longFilterCoeffs;
+        int[] delay = longFilterDelay;
+        Arrays.fill(coeffs, 0, 8, 0);
+        Arrays.fill(delay, 0, 8, 0);
+        for (int i = offset; i < offset + length; i++) {
+            int dotProduct = 0;
+            int sign = apeSign(buffer[i]);
+            for (int j = 7; j >= 0; j--) {
+                dotProduct += delay[j] * coeffs[j];
+                coeffs[j] += ((delay[j] >> 31) | 1) * sign;
+            }
+            System.arraycopy(delay, 0, delay, 1, 7);
+            delay[0] = buffer[i];
+            buffer[i] -= dotProduct >> 9;
+        }
+    }
+
+    private void predictorDecodeStereo3800(int count) {
+        int[] decoded0 = decoded[0];
+        int[] decoded1 = decoded[1];
+        int start = 4;
+        int shift = 10;
+        if (compressionLevel == CompressionLevel.COMPRESSION_LEVEL_HIGH) {
+            start = 16;
+            longFilterHigh3800(decoded0, 16, 9, count);
+            longFilterHigh3800(decoded1, 16, 9, count);
+        } else if (compressionLevel == CompressionLevel.COMPRESSION_LEVEL_EXTRA_HIGH) {
+            int order = 128;
+            int shift2 = 11;
+            if (fileVersion >= 3830) {
+                order <<= 1;
+                shift++;
+                shift2++;
+                longFilterExtraHigh3830(decoded0, order, count - order);
+                longFilterExtraHigh3830(decoded1, order, count - order);
+            }
+            start = order;
+            longFilterHigh3800(decoded0, order, shift2, count);
+            longFilterHigh3800(decoded1, order, shift2, count);
+        }
+        boolean fast = compressionLevel == CompressionLevel.COMPRESSION_LEVEL_FAST;
+        for (int i = 0; i < count; i++) {
+            int x = decoded0[i];
+            int y = decoded1[i];
+            if (fast) {
+                decoded0[i] = filterFast3320(y, 0, YDELAYA);
+                decoded1[i] = filterFast3320(x, 1, XDELAYA);
+            } else {
+                decoded0[i] = filter3800(y, 0, YDELAYA, YDELAYB, start, shift);
+                decoded1[i] = filter3800(x, 1, XDELAYA, XDELAYB, start, shift);
+            }
+            samplePosition++;
+            advanceHistory();
+        }
+    }
+
+    private void predictorDecodeMono3800(int count) {
+        int[] decoded0 = decoded[0];
+        int start = 4;
+        int shift = 10;
+        if (compressionLevel == CompressionLevel.COMPRESSION_LEVEL_HIGH) {
+            start = 16;
+            longFilterHigh3800(decoded0, 16, 9, count);
+        } else if (compressionLevel == CompressionLevel.COMPRESSION_LEVEL_EXTRA_HIGH) {
+            int order = 128;
+            int shift2 = 11;
+            if (fileVersion >= 3830) {
+                order <<= 1;
+                shift++;
+                shift2++;
+                longFilterExtraHigh3830(decoded0, order, count - order);
+            }
+            start = order;
+            longFilterHigh3800(decoded0, order, shift2, count);
+        }
+        boolean fast = compressionLevel == CompressionLevel.COMPRESSION_LEVEL_FAST;
+        for (int i = 0; i < count; i++) {
+            if (fast) {
+                decoded0[i] = filterFast3320(decoded0[i], 0, YDELAYA);
+            } else {
+                decoded0[i] = filter3800(decoded0[i], 0, YDELAYA, YDELAYB, start, shift);
+            }
+            samplePosition++;
+            advanceHistory();
+        }
+    }
+
+    private int predictorUpdate3930(int decodedValue, int filter, int delayA) {
+        int[] buf = historyBuffer;
+        int p = historyPosition + delayA;
+        buf[p] = lastA[filter];
+        int d0 = buf[p];
+        int d1 = buf[p] - buf[p - 1];
+        int d2 = buf[p - 1] - buf[p - 2];
+        int d3 = buf[p - 2] - buf[p - 3];
+
+        int[] a = coeffsA[filter];
+        int predictionA = d0 * a[0] + d1 * a[1] + d2 * a[2] + d3 * a[3];
+
+        lastA[filter] = decodedValue + (predictionA >> 9);
+        filterA[filter] = lastA[filter] + ((filterA[filter] * 31) >> 5);
+
+        int sign = apeSign(decodedValue);
+        a[0] += ((d0 < 0 ? 1 : 0) * 2 - 1) * sign;
+        a[1] += ((d1 < 0 ? 1 : 0) * 2 - 1) * sign;
+        a[2] += ((d2 < 0 ? 1 : 0) * 2 - 1) * sign;
+        a[3] += ((d3 < 0 ? 1 : 0) * 2 - 1) * sign;
+        return filterA[filter];
+    }
+
+    private void predictorDecodeStereo3930(int count) {
+        int[] decoded0 = decoded[0];
+        int[] decoded1 = decoded[1];
+        applyFilters(decoded0, decoded1, count);
+        for (int i = 0; i < count; i++) {
+            int y = decoded1[i];
+            int x = decoded0[i];
+            decoded0[i] = predictorUpdate3930(y, 0, YDELAYA);
+            decoded1[i] = predictorUpdate3930(x, 1, XDELAYA);
+            advanceHistory();
+        }
+    }
+
+    private void predictorDecodeMono3930(int count) {
+        int[] decoded0 = decoded[0];
+        applyFilters(decoded0, null, count);
+        for (int i = 0; i < count; i++) {
+            decoded0[i] = predictorUpdate3930(decoded0[i], 0, YDELAYA);
+            advanceHistory();
+        }
+    }
+
+    private int predictorUpdateFilter(int decodedValue, int filter, int delayA, int delayB,
+                                      int adaptA, int adaptB) {
+        int[] buf = historyBuffer;
+        int p = historyPosition;
+        buf[p + delayA] = lastA[filter];
+        buf[p + adaptA] = apeSign(buf[p + delayA]);
+        buf[p + delayA - 1] = buf[p + delayA] - buf[p + delayA - 1];
+        buf[p + adaptA - 1] = apeSign(buf[p + delayA - 1]);
+
+        int[] a = coeffsA[filter];
+        int[] b = coeffsB[filter];
+        int predictionA = buf[p + delayA] * a[0]
+                + buf[p + delayA - 1] * a[1]
+                + buf[p + delayA - 2] * a[2]
+                + buf[p + delayA - 3] * a[3];
+
+        // Apply a scaled first-order filter compression.
+        buf[p + delayB] = filterA[filter ^ 1] - ((filterB[filter] * 31) >> 5);
+        buf[p + adaptB] = apeSign(buf[p + delayB]);
+        buf[p + delayB - 1] = buf[p + delayB] - buf[p + delayB - 1];
+        buf[p + adaptB - 1] = apeSign(buf[p + delayB - 1]);
+        filterB[filter] = filterA[filter ^ 1];
+
+        int predictionB = buf[p + delayB] * b[0]
+                + buf[p + delayB - 1] * b[1]
+                + buf[p + delayB - 2] * b[2]
+                + buf[p + delayB - 3] * b[3]
+                + buf[p + delayB - 4] * b[4];
+
+        lastA[filter] = decodedValue + ((predictionA + (predictionB >> 1)) >> 10);
+        filterA[filter] = lastA[filter] + ((filterA[filter] * 31) >> 5);
+
+        int sign = apeSign(decodedValue);
+        a[0] += buf[p + adaptA] * sign;
+        a[1] += buf[p + adaptA - 1] * sign;
+        a[2] += buf[p + adaptA - 2] * sign;
+        a[3] += buf[p + adaptA - 3] * sign;
+        b[0] += buf[p + adaptB] * sign;
+        b[1] += buf[p + adaptB - 1] * sign;
+        b[2] += buf[p + adaptB - 2] * sign;
+        b[3] += buf[p + adaptB - 3] * sign;
+        b[4] += buf[p + adaptB - 4] * sign;
+        return filterA[filter];
+    }
+
+    private void predictorDecodeStereo3950(int count) {
+        int[] decoded0 = decoded[0];
+        int[] decoded1 = decoded[1];
+        applyFilters(decoded0, decoded1, count);
+        for (int i = 0; i < count; i++) {
+            decoded0[i] = predictorUpdateFilter(decoded0[i], 0, YDELAYA, YDELAYB,
+                    YADAPTCOEFFSA, YADAPTCOEFFSB);
+            decoded1[i] = predictorUpdateFilter(decoded1[i], 1, XDELAYA, XDELAYB,
+                    XADAPTCOEFFSA, XADAPTCOEFFSB);
+            advanceHistory();
+        }
+    }
+
+    private void predictorDecodeMono3950(int count) {
+        int[] decoded0 = decoded[0];
+        int[] buf = historyBuffer;
+        int[] a = coeffsA[0];
+        applyFilters(decoded0, null, count);
+        int currentA = lastA[0];
+        for (int i = 0; i < count; i++) {
+            int value = decoded0[i];
+            int p = historyPosition;
+            buf[p + YDELAYA] = currentA;
+            buf[p + YDELAYA - 1] = buf[p + YDELAYA] - buf[p + YDELAYA - 1];
+
+            int predictionA = buf[p + YDELAYA] * a[0]
+                    + buf[p + YDELAYA - 1] * a[1]
+                    + buf[p + YDELAYA - 2] * a[2]
+                    + buf[p + YDELAYA - 3] * a[3];
+
+            currentA = value + (predictionA >> 10);
+
+            buf[p + YADAPTCOEFFSA] = apeSign(buf[p + YDELAYA]);
+            buf[p + YADAPTCOEFFSA - 1] = apeSign(buf[p + YDELAYA - 1]);
+
+            int sign = apeSign(value);
+            a[0] += buf[p + YADAPTCOEFFSA] * sign;
+            a[1] += buf[p + YADAPTCOEFFSA - 1] * sign;
+            a[2] += buf[p + YADAPTCOEFFSA - 2] * sign;
+            a[3] += buf[p + YADAPTCOEFFSA - 3] * sign;
+
+            advanceHistory();
+
+            filterA[0] = currentA + ((filterA[0] * 31) >> 5);
+            decoded0[i] = filterA[0];
+        }
+        lastA[0] = currentA;
+    }
+
+    // NN filters.
+
+    private void applyFilters(int[] decoded0, int[] decoded1, int count) {
+        for (int i = 0; i < FILTER_LEVELS; i++) {
+            if (filters[i] == null) {
+                break;
+            }
+            int fracBits = FILTER_FRACBITS[filterSet][i];
+            filters[i][0].apply(decoded0, count, fracBits, fileVersion);
+            if (decoded1 != null) {
+                filters[i][1].apply(decoded1, count, fracBits, fileVersion);
+            }
+        }
+    }
+
+    /**
+     * One channel of an NN filter. Coefficients, adaption coefficients and the delay line share a
+     * single {@code short} array as in the reference implementation.
+     */
+    private static final class NNFilter {
+
+        private final int order;
+        private final short[] buffer;
+        private int delay;
+        private int adaptCoeffs;
+        private int average;
+
+        NNFilter(int order) {
+            this.order = order;
+            buffer = new short[order * 3 + HISTORY_SIZE];
+        }
+
+        void init() {
+            Arrays.fill(buffer, 0, order * 3, (short) 0);
+            delay = order * 3;
+            adaptCoeffs = order * 2;
+            average = 0;
+        }
+
+        void apply(int[] data, int count, int fracBits, int version) {
+            short[] buf = buffer;
+            int order = this.order;
+            int historyEnd = order + HISTORY_SIZE + order * 2;
+            for (int i = 0; i < count; i++) {
+                int input = data[i];
+                int mul = apeSign(input);
+                int res = 0;
+                int v2 = delay - order;
+                int v3 = adaptCoeffs - order;
+                for (int j = 0; j < order; j++) {
+                    res += buf[j] * buf[v2 + j];
+                    buf[j] = (short) (buf[j] + mul * buf[v3 + j]);
+                }
+                res = (res + (1 << (fracBits - 1))) >> fracBits;
+                res += input;
+                data[i] = res;
+
+                buf[delay++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, res));
+
+                if (version < 3980) {
+                    buf[adaptCoeffs] = (short) (res == 0 ? 0 : ((res >> 28) & 8) - 4);
+                    buf[adaptCoeffs - 4] >>= 1;
+                    buf[adaptCoeffs - 8] >>= 1;
+                } else {
+                    int absRes = Math.abs(res);
+                    if (absRes != 0) {
+                        int scale = (absRes > average * 3 ? 1 : 0)
+                                + (absRes > average * 4 / 3 ? 1 : 0);
+                        buf[adaptCoeffs] = (short) (apeSign(res) * (8 << scale));
+                    } else {
+                        buf[adaptCoeffs] = 0;
+                    }
+                    average += (absRes - average) / 16;
+                    buf[adaptCoeffs - 1] >>= 1;
+                    buf[adaptCoeffs - 2] >>= 1;
+                    buf[adaptCoeffs - 8] >>= 1;
+                }
+                adaptCoeffs++;
+
+                if (delay == historyEnd) {
+                    System.arraycopy(buf, delay - order * 2, buf, order, order * 2);
+                    delay = order * 3;
+                    adaptCoeffs = order * 2;
+                }
+            }
+        }
+    }
+}
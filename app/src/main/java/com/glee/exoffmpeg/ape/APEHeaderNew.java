@@ -1,8 +1,6 @@
 package com.glee.exoffmpeg.ape;
 
-import com.glee.exoffmpeg.util.ExtractorInputWrapper;
-
-import java.io.IOException;
+import com.google.android.exoplayer2.util.ParsableByteArray;
 
 /**
  * Author: Dmitry Vaguine
@@ -23,16 +21,19 @@ public class APEHeaderNew {
 
     public final static int APE_HEADER_BYTES = 24;
 
-    public static APEHeaderNew read(final ExtractorInputWrapper input) throws IOException, InterruptedException {
+    /**
+     * 从 {@code data} 的当前位置解析 {@link #APE_HEADER_BYTES} 字节的文件头（小端序）
+     */
+    public static APEHeaderNew read(final ParsableByteArray data) {
         APEHeaderNew header = new APEHeaderNew();
-        header.nCompressionLevel = input.peekUnsignedShort();
-        header.nFormatFlags = input.peekUnsignedShort();
-        header.nBlocksPerFrame = input.peekUnsignedInt();
-        header.nFinalFrameBlocks = input.peekUnsignedInt();
-        header.nTotalFrames = input.peekUnsignedInt();
-        header.nBitsPerSample = input.peekUnsignedShort();
-        header.nChannels = input.peekUnsignedShort();
-        header.nSampleRate = input.peekUnsignedInt();
+        header.nCompressionLevel = data.readLittleEndianUnsignedShort();
+        header.nFormatFlags = data.readLittleEndianUnsignedShort();
+        header.nBlocksPerFrame = data.readLittleEndianUnsignedInt();
+        header.nFinalFrameBlocks = data.readLittleEndianUnsignedInt();
+        header.nTotalFrames = data.readLittleEndianUnsignedInt();
+        header.nBitsPerSample = data.readLittleEndianUnsignedShort();
+        header.nChannels = data.readLittleEndianUnsignedShort();
+        header.nSampleRate = data.readLittleEndianUnsignedInt();
         return header;
     }
 
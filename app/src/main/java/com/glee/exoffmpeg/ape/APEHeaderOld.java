@@ -1,8 +1,8 @@
 package com.glee.exoffmpeg.ape;
 
-import com.glee.exoffmpeg.util.ExtractorInputWrapper;
+import com.google.android.exoplayer2.util.ParsableByteArray;
 
-import java.io.IOException;
+import java.nio.charset.Charset;
 
 /**
  * Author: Dmitry Vaguine
@@ -23,19 +23,21 @@ public class APEHeaderOld {
 
     public final static int APE_HEADER_OLD_BYTES = 32;
 
-    public static APEHeaderOld read(final ExtractorInputWrapper input) throws IOException, InterruptedException {
-        input.resetPeekPosition();
+    /**
+     * 从 {@code data} 的当前位置解析 {@link #APE_HEADER_OLD_BYTES} 字节的文件头（小端序）
+     */
+    public static APEHeaderOld read(final ParsableByteArray data) {
         APEHeaderOld header = new APEHeaderOld();
-        header.cID = input.peekString(4, "US-ASCII");
-        header.nVersion = input.peekUnsignedShort();
-        header.nCompressionLevel = input.peekUnsignedShort();
-        header.nFormatFlags = input.peekUnsignedShort();
-        header.nChannels = input.peekUnsignedShort();
-        header.nSampleRate = input.peekUnsignedInt();
-        header.nHeaderBytes = input.peekUnsignedInt();
-        header.nTerminatingBytes = input.peekUnsignedInt();
-        header.nTotalFrames = input.peekUnsignedInt();
-        header.nFinalFrameBlocks = input.peekUnsignedInt();
+        header.cID = data.readString(4, Charset.forName("US-ASCII"));
+        header.nVersion = data.readLittleEndianUnsignedShort();
+        header.nCompressionLevel = data.readLittleEndianUnsignedShort();
+        header.nFormatFlags = data.readLittleEndianUnsignedShort();
+        header.nChannels = data.readLittleEndianUnsignedShort();
+        header.nSampleRate = data.readLittleEndianUnsignedInt();
+        header.nHeaderBytes = data.readLittleEndianUnsignedInt();
+        header.nTerminatingBytes = data.readLittleEndianUnsignedInt();
+        header.nTotalFrames = data.readLittleEndianUnsignedInt();
+        header.nFinalFrameBlocks = data.readLittleEndianUnsignedInt();
         return header;
     }
 }
\ No newline at end of file
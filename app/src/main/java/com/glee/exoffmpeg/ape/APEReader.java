@@ -21,6 +21,9 @@ package com.glee.exoffmpeg.ape;
 
 
 import com.glee.exoffmpeg.util.ExtractorInputWrapper;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.util.ParsableByteArray;
 
 import java.io.IOException;
 
@@ -56,8 +59,14 @@ public class APEReader {
         }
     }
 
+    /**
+     * 从输入的当前位置（APE 描述符的开头，之前的字节视为 ID3v2 等标签）读取文件头和 seek 表。数据是读取
+     * 而不是预读的，返回时输入位于 seek 表之后，不会占用
+     * {@link com.google.android.exoplayer2.extractor.ExtractorInput} 的预读缓冲
+     */
     public APEFileInfo read() throws IOException, InterruptedException {
         APEFileInfo info = new APEFileInfo();
+        info.nJunkHeaderBytes = (int) input.getPosition();
         if (version >= 3980) {
             readNew(info);
         } else {
@@ -69,15 +78,15 @@ public class APEReader {
     public final static int WAVE_HEADER_BYTES = 44;
 
     protected void readNew(APEFileInfo m_APEFileInfo) throws IOException, InterruptedException {
-        m_APEFileInfo.spAPEDescriptor = APEDescriptor.read(input);
+        m_APEFileInfo.spAPEDescriptor = APEDescriptor.read(input.read(APEDescriptor.APE_DESCRIPTOR_BYTES));
 
         if ((m_APEFileInfo.spAPEDescriptor.nDescriptorBytes - APEDescriptor.APE_DESCRIPTOR_BYTES) > 0)
-            input.advancePeekPosition((int) (m_APEFileInfo.spAPEDescriptor.nDescriptorBytes - APEDescriptor.APE_DESCRIPTOR_BYTES));
+            input.skipFully(checkLength(m_APEFileInfo.spAPEDescriptor.nDescriptorBytes - APEDescriptor.APE_DESCRIPTOR_BYTES));
 
-        final APEHeaderNew APEHeader = APEHeaderNew.read(input);
+        final APEHeaderNew APEHeader = APEHeaderNew.read(input.read(APEHeaderNew.APE_HEADER_BYTES));
 
         if ((m_APEFileInfo.spAPEDescriptor.nHeaderBytes - APEHeaderNew.APE_HEADER_BYTES) > 0)
-            input.advancePeekPosition((int) (m_APEFileInfo.spAPEDescriptor.nHeaderBytes - APEHeaderNew.APE_HEADER_BYTES));
+            input.skipFully(checkLength(m_APEFileInfo.spAPEDescriptor.nHeaderBytes - APEHeaderNew.APE_HEADER_BYTES));
 
         // fill the APE info structure
         m_APEFileInfo.nVersion = m_APEFileInfo.spAPEDescriptor.nVersion;
@@ -91,22 +100,31 @@ public class APEReader {
         m_APEFileInfo.nBitsPerSample = APEHeader.nBitsPerSample;
         m_APEFileInfo.nBytesPerSample = m_APEFileInfo.nBitsPerSample / 8;
         m_APEFileInfo.nBlockAlign = m_APEFileInfo.nBytesPerSample * m_APEFileInfo.nChannels;
-        m_APEFileInfo.nTotalBlocks = (int) ((APEHeader.nTotalFrames == 0) ? 0 : ((APEHeader.nTotalFrames - 1) * m_APEFileInfo.nBlocksPerFrame) + APEHeader.nFinalFrameBlocks);
+        m_APEFileInfo.nTotalBlocks = (APEHeader.nTotalFrames == 0) ? 0 : ((APEHeader.nTotalFrames - 1) * m_APEFileInfo.nBlocksPerFrame) + APEHeader.nFinalFrameBlocks;
         m_APEFileInfo.nWAVHeaderBytes = (int) ((APEHeader.nFormatFlags & MAC_FORMAT_FLAG_CREATE_WAV_HEADER) > 0 ? WAVE_HEADER_BYTES : m_APEFileInfo.spAPEDescriptor.nHeaderDataBytes);
         m_APEFileInfo.nWAVTerminatingBytes = (int) m_APEFileInfo.spAPEDescriptor.nTerminatingDataBytes;
         m_APEFileInfo.nWAVDataBytes = m_APEFileInfo.nTotalBlocks * m_APEFileInfo.nBlockAlign;
         m_APEFileInfo.nWAVTotalBytes = m_APEFileInfo.nWAVDataBytes + m_APEFileInfo.nWAVHeaderBytes + m_APEFileInfo.nWAVTerminatingBytes;
-        m_APEFileInfo.nAPETotalBytes = (int) input.getLength();
-        m_APEFileInfo.nLengthMS = (int) ((m_APEFileInfo.nTotalBlocks * 1000L) / m_APEFileInfo.nSampleRate);
-        m_APEFileInfo.nAverageBitrate = (m_APEFileInfo.nLengthMS <= 0) ? 0 : (int) ((m_APEFileInfo.nAPETotalBytes * 8L) / m_APEFileInfo.nLengthMS);
+        m_APEFileInfo.nAPEFrameDataBytes = (m_APEFileInfo.spAPEDescriptor.nAPEFrameDataBytesHigh << 32)
+                | m_APEFileInfo.spAPEDescriptor.nAPEFrameDataBytes;
+        m_APEFileInfo.nLengthMS = (m_APEFileInfo.nTotalBlocks * 1000L) / m_APEFileInfo.nSampleRate;
         m_APEFileInfo.nDecompressedBitrate = (m_APEFileInfo.nBlockAlign * m_APEFileInfo.nSampleRate * 8) / 1000;
-        m_APEFileInfo.nSeekTableElements = (int) (m_APEFileInfo.spAPEDescriptor.nSeekTableBytes / 4);
+        m_APEFileInfo.nSeekTableElements = checkLength(m_APEFileInfo.spAPEDescriptor.nSeekTableBytes) / 4;
         m_APEFileInfo.nPeakLevel = -1;
 
         // get the seek tables (really no reason to get the whole thing if there's extra)
-        m_APEFileInfo.spSeekByteTable = new int[m_APEFileInfo.nSeekTableElements];
-        for (int i = 0; i < m_APEFileInfo.nSeekTableElements; i++)
-            m_APEFileInfo.spSeekByteTable[i] = (int) input.peekUnsignedInt(); //TODO 未实现
+        m_APEFileInfo.spSeekByteTable = readSeekByteTable(m_APEFileInfo.nSeekTableElements);
+
+        m_APEFileInfo.nFirstFrameBytes = (int) (m_APEFileInfo.nJunkHeaderBytes
+                + m_APEFileInfo.spAPEDescriptor.nDescriptorBytes
+                + m_APEFileInfo.spAPEDescriptor.nHeaderBytes
+                + m_APEFileInfo.spAPEDescriptor.nSeekTableBytes
+                + m_APEFileInfo.spAPEDescriptor.nHeaderDataBytes);
+
+        // 流式读取时文件长度未知，用描述符中的 64 位帧数据长度推算
+        m_APEFileInfo.nAPETotalBytes = input.getLength() != C.LENGTH_UNSET ? input.getLength()
+                : m_APEFileInfo.nFirstFrameBytes + m_APEFileInfo.nAPEFrameDataBytes + m_APEFileInfo.nWAVTerminatingBytes;
+        m_APEFileInfo.nAverageBitrate = getAverageBitrate(m_APEFileInfo);
 
             // get the wave header
 //            if ((APEHeader.nFormatFlags & MAC_FORMAT_FLAG_CREATE_WAV_HEADER) <= 0) {
@@ -117,19 +135,19 @@ public class APEReader {
     }
 
     protected void readOld(APEFileInfo m_APEFileInfo) throws IOException, InterruptedException {
-        APEHeaderOld header = APEHeaderOld.read(input);
+        APEHeaderOld header = APEHeaderOld.read(input.read(APEHeaderOld.APE_HEADER_OLD_BYTES));
 
         // fail on 0 length APE files (catches non-finalized APE files)
         if (header.nTotalFrames == 0)
             return;
         int nPeakLevel = -1;
         if ((header.nFormatFlags & MAC_FORMAT_FLAG_HAS_PEAK_LEVEL) > 0)
-            nPeakLevel = (int) input.peekUnsignedInt();
+            nPeakLevel = input.readInt();
 
         if ((header.nFormatFlags & MAC_FORMAT_FLAG_HAS_SEEK_ELEMENTS) > 0)
-            m_APEFileInfo.nSeekTableElements = (int) input.peekUnsignedInt();
+            m_APEFileInfo.nSeekTableElements = checkLength(input.readUnsignedInt() * 4) / 4;
         else
-            m_APEFileInfo.nSeekTableElements = (int) header.nTotalFrames;
+            m_APEFileInfo.nSeekTableElements = checkLength(header.nTotalFrames * 4) / 4;
 
         // fill the APE info structure
         m_APEFileInfo.nVersion = header.nVersion;
@@ -145,33 +163,83 @@ public class APEReader {
         m_APEFileInfo.nBitsPerSample = (m_APEFileInfo.nFormatFlags & MAC_FORMAT_FLAG_8_BIT) > 0 ? 8 : ((m_APEFileInfo.nFormatFlags & MAC_FORMAT_FLAG_24_BIT) > 0 ? 24 : 16);
         m_APEFileInfo.nBytesPerSample = m_APEFileInfo.nBitsPerSample / 8;
         m_APEFileInfo.nBlockAlign = m_APEFileInfo.nBytesPerSample * m_APEFileInfo.nChannels;
-        m_APEFileInfo.nTotalBlocks = (int) ((header.nTotalFrames == 0) ? 0 : ((header.nTotalFrames - 1) * m_APEFileInfo.nBlocksPerFrame) + header.nFinalFrameBlocks);
+        m_APEFileInfo.nTotalBlocks = (header.nTotalFrames == 0) ? 0 : ((header.nTotalFrames - 1) * m_APEFileInfo.nBlocksPerFrame) + header.nFinalFrameBlocks;
         m_APEFileInfo.nWAVHeaderBytes = (int) ((header.nFormatFlags & MAC_FORMAT_FLAG_CREATE_WAV_HEADER) > 0 ? WAVE_HEADER_BYTES : header.nHeaderBytes);
         m_APEFileInfo.nWAVTerminatingBytes = (int) header.nTerminatingBytes;
         m_APEFileInfo.nWAVDataBytes = m_APEFileInfo.nTotalBlocks * m_APEFileInfo.nBlockAlign;
         m_APEFileInfo.nWAVTotalBytes = m_APEFileInfo.nWAVDataBytes + m_APEFileInfo.nWAVHeaderBytes + m_APEFileInfo.nWAVTerminatingBytes;
-        m_APEFileInfo.nAPETotalBytes = (int) input.getLength();
-        m_APEFileInfo.nLengthMS = (int) ((m_APEFileInfo.nTotalBlocks * 1000L) / m_APEFileInfo.nSampleRate);
-        m_APEFileInfo.nAverageBitrate = (int) ((m_APEFileInfo.nLengthMS <= 0) ? 0 : ((m_APEFileInfo.nAPETotalBytes * 8L) / m_APEFileInfo.nLengthMS));
+        m_APEFileInfo.nAPETotalBytes = input.getLength();
+        m_APEFileInfo.nAPEFrameDataBytes = C.LENGTH_UNSET;
+        m_APEFileInfo.nLengthMS = (m_APEFileInfo.nTotalBlocks * 1000L) / m_APEFileInfo.nSampleRate;
+        m_APEFileInfo.nAverageBitrate = getAverageBitrate(m_APEFileInfo);
         m_APEFileInfo.nDecompressedBitrate = (m_APEFileInfo.nBlockAlign * m_APEFileInfo.nSampleRate * 8) / 1000;
         m_APEFileInfo.nPeakLevel = nPeakLevel;
 
         // get the wave header
+        int nStoredHeaderBytes = 0;
         if ((header.nFormatFlags & MAC_FORMAT_FLAG_CREATE_WAV_HEADER) <= 0) {
-            if (header.nHeaderBytes > Integer.MAX_VALUE)
-                m_APEFileInfo.spWaveHeaderData = new byte[(int) header.nHeaderBytes];
-            input.peekFully(m_APEFileInfo.spWaveHeaderData, 0, WAVE_HEADER_BYTES);
+            nStoredHeaderBytes = checkLength(header.nHeaderBytes);
+            m_APEFileInfo.spWaveHeaderData = new byte[nStoredHeaderBytes];
+            input.readFully(m_APEFileInfo.spWaveHeaderData, 0, nStoredHeaderBytes);
         }
 
         // get the seek tables (really no reason to get the whole thing if there's extra)
-        m_APEFileInfo.spSeekByteTable = new int[m_APEFileInfo.nSeekTableElements];
-        for (int i = 0; i < m_APEFileInfo.nSeekTableElements; i++)
-            m_APEFileInfo.spSeekByteTable[i] = (int) input.peekUnsignedInt();
+        m_APEFileInfo.spSeekByteTable = readSeekByteTable(m_APEFileInfo.nSeekTableElements);
+
+        // frames of files older than 3.81 may start in the middle of a byte
+        int nSeekBitTableBytes = 0;
+        if (header.nVersion < 3810) {
+            nSeekBitTableBytes = m_APEFileInfo.nTotalFrames;
+            m_APEFileInfo.spSeekBitTable = new byte[nSeekBitTableBytes];
+            input.readFully(m_APEFileInfo.spSeekBitTable, 0, nSeekBitTableBytes);
+        }
+
+        m_APEFileInfo.nFirstFrameBytes = (int) input.getPosition();
+    }
+
+    /**
+     * 一次读入整个 seek 表，再一趟解码为 long 数组
+     * <p>
+     * Entries are stored as 32-bit offsets, which wrap around in files larger than 4 GB. Since
+     * frames are in file order, an entry smaller than the previous one means the offset has wrapped
+     * and 4 GB is added to it and to every entry after it.
+     */
+    private long[] readSeekByteTable(int elements) throws IOException, InterruptedException {
+        ParsableByteArray data = input.read(elements * 4);
+        long[] table = new long[elements];
+        long wrapOffset = 0;
+        long previous = 0;
+        for (int i = 0; i < elements; i++) {
+            long entry = data.readLittleEndianUnsignedInt();
+            if (entry < previous) {
+                wrapOffset += 1L << 32;
+            }
+            previous = entry;
+            table[i] = entry + wrapOffset;
+        }
+        return table;
+    }
+
+    /**
+     * 平均码率（kbps），即每毫秒的比特数；文件长度未知时为 0
+     */
+    private static int getAverageBitrate(APEFileInfo info) {
+        if (info.nLengthMS <= 0 || info.nAPETotalBytes <= 0) {
+            return 0;
+        }
+        return (int) ((info.nAPETotalBytes * 8L) / info.nLengthMS);
+    }
 
-        if (header.nVersion <= 3800) {
-            m_APEFileInfo.spSeekBitTable = new byte[m_APEFileInfo.nSeekTableElements];
-            input.peekFully(m_APEFileInfo.spSeekBitTable, 0, m_APEFileInfo.nSeekTableElements);
+    /**
+     * 检查文件头中的长度，避免损坏的文件导致分配超大数组
+     */
+    private int checkLength(long length) throws ParserException {
+        long inputLength = input.getLength();
+        if (length < 0 || length > Integer.MAX_VALUE
+                || (inputLength != C.LENGTH_UNSET && length > inputLength)) {
+            throw new ParserException("Invalid APE header length: " + length);
         }
+        return (int) length;
     }
 
 //    protected int FindDescriptor(boolean bSeek) throws IOException {
@@ -0,0 +1,178 @@
+package com.glee.exoffmpeg.ape;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.SeekPoint;
+import com.google.android.exoplayer2.util.Util;
+
+/**
+ * description APE 帧索引，由文件的 seek 表计算每一帧的位置、长度和跳过量，按时间直接定位到帧
+ * <p>
+ * Frames are laid out the way FFmpeg's APE demuxer packs them: each frame starts at a 4-byte
+ * boundary relative to the first frame, and the number of bytes (or, before 3.81, bits) to skip
+ * to reach the real start of the frame is carried in the packet header.
+ */
+final class APESeeker implements SeekMap {
+
+    private final int blocksPerFrame;
+    private final int finalFrameBlocks;
+    private final int sampleRate;
+    private final long durationUs;
+    private final long[] framePositions;
+    private final int[] frameSizes;
+    private final int[] frameSkips;
+    private final int maxFrameSize;
+
+    private APESeeker(APEFileInfo info, long[] framePositions, int[] frameSizes, int[] frameSkips) {
+        this.blocksPerFrame = info.nBlocksPerFrame;
+        this.finalFrameBlocks = info.nFinalFrameBlocks;
+        this.sampleRate = info.nSampleRate;
+        this.durationUs = info.nTotalBlocks * C.MICROS_PER_SECOND / sampleRate;
+        this.framePositions = framePositions;
+        this.frameSizes = frameSizes;
+        this.frameSkips = frameSkips;
+        int maxFrameSize = 0;
+        for (int frameSize : frameSizes) {
+            maxFrameSize = Math.max(maxFrameSize, frameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    /**
+     * Builds the frame index of an APE file.
+     *
+     * @param info        The file information, including its seek tables.
+     * @param inputLength The position at which the APE data ends, which is the length of the input
+     *                    minus any trailing tags, or {@link C#LENGTH_UNSET} if unknown.
+     * @return The frame index.
+     * @throws ParserException If the seek table does not describe every frame.
+     */
+    public static APESeeker create(APEFileInfo info, long inputLength) throws ParserException {
+        int totalFrames = info.nTotalFrames;
+        if (totalFrames <= 0) {
+            throw new ParserException("No frames in the file");
+        }
+        if (info.nSampleRate <= 0 || info.nBlocksPerFrame <= 0) {
+            throw new ParserException("Invalid stream parameters");
+        }
+        if (info.spSeekByteTable == null || info.spSeekByteTable.length < totalFrames) {
+            throw new ParserException("Number of seek entries is less than number of frames");
+        }
+        long[] positions = new long[totalFrames];
+        long[] sizes = new long[totalFrames];
+        int[] skips = new int[totalFrames];
+        positions[0] = info.nFirstFrameBytes;
+        for (int i = 1; i < totalFrames; i++) {
+            positions[i] = info.spSeekByteTable[i] + info.nJunkHeaderBytes;
+            sizes[i - 1] = positions[i] - positions[i - 1];
+            skips[i] = (int) ((positions[i] - positions[0]) & 3);
+        }
+        // the final frame runs up to the terminating data, if the file size is known, or else to the
+        // end of the frame data given by the descriptor
+        long finalSize = 0;
+        if (inputLength != C.LENGTH_UNSET) {
+            finalSize = inputLength - positions[totalFrames - 1] - info.nWAVTerminatingBytes;
+            finalSize -= finalSize & 3;
+        } else if (info.nAPEFrameDataBytes > 0) {
+            finalSize = positions[0] + info.nAPEFrameDataBytes - positions[totalFrames - 1];
+        }
+        if (finalSize <= 0) {
+            finalSize = (info.nFinalFrameBlocks & 0xFFFFFFFFL) * 8;
+        }
+        sizes[totalFrames - 1] = finalSize;
+
+        int[] frameSizes = new int[totalFrames];
+        boolean hasBitTable = info.nVersion < 3810 && info.spSeekBitTable != null;
+        for (int i = 0; i < totalFrames; i++) {
+            positions[i] -= skips[i];
+            long size = (sizes[i] + skips[i] + 3) & ~3L;
+            if (hasBitTable) {
+                if (i < totalFrames - 1 && info.spSeekBitTable[i + 1] != 0) {
+                    size += 4;
+                }
+                skips[i] = (skips[i] << 3) + (info.spSeekBitTable[i] & 0xFF);
+            }
+            if (size <= 0 || size > Integer.MAX_VALUE - APEFrameDecoder.PACKET_HEADER_BYTES) {
+                throw new ParserException("Invalid size of frame " + i + ": " + size);
+            }
+            frameSizes[i] = (int) size;
+        }
+        return new APESeeker(info, positions, frameSizes, skips);
+    }
+
+    @Override
+    public boolean isSeekable() {
+        return true;
+    }
+
+    @Override
+    public long getDurationUs() {
+        return durationUs;
+    }
+
+    @Override
+    public SeekPoints getSeekPoints(long timeUs) {
+        int frameIndex = (int) Util.constrainValue(
+                timeUs * sampleRate / (blocksPerFrame * C.MICROS_PER_SECOND), 0, getFrameCount() - 1);
+        SeekPoint seekPoint = new SeekPoint(getFrameTimeUs(frameIndex), framePositions[frameIndex]);
+        if (seekPoint.timeUs >= timeUs || frameIndex == getFrameCount() - 1) {
+            return new SeekPoints(seekPoint);
+        } else {
+            SeekPoint secondSeekPoint = new SeekPoint(getFrameTimeUs(frameIndex + 1),
+                    framePositions[frameIndex + 1]);
+            return new SeekPoints(seekPoint, secondSeekPoint);
+        }
+    }
+
+    /**
+     * Returns the index of the frame read from {@code position}, as returned in a {@link SeekPoint}
+     * by {@link #getSeekPoints(long)}. Positions inside a frame map to that frame.
+     */
+    public int getFrameIndex(long position) {
+        return Util.binarySearchFloor(framePositions, position, /* inclusive= */ true,
+                /* stayInBounds= */ true);
+    }
+
+    public int getFrameCount() {
+        return framePositions.length;
+    }
+
+    public long getFrameTimeUs(int frameIndex) {
+        return (long) frameIndex * blocksPerFrame * C.MICROS_PER_SECOND / sampleRate;
+    }
+
+    /**
+     * Returns the byte position of a frame, aligned down to the 4-byte boundary it is read from.
+     */
+    public long getFramePosition(int frameIndex) {
+        return framePositions[frameIndex];
+    }
+
+    /**
+     * Returns the number of bytes to read for a frame, starting at
+     * {@link #getFramePosition(int)}.
+     */
+    public int getFrameSize(int frameIndex) {
+        return frameSizes[frameIndex];
+    }
+
+    /**
+     * Returns the offset of the real start of a frame from {@link #getFramePosition(int)}, in
+     * bytes, or in bits for files older than 3.81.
+     */
+    public int getFrameSkip(int frameIndex) {
+        return frameSkips[frameIndex];
+    }
+
+    public int getFrameBlocks(int frameIndex) {
+        return frameIndex == getFrameCount() - 1 ? finalFrameBlocks : blocksPerFrame;
+    }
+
+    /**
+     * Returns the largest value returned by {@link #getFrameSize(int)}.
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+}
@@ -0,0 +1,295 @@
+package com.glee.exoffmpeg.ape;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.metadata.Metadata;
+import com.google.android.exoplayer2.metadata.id3.ApicFrame;
+import com.google.android.exoplayer2.metadata.id3.CommentFrame;
+import com.google.android.exoplayer2.metadata.id3.TextInformationFrame;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * description 解析文件末尾的 APE 和 ID3v1 标签，转换为 ID3 帧，和 ID3v2 的元数据一样使用
+ * <p>
+ * Tags are read in two steps. {@link #readFooter} decodes the last {@link #FOOTER_BYTES} of the
+ * file, which hold the ID3v1 tag and the footer giving the size of the APE tag. If there is an
+ * APE tag, {@link #readItems} then reads its items from the input, however large the tag is:
+ * binary items are skipped, except for cover art of up to {@link #MAX_PICTURE_BYTES}. If both
+ * tags are present, the APE tag is used, since ID3v1 is usually a truncated copy of it. APEv1
+ * tags hold ISO-8859-1 text, APEv2 tags hold UTF-8 text.
+ */
+/* package */ final class APETagDecoder {
+
+    private static final int ID3V1_TAG_BYTES = 128;
+    private static final int APE_TAG_FOOTER_BYTES = 32;
+
+    /**
+     * 文件末尾 ID3v1 标签和 APE 标签尾部的最大字节数
+     */
+    public static final int FOOTER_BYTES = ID3V1_TAG_BYTES + APE_TAG_FOOTER_BYTES;
+    /**
+     * 读取的封面的最大字节数，更大的封面被跳过
+     */
+    public static final int MAX_PICTURE_BYTES = 16 * 1024 * 1024;
+
+    private static final int APE_TAG_VERSION_2 = 2000;
+    private static final int APE_TAG_FLAG_HAS_HEADER = 1 << 31;
+    private static final int APE_ITEM_HEADER_BYTES = 8;
+    private static final int APE_ITEM_TYPE_MASK = 0x06;
+    private static final int APE_ITEM_TYPE_TEXT = 0;
+    private static final int APE_ITEM_TYPE_BINARY = 0x02;
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * APE 标签条目开始处到文件末尾的字节数，没有 APE 标签时为 0
+     */
+    private int itemsStartFromEnd;
+    /**
+     * APE 标签条目的总字节数
+     */
+    private int itemsSize;
+    private int itemCount;
+    private boolean isApeV1;
+
+    /**
+     * Decodes the footer of the tags at the end of {@code data}, and the ID3v1 tag if there is no
+     * APE tag.
+     *
+     * @param data    The end of the file, up to {@link #FOOTER_BYTES} long.
+     * @param length  The number of valid bytes in {@code data}.
+     * @param entries Receives the decoded ID3v1 tag items.
+     * @return The number of bytes at the end of the file taken by tags.
+     */
+    public int readFooter(byte[] data, int length, List<Metadata.Entry> entries) {
+        itemsStartFromEnd = 0;
+        itemsSize = 0;
+        itemCount = 0;
+        int end = length;
+        int id3v1Offset = C.INDEX_UNSET;
+        if (end >= ID3V1_TAG_BYTES && data[end - ID3V1_TAG_BYTES] == 'T'
+                && data[end - ID3V1_TAG_BYTES + 1] == 'A' && data[end - ID3V1_TAG_BYTES + 2] == 'G') {
+            id3v1Offset = end - ID3V1_TAG_BYTES;
+            end = id3v1Offset;
+        }
+        int apeTagBytes = 0;
+        if (end >= APE_TAG_FOOTER_BYTES && Util.fromUtf8Bytes(data, end - APE_TAG_FOOTER_BYTES, 8)
+                .equals("APETAGEX")) {
+            ParsableByteArray footer = new ParsableByteArray(data, end);
+            footer.setPosition(end - APE_TAG_FOOTER_BYTES + 8);
+            int version = footer.readLittleEndianInt();
+            // 标签长度包括条目和尾部，不包括头部
+            int tagSize = footer.readLittleEndianInt();
+            int count = footer.readLittleEndianInt();
+            int flags = footer.readLittleEndianInt();
+            if (tagSize >= APE_TAG_FOOTER_BYTES
+                    && tagSize <= Integer.MAX_VALUE - APE_TAG_FOOTER_BYTES - length) {
+                apeTagBytes = tagSize + ((flags & APE_TAG_FLAG_HAS_HEADER) != 0
+                        ? APE_TAG_FOOTER_BYTES : 0);
+                itemsStartFromEnd = length - end + tagSize;
+                itemsSize = tagSize - APE_TAG_FOOTER_BYTES;
+                itemCount = count;
+                isApeV1 = version < APE_TAG_VERSION_2;
+            }
+        }
+        if (apeTagBytes == 0 && id3v1Offset != C.INDEX_UNSET) {
+            decodeId3v1(data, id3v1Offset, entries);
+        }
+        return length - end + apeTagBytes;
+    }
+
+    /**
+     * 返回 APE 标签条目开始处到文件末尾的字节数，没有 APE 标签条目要读时返回 0
+     */
+    public int getItemsStartFromEnd() {
+        return itemCount > 0 && itemsSize > 0 ? itemsStartFromEnd : 0;
+    }
+
+    /**
+     * Reads the items of the APE tag found by {@link #readFooter}.
+     *
+     * @param input   The input, positioned at the start of the items.
+     * @param entries Receives the decoded tag items, once all items have been read.
+     * @throws IOException          If an error occurs reading from the input.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public void readItems(ExtractorInput input, List<Metadata.Entry> entries)
+            throws IOException, InterruptedException {
+        List<Metadata.Entry> itemEntries = new ArrayList<>();
+        ParsableByteArray scratch = new ParsableByteArray(APE_ITEM_HEADER_BYTES);
+        int bytesLeft = itemsSize;
+        for (int i = 0; i < itemCount && bytesLeft >= APE_ITEM_HEADER_BYTES; i++) {
+            scratch.reset();
+            input.readFully(scratch.data, 0, APE_ITEM_HEADER_BYTES);
+            bytesLeft -= APE_ITEM_HEADER_BYTES;
+            int valueSize = scratch.readLittleEndianInt();
+            int itemFlags = scratch.readLittleEndianInt();
+            String key = readKey(input, bytesLeft);
+            if (key == null) {
+                // 键超出标签范围，标签已损坏
+                break;
+            }
+            bytesLeft -= key.length() + 1;
+            if (valueSize < 0 || valueSize > bytesLeft) {
+                // 值超出标签范围，标签已损坏
+                break;
+            }
+            bytesLeft -= valueSize;
+            key = Util.toLowerInvariant(key);
+            // APEv1 没有条目类型，都是文本
+            int type = isApeV1 ? APE_ITEM_TYPE_TEXT : itemFlags & APE_ITEM_TYPE_MASK;
+            if (type == APE_ITEM_TYPE_TEXT) {
+                byte[] value = new byte[valueSize];
+                input.readFully(value, 0, valueSize);
+                // 多个值以 \0 分隔
+                addTextEntry(key, new String(value, isApeV1 ? ISO_8859_1 : UTF_8)
+                        .replace('\0', '/'), itemEntries);
+            } else if (type == APE_ITEM_TYPE_BINARY && key.startsWith("cover art")
+                    && valueSize <= MAX_PICTURE_BYTES) {
+                byte[] value = new byte[valueSize];
+                input.readFully(value, 0, valueSize);
+                addPictureEntry(key, value, 0, valueSize, itemEntries);
+            } else {
+                input.skipFully(valueSize);
+            }
+        }
+        entries.addAll(itemEntries);
+    }
+
+    /**
+     * 读取以 \0 结尾的键，键超出 {@code bytesLeft} 时返回 null
+     */
+    @Nullable
+    private static String readKey(ExtractorInput input, int bytesLeft)
+            throws IOException, InterruptedException {
+        StringBuilder key = new StringBuilder();
+        byte[] buffer = new byte[1];
+        while (key.length() < bytesLeft) {
+            input.readFully(buffer, 0, 1);
+            if (buffer[0] == 0) {
+                return key.toString();
+            }
+            // 键只能是 ASCII 字符
+            key.append((char) (buffer[0] & 0xFF));
+        }
+        return null;
+    }
+
+    private static void addTextEntry(String key, String value, List<Metadata.Entry> entries) {
+        if (value.isEmpty()) {
+            return;
+        }
+        String id;
+        switch (key) {
+            case "title":
+                id = "TIT2";
+                break;
+            case "artist":
+                id = "TPE1";
+                break;
+            case "album":
+                id = "TALB";
+                break;
+            case "album artist":
+            case "albumartist":
+                id = "TPE2";
+                break;
+            case "composer":
+                id = "TCOM";
+                break;
+            case "genre":
+                id = "TCON";
+                break;
+            case "year":
+                id = "TYER";
+                break;
+            case "track":
+                id = "TRCK";
+                break;
+            case "disc":
+                id = "TPOS";
+                break;
+            case "comment":
+                entries.add(new CommentFrame(C.LANGUAGE_UNDETERMINED, "", value));
+                return;
+            default:
+                entries.add(new TextInformationFrame("TXXX", key, value));
+                return;
+        }
+        entries.add(new TextInformationFrame(id, null, value));
+    }
+
+    /**
+     * 封面的值是文件名、\0、图片数据
+     */
+    private static void addPictureEntry(String key, byte[] data, int offset, int length,
+                                        List<Metadata.Entry> entries) {
+        int nameEnd = offset;
+        while (nameEnd < offset + length && data[nameEnd] != 0) {
+            nameEnd++;
+        }
+        int imageStart = nameEnd + 1;
+        int imageLength = offset + length - imageStart;
+        if (imageLength < 4) {
+            return;
+        }
+        String mimeType;
+        if ((data[imageStart] & 0xFF) == 0xFF && (data[imageStart + 1] & 0xFF) == 0xD8) {
+            mimeType = "image/jpeg";
+        } else if ((data[imageStart] & 0xFF) == 0x89 && data[imageStart + 1] == 'P'
+                && data[imageStart + 2] == 'N' && data[imageStart + 3] == 'G') {
+            mimeType = "image/png";
+        } else {
+            return;
+        }
+        String description = new String(data, offset, nameEnd - offset, UTF_8);
+        // ID3 图片类型：3 为封面，4 为封底
+        int pictureType = key.equals("cover art (back)") ? 4 : 3;
+        byte[] image = new byte[imageLength];
+        System.arraycopy(data, imageStart, image, 0, imageLength);
+        entries.add(new ApicFrame(mimeType, description, pictureType, image));
+    }
+
+    private static void decodeId3v1(byte[] data, int offset, List<Metadata.Entry> entries) {
+        addId3v1Entry("TIT2", readId3v1String(data, offset + 3, 30), entries);
+        addId3v1Entry("TPE1", readId3v1String(data, offset + 33, 30), entries);
+        addId3v1Entry("TALB", readId3v1String(data, offset + 63, 30), entries);
+        addId3v1Entry("TYER", readId3v1String(data, offset + 93, 4), entries);
+        // ID3v1.1：注释第 29 字节为 0 时，第 30 字节是曲目号
+        boolean hasTrack = data[offset + 125] == 0 && data[offset + 126] != 0;
+        String comment = readId3v1String(data, offset + 97, hasTrack ? 28 : 30);
+        if (!comment.isEmpty()) {
+            entries.add(new CommentFrame(C.LANGUAGE_UNDETERMINED, "", comment));
+        }
+        if (hasTrack) {
+            addId3v1Entry("TRCK", Integer.toString(data[offset + 126] & 0xFF), entries);
+        }
+        int genre = data[offset + 127] & 0xFF;
+        if (genre != 0xFF) {
+            // 与 ID3v2 相同，用 (n) 表示预定义的流派
+            addId3v1Entry("TCON", "(" + genre + ")", entries);
+        }
+    }
+
+    private static void addId3v1Entry(String id, String value, List<Metadata.Entry> entries) {
+        if (!value.isEmpty()) {
+            entries.add(new TextInformationFrame(id, null, value));
+        }
+    }
+
+    private static String readId3v1String(byte[] data, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, ISO_8859_1).trim();
+    }
+}
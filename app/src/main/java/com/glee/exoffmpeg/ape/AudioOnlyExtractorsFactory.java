@@ -1,5 +1,9 @@
 package com.glee.exoffmpeg.ape;
 
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.ext.flac.FlacExtractor;
 import com.google.android.exoplayer2.extractor.Extractor;
 import com.google.android.exoplayer2.extractor.ExtractorsFactory;
@@ -9,15 +13,36 @@ import com.google.android.exoplayer2.extractor.ogg.OggExtractor;
 import com.google.android.exoplayer2.extractor.ts.Ac3Extractor;
 import com.google.android.exoplayer2.extractor.ts.AdtsExtractor;
 import com.google.android.exoplayer2.extractor.wav.WavExtractor;
+import com.google.android.exoplayer2.util.Util;
 
 /**
  * @author liji
  * @date 10/17/2018 8:07 PM
- * description
+ * description 只包含音频格式的提取器工厂。返回一个 {@link DispatchingExtractor}，它只预读一次文件头，
+ * 按签名和扩展名决定嗅探顺序，只创建需要嗅探的提取器。扩展名取自 {@link #createExtractors(Uri)}
+ * 传入的 Uri，所以一个工厂可以用于多个源
  */
 
 
 public class AudioOnlyExtractorsFactory implements ExtractorsFactory {
+
+    /* package */ static final int TYPE_UNKNOWN = C.INDEX_UNSET;
+    /* package */ static final int TYPE_MP3 = 0;
+    /* package */ static final int TYPE_FLAC = 1;
+    /* package */ static final int TYPE_ADTS = 2;
+    /* package */ static final int TYPE_AC3 = 3;
+    /* package */ static final int TYPE_OGG = 4;
+    /* package */ static final int TYPE_WAV = 5;
+    /* package */ static final int TYPE_AMR = 6;
+    /* package */ static final int TYPE_APE = 7;
+    /**
+     * The order in which formats are sniffed when neither the signature nor the file extension
+     * identify the format.
+     */
+    /* package */ static final int[] DEFAULT_ORDER = {
+            TYPE_MP3, TYPE_FLAC, TYPE_ADTS, TYPE_AC3, TYPE_OGG, TYPE_WAV, TYPE_AMR, TYPE_APE
+    };
+
     private boolean constantBitrateSeekingEnabled;
     private @AdtsExtractor.Flags
     int adtsFlags;
@@ -84,31 +109,95 @@ public class AudioOnlyExtractorsFactory implements ExtractorsFactory {
         return this;
     }
 
-
     @Override
     public Extractor[] createExtractors() {
+        return new Extractor[]{new DispatchingExtractor(this, TYPE_UNKNOWN)};
+    }
+
+    /**
+     * 文件头不能确定格式时，先嗅探 {@code uri} 的扩展名对应的格式
+     */
+    @Override
+    public Extractor[] createExtractors(Uri uri) {
         return new Extractor[]{
-                new Mp3Extractor(
+                new DispatchingExtractor(this, getTypeForPath(uri.getLastPathSegment()))};
+    }
+
+    /**
+     * Creates the extractor for one of the {@code TYPE_*} formats.
+     */
+    /* package */ synchronized Extractor createExtractor(int type) {
+        switch (type) {
+            case TYPE_MP3:
+                return new Mp3Extractor(
                         mp3Flags
                                 | (constantBitrateSeekingEnabled
                                 ? Mp3Extractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING
-                                : 0)),
-                new FlacExtractor(),
-                new AdtsExtractor(
+                                : 0));
+            case TYPE_FLAC:
+                return new FlacExtractor();
+            case TYPE_ADTS:
+                return new AdtsExtractor(
                         /* firstStreamSampleTimestampUs= */ 0,
                         adtsFlags
                                 | (constantBitrateSeekingEnabled
                                 ? AdtsExtractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING
-                                : 0)),
-                new Ac3Extractor(),
-                new OggExtractor(),
-                new WavExtractor(),
-                new AmrExtractor(
+                                : 0));
+            case TYPE_AC3:
+                return new Ac3Extractor();
+            case TYPE_OGG:
+                return new OggExtractor();
+            case TYPE_WAV:
+                return new WavExtractor();
+            case TYPE_AMR:
+                return new AmrExtractor(
                         amrFlags
                                 | (constantBitrateSeekingEnabled
                                 ? AmrExtractor.FLAG_ENABLE_CONSTANT_BITRATE_SEEKING
-                                : 0)),
-                new APEExtractor()
-        };
+                                : 0));
+            case TYPE_APE:
+                return new APEExtractor();
+            default:
+                throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+
+    /**
+     * 返回文件名或路径的扩展名对应的格式，没有扩展名或不认识时返回 {@link #TYPE_UNKNOWN}
+     */
+    /* package */ static int getTypeForPath(@Nullable String path) {
+        if (path == null) {
+            return TYPE_UNKNOWN;
+        }
+        int extensionStart = path.lastIndexOf('.') + 1;
+        if (extensionStart == 0 || path.indexOf('/', extensionStart) >= 0) {
+            return TYPE_UNKNOWN;
+        }
+        switch (Util.toLowerInvariant(path.substring(extensionStart))) {
+            case "mp3":
+                return TYPE_MP3;
+            case "flac":
+            case "fla":
+                return TYPE_FLAC;
+            case "aac":
+            case "adts":
+                return TYPE_ADTS;
+            case "ac3":
+            case "ec3":
+                return TYPE_AC3;
+            case "ogg":
+            case "oga":
+            case "opus":
+                return TYPE_OGG;
+            case "wav":
+            case "wave":
+                return TYPE_WAV;
+            case "amr":
+                return TYPE_AMR;
+            case "ape":
+                return TYPE_APE;
+            default:
+                return TYPE_UNKNOWN;
+        }
     }
 }
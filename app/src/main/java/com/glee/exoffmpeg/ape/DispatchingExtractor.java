@@ -0,0 +1,196 @@
+package com.glee.exoffmpeg.ape;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.metadata.id3.Id3Decoder;
+import com.google.android.exoplayer2.util.Assertions;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.DEFAULT_ORDER;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_AC3;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_ADTS;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_AMR;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_APE;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_FLAC;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_MP3;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_OGG;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_UNKNOWN;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_WAV;
+
+/**
+ * description 只预读一次文件头，根据签名和扩展名对候选格式排序，按顺序创建并嗅探提取器，
+ * 选中后把所有调用转发给它
+ * <p>
+ * The signature is read after skipping a leading ID3v2 tag. When it identifies a format, that
+ * format's extractor is normally the only one created. Otherwise the extension hint and then the
+ * default order decide which extractors are tried, so unusual files are still recognized.
+ */
+/* package */ final class DispatchingExtractor implements Extractor {
+
+    /**
+     * 签名最长的是 WAV："RIFF" + 4 字节长度 + "WAVE"
+     */
+    private static final int SIGNATURE_LENGTH = 12;
+    private static final int ID3_FLAG_FOOTER_PRESENT = 0x10;
+
+    private final AudioOnlyExtractorsFactory factory;
+    private final int extensionHintType;
+    private final byte[] header;
+
+    @Nullable
+    private Extractor extractor;
+
+    /**
+     * @param factory           用于创建各个格式的提取器
+     * @param extensionHintType 文件扩展名对应的格式，未知时为 {@link AudioOnlyExtractorsFactory#TYPE_UNKNOWN}
+     */
+    /* package */ DispatchingExtractor(AudioOnlyExtractorsFactory factory, int extensionHintType) {
+        this.factory = factory;
+        this.extensionHintType = extensionHintType;
+        header = new byte[Math.max(SIGNATURE_LENGTH, Id3Decoder.ID3_HEADER_LENGTH)];
+    }
+
+    @Override
+    public boolean sniff(ExtractorInput input) throws IOException, InterruptedException {
+        int signatureType;
+        try {
+            signatureType = peekSignatureType(input);
+        } catch (EOFException e) {
+            // 文件太短，交给各个提取器自己判断
+            signatureType = TYPE_UNKNOWN;
+        } finally {
+            input.resetPeekPosition();
+        }
+        for (int type : getSniffOrder(signatureType)) {
+            Extractor candidate = factory.createExtractor(type);
+            boolean matched = false;
+            try {
+                matched = candidate.sniff(input);
+            } catch (EOFException e) {
+                // 继续尝试下一个格式
+            } finally {
+                input.resetPeekPosition();
+            }
+            if (matched) {
+                extractor = candidate;
+                return true;
+            }
+            candidate.release();
+        }
+        return false;
+    }
+
+    @Override
+    public void init(ExtractorOutput output) {
+        Assertions.checkNotNull(extractor).init(output);
+    }
+
+    @Override
+    public int read(ExtractorInput input, PositionHolder seekPosition)
+            throws IOException, InterruptedException {
+        return Assertions.checkNotNull(extractor).read(input, seekPosition);
+    }
+
+    @Override
+    public void seek(long position, long timeUs) {
+        if (extractor != null) {
+            extractor.seek(position, timeUs);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (extractor != null) {
+            extractor.release();
+        }
+    }
+
+    /**
+     * 按签名、扩展名、默认顺序排列要嗅探的格式，每种格式只出现一次
+     */
+    private int[] getSniffOrder(int signatureType) {
+        int[] order = new int[DEFAULT_ORDER.length];
+        int count = 0;
+        if (signatureType != TYPE_UNKNOWN) {
+            order[count++] = signatureType;
+        }
+        if (extensionHintType != TYPE_UNKNOWN && extensionHintType != signatureType) {
+            order[count++] = extensionHintType;
+        }
+        for (int type : DEFAULT_ORDER) {
+            if (type != signatureType && type != extensionHintType) {
+                order[count++] = type;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * 预读文件头（跳过 ID3v2 标签），返回签名对应的格式，无法识别时返回
+     * {@link AudioOnlyExtractorsFactory#TYPE_UNKNOWN}
+     */
+    private int peekSignatureType(ExtractorInput input) throws IOException, InterruptedException {
+        if (!input.peekFully(header, 0, SIGNATURE_LENGTH, /* allowEndOfInput= */ true)) {
+            return TYPE_UNKNOWN;
+        }
+        boolean hasId3Tag = false;
+        if (header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+            hasId3Tag = true;
+            // 标签长度是 synchsafe 整数，每字节只用低 7 位
+            int tagLength = ((header[6] & 0x7F) << 21) | ((header[7] & 0x7F) << 14)
+                    | ((header[8] & 0x7F) << 7) | (header[9] & 0x7F);
+            if ((header[5] & ID3_FLAG_FOOTER_PRESENT) != 0) {
+                tagLength += Id3Decoder.ID3_HEADER_LENGTH;
+            }
+            input.resetPeekPosition();
+            if (!input.advancePeekPosition(Id3Decoder.ID3_HEADER_LENGTH + tagLength, true)
+                    || !input.peekFully(header, 0, SIGNATURE_LENGTH, true)) {
+                return TYPE_MP3;
+            }
+        }
+        int type = getSignatureType(header);
+        // 带 ID3v2 标签又不认识的文件多半是 MP3（同步字前可能有填充）
+        return type == TYPE_UNKNOWN && hasId3Tag ? TYPE_MP3 : type;
+    }
+
+    private static int getSignatureType(byte[] data) {
+        if (startsWith(data, 0, "fLaC")) {
+            return TYPE_FLAC;
+        } else if (startsWith(data, 0, "MAC ")) {
+            return TYPE_APE;
+        } else if (startsWith(data, 0, "OggS")) {
+            return TYPE_OGG;
+        } else if (startsWith(data, 0, "RIFF") && startsWith(data, 8, "WAVE")) {
+            return TYPE_WAV;
+        } else if (startsWith(data, 0, "#!AMR")) {
+            return TYPE_AMR;
+        } else if ((data[0] & 0xFF) == 0x0B && (data[1] & 0xFF) == 0x77) {
+            return TYPE_AC3;
+        } else if ((data[0] & 0xFF) == 0xFF) {
+            int b1 = data[1] & 0xFF;
+            if ((b1 & 0xF6) == 0xF0) {
+                // ADTS 同步字 0xFFF，layer 固定为 0
+                return TYPE_ADTS;
+            } else if ((b1 & 0xE0) == 0xE0 && (b1 & 0x06) != 0) {
+                // MPEG 音频同步字 11 位，layer 不能为保留值 0
+                return TYPE_MP3;
+            }
+        }
+        return TYPE_UNKNOWN;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String signature) {
+        for (int i = 0; i < signature.length(); i++) {
+            if (data[offset + i] != signature.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,164 @@
+package com.glee.exoffmpeg.batch;
+
+import android.content.Context;
+import android.net.Uri;
+
+import com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DefaultDataSourceFactory;
+import com.google.android.exoplayer2.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * description 不经过播放器，批量把音频文件解码为 PCM，例如用于整个曲库的 ReplayGain 扫描
+ * <p>
+ * Each source is extracted with the extractors of an {@link ExtractorsFactory} (by default
+ * {@link AudioOnlyExtractorsFactory}, so FLAC is decoded by libflac inside the extractor) and, if
+ * the extracted samples are not already PCM, decoded by the APE or FFmpeg decoder. Sources are
+ * decoded in parallel on a fixed number of worker threads; further sources wait in a queue.
+ */
+public final class BatchDecoder {
+
+    /**
+     * Receives progress of a batch. Methods are called on the worker thread decoding the source.
+     */
+    public interface Listener {
+
+        /**
+         * Called periodically while a source is decoded.
+         *
+         * @param source     The source.
+         * @param positionUs The duration of audio decoded so far.
+         * @param durationUs The duration of the source, or {@link C#TIME_UNSET} if unknown.
+         */
+        void onProgress(Uri source, long positionUs, long durationUs);
+
+        /**
+         * Called when a source has been decoded completely.
+         */
+        void onCompleted(Uri source, Result result);
+
+        /**
+         * Called when decoding a source fails or is canceled.
+         */
+        void onError(Uri source, Exception error);
+    }
+
+    /**
+     * The outcome of decoding one source.
+     */
+    public static final class Result {
+
+        /**
+         * The decoded source.
+         */
+        public final Uri source;
+        /**
+         * The duration of the decoded audio, in microseconds.
+         */
+        public final long durationUs;
+        /**
+         * The wall clock time taken to decode the source, in microseconds.
+         */
+        public final long elapsedUs;
+        /**
+         * The number of bytes of PCM that were decoded.
+         */
+        public final long pcmBytes;
+
+        /* package */ Result(Uri source, long durationUs, long elapsedUs, long pcmBytes) {
+            this.source = source;
+            this.durationUs = durationUs;
+            this.elapsedUs = elapsedUs;
+            this.pcmBytes = pcmBytes;
+        }
+
+        /**
+         * Returns how many times faster than realtime the source was decoded.
+         */
+        public double getRealtimeFactor() {
+            return elapsedUs > 0 ? (double) durationUs / elapsedUs : 0;
+        }
+    }
+
+    private final DataSource.Factory dataSourceFactory;
+    private final ExtractorsFactory extractorsFactory;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a decoder reading local files and content URIs, with one worker per core.
+     */
+    public BatchDecoder(Context context) {
+        this(new DefaultDataSourceFactory(context,
+                        Util.getUserAgent(context, context.getPackageName())),
+                new AudioOnlyExtractorsFactory(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param dataSourceFactory Creates the data sources from which sources are read. Local files
+     *                          are read without intermediate copies when it creates
+     *                          {@link com.google.android.exoplayer2.upstream.MappedFileDataSource}s.
+     * @param extractorsFactory Creates the extractors that are tried for each source, given the
+     *                          source's {@link Uri} so that it can try the format of the file
+     *                          extension first.
+     * @param threadCount       The number of sources decoded in parallel.
+     */
+    public BatchDecoder(DataSource.Factory dataSourceFactory, ExtractorsFactory extractorsFactory,
+                        int threadCount) {
+        this.dataSourceFactory = dataSourceFactory;
+        this.extractorsFactory = extractorsFactory;
+        executor = new ThreadPoolExecutor(threadCount, threadCount,
+                /* keepAliveTime= */ 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), new WorkerThreadFactory());
+    }
+
+    /**
+     * Queues the sources for decoding.
+     *
+     * @param sources     The sources to decode.
+     * @param sinkFactory Creates the {@link PcmSink} to which each source is decoded.
+     * @param listener    Receives progress and results.
+     * @return A future for each source, in the same order, which can be used to wait for or cancel
+     * decoding. A future fails with the same exception that is passed to
+     * {@link Listener#onError}.
+     */
+    public List<Future<Result>> decode(List<Uri> sources, PcmSink.Factory sinkFactory,
+                                       Listener listener) {
+        List<Future<Result>> futures = new ArrayList<>(sources.size());
+        for (Uri source : sources) {
+            futures.add(executor.submit(new DecodeTask(source, dataSourceFactory.createDataSource(),
+                    extractorsFactory, sinkFactory, listener)));
+        }
+        return futures;
+    }
+
+    /**
+     * Cancels all queued and running sources and stops the worker threads.
+     */
+    public void release() {
+        executor.shutdownNow();
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "BatchDecoder:" + threadCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
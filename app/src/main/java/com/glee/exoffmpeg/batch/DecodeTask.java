@@ -0,0 +1,429 @@
+package com.glee.exoffmpeg.batch;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+
+import com.glee.exoffmpeg.ape.APEDecoder;
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.decoder.Decoder;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.decoder.SimpleOutputBuffer;
+import com.google.android.exoplayer2.ext.ffmpeg.FfmpegDecoder;
+import com.google.android.exoplayer2.ext.ffmpeg.FfmpegLibrary;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.DummyTrackOutput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.ExtractorsFactory;
+import com.google.android.exoplayer2.extractor.MappedExtractorInput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.source.UnrecognizedInputFormatException;
+import com.google.android.exoplayer2.upstream.DataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.upstream.MappedFileDataSource;
+import com.google.android.exoplayer2.util.MimeTypes;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * description 在工作线程中解码一个文件：提取样本，需要时送入解码器，再把 PCM 写入 {@link PcmSink}
+ * <p>
+ * The task is its own {@link ExtractorOutput} and {@link TrackOutput}. Samples of the first audio
+ * track are collected while the extractor reads, then handled after each read, because the
+ * {@link TrackOutput} callbacks cannot throw the checked exceptions that decoding and writing do.
+ */
+/* package */ final class DecodeTask
+        implements Callable<BatchDecoder.Result>, ExtractorOutput, TrackOutput {
+
+    private static final int APE_BUFFER_COUNT = 4;
+    private static final int FFMPEG_BUFFER_COUNT = 16;
+    private static final int DEFAULT_INPUT_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Packets of short-frame codecs are decoded into output buffers of up to this duration.
+     */
+    private static final long FFMPEG_MAX_BATCH_DURATION_US = 100000;
+    private static final long PROGRESS_INTERVAL_US = C.MICROS_PER_SECOND;
+    /**
+     * How long to wait for the decoder thread when it has neither free input nor output buffers.
+     */
+    private static final long DECODER_WAIT_NANOS = 100000;
+    private static final int INITIAL_SAMPLE_CAPACITY = 16;
+
+    private final Uri source;
+    private final DataSource dataSource;
+    private final ExtractorsFactory extractorsFactory;
+    private final PcmSink.Factory sinkFactory;
+    private final BatchDecoder.Listener listener;
+    private final PositionHolder positionHolder;
+
+    private @Nullable
+    Extractor extractor;
+    private int audioTrackId;
+    private long durationUs;
+    private @Nullable
+    Format format;
+
+    //提取器写入、尚未处理的样本
+    private byte[] pendingData;
+    private int pendingSize;
+    private long[] sampleTimesUs;
+    private int[] sampleEnds;
+    private int[] sampleSizes;
+    private int sampleCount;
+
+    private @Nullable
+    Decoder<DecoderInputBuffer, SimpleOutputBuffer, ? extends Exception> decoder;
+    private boolean outputEnded;
+    private @Nullable
+    PcmSink sink;
+    private boolean sinkStarted;
+    private int pcmFrameSize;
+    private int sampleRate;
+    private long pcmBytes;
+    private long lastProgressUs;
+
+    /* package */ DecodeTask(Uri source, DataSource dataSource, ExtractorsFactory extractorsFactory,
+                             PcmSink.Factory sinkFactory, BatchDecoder.Listener listener) {
+        this.source = source;
+        this.dataSource = dataSource;
+        this.extractorsFactory = extractorsFactory;
+        this.sinkFactory = sinkFactory;
+        this.listener = listener;
+        positionHolder = new PositionHolder();
+        audioTrackId = C.INDEX_UNSET;
+        durationUs = C.TIME_UNSET;
+        pendingData = new byte[DEFAULT_INPUT_BUFFER_SIZE];
+        sampleTimesUs = new long[INITIAL_SAMPLE_CAPACITY];
+        sampleEnds = new int[INITIAL_SAMPLE_CAPACITY];
+        sampleSizes = new int[INITIAL_SAMPLE_CAPACITY];
+    }
+
+    @Override
+    public BatchDecoder.Result call() throws Exception {
+        BatchDecoder.Result result;
+        try {
+            result = decodeToSink();
+        } catch (Exception e) {
+            listener.onError(source, e);
+            throw e;
+        }
+        listener.onCompleted(source, result);
+        return result;
+    }
+
+    private BatchDecoder.Result decodeToSink() throws Exception {
+        long startTimeUs = System.nanoTime() / 1000;
+        PcmSink sink = sinkFactory.createSink(source);
+        this.sink = sink;
+        boolean completed = false;
+        try {
+            extract();
+            if (decoder != null) {
+                drainToEndOfStream();
+            }
+            if (format == null) {
+                throw new ParserException("No audio track in " + source);
+            }
+            completed = true;
+        } finally {
+            Util.closeQuietly(dataSource);
+            if (extractor != null) {
+                extractor.release();
+            }
+            if (decoder != null) {
+                decoder.release();
+            }
+            if (!completed) {
+                try {
+                    sink.end(/* completed= */ false);
+                } catch (IOException e) {
+                    // 已经在处理更早的错误
+                }
+            }
+        }
+        sink.end(/* completed= */ true);
+        long elapsedUs = System.nanoTime() / 1000 - startTimeUs;
+        return new BatchDecoder.Result(source, getDecodedDurationUs(), elapsedUs, pcmBytes);
+    }
+
+    private void extract() throws Exception {
+        long position = 0;
+        while (true) {
+            long length = dataSource.open(
+                    new DataSpec(source, position, C.LENGTH_UNSET, /* key= */ null));
+            if (length != C.LENGTH_UNSET) {
+                length += position;
+            }
+            ExtractorInput input = dataSource instanceof MappedFileDataSource
+                    ? new MappedExtractorInput((MappedFileDataSource) dataSource, position, length)
+                    : new DefaultExtractorInput(dataSource, position, length);
+            Extractor extractor = this.extractor;
+            if (extractor == null) {
+                extractor = selectExtractor(input);
+                this.extractor = extractor;
+                extractor.init(this);
+            }
+            int result = Extractor.RESULT_CONTINUE;
+            while (result == Extractor.RESULT_CONTINUE) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                result = extractor.read(input, positionHolder);
+                handlePendingSamples();
+            }
+            dataSource.close();
+            if (result != Extractor.RESULT_SEEK) {
+                return;
+            }
+            position = positionHolder.position;
+        }
+    }
+
+    private Extractor selectExtractor(ExtractorInput input)
+            throws IOException, InterruptedException {
+        Extractor[] extractors = extractorsFactory.createExtractors(source);
+        for (Extractor extractor : extractors) {
+            try {
+                if (extractor.sniff(input)) {
+                    return extractor;
+                }
+            } catch (EOFException e) {
+                // 文件比这种格式的头部还短
+            } finally {
+                input.resetPeekPosition();
+            }
+        }
+        throw new UnrecognizedInputFormatException("None of the available extractors ("
+                + Util.getCommaDelimitedSimpleClassNames(extractors)
+                + ") could read the stream.", source);
+    }
+
+    private void handlePendingSamples() throws Exception {
+        if (sampleCount == 0) {
+            return;
+        }
+        Format format = this.format;
+        if (format == null) {
+            throw new ParserException("Sample before format in " + source);
+        }
+        if (!sinkStarted && decoder == null) {
+            if (MimeTypes.AUDIO_RAW.equals(format.sampleMimeType)) {
+                startSink(format.sampleRate, format.channelCount, format.pcmEncoding);
+            } else {
+                decoder = createDecoder(format);
+            }
+        }
+        int consumed = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            int size = sampleSizes[i];
+            int start = sampleEnds[i] - size;
+            if (decoder != null) {
+                queueInputBuffer(pendingData, start, size, sampleTimesUs[i]);
+            } else {
+                writePcm(ByteBuffer.wrap(pendingData, start, size));
+            }
+            consumed = sampleEnds[i];
+        }
+        sampleCount = 0;
+        //保留属于下一个样本的数据
+        System.arraycopy(pendingData, consumed, pendingData, 0, pendingSize - consumed);
+        pendingSize -= consumed;
+    }
+
+    private Decoder<DecoderInputBuffer, SimpleOutputBuffer, ? extends Exception> createDecoder(
+            Format format) throws Exception {
+        int inputBufferSize = format.maxInputSize != Format.NO_VALUE
+                ? format.maxInputSize : DEFAULT_INPUT_BUFFER_SIZE;
+        String mimeType = format.sampleMimeType;
+        if (MimeTypes.AUDIO_APE.equals(mimeType)) {
+            return new APEDecoder(APE_BUFFER_COUNT, APE_BUFFER_COUNT, inputBufferSize, format);
+        } else if (mimeType != null && FfmpegLibrary.supportsFormat(mimeType, format.pcmEncoding)) {
+            return new FfmpegDecoder(FFMPEG_BUFFER_COUNT, FFMPEG_BUFFER_COUNT, inputBufferSize, format,
+                    /* outputFloat= */ false, FFMPEG_MAX_BATCH_DURATION_US);
+        }
+        throw new ParserException("Unsupported audio format " + mimeType + " in " + source);
+    }
+
+    private void queueInputBuffer(byte[] data, int offset, int size, long timeUs)
+            throws Exception {
+        DecoderInputBuffer inputBuffer = dequeueInputBuffer();
+        inputBuffer.ensureSpaceForWrite(size);
+        inputBuffer.data.put(data, offset, size);
+        inputBuffer.timeUs = timeUs;
+        inputBuffer.flip();
+        decoder.queueInputBuffer(inputBuffer);
+        drainOutputBuffers();
+    }
+
+    private void drainToEndOfStream() throws Exception {
+        DecoderInputBuffer inputBuffer = dequeueInputBuffer();
+        inputBuffer.setFlags(C.BUFFER_FLAG_END_OF_STREAM);
+        decoder.queueInputBuffer(inputBuffer);
+        while (!outputEnded) {
+            awaitDecoder();
+        }
+    }
+
+    private DecoderInputBuffer dequeueInputBuffer() throws Exception {
+        DecoderInputBuffer inputBuffer;
+        while ((inputBuffer = decoder.dequeueInputBuffer()) == null) {
+            awaitDecoder();
+        }
+        return inputBuffer;
+    }
+
+    /**
+     * Writes any decoded output, or waits briefly for the decoder thread if there is none.
+     */
+    private void awaitDecoder() throws Exception {
+        if (!drainOutputBuffers()) {
+            LockSupport.parkNanos(DECODER_WAIT_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private boolean drainOutputBuffers() throws Exception {
+        boolean drained = false;
+        SimpleOutputBuffer outputBuffer;
+        while ((outputBuffer = decoder.dequeueOutputBuffer()) != null) {
+            drained = true;
+            try {
+                if (outputBuffer.isEndOfStream()) {
+                    outputEnded = true;
+                } else {
+                    if (!sinkStarted) {
+                        startSinkForDecoder();
+                    }
+                    writePcm(outputBuffer.data);
+                }
+            } finally {
+                outputBuffer.release();
+            }
+        }
+        return drained;
+    }
+
+    private void startSinkForDecoder() throws IOException {
+        //FFmpeg 解码器要在解码第一个包之后才知道输出格式
+        if (decoder instanceof FfmpegDecoder) {
+            FfmpegDecoder ffmpegDecoder = (FfmpegDecoder) decoder;
+            startSink(ffmpegDecoder.getSampleRate(), ffmpegDecoder.getChannelCount(),
+                    ffmpegDecoder.getEncoding());
+        } else {
+            APEDecoder apeDecoder = (APEDecoder) decoder;
+            startSink(apeDecoder.getSampleRate(), apeDecoder.getChannelCount(),
+                    apeDecoder.getEncoding());
+        }
+    }
+
+    private void startSink(int sampleRate, int channelCount, @C.PcmEncoding int encoding)
+            throws IOException {
+        sink.start(sampleRate, channelCount, encoding);
+        sinkStarted = true;
+        this.sampleRate = sampleRate;
+        pcmFrameSize = Util.getPcmFrameSize(encoding, channelCount);
+    }
+
+    private void writePcm(ByteBuffer pcm) throws IOException {
+        pcmBytes += pcm.remaining();
+        sink.write(pcm);
+        long positionUs = getDecodedDurationUs();
+        if (positionUs - lastProgressUs >= PROGRESS_INTERVAL_US) {
+            lastProgressUs = positionUs;
+            listener.onProgress(source, positionUs, durationUs);
+        }
+    }
+
+    private long getDecodedDurationUs() {
+        return pcmFrameSize == 0 ? 0
+                : pcmBytes / pcmFrameSize * C.MICROS_PER_SECOND / sampleRate;
+    }
+
+    // ExtractorOutput implementation.
+
+    @Override
+    public TrackOutput track(int id, int type) {
+        if (type == C.TRACK_TYPE_AUDIO && (audioTrackId == C.INDEX_UNSET || audioTrackId == id)) {
+            audioTrackId = id;
+            return this;
+        }
+        return new DummyTrackOutput();
+    }
+
+    @Override
+    public void endTracks() {
+        // Do nothing.
+    }
+
+    @Override
+    public void seekMap(SeekMap seekMap) {
+        durationUs = seekMap.getDurationUs();
+    }
+
+    // TrackOutput implementation.
+
+    @Override
+    public void format(Format format) {
+        //只使用第一个格式，解码器在第一个样本到达时创建
+        if (this.format == null) {
+            this.format = format;
+        }
+    }
+
+    @Override
+    public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput)
+            throws IOException, InterruptedException {
+        ensurePendingCapacity(pendingSize + length);
+        int bytesRead = input.read(pendingData, pendingSize, length);
+        if (bytesRead == C.RESULT_END_OF_INPUT) {
+            if (allowEndOfInput) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            throw new EOFException();
+        }
+        pendingSize += bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public void sampleData(ParsableByteArray data, int length) {
+        ensurePendingCapacity(pendingSize + length);
+        data.readBytes(pendingData, pendingSize, length);
+        pendingSize += length;
+    }
+
+    @Override
+    public void sampleMetadata(long timeUs, @C.BufferFlags int flags, int size, int offset,
+                               @Nullable CryptoData cryptoData) {
+        if (sampleCount == sampleTimesUs.length) {
+            int capacity = sampleCount * 2;
+            sampleTimesUs = Arrays.copyOf(sampleTimesUs, capacity);
+            sampleEnds = Arrays.copyOf(sampleEnds, capacity);
+            sampleSizes = Arrays.copyOf(sampleSizes, capacity);
+        }
+        sampleTimesUs[sampleCount] = timeUs;
+        sampleEnds[sampleCount] = pendingSize - offset;
+        sampleSizes[sampleCount] = size;
+        sampleCount++;
+    }
+
+    private void ensurePendingCapacity(int capacity) {
+        if (capacity > pendingData.length) {
+            pendingData = Arrays.copyOf(pendingData, Math.max(capacity, pendingData.length * 2));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.glee.exoffmpeg.batch;
+
+import android.net.Uri;
+
+import com.google.android.exoplayer2.C;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * description {@link BatchDecoder} 解码一个文件得到的 PCM 的去处，例如 {@link WavFileSink}
+ * <p>
+ * Methods are called on the worker thread that decodes the file, in the order
+ * {@link #start}, {@link #write} (zero or more times), {@link #end}. {@link #end} is called even
+ * if decoding fails.
+ */
+public interface PcmSink {
+
+    /**
+     * Creates a {@link PcmSink} for each source decoded by a {@link BatchDecoder}.
+     */
+    interface Factory {
+
+        PcmSink createSink(Uri source) throws IOException;
+    }
+
+    /**
+     * Called once the format of the decoded audio is known.
+     *
+     * @param sampleRate   The sample rate.
+     * @param channelCount The number of channels.
+     * @param encoding     The {@link C.PcmEncoding} of the interleaved samples.
+     */
+    void start(int sampleRate, int channelCount, @C.PcmEncoding int encoding) throws IOException;
+
+    /**
+     * Consumes decoded samples between the buffer's position and limit. The buffer is only valid
+     * until this method returns.
+     */
+    void write(ByteBuffer pcm) throws IOException;
+
+    /**
+     * Called after the last sample, or when decoding stops early.
+     *
+     * @param completed Whether the whole source was decoded.
+     */
+    void end(boolean completed) throws IOException;
+}
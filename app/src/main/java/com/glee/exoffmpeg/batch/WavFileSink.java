@@ -0,0 +1,93 @@
+package com.glee.exoffmpeg.batch;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * description 把 PCM 写成 WAV 文件，结束时回填 RIFF 头中的长度；解码未完成时删除文件
+ */
+public final class WavFileSink implements PcmSink {
+
+    private static final int HEADER_SIZE = 44;
+    private static final short WAVE_FORMAT_PCM = 1;
+    private static final short WAVE_FORMAT_IEEE_FLOAT = 3;
+
+    private final File file;
+    private final ByteBuffer header;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private long dataSize;
+
+    public WavFileSink(File file) {
+        this.file = file;
+        header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void start(int sampleRate, int channelCount, @C.PcmEncoding int encoding)
+            throws IOException {
+        int bytesPerSample = Util.getPcmFrameSize(encoding, /* channelCount= */ 1);
+        int blockAlign = bytesPerSample * channelCount;
+        header.clear();
+        header.putInt(0x46464952); // "RIFF"
+        header.putInt(0); // Filled in by end().
+        header.putInt(0x45564157); // "WAVE"
+        header.putInt(0x20746d66); // "fmt "
+        header.putInt(16);
+        header.putShort(encoding == C.ENCODING_PCM_FLOAT ? WAVE_FORMAT_IEEE_FLOAT : WAVE_FORMAT_PCM);
+        header.putShort((short) channelCount);
+        header.putInt(sampleRate);
+        header.putInt(sampleRate * blockAlign);
+        header.putShort((short) blockAlign);
+        header.putShort((short) (bytesPerSample * 8));
+        header.putInt(0x61746164); // "data"
+        header.putInt(0); // Filled in by end().
+        header.flip();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(0);
+        channel = randomAccessFile.getChannel();
+        writeFully(header);
+    }
+
+    @Override
+    public void write(ByteBuffer pcm) throws IOException {
+        dataSize += pcm.remaining();
+        writeFully(pcm);
+    }
+
+    @Override
+    public void end(boolean completed) throws IOException {
+        if (randomAccessFile == null) {
+            return;
+        }
+        try {
+            if (completed) {
+                header.putInt(4, (int) Math.min(dataSize + HEADER_SIZE - 8, 0xFFFFFFFFL));
+                header.putInt(HEADER_SIZE - 4, (int) Math.min(dataSize, 0xFFFFFFFFL));
+                header.rewind();
+                channel.position(0);
+                writeFully(header);
+            }
+        } finally {
+            randomAccessFile.close();
+            randomAccessFile = null;
+            channel = null;
+            if (!completed) {
+                file.delete();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.glee.exoffmpeg.cue;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.FormatHolder;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.SampleStream;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+
+import java.io.IOException;
+
+/**
+ * description CUE 中一首曲目的 {@link MediaPeriod}，是共享的整轨 {@link SharedMediaPeriod} 上的一段
+ * <p>
+ * Positions are converted between the track and the image by adding or subtracting the start of
+ * the track. A stream ends when it reads the first sample at or after the end of the track. That
+ * sample is held by the {@link SharedMediaPeriod} and delivered first by the next track, so the
+ * decoder sees one continuous stream across tracks and no sample is played by the wrong track.
+ */
+/* package */ final class CueMediaPeriod implements MediaPeriod {
+
+    /* package */ final SharedMediaPeriod sharedPeriod;
+    /* package */ final int trackIndex;
+    /**
+     * 本曲目在整轨中的起止时间，最后一首的结束时间为 {@link C#TIME_END_OF_SOURCE}
+     */
+    /* package */ final long startUs;
+    /* package */ final long endUs;
+
+    @Nullable
+    private Callback callback;
+    private TrackSampleStream[] sampleStreams;
+    private boolean hasSelectedTracks;
+
+    /* package */ CueMediaPeriod(SharedMediaPeriod sharedPeriod, int trackIndex, long startUs,
+                                 long endUs) {
+        this.sharedPeriod = sharedPeriod;
+        this.trackIndex = trackIndex;
+        this.startUs = startUs;
+        this.endUs = endUs;
+        sampleStreams = new TrackSampleStream[0];
+    }
+
+    @Override
+    public void prepare(Callback callback, long positionUs) {
+        this.callback = callback;
+        sharedPeriod.prepare(this, startUs + positionUs);
+    }
+
+    @Override
+    public void maybeThrowPrepareError() throws IOException {
+        sharedPeriod.mediaPeriod.maybeThrowPrepareError();
+    }
+
+    @Override
+    public TrackGroupArray getTrackGroups() {
+        return sharedPeriod.mediaPeriod.getTrackGroups();
+    }
+
+    @Override
+    public long selectTracks(TrackSelection[] selections, boolean[] mayRetainStreamFlags,
+                             SampleStream[] streams, boolean[] streamResetFlags, long positionUs) {
+        long imagePositionUs = sharedPeriod.selectTracks(this, selections, startUs + positionUs,
+                hasSelectedTracks);
+        hasSelectedTracks = true;
+        if (sampleStreams.length != streams.length) {
+            sampleStreams = new TrackSampleStream[streams.length];
+        }
+        for (int i = 0; i < streams.length; i++) {
+            SampleStream childStream = sharedPeriod.getStream(i);
+            if (childStream == null) {
+                streams[i] = null;
+                sampleStreams[i] = null;
+            } else if (!mayRetainStreamFlags[i] || streams[i] == null
+                    || streams[i] != sampleStreams[i]
+                    || sampleStreams[i].childStream != childStream) {
+                sampleStreams[i] = new TrackSampleStream(i, childStream);
+                streams[i] = sampleStreams[i];
+                streamResetFlags[i] = true;
+            }
+        }
+        return Math.max(0, imagePositionUs - startUs);
+    }
+
+    @Override
+    public void discardBuffer(long positionUs, boolean toKeyframe) {
+        sharedPeriod.mediaPeriod.discardBuffer(startUs + positionUs, toKeyframe);
+    }
+
+    @Override
+    public long readDiscontinuity() {
+        long discontinuityUs = sharedPeriod.mediaPeriod.readDiscontinuity();
+        return discontinuityUs == C.TIME_UNSET
+                ? C.TIME_UNSET : Math.max(0, discontinuityUs - startUs);
+    }
+
+    @Override
+    public long seekToUs(long positionUs) {
+        return Math.max(0, sharedPeriod.seekToUs(this, startUs + positionUs) - startUs);
+    }
+
+    @Override
+    public long getAdjustedSeekPositionUs(long positionUs, SeekParameters seekParameters) {
+        long adjustedPositionUs = sharedPeriod.mediaPeriod.getAdjustedSeekPositionUs(
+                startUs + positionUs, seekParameters);
+        return Math.max(0, adjustedPositionUs - startUs);
+    }
+
+    @Override
+    public long getBufferedPositionUs() {
+        return toTrackPositionUs(sharedPeriod.mediaPeriod.getBufferedPositionUs());
+    }
+
+    @Override
+    public long getNextLoadPositionUs() {
+        return toTrackPositionUs(sharedPeriod.mediaPeriod.getNextLoadPositionUs());
+    }
+
+    @Override
+    public boolean continueLoading(long positionUs) {
+        return sharedPeriod.mediaPeriod.continueLoading(startUs + positionUs);
+    }
+
+    @Override
+    public void reevaluateBuffer(long positionUs) {
+        sharedPeriod.mediaPeriod.reevaluateBuffer(startUs + positionUs);
+    }
+
+    /* package */ void onPrepared() {
+        if (callback != null) {
+            callback.onPrepared(this);
+        }
+    }
+
+    /* package */ void onContinueLoadingRequested() {
+        if (callback != null) {
+            callback.onContinueLoadingRequested(this);
+        }
+    }
+
+    /**
+     * 共享的周期 seek 之后，之前读完的流重新开始
+     */
+    /* package */ void onSharedPositionReset() {
+        for (TrackSampleStream sampleStream : sampleStreams) {
+            if (sampleStream != null) {
+                sampleStream.ended = false;
+            }
+        }
+    }
+
+    /**
+     * 把整轨中的缓冲位置转换为本曲目中的位置，已缓冲到本曲目结束时返回 {@link C#TIME_END_OF_SOURCE}，
+     * 使播放器开始准备下一首
+     */
+    private long toTrackPositionUs(long imagePositionUs) {
+        if (imagePositionUs == C.TIME_END_OF_SOURCE
+                || (endUs != C.TIME_END_OF_SOURCE && imagePositionUs >= endUs)) {
+            return C.TIME_END_OF_SOURCE;
+        }
+        return Math.max(0, imagePositionUs - startUs);
+    }
+
+    private final class TrackSampleStream implements SampleStream {
+
+        private final int streamIndex;
+        private final SampleStream childStream;
+        private boolean ended;
+
+        public TrackSampleStream(int streamIndex, SampleStream childStream) {
+            this.streamIndex = streamIndex;
+            this.childStream = childStream;
+        }
+
+        @Override
+        public boolean isReady() {
+            if (ended) {
+                return true;
+            }
+            return isReading() && (sharedPeriod.getPendingSampleTimeUs(streamIndex) != C.TIME_UNSET
+                    || childStream.isReady());
+        }
+
+        @Override
+        public void maybeThrowError() throws IOException {
+            childStream.maybeThrowError();
+        }
+
+        @Override
+        public int readData(FormatHolder formatHolder, DecoderInputBuffer buffer,
+                            boolean formatRequired) {
+            if (ended) {
+                buffer.setFlags(C.BUFFER_FLAG_END_OF_STREAM);
+                return C.RESULT_BUFFER_READ;
+            }
+            if (!isReading()) {
+                return C.RESULT_NOTHING_READ;
+            }
+            long pendingSampleTimeUs = sharedPeriod.getPendingSampleTimeUs(streamIndex);
+            if (pendingSampleTimeUs != C.TIME_UNSET && !formatRequired) {
+                // 上一首读到的跨过分轨点的帧，先于整轨中之后的帧送出
+                if (isAfterEnd(pendingSampleTimeUs)) {
+                    // 本曲目比一帧还短，帧继续留给下一首
+                    return endStream(buffer);
+                }
+                sharedPeriod.readPendingSample(streamIndex, buffer);
+                buffer.timeUs -= startUs;
+                return C.RESULT_BUFFER_READ;
+            }
+            int result = childStream.readData(formatHolder, buffer, formatRequired);
+            if (result == C.RESULT_BUFFER_READ) {
+                if (buffer.isEndOfStream()) {
+                    ended = true;
+                    sharedPeriod.setReadingTrackIndex(streamIndex, trackIndex + 1);
+                } else if (isAfterEnd(buffer.timeUs)) {
+                    // 这一帧属于下一首，留给下一首送出，本曲目到此结束
+                    sharedPeriod.setPendingSample(streamIndex, buffer);
+                    return endStream(buffer);
+                } else {
+                    buffer.timeUs -= startUs;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public int skipData(long positionUs) {
+            if (ended || !isReading()) {
+                return 0;
+            }
+            long pendingSampleTimeUs = sharedPeriod.getPendingSampleTimeUs(streamIndex);
+            if (pendingSampleTimeUs == C.TIME_UNSET) {
+                return childStream.skipData(startUs + positionUs);
+            } else if (pendingSampleTimeUs < startUs + positionUs) {
+                sharedPeriod.discardPendingSample(streamIndex);
+                return 1 + childStream.skipData(startUs + positionUs);
+            } else {
+                return 0;
+            }
+        }
+
+        private boolean isReading() {
+            return sharedPeriod.getReadingTrackIndex(streamIndex) == trackIndex;
+        }
+
+        private boolean isAfterEnd(long imageTimeUs) {
+            return endUs != C.TIME_END_OF_SOURCE && imageTimeUs >= endUs;
+        }
+
+        private int endStream(DecoderInputBuffer buffer) {
+            ended = true;
+            sharedPeriod.setReadingTrackIndex(streamIndex, trackIndex + 1);
+            buffer.clear();
+            buffer.setFlags(C.BUFFER_FLAG_END_OF_STREAM);
+            return C.RESULT_BUFFER_READ;
+        }
+    }
+}
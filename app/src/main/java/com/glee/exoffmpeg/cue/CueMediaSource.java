@@ -0,0 +1,193 @@
+package com.glee.exoffmpeg.cue;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ExoPlayer;
+import com.google.android.exoplayer2.Timeline;
+import com.google.android.exoplayer2.source.ClippingMediaSource;
+import com.google.android.exoplayer2.source.CompositeMediaSource;
+import com.google.android.exoplayer2.source.ExtractorMediaSource;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.MediaSource;
+import com.google.android.exoplayer2.upstream.Allocator;
+import com.google.android.exoplayer2.upstream.TransferListener;
+import com.google.android.exoplayer2.util.Assertions;
+
+/**
+ * description 按 CUE 分轨播放整轨镜像，每首曲目是时间线中的一个窗口
+ * <p>
+ * Unlike a {@link ClippingMediaSource} per track, all tracks share the single period of the image
+ * source (typically an {@link ExtractorMediaSource}), so the image is opened, sniffed and parsed
+ * once, and the renderers keep their decoder from one track to the next. Moving to the next track
+ * continues reading where the previous track stopped, which keeps playback gapless. The shared
+ * period is kept until the source is released, so seeking to another track does not re-open the
+ * image either.
+ */
+public final class CueMediaSource extends CompositeMediaSource<Void> {
+
+    private final MediaSource mediaSource;
+    private final CueSheet cueSheet;
+    private final Timeline.Window window;
+
+    @Nullable
+    private Object childPeriodUid;
+    @Nullable
+    private SharedMediaPeriod sharedPeriod;
+    @Nullable
+    private MediaPeriodId loadingMediaPeriodId;
+
+    /**
+     * @param mediaSource 整轨镜像，只能有一个周期
+     * @param cueSheet    镜像的分轨表
+     */
+    public CueMediaSource(MediaSource mediaSource, CueSheet cueSheet) {
+        this.mediaSource = Assertions.checkNotNull(mediaSource);
+        this.cueSheet = Assertions.checkNotNull(cueSheet);
+        window = new Timeline.Window();
+    }
+
+    @Override
+    public void prepareSourceInternal(ExoPlayer player, boolean isTopLevelSource,
+                                      @Nullable TransferListener mediaTransferListener) {
+        super.prepareSourceInternal(player, isTopLevelSource, mediaTransferListener);
+        prepareChildSource(/* id= */ null, mediaSource);
+    }
+
+    @Override
+    public MediaPeriod createPeriod(MediaPeriodId id, Allocator allocator) {
+        int trackIndex = (Integer) id.periodUid;
+        if (sharedPeriod == null) {
+            sharedPeriod = new SharedMediaPeriod(mediaSource.createPeriod(
+                    new MediaPeriodId(Assertions.checkNotNull(childPeriodUid),
+                            id.windowSequenceNumber),
+                    allocator));
+        }
+        CueMediaPeriod period = new CueMediaPeriod(sharedPeriod, trackIndex,
+                getTrackStartUs(trackIndex), getTrackEndUs(trackIndex));
+        sharedPeriod.add(period);
+        loadingMediaPeriodId = id;
+        return period;
+    }
+
+    @Override
+    public void releasePeriod(MediaPeriod mediaPeriod) {
+        // 所有曲目都释放后仍保留共享的周期，切换到其他曲目时不用重新打开和解析
+        Assertions.checkNotNull(sharedPeriod).remove((CueMediaPeriod) mediaPeriod);
+    }
+
+    @Override
+    public void releaseSourceInternal() {
+        if (sharedPeriod != null) {
+            mediaSource.releasePeriod(sharedPeriod.mediaPeriod);
+            sharedPeriod = null;
+        }
+        childPeriodUid = null;
+        loadingMediaPeriodId = null;
+        super.releaseSourceInternal();
+    }
+
+    @Override
+    protected void onChildSourceInfoRefreshed(Void id, MediaSource mediaSource, Timeline timeline,
+                                              @Nullable Object manifest) {
+        Assertions.checkState(timeline.getPeriodCount() == 1);
+        childPeriodUid = timeline.getUidOfPeriod(0);
+        timeline.getWindow(0, window);
+        refreshSourceInfo(new CueTimeline(cueSheet, window.durationUs, window.isSeekable),
+                manifest);
+    }
+
+    @Override
+    protected int getWindowIndexForChildWindowIndex(Void id, int windowIndex) {
+        return loadingMediaPeriodId == null ? windowIndex : (Integer) loadingMediaPeriodId.periodUid;
+    }
+
+    @Nullable
+    @Override
+    protected MediaPeriodId getMediaPeriodIdForChildMediaPeriodId(Void id,
+                                                                  MediaPeriodId mediaPeriodId) {
+        // 加载事件属于共享的周期，归到正在加载的曲目
+        return loadingMediaPeriodId;
+    }
+
+    private long getTrackStartUs(int trackIndex) {
+        return cueSheet.tracks.get(trackIndex).startUs;
+    }
+
+    private long getTrackEndUs(int trackIndex) {
+        return trackIndex == cueSheet.tracks.size() - 1
+                ? C.TIME_END_OF_SOURCE : getTrackStartUs(trackIndex + 1);
+    }
+
+    /**
+     * 每首曲目一个窗口和一个周期，周期的 uid 是曲目序号
+     */
+    private static final class CueTimeline extends Timeline {
+
+        private final CueSheet cueSheet;
+        private final long imageDurationUs;
+        private final boolean isSeekable;
+
+        public CueTimeline(CueSheet cueSheet, long imageDurationUs, boolean isSeekable) {
+            this.cueSheet = cueSheet;
+            this.imageDurationUs = imageDurationUs;
+            this.isSeekable = isSeekable;
+        }
+
+        @Override
+        public int getWindowCount() {
+            return cueSheet.tracks.size();
+        }
+
+        @Override
+        public Window getWindow(int windowIndex, Window window, boolean setTag,
+                                long defaultPositionProjectionUs) {
+            Object tag = setTag ? cueSheet.tracks.get(windowIndex) : null;
+            return window.set(tag, /* presentationStartTimeMs= */ C.TIME_UNSET,
+                    /* windowStartTimeMs= */ C.TIME_UNSET, isSeekable, /* isDynamic= */ false,
+                    /* defaultPositionUs= */ 0, getDurationUs(windowIndex),
+                    /* firstPeriodIndex= */ windowIndex, /* lastPeriodIndex= */ windowIndex,
+                    /* positionInFirstPeriodUs= */ 0);
+        }
+
+        @Override
+        public int getPeriodCount() {
+            return cueSheet.tracks.size();
+        }
+
+        @Override
+        public Period getPeriod(int periodIndex, Period period, boolean setIds) {
+            Object uid = setIds ? periodIndex : null;
+            return period.set(uid, uid, /* windowIndex= */ periodIndex,
+                    getDurationUs(periodIndex), /* positionInWindowUs= */ 0);
+        }
+
+        @Override
+        public int getIndexOfPeriod(Object uid) {
+            if (!(uid instanceof Integer)) {
+                return C.INDEX_UNSET;
+            }
+            int periodIndex = (Integer) uid;
+            return periodIndex >= 0 && periodIndex < getPeriodCount()
+                    ? periodIndex : C.INDEX_UNSET;
+        }
+
+        @Override
+        public Object getUidOfPeriod(int periodIndex) {
+            return periodIndex;
+        }
+
+        private long getDurationUs(int trackIndex) {
+            long startUs = cueSheet.tracks.get(trackIndex).startUs;
+            long endUs = trackIndex == cueSheet.tracks.size() - 1
+                    ? imageDurationUs : cueSheet.tracks.get(trackIndex + 1).startUs;
+            if (endUs == C.TIME_UNSET) {
+                return C.TIME_UNSET;
+            }
+            if (imageDurationUs != C.TIME_UNSET) {
+                endUs = Math.min(endUs, imageDurationUs);
+            }
+            return Math.max(0, endUs - startUs);
+        }
+    }
+}
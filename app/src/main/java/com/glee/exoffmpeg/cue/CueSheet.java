@@ -0,0 +1,233 @@
+package com.glee.exoffmpeg.cue;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+import com.google.android.exoplayer2.util.Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * description CUE 分轨表，描述整轨镜像（APE/FLAC 等）中每一首曲目的起始时间
+ * <p>
+ * Only the tracks of the first {@code FILE} entry are read, since a source plays a single image.
+ * A track starts at its {@code INDEX 01}; the pregap ({@code INDEX 00}) belongs to the previous
+ * track, as on a CD played straight through. A track whose {@code INDEX 01} follows the next
+ * {@code FILE} entry starts in that file, so it is left out too.
+ */
+public final class CueSheet {
+
+    /**
+     * CUE 时间以帧为单位，每秒 75 帧
+     */
+    private static final int FRAMES_PER_SECOND = 75;
+
+    /**
+     * 一首曲目
+     */
+    public static final class Track {
+
+        /**
+         * The track number given in the sheet.
+         */
+        public final int number;
+        /**
+         * The title of the track, or null if not given.
+         */
+        @Nullable
+        public final String title;
+        /**
+         * The performer of the track, or of the album if the track does not give one.
+         */
+        @Nullable
+        public final String performer;
+        /**
+         * The start of the track in the image, in microseconds.
+         */
+        public final long startUs;
+
+        /* package */ Track(int number, @Nullable String title, @Nullable String performer,
+                            long startUs) {
+            this.number = number;
+            this.title = title;
+            this.performer = performer;
+            this.startUs = startUs;
+        }
+    }
+
+    /**
+     * The title of the album, or null if not given.
+     */
+    @Nullable
+    public final String title;
+    /**
+     * The performer of the album, or null if not given.
+     */
+    @Nullable
+    public final String performer;
+    /**
+     * The name of the image file as given in the sheet, or null if not given.
+     */
+    @Nullable
+    public final String fileName;
+    /**
+     * The tracks, in order of start time.
+     */
+    public final List<Track> tracks;
+
+    private CueSheet(@Nullable String title, @Nullable String performer,
+                     @Nullable String fileName, List<Track> tracks) {
+        this.title = title;
+        this.performer = performer;
+        this.fileName = fileName;
+        this.tracks = Collections.unmodifiableList(tracks);
+    }
+
+    /**
+     * Parses a CUE sheet.
+     *
+     * @param inputStream The sheet. It is read to the end but not closed.
+     * @param charset     The encoding of the sheet. Sheets ripped on Chinese or Japanese systems
+     *                    are often GBK or Shift_JIS rather than UTF-8.
+     * @return The parsed sheet.
+     * @throws ParserException If the sheet has no audio tracks, or their start times are invalid.
+     * @throws IOException     If an error occurs reading the sheet.
+     */
+    public static CueSheet parse(InputStream inputStream, Charset charset) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, charset));
+        String albumTitle = null;
+        String albumPerformer = null;
+        String fileName = null;
+        List<Track> tracks = new ArrayList<>();
+        boolean inFirstFile = false;
+        boolean inAudioTrack = false;
+        int trackNumber = 0;
+        String trackTitle = null;
+        String trackPerformer = null;
+        long trackStartUs = C.TIME_UNSET;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            // 去掉 UTF-8 BOM
+            if (!line.isEmpty() && line.charAt(0) == '\uFEFF') {
+                line = line.substring(1).trim();
+            }
+            int separator = line.indexOf(' ');
+            if (separator < 0) {
+                continue;
+            }
+            String command = Util.toUpperInvariant(line.substring(0, separator));
+            String arguments = line.substring(separator + 1).trim();
+            switch (command) {
+                case "FILE":
+                    if (fileName != null) {
+                        // 只读取第一个文件的分轨，INDEX 01 在下一个文件中的曲目属于下一个文件
+                        inFirstFile = false;
+                        if (trackStartUs == C.TIME_UNSET) {
+                            inAudioTrack = false;
+                        }
+                    } else {
+                        // 最后一个参数是文件类型，例如 WAVE
+                        int typeStart = arguments.lastIndexOf(' ');
+                        fileName = unquote(typeStart > 0
+                                ? arguments.substring(0, typeStart) : arguments);
+                        inFirstFile = true;
+                    }
+                    break;
+                case "TRACK":
+                    if (inAudioTrack) {
+                        addTrack(tracks, trackNumber, trackTitle,
+                                trackPerformer != null ? trackPerformer : albumPerformer,
+                                trackStartUs);
+                    }
+                    String[] trackArguments = arguments.split("\\s+");
+                    inAudioTrack = inFirstFile && trackArguments.length == 2
+                            && "AUDIO".equalsIgnoreCase(trackArguments[1]);
+                    trackNumber = parseInt(trackArguments[0]);
+                    trackTitle = null;
+                    trackPerformer = null;
+                    trackStartUs = C.TIME_UNSET;
+                    break;
+                case "TITLE":
+                    if (trackNumber == 0) {
+                        albumTitle = unquote(arguments);
+                    } else {
+                        trackTitle = unquote(arguments);
+                    }
+                    break;
+                case "PERFORMER":
+                    if (trackNumber == 0) {
+                        albumPerformer = unquote(arguments);
+                    } else {
+                        trackPerformer = unquote(arguments);
+                    }
+                    break;
+                case "INDEX":
+                    String[] indexArguments = arguments.split("\\s+");
+                    if (inFirstFile && indexArguments.length == 2
+                            && parseInt(indexArguments[0]) == 1) {
+                        trackStartUs = parseTimeUs(indexArguments[1]);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (inAudioTrack) {
+            addTrack(tracks, trackNumber, trackTitle,
+                    trackPerformer != null ? trackPerformer : albumPerformer, trackStartUs);
+        }
+        if (tracks.isEmpty()) {
+            throw new ParserException("No audio tracks in the CUE sheet");
+        }
+        return new CueSheet(albumTitle, albumPerformer, fileName, tracks);
+    }
+
+    private static void addTrack(List<Track> tracks, int number, @Nullable String title,
+                                 @Nullable String performer, long startUs) throws ParserException {
+        if (startUs == C.TIME_UNSET) {
+            throw new ParserException("Missing INDEX 01 for track " + number);
+        }
+        if (!tracks.isEmpty() && startUs <= tracks.get(tracks.size() - 1).startUs) {
+            throw new ParserException("Track " + number + " does not start after previous track");
+        }
+        tracks.add(new Track(number, title, performer, startUs));
+    }
+
+    /**
+     * 解析 mm:ss:ff 格式的时间，ff 为 1/75 秒
+     */
+    private static long parseTimeUs(String time) throws ParserException {
+        String[] parts = time.split(":");
+        if (parts.length != 3) {
+            throw new ParserException("Invalid CUE time: " + time);
+        }
+        long frames = (parseInt(parts[0]) * 60L + parseInt(parts[1])) * FRAMES_PER_SECOND
+                + parseInt(parts[2]);
+        return frames * C.MICROS_PER_SECOND / FRAMES_PER_SECOND;
+    }
+
+    private static int parseInt(String value) throws ParserException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new ParserException(e);
+        }
+    }
+
+    private static String unquote(String value) {
+        value = value.trim();
+        if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+}
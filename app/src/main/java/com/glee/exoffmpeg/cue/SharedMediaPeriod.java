@@ -0,0 +1,237 @@
+package com.glee.exoffmpeg.cue;
+
+import android.support.annotation.Nullable;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.SampleStream;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * description 整轨镜像唯一的 {@link MediaPeriod}，由所有分轨的 {@link CueMediaPeriod} 共享
+ * <p>
+ * The period is prepared and its tracks are selected once. Each sample stream is read by one
+ * track at a time: the reading track of a stream moves to the next track when the stream crosses
+ * the track boundary, and to the target track when a track seeks. The sample that crosses the
+ * boundary is held here and read first by the next track. The shared period is only seeked when
+ * a track seeks, or when a track's period is created with no earlier track left, i.e. after the
+ * player seeked to a track that wasn't buffered. A track whose period is created while earlier
+ * tracks are still in use is read once the stream crosses into it, however far ahead of the
+ * reading track the player has buffered, which is what makes track changes gapless.
+ */
+/* package */ final class SharedMediaPeriod implements MediaPeriod.Callback {
+
+    /* package */ final MediaPeriod mediaPeriod;
+
+    private final List<CueMediaPeriod> periods;
+    private final List<CueMediaPeriod> pendingPreparePeriods;
+    private boolean preparing;
+    private boolean prepared;
+    @Nullable
+    private TrackSelection[] selections;
+    @Nullable
+    private SampleStream[] streams;
+    /**
+     * 每个流当前由哪个分轨读取
+     */
+    private int[] readingTrackIndices;
+    /**
+     * 每个流中跨过分轨点、留给下一首读取的帧，没有时为 null
+     */
+    private DecoderInputBuffer[] pendingSamples;
+
+    /* package */ SharedMediaPeriod(MediaPeriod mediaPeriod) {
+        this.mediaPeriod = mediaPeriod;
+        periods = new ArrayList<>();
+        pendingPreparePeriods = new ArrayList<>();
+        readingTrackIndices = new int[0];
+        pendingSamples = new DecoderInputBuffer[0];
+    }
+
+    /* package */ void add(CueMediaPeriod period) {
+        periods.add(period);
+    }
+
+    /**
+     * 移除分轨，返回是否已没有分轨在使用
+     */
+    /* package */ boolean remove(CueMediaPeriod period) {
+        periods.remove(period);
+        pendingPreparePeriods.remove(period);
+        return periods.isEmpty();
+    }
+
+    /* package */ void prepare(CueMediaPeriod period, long positionUs) {
+        if (prepared) {
+            period.onPrepared();
+            return;
+        }
+        pendingPreparePeriods.add(period);
+        if (!preparing) {
+            preparing = true;
+            mediaPeriod.prepare(this, positionUs);
+        }
+    }
+
+    /**
+     * Selects tracks on behalf of {@code period}.
+     *
+     * @param period        The track selecting tracks.
+     * @param newSelections The selections.
+     * @param positionUs    The position in the image from which the track should be read.
+     * @param reselection   Whether {@code period} has selected tracks before, in which case it
+     *                      keeps reading from the current position.
+     * @return The position in the image from which {@code period} will be read, in microseconds.
+     */
+    /* package */ long selectTracks(CueMediaPeriod period, TrackSelection[] newSelections,
+                                    long positionUs, boolean reselection) {
+        boolean firstSelection = streams == null;
+        if (firstSelection) {
+            streams = new SampleStream[newSelections.length];
+            selections = new TrackSelection[newSelections.length];
+            readingTrackIndices = new int[newSelections.length];
+            pendingSamples = new DecoderInputBuffer[newSelections.length];
+        }
+        boolean[] mayRetainStreamFlags = new boolean[newSelections.length];
+        for (int i = 0; i < newSelections.length; i++) {
+            mayRetainStreamFlags[i] = streams[i] != null
+                    && isSameTrack(selections[i], newSelections[i]);
+        }
+        boolean[] streamResetFlags = new boolean[newSelections.length];
+        positionUs = mediaPeriod.selectTracks(newSelections, mayRetainStreamFlags, streams,
+                streamResetFlags, positionUs);
+        selections = Arrays.copyOf(newSelections, newSelections.length);
+        for (int i = 0; i < streamResetFlags.length; i++) {
+            if (streamResetFlags[i] || streams[i] == null) {
+                pendingSamples[i] = null;
+            }
+        }
+        if (firstSelection) {
+            Arrays.fill(readingTrackIndices, period.trackIndex);
+            return positionUs;
+        } else if (reselection || isLookAhead(period)) {
+            return positionUs;
+        } else {
+            return seekToUs(period, positionUs);
+        }
+    }
+
+    /* package */ long seekToUs(CueMediaPeriod period, long positionUs) {
+        positionUs = mediaPeriod.seekToUs(positionUs);
+        Arrays.fill(readingTrackIndices, period.trackIndex);
+        Arrays.fill(pendingSamples, null);
+        for (int i = 0; i < periods.size(); i++) {
+            periods.get(i).onSharedPositionReset();
+        }
+        return positionUs;
+    }
+
+    @Nullable
+    /* package */ SampleStream getStream(int streamIndex) {
+        return streams == null ? null : streams[streamIndex];
+    }
+
+    /* package */ int getReadingTrackIndex(int streamIndex) {
+        return readingTrackIndices[streamIndex];
+    }
+
+    /* package */ void setReadingTrackIndex(int streamIndex, int trackIndex) {
+        readingTrackIndices[streamIndex] = trackIndex;
+    }
+
+    /**
+     * 返回流中留给下一首的帧在整轨中的时间，没有时返回 {@link C#TIME_UNSET}
+     */
+    /* package */ long getPendingSampleTimeUs(int streamIndex) {
+        DecoderInputBuffer sample = pendingSamples[streamIndex];
+        return sample == null ? C.TIME_UNSET : sample.timeUs;
+    }
+
+    /**
+     * 保存 {@code buffer} 中跨过分轨点的帧，由下一首通过 {@link #readPendingSample} 读取
+     */
+    /* package */ void setPendingSample(int streamIndex, DecoderInputBuffer buffer) {
+        DecoderInputBuffer sample =
+                new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+        int size = buffer.data == null ? 0 : buffer.data.position();
+        sample.ensureSpaceForWrite(size);
+        if (size > 0) {
+            ByteBuffer data = buffer.data.duplicate();
+            data.flip();
+            sample.data.put(data);
+        }
+        sample.timeUs = buffer.timeUs;
+        sample.setFlags((buffer.isKeyFrame() ? C.BUFFER_FLAG_KEY_FRAME : 0)
+                | (buffer.isDecodeOnly() ? C.BUFFER_FLAG_DECODE_ONLY : 0));
+        pendingSamples[streamIndex] = sample;
+    }
+
+    /**
+     * 把留给下一首的帧写入 {@code buffer}，时间为整轨中的时间
+     */
+    /* package */ void readPendingSample(int streamIndex, DecoderInputBuffer buffer) {
+        DecoderInputBuffer sample = pendingSamples[streamIndex];
+        pendingSamples[streamIndex] = null;
+        ByteBuffer data = sample.data.duplicate();
+        data.flip();
+        buffer.ensureSpaceForWrite(data.remaining());
+        buffer.data.put(data);
+        buffer.timeUs = sample.timeUs;
+        buffer.setFlags((sample.isKeyFrame() ? C.BUFFER_FLAG_KEY_FRAME : 0)
+                | (sample.isDecodeOnly() ? C.BUFFER_FLAG_DECODE_ONLY : 0));
+    }
+
+    /* package */ void discardPendingSample(int streamIndex) {
+        pendingSamples[streamIndex] = null;
+    }
+
+    // MediaPeriod.Callback implementation.
+
+    @Override
+    public void onPrepared(MediaPeriod mediaPeriod) {
+        prepared = true;
+        List<CueMediaPeriod> periodsToNotify = new ArrayList<>(pendingPreparePeriods);
+        pendingPreparePeriods.clear();
+        for (CueMediaPeriod period : periodsToNotify) {
+            period.onPrepared();
+        }
+    }
+
+    @Override
+    public void onContinueLoadingRequested(MediaPeriod source) {
+        // 播放器只响应正在加载的那个分轨
+        for (int i = 0; i < periods.size(); i++) {
+            periods.get(i).onContinueLoadingRequested();
+        }
+    }
+
+    /**
+     * 有前面的分轨还在使用时，{@code period} 是播放器预先准备的后续曲目，共享的周期正在为前面的分轨读取，
+     * 不能 seek。流读过前面的分轨后自然接上本分轨。没有前面的分轨时，{@code period} 是 seek 到别的曲目后
+     * 新建的，需要 seek
+     */
+    private boolean isLookAhead(CueMediaPeriod period) {
+        for (int i = 0; i < periods.size(); i++) {
+            if (periods.get(i).trackIndex < period.trackIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSameTrack(@Nullable TrackSelection oldSelection,
+                                       @Nullable TrackSelection newSelection) {
+        if (oldSelection == null || newSelection == null) {
+            return oldSelection == newSelection;
+        }
+        return oldSelection.getTrackGroup() == newSelection.getTrackGroup()
+                && oldSelection.getSelectedIndexInTrackGroup()
+                == newSelection.getSelectedIndexInTrackGroup();
+    }
+}
@@ -2,7 +2,9 @@ package com.glee.exoffmpeg.util;
 
 import android.text.TextUtils;
 
+import com.google.android.exoplayer2.C;
 import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.util.ParsableByteArray;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -10,137 +12,185 @@ import java.nio.charset.Charset;
 /**
  * @author liji
  * @date 10/16/2018 3:54 PM
- * description Extractor包装类，实现read
+ * description Extractor包装类，实现小端序字段的读取和预读
+ * <p>
+ * Field reads are served from one reusable {@link ParsableByteArray} window instead of a separate
+ * {@code peekFully} per field. Peeked fields are prefetched in chunks of up to
+ * {@link #PEEK_CHUNK_SIZE} bytes (never past the end of an input of known length): the wrapped
+ * input's peek position runs ahead of this wrapper's, and is moved back to match it before any
+ * other operation is delegated. Whole structures can be peeked or read in one call with
+ * {@link #peek(int)} and {@link #read(int)}, and then parsed from the returned window.
  */
 
 
 public class ExtractorInputWrapper implements ExtractorInput {
+    private static final int PEEK_CHUNK_SIZE = 4096;
+
     private final ExtractorInput input;
-    private final byte[] bytes = new byte[8];
+    private final ParsableByteArray window;
+    /**
+     * 窗口中已经预读、但调用方还没有预读到的字节数，从窗口的当前位置开始
+     */
+    private int prefetchedBytes;
+    private String charsetName;
+    private Charset charset;
 
     public ExtractorInputWrapper(ExtractorInput input) {
         this.input = input;
+        window = new ParsableByteArray(PEEK_CHUNK_SIZE);
+    }
+
+    /**
+     * Peeks {@code length} bytes into the shared window.
+     *
+     * @return The window, positioned at the first peeked byte. It is only valid until the next
+     * call to this wrapper.
+     */
+    public ParsableByteArray peek(int length) throws IOException, InterruptedException {
+        discardPrefetch();
+        window.reset(length);
+        input.peekFully(window.data, 0, length);
+        return window;
+    }
+
+    /**
+     * Reads {@code length} bytes into the shared window.
+     *
+     * @return The window, positioned at the first read byte. It is only valid until the next call
+     * to this wrapper.
+     */
+    public ParsableByteArray read(int length) throws IOException, InterruptedException {
+        discardPrefetch();
+        window.reset(length);
+        input.readFully(window.data, 0, length);
+        return window;
     }
 
     public String peekString(int size, String encoding) throws IOException, InterruptedException {
-        Charset c;
-        if (TextUtils.isEmpty(encoding))
-            c = Charset.defaultCharset();
-        else
-            c = Charset.forName(encoding);
-        byte[] bytes = new byte[size];
-        peekFully(bytes, 0, size);
-        return new String(bytes, 0, size, c);
+        return peekField(size).readString(size, getCharset(encoding));
     }
 
     public short peekUnsignedByte() throws IOException, InterruptedException {
-        peekFully(bytes, 0, 1);
-        return (short) (bytes[0] & 0xff);
+        return (short) peekField(1).readUnsignedByte();
     }
 
     public int peekUnsignedShort() throws IOException, InterruptedException {
-        peekFully(bytes, 0, 2);
-        return (bytes[0] & 0xff) | ((bytes[1] & 0xff) << 8);
+        return peekField(2).readLittleEndianUnsignedShort();
     }
 
     public long peekUnsignedInt() throws IOException, InterruptedException {
-        peekFully(bytes, 0, 4);
-        return ((long) (bytes[0] & 0xff)) |
-                (((long) (bytes[1] & 0xff)) << 8) |
-                (((long) (bytes[2] & 0xff)) << 16) |
-                (((long) (bytes[3] & 0xff)) << 24);
+        return peekField(4).readLittleEndianUnsignedInt();
     }
 
     public byte peekByte() throws IOException, InterruptedException {
-        peekFully(bytes, 0, 1);
-        return bytes[0];
+        return (byte) peekField(1).readUnsignedByte();
     }
 
     public short peekShort() throws IOException, InterruptedException {
-//        byte[] bytes = new byte[2];
-        peekFully(bytes, 0, 2);
-        return (short) ((bytes[0] & 0xff) | ((bytes[1] & 0xff) << 8));
+        return peekField(2).readLittleEndianShort();
     }
 
     public int peekInt() throws IOException, InterruptedException {
-//        byte[] bytes = new byte[4];
-        peekFully(bytes, 0, 4);
-        return (int) (((long) ((bytes)[0] & 0xff)) |
-                (((long) (bytes[1] & 0xff)) << 8) |
-                (((long) (bytes[2] & 0xff)) << 16) |
-                (((long) (bytes[3] & 0xff)) << 24));
+        return peekField(4).readLittleEndianInt();
     }
 
     public long peekLong() throws IOException, InterruptedException {
-        peekFully(bytes, 0, 8);
-        return ((long) (bytes[0] & 0xff)) |
-                (((long) (bytes[1] & 0xff)) << 8) |
-                (((long) (bytes[2] & 0xff)) << 16) |
-                (((long) (bytes[3] & 0xff)) << 24) |
-                (((long) (bytes[4] & 0xff)) << 32) |
-                (((long) (bytes[5] & 0xff)) << 40) |
-                (((long) (bytes[6] & 0xff)) << 48) |
-                (((long) (bytes[7] & 0xff)) << 56);
+        return peekField(8).readLittleEndianLong();
+    }
+
+    public String readString(int size, String encoding) throws IOException, InterruptedException {
+        return read(size).readString(size, getCharset(encoding));
+    }
+
+    public int readUnsignedShort() throws IOException, InterruptedException {
+        return read(2).readLittleEndianUnsignedShort();
+    }
+
+    public long readUnsignedInt() throws IOException, InterruptedException {
+        return read(4).readLittleEndianUnsignedInt();
+    }
+
+    public int readInt() throws IOException, InterruptedException {
+        return read(4).readLittleEndianInt();
+    }
+
+    public long readLong() throws IOException, InterruptedException {
+        return read(8).readLittleEndianLong();
     }
 
     @Override
     public int read(byte[] target, int offset, int length) throws IOException, InterruptedException {
+        discardPrefetch();
         return input.read(target, offset, length);
     }
 
     @Override
     public boolean readFully(byte[] target, int offset, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+        discardPrefetch();
         return input.readFully(target, offset, length, allowEndOfInput);
     }
 
     @Override
     public void readFully(byte[] target, int offset, int length) throws IOException, InterruptedException {
+        discardPrefetch();
         input.readFully(target, offset, length);
     }
 
     @Override
     public int skip(int length) throws IOException, InterruptedException {
+        discardPrefetch();
         return input.skip(length);
     }
 
     @Override
     public boolean skipFully(int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+        discardPrefetch();
         return input.skipFully(length, allowEndOfInput);
     }
 
     @Override
     public void skipFully(int length) throws IOException, InterruptedException {
+        discardPrefetch();
         input.skipFully(length);
     }
 
     @Override
     public boolean peekFully(byte[] target, int offset, int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+        discardPrefetch();
         return input.peekFully(target, offset, length, allowEndOfInput);
     }
 
     @Override
     public void peekFully(byte[] target, int offset, int length) throws IOException, InterruptedException {
+        discardPrefetch();
         input.peekFully(target, offset, length);
     }
 
     @Override
     public boolean advancePeekPosition(int length, boolean allowEndOfInput) throws IOException, InterruptedException {
+        if (length <= prefetchedBytes) {
+            window.skipBytes(length);
+            prefetchedBytes -= length;
+            return true;
+        }
+        discardPrefetch();
         return input.advancePeekPosition(length, allowEndOfInput);
     }
 
     @Override
     public void advancePeekPosition(int length) throws IOException, InterruptedException {
-        input.advancePeekPosition(length);
+        advancePeekPosition(length, false);
     }
 
     @Override
     public void resetPeekPosition() {
+        prefetchedBytes = 0;
         input.resetPeekPosition();
     }
 
     @Override
     public long getPeekPosition() {
-        return input.getPeekPosition();
+        return input.getPeekPosition() - prefetchedBytes;
     }
 
     @Override
@@ -157,4 +207,48 @@ public class ExtractorInputWrapper implements ExtractorInput {
     public <E extends Throwable> void setRetryPosition(long position, E e) throws E {
         input.setRetryPosition(position, e);
     }
+
+    /**
+     * 返回位于下一个预读字段的窗口，窗口中的数据不足时一次预读一整块
+     */
+    private ParsableByteArray peekField(int length) throws IOException, InterruptedException {
+        if (prefetchedBytes < length) {
+            discardPrefetch();
+            int chunkSize = length;
+            long inputLength = input.getLength();
+            if (inputLength != C.LENGTH_UNSET) {
+                // 长度已知时多预读一些，但不超过文件末尾
+                long bytesLeft = inputLength - input.getPeekPosition();
+                chunkSize = (int) Math.max(length, Math.min(PEEK_CHUNK_SIZE, bytesLeft));
+            }
+            window.reset(chunkSize);
+            input.peekFully(window.data, 0, chunkSize);
+            prefetchedBytes = chunkSize;
+        }
+        prefetchedBytes -= length;
+        return window;
+    }
+
+    /**
+     * 把被包装输入的预读位置退回到本包装的预读位置，数据仍在预读缓冲中，不会重新读取
+     */
+    private void discardPrefetch() throws IOException, InterruptedException {
+        if (prefetchedBytes > 0) {
+            long peekPosition = getPeekPosition();
+            prefetchedBytes = 0;
+            input.resetPeekPosition();
+            input.advancePeekPosition((int) (peekPosition - input.getPosition()));
+        }
+    }
+
+    private Charset getCharset(String encoding) {
+        if (TextUtils.isEmpty(encoding)) {
+            return Charset.defaultCharset();
+        }
+        if (!encoding.equals(charsetName)) {
+            charset = Charset.forName(encoding);
+            charsetName = encoding;
+        }
+        return charset;
+    }
 }
@@ -0,0 +1,168 @@
+package com.glee.exoffmpeg.ape;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.extractor.SeekMap;
+import com.google.android.exoplayer2.extractor.TrackOutput;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+import com.google.android.exoplayer2.util.ParsableByteArray;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Tests for {@link APEExtractor}, reading a three frame file from {@code src/test/resources/ape}.
+ */
+public class APEExtractorTest {
+
+    @Test
+    public void readsEveryFrame() throws Exception {
+        byte[] data = readResource("3990_three_frames.ape");
+        APEExtractor extractor = new APEExtractor();
+        RecordingOutput output = new RecordingOutput();
+        extractor.init(output);
+
+        readToEnd(extractor, data, 0);
+
+        assertNotNull(output.seekMap);
+        assertEquals(3, output.sampleTimesUs.size());
+        assertEquals(0, (long) output.sampleTimesUs.get(0));
+        assertEquals(1024 * C.MICROS_PER_SECOND / 44100, (long) output.sampleTimesUs.get(1));
+    }
+
+    @Test
+    public void seekIntoMiddleOfFrameStartsAtThatFrame() throws Exception {
+        byte[] data = readResource("3990_three_frames.ape");
+        APEExtractor extractor = new APEExtractor();
+        RecordingOutput output = new RecordingOutput();
+        extractor.init(output);
+        readToEnd(extractor, data, 0);
+        List<Long> frameTimesUs = new ArrayList<>(output.sampleTimesUs);
+        List<byte[]> frames = new ArrayList<>(output.samples);
+
+        // the player passes the requested time, not that of the seek point, to the extractor
+        long timeUs = (frameTimesUs.get(1) + frameTimesUs.get(2)) / 2;
+        SeekMap.SeekPoints seekPoints = output.seekMap.getSeekPoints(timeUs);
+        assertEquals((long) frameTimesUs.get(1), seekPoints.first.timeUs);
+        output.clearSamples();
+        extractor.seek(seekPoints.first.position, timeUs);
+        readToEnd(extractor, data, seekPoints.first.position);
+
+        assertEquals(frameTimesUs.subList(1, 3), output.sampleTimesUs);
+        assertArrayEquals(frames.get(1), output.samples.get(0));
+        assertArrayEquals(frames.get(2), output.samples.get(1));
+    }
+
+    private static void readToEnd(Extractor extractor, byte[] data, long position)
+            throws IOException, InterruptedException {
+        PositionHolder seekPosition = new PositionHolder();
+        ExtractorInput input = createInput(data, position);
+        int result;
+        while ((result = extractor.read(input, seekPosition)) != Extractor.RESULT_END_OF_INPUT) {
+            if (result == Extractor.RESULT_SEEK) {
+                input = createInput(data, seekPosition.position);
+            }
+        }
+    }
+
+    private static ExtractorInput createInput(byte[] data, long position) throws IOException {
+        ByteArrayDataSource dataSource = new ByteArrayDataSource(data);
+        dataSource.open(new DataSpec(null, position, C.LENGTH_UNSET, null));
+        return new DefaultExtractorInput(dataSource, position, data.length);
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream input = APEExtractorTest.class.getResourceAsStream("/ape/" + name);
+        assertNotNull(name, input);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Records the seek map and the samples of the single track.
+     */
+    private static final class RecordingOutput implements ExtractorOutput, TrackOutput {
+
+        private final List<Long> sampleTimesUs = new ArrayList<>();
+        private final List<byte[]> samples = new ArrayList<>();
+        private final ByteArrayOutputStream pendingData = new ByteArrayOutputStream();
+        private SeekMap seekMap;
+
+        void clearSamples() {
+            sampleTimesUs.clear();
+            samples.clear();
+            pendingData.reset();
+        }
+
+        @Override
+        public TrackOutput track(int id, int type) {
+            return this;
+        }
+
+        @Override
+        public void endTracks() {
+        }
+
+        @Override
+        public void seekMap(SeekMap seekMap) {
+            this.seekMap = seekMap;
+        }
+
+        @Override
+        public void format(Format format) {
+        }
+
+        @Override
+        public int sampleData(ExtractorInput input, int length, boolean allowEndOfInput)
+                throws IOException, InterruptedException {
+            byte[] data = new byte[length];
+            int bytesRead = input.read(data, 0, length);
+            if (bytesRead == C.RESULT_END_OF_INPUT) {
+                return C.RESULT_END_OF_INPUT;
+            }
+            pendingData.write(data, 0, bytesRead);
+            return bytesRead;
+        }
+
+        @Override
+        public void sampleData(ParsableByteArray data, int length) {
+            pendingData.write(data.data, data.getPosition(), length);
+            data.skipBytes(length);
+        }
+
+        @Override
+        public void sampleMetadata(long timeUs, int flags, int size, int offset,
+                                   CryptoData encryptionData) {
+            byte[] data = pendingData.toByteArray();
+            byte[] sample = new byte[size];
+            System.arraycopy(data, data.length - offset - size, sample, 0, size);
+            sampleTimesUs.add(timeUs);
+            samples.add(sample);
+            pendingData.reset();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.glee.exoffmpeg.ape;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Bit-exactness tests for {@link APEFrameDecoder}.
+ *
+ * <p>Each fixture in {@code src/test/resources/ape} is a short synthetic stream and the PCM that
+ * FFmpeg 4.0's apedec (the copy bundled with the ffmpeg extension) decodes from it. The
+ * {@code .packets} file holds the packets as the extractor produces them, each preceded by its
+ * size as a big-endian int.
+ */
+public class APEFrameDecoderTest {
+
+    @Test
+    public void decode3990FastStereo16() throws Exception {
+        assertDecodesToReference("3990_fast_stereo_16", 3990,
+                CompressionLevel.COMPRESSION_LEVEL_FAST, 2, 16);
+    }
+
+    @Test
+    public void decode3990NormalStereo16() throws Exception {
+        assertDecodesToReference("3990_normal_stereo_16", 3990,
+                CompressionLevel.COMPRESSION_LEVEL_NORMAL, 2, 16);
+    }
+
+    @Test
+    public void decode3990HighMono8() throws Exception {
+        assertDecodesToReference("3990_high_mono_8", 3990,
+                CompressionLevel.COMPRESSION_LEVEL_HIGH, 1, 8);
+    }
+
+    @Test
+    public void decode3990ExtraHighMono24() throws Exception {
+        assertDecodesToReference("3990_extra_high_mono_24", 3990,
+                CompressionLevel.COMPRESSION_LEVEL_EXTRA_HIGH, 1, 24);
+    }
+
+    @Test
+    public void decode3990InsaneStereo16() throws Exception {
+        // The first frame is longer than one decoding loop.
+        assertDecodesToReference("3990_insane_stereo_16", 3990,
+                CompressionLevel.COMPRESSION_LEVEL_INSANE, 2, 16);
+    }
+
+    @Test
+    public void decode3950HighStereo16() throws Exception {
+        assertDecodesToReference("3950_high_stereo_16", 3950,
+                CompressionLevel.COMPRESSION_LEVEL_HIGH, 2, 16);
+    }
+
+    @Test
+    public void decode3930NormalStereo16() throws Exception {
+        assertDecodesToReference("3930_normal_stereo_16", 3930,
+                CompressionLevel.COMPRESSION_LEVEL_NORMAL, 2, 16);
+    }
+
+    @Test
+    public void decode3910NormalMono16() throws Exception {
+        assertDecodesToReference("3910_normal_mono_16", 3910,
+                CompressionLevel.COMPRESSION_LEVEL_NORMAL, 1, 16);
+    }
+
+    private static void assertDecodesToReference(String name, int fileVersion,
+                                                 int compressionLevel, int channels,
+                                                 int bitsPerSample) throws Exception {
+        ByteBuffer packets = ByteBuffer.wrap(readResource(name + ".packets"));
+        byte[] expected = readResource(name + ".pcm");
+        APEFrameDecoder decoder =
+                new APEFrameDecoder(fileVersion, compressionLevel, channels, bitsPerSample);
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        while (packets.hasRemaining()) {
+            int size = packets.getInt();
+            ByteBuffer packet = packets.slice();
+            packet.limit(size);
+            packets.position(packets.position() + size);
+
+            ByteBuffer output = ByteBuffer.allocate(
+                    decoder.getOutputSize(APEFrameDecoder.peekBlockCount(packet)));
+            int written = decoder.decode(packet, output);
+            actual.write(output.array(), 0, written);
+        }
+
+        byte[] decoded = actual.toByteArray();
+        assertEquals(name + " length", expected.length, decoded.length);
+        for (int i = 0; i < expected.length; i++) {
+            if (expected[i] != decoded[i]) {
+                assertEquals(name + " byte " + i, expected[i], decoded[i]);
+            }
+        }
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        InputStream input = APEFrameDecoderTest.class.getResourceAsStream("/ape/" + name);
+        assertNotNull(name, input);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.glee.exoffmpeg.ape;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.metadata.Metadata;
+import com.google.android.exoplayer2.metadata.id3.ApicFrame;
+import com.google.android.exoplayer2.metadata.id3.CommentFrame;
+import com.google.android.exoplayer2.metadata.id3.TextInformationFrame;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link APETagDecoder}, reading the tags of files built in memory the way
+ * {@link APEExtractor} reads them.
+ */
+public class APETagDecoderTest {
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int APE_TAG_V1 = 1000;
+    private static final int APE_TAG_V2 = 2000;
+    private static final int ITEM_TEXT = 0;
+    private static final int ITEM_BINARY = 0x02;
+    /**
+     * 标签之前的音频数据
+     */
+    private static final byte[] AUDIO = new byte[100];
+
+    @Test
+    public void readsApeV2TagLargerThanFooter() throws Exception {
+        // 128 KB 的封面，远大于末尾一次读取的字节数
+        byte[] image = new byte[128 * 1024];
+        image[0] = (byte) 0x89;
+        image[1] = 'P';
+        image[2] = 'N';
+        image[3] = 'G';
+        byte[] tag = createApeTag(APE_TAG_V2, /* hasHeader= */ true,
+                createItem("Title", ITEM_TEXT, "标题".getBytes(UTF_8)),
+                createItem("Cover Art (Front)", ITEM_BINARY,
+                        concat("cover.png\0".getBytes(ISO_8859_1), image)),
+                createItem("Artist", ITEM_TEXT, "A\0B".getBytes(UTF_8)));
+        byte[] file = concat(AUDIO, tag);
+        List<Metadata.Entry> entries = new ArrayList<>();
+
+        assertEquals(tag.length, readTags(file, entries));
+
+        assertEquals(3, entries.size());
+        assertTextFrame(entries.get(0), "TIT2", "标题");
+        ApicFrame apicFrame = (ApicFrame) entries.get(1);
+        assertEquals("image/png", apicFrame.mimeType);
+        assertEquals("cover.png", apicFrame.description);
+        assertEquals(3, apicFrame.pictureType);
+        assertArrayEquals(image, apicFrame.pictureData);
+        // 多个值以 / 分隔
+        assertTextFrame(entries.get(2), "TPE1", "A/B");
+    }
+
+    @Test
+    public void decodesApeV1TextAsIso88591() throws Exception {
+        byte[] tag = createApeTag(APE_TAG_V1, /* hasHeader= */ false,
+                createItem("Album", ITEM_TEXT, "Café".getBytes(ISO_8859_1)));
+        List<Metadata.Entry> entries = new ArrayList<>();
+
+        assertEquals(tag.length, readTags(concat(AUDIO, tag), entries));
+
+        assertEquals(1, entries.size());
+        assertTextFrame(entries.get(0), "TALB", "Café");
+    }
+
+    @Test
+    public void skipsBinaryItemsOtherThanCoverArt() throws Exception {
+        byte[] tag = createApeTag(APE_TAG_V2, /* hasHeader= */ true,
+                createItem("Notes", ITEM_BINARY, new byte[70 * 1024]),
+                createItem("Comment", ITEM_TEXT, "text".getBytes(UTF_8)));
+        List<Metadata.Entry> entries = new ArrayList<>();
+
+        readTags(concat(AUDIO, tag), entries);
+
+        assertEquals(1, entries.size());
+        CommentFrame commentFrame = (CommentFrame) entries.get(0);
+        assertEquals("text", commentFrame.text);
+    }
+
+    @Test
+    public void apeTagTakesPrecedenceOverId3v1() throws Exception {
+        byte[] tag = createApeTag(APE_TAG_V2, /* hasHeader= */ true,
+                createItem("Title", ITEM_TEXT, "APE title".getBytes(UTF_8)));
+        byte[] id3v1 = createId3v1Tag("ID3 title");
+        List<Metadata.Entry> entries = new ArrayList<>();
+
+        assertEquals(tag.length + id3v1.length, readTags(concat(AUDIO, tag, id3v1), entries));
+
+        assertEquals(1, entries.size());
+        assertTextFrame(entries.get(0), "TIT2", "APE title");
+    }
+
+    @Test
+    public void decodesId3v1WithoutApeTag() throws Exception {
+        byte[] id3v1 = createId3v1Tag("ID3 title");
+        List<Metadata.Entry> entries = new ArrayList<>();
+
+        assertEquals(id3v1.length, readTags(concat(AUDIO, id3v1), entries));
+
+        assertTextFrame(entries.get(0), "TIT2", "ID3 title");
+    }
+
+    /**
+     * 与 {@link APEExtractor} 相同地先读取末尾的标签尾部，再从输入读取 APE 标签条目
+     *
+     * @return 末尾标签的字节数
+     */
+    private static int readTags(byte[] file, List<Metadata.Entry> entries)
+            throws IOException, InterruptedException {
+        APETagDecoder decoder = new APETagDecoder();
+        int tailLength = Math.min(APETagDecoder.FOOTER_BYTES, file.length);
+        byte[] tail = Arrays.copyOfRange(file, file.length - tailLength, file.length);
+        int tagBytes = decoder.readFooter(tail, tailLength, entries);
+        int itemsStartFromEnd = decoder.getItemsStartFromEnd();
+        if (itemsStartFromEnd != 0) {
+            decoder.readItems(createInput(file, file.length - itemsStartFromEnd), entries);
+        }
+        return tagBytes;
+    }
+
+    private static ExtractorInput createInput(byte[] data, long position) throws IOException {
+        ByteArrayDataSource dataSource = new ByteArrayDataSource(data);
+        dataSource.open(new DataSpec(null, position, C.LENGTH_UNSET, null));
+        return new DefaultExtractorInput(dataSource, position, data.length);
+    }
+
+    private static void assertTextFrame(Metadata.Entry entry, String id, String value) {
+        TextInformationFrame frame = (TextInformationFrame) entry;
+        assertEquals(id, frame.id);
+        assertEquals(value, frame.value);
+    }
+
+    private static byte[] createItem(String key, int flags, byte[] value) {
+        byte[] keyBytes = key.getBytes(ISO_8859_1);
+        ByteBuffer item = ByteBuffer.allocate(8 + keyBytes.length + 1 + value.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        item.putInt(value.length);
+        item.putInt(flags);
+        item.put(keyBytes);
+        item.put((byte) 0);
+        item.put(value);
+        return item.array();
+    }
+
+    /**
+     * 创建 APE 标签，标签长度包括条目和尾部，不包括头部
+     */
+    private static byte[] createApeTag(int version, boolean hasHeader, byte[]... items) {
+        byte[] itemData = concat(items);
+        int tagSize = itemData.length + 32;
+        int flags = hasHeader ? 1 << 31 : 0;
+        byte[] footer = createApeTagHeaderOrFooter(version, tagSize, items.length, flags);
+        if (!hasHeader) {
+            return concat(itemData, footer);
+        }
+        byte[] header = createApeTagHeaderOrFooter(version, tagSize, items.length,
+                flags | 1 << 29);
+        return concat(header, itemData, footer);
+    }
+
+    private static byte[] createApeTagHeaderOrFooter(int version, int tagSize, int itemCount,
+                                                     int flags) {
+        ByteBuffer footer = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        footer.put("APETAGEX".getBytes(ISO_8859_1));
+        footer.putInt(version);
+        footer.putInt(tagSize);
+        footer.putInt(itemCount);
+        footer.putInt(flags);
+        return footer.array();
+    }
+
+    private static byte[] createId3v1Tag(String title) {
+        byte[] tag = new byte[128];
+        tag[0] = 'T';
+        tag[1] = 'A';
+        tag[2] = 'G';
+        byte[] titleBytes = title.getBytes(ISO_8859_1);
+        System.arraycopy(titleBytes, 0, tag, 3, titleBytes.length);
+        // 没有流派
+        tag[127] = (byte) 0xFF;
+        return tag;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (byte[] array : arrays) {
+            output.write(array, 0, array.length);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,144 @@
+package com.glee.exoffmpeg.ape;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.extractor.DefaultExtractorInput;
+import com.google.android.exoplayer2.extractor.Extractor;
+import com.google.android.exoplayer2.extractor.ExtractorInput;
+import com.google.android.exoplayer2.extractor.ExtractorOutput;
+import com.google.android.exoplayer2.extractor.PositionHolder;
+import com.google.android.exoplayer2.upstream.ByteArrayDataSource;
+import com.google.android.exoplayer2.upstream.DataSpec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_ADTS;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_APE;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_FLAC;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_MP3;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_OGG;
+import static com.glee.exoffmpeg.ape.AudioOnlyExtractorsFactory.TYPE_UNKNOWN;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DispatchingExtractor} and the extension hint of
+ * {@link AudioOnlyExtractorsFactory}.
+ */
+public class DispatchingExtractorTest {
+
+    /**
+     * 没有可识别的签名，MP3 和 ADTS 的提取器都会接受
+     */
+    private static final byte[] AMBIGUOUS_DATA = new byte[16];
+
+    @Test
+    public void extensionHintPicksExtractorWhenSignatureIsAmbiguous() throws Exception {
+        RecordingFactory factory = new RecordingFactory(TYPE_MP3, TYPE_ADTS);
+        DispatchingExtractor extractor =
+                new DispatchingExtractor(factory, AudioOnlyExtractorsFactory.getTypeForPath(
+                        "/Music/song.aac"));
+
+        assertTrue(extractor.sniff(createInput(AMBIGUOUS_DATA)));
+
+        assertEquals(Collections.singletonList(TYPE_ADTS), factory.createdTypes);
+    }
+
+    @Test
+    public void defaultOrderIsUsedWithoutExtensionHint() throws Exception {
+        RecordingFactory factory = new RecordingFactory(TYPE_MP3, TYPE_ADTS);
+        DispatchingExtractor extractor = new DispatchingExtractor(factory, TYPE_UNKNOWN);
+
+        assertTrue(extractor.sniff(createInput(AMBIGUOUS_DATA)));
+
+        assertEquals(Collections.singletonList(TYPE_MP3), factory.createdTypes);
+    }
+
+    @Test
+    public void signatureTakesPrecedenceOverExtensionHint() throws Exception {
+        RecordingFactory factory = new RecordingFactory(TYPE_MP3, TYPE_FLAC);
+        DispatchingExtractor extractor =
+                new DispatchingExtractor(factory, AudioOnlyExtractorsFactory.getTypeForPath(
+                        "song.mp3"));
+        byte[] data = Arrays.copyOf(new byte[] {'f', 'L', 'a', 'C'}, 16);
+
+        assertTrue(extractor.sniff(createInput(data)));
+
+        assertEquals(Collections.singletonList(TYPE_FLAC), factory.createdTypes);
+    }
+
+    @Test
+    public void typeForPathUsesLastPathSegmentExtension() {
+        assertEquals(TYPE_APE, AudioOnlyExtractorsFactory.getTypeForPath("/Music/Kalimba.APE"));
+        assertEquals(TYPE_OGG, AudioOnlyExtractorsFactory.getTypeForPath("archive.tar.ogg"));
+        assertEquals(TYPE_UNKNOWN, AudioOnlyExtractorsFactory.getTypeForPath("/Music/a.flac/song"));
+        assertEquals(TYPE_UNKNOWN, AudioOnlyExtractorsFactory.getTypeForPath("song"));
+        assertEquals(TYPE_UNKNOWN, AudioOnlyExtractorsFactory.getTypeForPath("song.txt"));
+        assertEquals(TYPE_UNKNOWN, AudioOnlyExtractorsFactory.getTypeForPath(null));
+    }
+
+    private static ExtractorInput createInput(byte[] data) throws IOException {
+        ByteArrayDataSource dataSource = new ByteArrayDataSource(data);
+        dataSource.open(new DataSpec(null, 0, C.LENGTH_UNSET, null));
+        return new DefaultExtractorInput(dataSource, 0, data.length);
+    }
+
+    /**
+     * 记录创建了哪些格式的提取器，{@code matchingTypes} 中的格式嗅探时都接受
+     */
+    private static final class RecordingFactory extends AudioOnlyExtractorsFactory {
+
+        private final List<Integer> matchingTypes;
+        private final List<Integer> createdTypes;
+
+        public RecordingFactory(Integer... matchingTypes) {
+            this.matchingTypes = Arrays.asList(matchingTypes);
+            createdTypes = new ArrayList<>();
+        }
+
+        @Override
+        /* package */ Extractor createExtractor(int type) {
+            createdTypes.add(type);
+            return new FakeExtractor(matchingTypes.contains(type));
+        }
+    }
+
+    private static final class FakeExtractor implements Extractor {
+
+        private final boolean matches;
+
+        public FakeExtractor(boolean matches) {
+            this.matches = matches;
+        }
+
+        @Override
+        public boolean sniff(ExtractorInput input) {
+            return matches;
+        }
+
+        @Override
+        public void init(ExtractorOutput output) {
+            // Do nothing.
+        }
+
+        @Override
+        public int read(ExtractorInput input, PositionHolder seekPosition) {
+            return C.RESULT_END_OF_INPUT;
+        }
+
+        @Override
+        public void seek(long position, long timeUs) {
+            // Do nothing.
+        }
+
+        @Override
+        public void release() {
+            // Do nothing.
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.glee.exoffmpeg.cue;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.ParserException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link CueSheet}.
+ */
+public class CueSheetTest {
+
+    @Test
+    public void tracksStartAtIndex01() throws Exception {
+        CueSheet cueSheet = parse(
+                "PERFORMER \"Album Artist\"",
+                "TITLE \"Album\"",
+                "FILE \"image.ape\" WAVE",
+                "  TRACK 01 AUDIO",
+                "    TITLE \"One\"",
+                "    INDEX 01 00:00:00",
+                "  TRACK 02 AUDIO",
+                "    TITLE \"Two\"",
+                "    PERFORMER \"Guest\"",
+                "    INDEX 00 03:58:00",
+                "    INDEX 01 04:00:37");
+
+        assertEquals("Album", cueSheet.title);
+        assertEquals("Album Artist", cueSheet.performer);
+        assertEquals("image.ape", cueSheet.fileName);
+        assertEquals(2, cueSheet.tracks.size());
+        assertTrack(cueSheet.tracks.get(0), 1, "One", "Album Artist", 0);
+        // 37 帧为 37/75 秒，INDEX 00 的间隔属于上一首
+        assertTrack(cueSheet.tracks.get(1), 2, "Two", "Guest",
+                240 * C.MICROS_PER_SECOND + 37 * C.MICROS_PER_SECOND / 75);
+    }
+
+    @Test
+    public void pregapDoesNotMoveTrackStart() throws Exception {
+        CueSheet cueSheet = parse(
+                "FILE \"image.flac\" WAVE",
+                "  TRACK 01 AUDIO",
+                "    INDEX 01 00:00:00",
+                "  TRACK 02 AUDIO",
+                "    PREGAP 00:02:00",
+                "    INDEX 01 01:00:00");
+
+        // PREGAP 是镜像中没有的静音，不占用镜像中的时间
+        assertEquals(60 * C.MICROS_PER_SECOND, cueSheet.tracks.get(1).startUs);
+    }
+
+    @Test
+    public void readsOnlyTracksOfFirstFile() throws Exception {
+        CueSheet cueSheet = parse(
+                "FILE \"first.wav\" WAVE",
+                "  TRACK 01 AUDIO",
+                "    INDEX 01 00:00:00",
+                "  TRACK 02 AUDIO",
+                "    INDEX 01 02:00:00",
+                "  TRACK 03 AUDIO",
+                "    INDEX 00 04:00:00",
+                "FILE \"second.wav\" WAVE",
+                "    INDEX 01 00:00:00",
+                "  TRACK 04 AUDIO",
+                "    INDEX 01 03:00:00");
+
+        assertEquals("first.wav", cueSheet.fileName);
+        assertEquals(2, cueSheet.tracks.size());
+        assertEquals(1, cueSheet.tracks.get(0).number);
+        assertEquals(2, cueSheet.tracks.get(1).number);
+        assertEquals(120 * C.MICROS_PER_SECOND, cueSheet.tracks.get(1).startUs);
+    }
+
+    @Test
+    public void skipsDataTracks() throws Exception {
+        CueSheet cueSheet = parse(
+                "FILE \"image.bin\" BINARY",
+                "  TRACK 01 MODE1/2352",
+                "    INDEX 01 00:00:00",
+                "  TRACK 02 AUDIO",
+                "    INDEX 01 10:00:00");
+
+        assertEquals(1, cueSheet.tracks.size());
+        assertEquals(2, cueSheet.tracks.get(0).number);
+        assertNull(cueSheet.tracks.get(0).title);
+    }
+
+    @Test
+    public void trackWithoutIndex01IsInvalid() throws Exception {
+        try {
+            parse(
+                    "FILE \"image.ape\" WAVE",
+                    "  TRACK 01 AUDIO",
+                    "    INDEX 00 00:00:00");
+            fail();
+        } catch (ParserException e) {
+            // Expected.
+        }
+    }
+
+    private static CueSheet parse(String... lines) throws IOException {
+        StringBuilder sheet = new StringBuilder();
+        for (String line : lines) {
+            sheet.append(line).append("\r\n");
+        }
+        Charset charset = Charset.forName("UTF-8");
+        return CueSheet.parse(new ByteArrayInputStream(sheet.toString().getBytes(charset)),
+                charset);
+    }
+
+    private static void assertTrack(CueSheet.Track track, int number, String title,
+                                    String performer, long startUs) {
+        assertEquals(number, track.number);
+        assertEquals(title, track.title);
+        assertEquals(performer, track.performer);
+        assertEquals(startUs, track.startUs);
+    }
+}
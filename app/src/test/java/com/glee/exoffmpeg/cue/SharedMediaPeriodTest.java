@@ -0,0 +1,315 @@
+package com.glee.exoffmpeg.cue;
+
+import com.google.android.exoplayer2.C;
+import com.google.android.exoplayer2.Format;
+import com.google.android.exoplayer2.FormatHolder;
+import com.google.android.exoplayer2.SeekParameters;
+import com.google.android.exoplayer2.decoder.DecoderInputBuffer;
+import com.google.android.exoplayer2.source.MediaPeriod;
+import com.google.android.exoplayer2.source.SampleStream;
+import com.google.android.exoplayer2.source.TrackGroup;
+import com.google.android.exoplayer2.source.TrackGroupArray;
+import com.google.android.exoplayer2.trackselection.FixedTrackSelection;
+import com.google.android.exoplayer2.trackselection.TrackSelection;
+import com.google.android.exoplayer2.util.MimeTypes;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SharedMediaPeriod}, with several {@link CueMediaPeriod}s created over one
+ * shared image period the way {@link CueMediaSource} creates them.
+ */
+public class SharedMediaPeriodTest {
+
+    private static final long SAMPLE_DURATION_US = 100_000;
+    private static final int SAMPLE_COUNT = 12;
+    /**
+     * 四首曲目各三帧，最后一首到整轨结束
+     */
+    private static final long[] TRACK_STARTS_US = {0, 300_000, 600_000, 900_000};
+
+    private FakeImagePeriod imagePeriod;
+    private SharedMediaPeriod sharedPeriod;
+    private TrackSelection[] selections;
+
+    @Before
+    public void setUp() {
+        imagePeriod = new FakeImagePeriod(SAMPLE_COUNT);
+        sharedPeriod = new SharedMediaPeriod(imagePeriod);
+        TrackGroup trackGroup = new TrackGroup(
+                Format.createSampleFormat(/* id= */ null, MimeTypes.AUDIO_RAW,
+                        /* subsampleOffsetUs= */ 0));
+        selections = new TrackSelection[] {new FixedTrackSelection(trackGroup, 0)};
+    }
+
+    @Test
+    public void lookAheadPeriodsDoNotSeekSharedPeriod() {
+        CueMediaPeriod track0 = createPeriod(0);
+        SampleStream stream0 = selectTracks(track0, 0);
+        assertEquals(Collections.singletonList(0L), read(track0, stream0, 1));
+
+        // 整轨缓冲到了后面几首的结束位置，播放器在第一首还在读时就创建了后面所有的分轨
+        CueMediaPeriod track1 = createPeriod(1);
+        SampleStream stream1 = selectTracks(track1, 0);
+        CueMediaPeriod track2 = createPeriod(2);
+        SampleStream stream2 = selectTracks(track2, 0);
+        CueMediaPeriod track3 = createPeriod(3);
+        SampleStream stream3 = selectTracks(track3, 0);
+
+        assertTrue(imagePeriod.seekPositionsUs.isEmpty());
+        assertFalse(stream1.isReady());
+        assertFalse(stream2.isReady());
+        assertEquals(Arrays.asList(100_000L, 200_000L), readToEnd(track0, stream0));
+        assertEquals(Arrays.asList(0L, 100_000L, 200_000L), readToEnd(track1, stream1));
+        assertEquals(Arrays.asList(0L, 100_000L, 200_000L), readToEnd(track2, stream2));
+        assertEquals(Arrays.asList(0L, 100_000L, 200_000L), readToEnd(track3, stream3));
+        assertTrue(imagePeriod.seekPositionsUs.isEmpty());
+    }
+
+    @Test
+    public void lookAheadPeriodCreatedAfterPreviousTrackEndedDoesNotSeek() {
+        CueMediaPeriod track0 = createPeriod(0);
+        SampleStream stream0 = selectTracks(track0, 0);
+        readToEnd(track0, stream0);
+
+        CueMediaPeriod track1 = createPeriod(1);
+        SampleStream stream1 = selectTracks(track1, 0);
+
+        assertTrue(imagePeriod.seekPositionsUs.isEmpty());
+        assertEquals(Arrays.asList(0L, 100_000L, 200_000L), readToEnd(track1, stream1));
+    }
+
+    @Test
+    public void periodCreatedAfterSeekToOtherTrackSeeksSharedPeriod() {
+        CueMediaPeriod track0 = createPeriod(0);
+        SampleStream stream0 = selectTracks(track0, 0);
+        read(track0, stream0, 1);
+
+        // seek 到没有缓冲的第三首时，播放器先释放已有的分轨，再创建第三首
+        sharedPeriod.remove(track0);
+        CueMediaPeriod track2 = createPeriod(2);
+        SampleStream stream2 = selectTracks(track2, 0);
+
+        assertEquals(Collections.singletonList(600_000L), imagePeriod.seekPositionsUs);
+        assertEquals(Arrays.asList(0L, 100_000L, 200_000L), readToEnd(track2, stream2));
+    }
+
+    @Test
+    public void seekWithinTrackSeeksSharedPeriod() {
+        CueMediaPeriod track0 = createPeriod(0);
+        SampleStream stream0 = selectTracks(track0, 0);
+        CueMediaPeriod track1 = createPeriod(1);
+        SampleStream stream1 = selectTracks(track1, 0);
+        readToEnd(track0, stream0);
+        read(track1, stream1, 1);
+
+        assertEquals(100_000L, track1.seekToUs(100_000));
+
+        assertEquals(Collections.singletonList(400_000L), imagePeriod.seekPositionsUs);
+        assertEquals(Arrays.asList(100_000L, 200_000L), readToEnd(track1, stream1));
+    }
+
+    @Test
+    public void reselectionDoesNotSeekSharedPeriod() {
+        CueMediaPeriod track0 = createPeriod(0);
+        SampleStream stream0 = selectTracks(track0, 0);
+        read(track0, stream0, 1);
+
+        SampleStream[] streams = new SampleStream[] {stream0};
+        track0.selectTracks(selections, new boolean[] {true}, streams, new boolean[1],
+                /* positionUs= */ 100_000);
+
+        assertTrue(imagePeriod.seekPositionsUs.isEmpty());
+        assertEquals(Arrays.asList(100_000L, 200_000L), readToEnd(track0, streams[0]));
+    }
+
+    /**
+     * 与 {@link CueMediaSource#createPeriod} 相同地创建分轨
+     */
+    private CueMediaPeriod createPeriod(int trackIndex) {
+        long endUs = trackIndex == TRACK_STARTS_US.length - 1
+                ? C.TIME_END_OF_SOURCE : TRACK_STARTS_US[trackIndex + 1];
+        CueMediaPeriod period = new CueMediaPeriod(sharedPeriod, trackIndex,
+                TRACK_STARTS_US[trackIndex], endUs);
+        sharedPeriod.add(period);
+        period.prepare(new MediaPeriod.Callback() {
+            @Override
+            public void onPrepared(MediaPeriod mediaPeriod) {
+                // Do nothing.
+            }
+
+            @Override
+            public void onContinueLoadingRequested(MediaPeriod source) {
+                // Do nothing.
+            }
+        }, /* positionUs= */ 0);
+        return period;
+    }
+
+    private SampleStream selectTracks(CueMediaPeriod period, long positionUs) {
+        SampleStream[] streams = new SampleStream[1];
+        boolean[] streamResetFlags = new boolean[1];
+        period.selectTracks(selections, new boolean[1], streams, streamResetFlags, positionUs);
+        assertTrue(streamResetFlags[0]);
+        return streams[0];
+    }
+
+    private static List<Long> readToEnd(CueMediaPeriod period, SampleStream stream) {
+        return read(period, stream, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 从分轨的流中最多读取 {@code maxSampleCount} 帧，返回各帧在曲目中的时间
+     */
+    private static List<Long> read(CueMediaPeriod period, SampleStream stream,
+                                   int maxSampleCount) {
+        List<Long> sampleTimesUs = new ArrayList<>();
+        DecoderInputBuffer buffer =
+                new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
+        while (sampleTimesUs.size() < maxSampleCount) {
+            buffer.clear();
+            assertTrue(stream.isReady());
+            assertEquals(C.RESULT_BUFFER_READ,
+                    stream.readData(new FormatHolder(), buffer, /* formatRequired= */ false));
+            if (buffer.isEndOfStream()) {
+                break;
+            }
+            // 每帧的内容是它在整轨中的序号，确认没有丢帧或送错曲目
+            assertEquals((period.startUs + buffer.timeUs) / SAMPLE_DURATION_US,
+                    buffer.data.get(0));
+            sampleTimesUs.add(buffer.timeUs);
+        }
+        return sampleTimesUs;
+    }
+
+    /**
+     * 整轨镜像的周期，只有一个流，每 {@link #SAMPLE_DURATION_US} 一帧
+     */
+    private static final class FakeImagePeriod implements MediaPeriod {
+
+        private final int sampleCount;
+        private final List<Long> seekPositionsUs;
+        private int readIndex;
+
+        public FakeImagePeriod(int sampleCount) {
+            this.sampleCount = sampleCount;
+            seekPositionsUs = new ArrayList<>();
+        }
+
+        @Override
+        public void prepare(Callback callback, long positionUs) {
+            callback.onPrepared(this);
+        }
+
+        @Override
+        public void maybeThrowPrepareError() {
+            // Do nothing.
+        }
+
+        @Override
+        public TrackGroupArray getTrackGroups() {
+            return TrackGroupArray.EMPTY;
+        }
+
+        @Override
+        public long selectTracks(TrackSelection[] selections, boolean[] mayRetainStreamFlags,
+                                 SampleStream[] streams, boolean[] streamResetFlags,
+                                 long positionUs) {
+            for (int i = 0; i < selections.length; i++) {
+                if (streams[i] != null && (selections[i] == null || !mayRetainStreamFlags[i])) {
+                    streams[i] = null;
+                }
+                if (streams[i] == null && selections[i] != null) {
+                    streams[i] = new FakeSampleStream();
+                    streamResetFlags[i] = true;
+                }
+            }
+            return positionUs;
+        }
+
+        @Override
+        public void discardBuffer(long positionUs, boolean toKeyframe) {
+            // Do nothing.
+        }
+
+        @Override
+        public long readDiscontinuity() {
+            return C.TIME_UNSET;
+        }
+
+        @Override
+        public long seekToUs(long positionUs) {
+            seekPositionsUs.add(positionUs);
+            readIndex = (int) (positionUs / SAMPLE_DURATION_US);
+            return positionUs;
+        }
+
+        @Override
+        public long getAdjustedSeekPositionUs(long positionUs, SeekParameters seekParameters) {
+            return positionUs;
+        }
+
+        @Override
+        public long getBufferedPositionUs() {
+            return C.TIME_END_OF_SOURCE;
+        }
+
+        @Override
+        public long getNextLoadPositionUs() {
+            return C.TIME_END_OF_SOURCE;
+        }
+
+        @Override
+        public boolean continueLoading(long positionUs) {
+            return false;
+        }
+
+        @Override
+        public void reevaluateBuffer(long positionUs) {
+            // Do nothing.
+        }
+
+        private final class FakeSampleStream implements SampleStream {
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void maybeThrowError() {
+                // Do nothing.
+            }
+
+            @Override
+            public int readData(FormatHolder formatHolder, DecoderInputBuffer buffer,
+                                boolean formatRequired) {
+                if (readIndex == sampleCount) {
+                    buffer.setFlags(C.BUFFER_FLAG_END_OF_STREAM);
+                    return C.RESULT_BUFFER_READ;
+                }
+                buffer.ensureSpaceForWrite(1);
+                buffer.data.put((byte) readIndex);
+                buffer.timeUs = readIndex * SAMPLE_DURATION_US;
+                buffer.setFlags(C.BUFFER_FLAG_KEY_FRAME);
+                readIndex++;
+                return C.RESULT_BUFFER_READ;
+            }
+
+            @Override
+            public int skipData(long positionUs) {
+                return 0;
+            }
+        }
+    }
+}